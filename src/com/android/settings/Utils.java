@@ -356,6 +356,33 @@ public class Utils {
         }
     }
 
+    /**
+     * Parses a MAC address, such as a BSSID or Bluetooth address, of the form
+     * {@code 00:11:22:AA:BB:CC} into a number, so that it can be kept and compared
+     * without a String.
+     *
+     * @return the address as a number, or -1 if malformed
+     */
+    public static long parseMacAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            mac = (mac << 4) | digit;
+        }
+        return mac;
+    }
+
     public static String getBatteryPercentage(Intent batteryChangedIntent) {
         int level = batteryChangedIntent.getIntExtra("level", 0);
         int scale = batteryChangedIntent.getIntExtra("scale", 100);
@@ -36,6 +36,8 @@ import java.util.List;
 final class A2dpProfile implements LocalBluetoothProfile {
     private BluetoothA2dp mService;
 
+    private final CachedBluetoothDeviceManager mDeviceManager;
+
     static final ParcelUuid[] SINK_UUIDS = {
         BluetoothUuid.AudioSink,
         BluetoothUuid.AdvAudioDist,
@@ -52,14 +54,17 @@ final class A2dpProfile implements LocalBluetoothProfile {
 
         public void onServiceConnected(int profile, BluetoothProfile proxy) {
             mService = (BluetoothA2dp) proxy;
+            mDeviceManager.refreshDevices();
         }
 
         public void onServiceDisconnected(int profile) {
             mService = null;
+            mDeviceManager.refreshDevices();
         }
     }
 
-    A2dpProfile(Context context) {
+    A2dpProfile(Context context, CachedBluetoothDeviceManager deviceManager) {
+        mDeviceManager = deviceManager;
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         if(adapter != null) {
 	        adapter.getProfileProxy(context, new A2dpServiceListener(),
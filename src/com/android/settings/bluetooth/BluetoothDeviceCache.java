@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.Collection;
+
+/**
+ * BluetoothDeviceCache remembers the name, class, profiles and last connection time of
+ * each paired device, so that they can be shown before the Bluetooth service is asked
+ * for them again.
+ */
+final class BluetoothDeviceCache {
+    private static final String SHARED_PREFERENCES_NAME = "bluetooth_device_cache";
+
+    // Keys are the device address followed by one of these.
+    private static final String KEY_NAME = "/name";
+    private static final String KEY_CLASS = "/class";
+    private static final String KEY_PROFILES = "/profiles";
+    private static final String KEY_LAST_CONNECTED = "/last_connected";
+
+    private static final String PROFILE_SEPARATOR = ",";
+
+    /** What is known about one device. */
+    static final class Entry {
+        final String mName;
+        /** The class as returned by BluetoothClass.toString(), or null if unknown. */
+        final String mBtClass;
+        /** Names of the profiles, as returned by LocalBluetoothProfile.toString(). */
+        final String[] mProfiles;
+        final long mLastConnected;
+
+        Entry(String name, String btClass, String[] profiles, long lastConnected) {
+            mName = name;
+            mBtClass = btClass;
+            mProfiles = profiles;
+            mLastConnected = lastConnected;
+        }
+
+        /** Returns the cached class, or null if unknown. */
+        BluetoothClass getBtClass() {
+            if (mBtClass == null) {
+                return null;
+            }
+            try {
+                return new BluetoothClass(Integer.parseInt(mBtClass, 16));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+
+    BluetoothDeviceCache(Context context) {
+        mPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns what was last saved about the device, or null if it wasn't paired then.
+     */
+    Entry get(String address) {
+        final String name = mPreferences.getString(address + KEY_NAME, null);
+        if (name == null) {
+            return null;
+        }
+        final String profiles = mPreferences.getString(address + KEY_PROFILES, "");
+        return new Entry(name, mPreferences.getString(address + KEY_CLASS, null),
+                profiles.length() == 0 ? new String[0]
+                        : TextUtils.split(profiles, PROFILE_SEPARATOR),
+                mPreferences.getLong(address + KEY_LAST_CONNECTED, 0));
+    }
+
+    /**
+     * Saves the attributes of a paired device, if they changed. The file is written in
+     * the background.
+     */
+    void put(String address, String name, BluetoothClass btClass,
+            Collection<LocalBluetoothProfile> profiles) {
+        final String btClassString = btClass != null ? btClass.toString() : null;
+        final String profilesString = TextUtils.join(PROFILE_SEPARATOR, profiles);
+        if (name.equals(mPreferences.getString(address + KEY_NAME, null))
+                && TextUtils.equals(btClassString,
+                        mPreferences.getString(address + KEY_CLASS, null))
+                && profilesString.equals(mPreferences.getString(address + KEY_PROFILES, ""))) {
+            return;
+        }
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putString(address + KEY_NAME, name);
+        if (btClassString != null) {
+            editor.putString(address + KEY_CLASS, btClassString);
+        } else {
+            editor.remove(address + KEY_CLASS);
+        }
+        editor.putString(address + KEY_PROFILES, profilesString);
+        editor.apply();
+    }
+
+    void setLastConnected(String address, long time) {
+        mPreferences.edit().putLong(address + KEY_LAST_CONNECTED, time).apply();
+    }
+
+    /** Forgets a device that is no longer paired. */
+    void remove(String address) {
+        mPreferences.edit()
+                .remove(address + KEY_NAME)
+                .remove(address + KEY_CLASS)
+                .remove(address + KEY_PROFILES)
+                .remove(address + KEY_LAST_CONNECTED)
+                .apply();
+    }
+}
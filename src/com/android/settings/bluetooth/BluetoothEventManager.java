@@ -25,18 +25,26 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Message;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * BluetoothEventManager receives broadcasts and callbacks from the Bluetooth
  * API and dispatches the event on the UI thread to the right class in the
  * Settings.
+ *
+ * Updates to the attributes of known devices (RSSI, name, class, UUIDs) are merged per
+ * device and applied once per {@link #UPDATE_DELAY_MS}, so that a burst of them
+ * refreshes each device once. Any other event first applies the pending updates, to
+ * keep the order of events.
  */
 final class BluetoothEventManager {
     private static final String TAG = "BluetoothEventManager";
@@ -49,12 +57,64 @@ final class BluetoothEventManager {
     private Context mContext;
 
     private final Collection<BluetoothCallback> mCallbacks =
-            new ArrayList<BluetoothCallback>();
+            new CopyOnWriteArrayList<BluetoothCallback>();
+
+    /** Attribute updates are held back for about a frame. */
+    private static final int UPDATE_DELAY_MS = 16;
+    private static final int MSG_APPLY_UPDATES = 1;
+
+    private final LinkedHashMap<CachedBluetoothDevice, PendingUpdate> mPendingUpdates =
+            new LinkedHashMap<CachedBluetoothDevice, PendingUpdate>();
+    private final android.os.Handler mUpdateHandler;
+
+    /** Records discovery sessions for replay, null unless enabled. */
+    private final DiscoveryRecorder mRecorder;
+
+    private int mEventsReceived;
+    private int mUpdatesCoalesced;
+    private int mUpdatesDelivered;
 
     interface Handler {
         void onReceive(Context context, Intent intent, BluetoothDevice device);
     }
 
+    /** Handles an attribute update that may wait for the next batch. */
+    private interface UpdateHandler extends Handler {
+    }
+
+    /** Attribute changes of one device, waiting to be applied. */
+    private static class PendingUpdate {
+        final CachedBluetoothDevice mCachedDevice;
+        boolean mFound;
+        short mRssi;
+        BluetoothClass mBtClass;
+        String mName;
+        boolean mNameChanged;
+        boolean mClassChanged;
+        boolean mUuidChanged;
+
+        PendingUpdate(CachedBluetoothDevice cachedDevice) {
+            mCachedDevice = cachedDevice;
+        }
+
+        void apply() {
+            mCachedDevice.beginBatch();
+            if (mFound) {
+                applyFound(mCachedDevice, mRssi, mBtClass, mName);
+            }
+            if (mNameChanged) {
+                mCachedDevice.refreshName();
+            }
+            if (mClassChanged) {
+                mCachedDevice.refreshBtClass();
+            }
+            if (mUuidChanged) {
+                mCachedDevice.onUuidChanged();
+            }
+            mCachedDevice.endBatch();
+        }
+    }
+
     void addHandler(String action, Handler handler) {
         mHandlerMap.put(action, handler);
         mAdapterIntentFilter.addAction(action);
@@ -78,6 +138,13 @@ final class BluetoothEventManager {
         mProfileIntentFilter = new IntentFilter();
         mHandlerMap = new HashMap<String, Handler>();
         mContext = context;
+        mRecorder = DiscoveryRecorder.createIfEnabled(context);
+        mUpdateHandler = new android.os.Handler(context.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                applyPendingUpdates();
+            }
+        };
 
         // Bluetooth on/off broadcasts
         addHandler(BluetoothAdapter.ACTION_STATE_CHANGED, new AdapterStateChangedHandler());
@@ -108,16 +175,59 @@ final class BluetoothEventManager {
 
     /** Register to start receiving callbacks for Bluetooth events. */
     void registerCallback(BluetoothCallback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.add(callback);
-        }
+        mCallbacks.add(callback);
     }
 
     /** Unregister to stop receiving callbacks for Bluetooth events. */
     void unregisterCallback(BluetoothCallback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.remove(callback);
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Returns the update waiting for {@code cachedDevice}, scheduling the next batch if
+     * there is none yet.
+     */
+    private PendingUpdate getPendingUpdate(CachedBluetoothDevice cachedDevice) {
+        PendingUpdate update = mPendingUpdates.get(cachedDevice);
+        if (update == null) {
+            update = new PendingUpdate(cachedDevice);
+            mPendingUpdates.put(cachedDevice, update);
+            if (!mUpdateHandler.hasMessages(MSG_APPLY_UPDATES)) {
+                mUpdateHandler.sendEmptyMessageDelayed(MSG_APPLY_UPDATES, UPDATE_DELAY_MS);
+            }
+        } else {
+            mUpdatesCoalesced++;
         }
+        return update;
+    }
+
+    private void applyPendingUpdates() {
+        mUpdateHandler.removeMessages(MSG_APPLY_UPDATES);
+        if (mPendingUpdates.isEmpty()) {
+            return;
+        }
+        final ArrayList<PendingUpdate> updates =
+                new ArrayList<PendingUpdate>(mPendingUpdates.values());
+        mPendingUpdates.clear();
+        for (PendingUpdate update : updates) {
+            update.apply();
+        }
+        mUpdatesDelivered += updates.size();
+    }
+
+    private static void applyFound(CachedBluetoothDevice cachedDevice, short rssi,
+            BluetoothClass btClass, String name) {
+        cachedDevice.setRssi(rssi);
+        cachedDevice.setBtClass(btClass);
+        cachedDevice.setName(name);
+        cachedDevice.setVisible(true);
+    }
+
+    /** Events received, and device updates merged into others or applied. */
+    @Override
+    public String toString() {
+        return "events=" + mEventsReceived + " coalesced=" + mUpdatesCoalesced
+                + " delivered=" + mUpdatesDelivered;
     }
 
     // This can't be called from a broadcast receiver where the filter is set in the Manifest.
@@ -141,17 +251,33 @@ final class BluetoothEventManager {
         public void onReceive(Context context, Intent intent) {
             Log.v(TAG, "Received " + intent.getAction());
 
-            String action = intent.getAction();
-            BluetoothDevice device = intent
-                    .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-            Handler handler = mHandlerMap.get(action);
-            if (handler != null) {
-                handler.onReceive(context, intent, device);
+            if (mRecorder != null) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                mRecorder.record(intent.getAction(), intent, device);
             }
+            dispatch(context, intent);
         }
     };
 
+    /**
+     * Passes a broadcast to its handler. Called on the main thread for each broadcast
+     * received, and by tests replaying recorded ones.
+     */
+    void dispatch(Context context, Intent intent) {
+        String action = intent.getAction();
+        BluetoothDevice device = intent
+                .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+
+        Handler handler = mHandlerMap.get(action);
+        if (handler != null) {
+            mEventsReceived++;
+            if (!(handler instanceof UpdateHandler)) {
+                applyPendingUpdates();
+            }
+            handler.onReceive(context, intent, device);
+        }
+    }
+
     private class AdapterStateChangedHandler implements Handler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
@@ -160,10 +286,8 @@ final class BluetoothEventManager {
             // update local profiles and get paired devices
             mLocalAdapter.setBluetoothStateInt(state);
             // send callback to update UI and possibly start scanning
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onBluetoothStateChanged(state);
-                }
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onBluetoothStateChanged(state);
             }
         }
     }
@@ -176,17 +300,18 @@ final class BluetoothEventManager {
         }
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onScanningStateChanged(mStarted);
-                }
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onScanningStateChanged(mStarted);
             }
             mDeviceManager.onScanningStateChanged(mStarted);
             LocalBluetoothPreferences.persistDiscoveringTimestamp(context);
+            if (!mStarted && Utils.D) {
+                Log.d(TAG, "Discovery finished: " + BluetoothEventManager.this);
+            }
         }
     }
 
-    private class DeviceFoundHandler implements Handler {
+    private class DeviceFoundHandler implements UpdateHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
             short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
@@ -201,19 +326,24 @@ final class BluetoothEventManager {
                         + cachedDevice);
                 // callback to UI to create Preference for new device
                 dispatchDeviceAdded(cachedDevice);
+                cachedDevice.beginBatch();
+                applyFound(cachedDevice, rssi, btClass, name);
+                cachedDevice.endBatch();
+                return;
             }
-            cachedDevice.setRssi(rssi);
-            cachedDevice.setBtClass(btClass);
-            cachedDevice.setName(name);
-            cachedDevice.setVisible(true);
+            PendingUpdate update = getPendingUpdate(cachedDevice);
+            update.mFound = true;
+            update.mRssi = rssi;
+            if (btClass != null) {
+                update.mBtClass = btClass;
+            }
+            update.mName = name;
         }
     }
 
     private void dispatchDeviceAdded(CachedBluetoothDevice cachedDevice) {
-        synchronized (mCallbacks) {
-            for (BluetoothCallback callback : mCallbacks) {
-                callback.onDeviceAdded(cachedDevice);
-            }
+        for (BluetoothCallback callback : mCallbacks) {
+            callback.onDeviceAdded(cachedDevice);
         }
     }
 
@@ -226,19 +356,20 @@ final class BluetoothEventManager {
                 return;
             }
             if (CachedBluetoothDeviceManager.onDeviceDisappeared(cachedDevice)) {
-                synchronized (mCallbacks) {
-                    for (BluetoothCallback callback : mCallbacks) {
-                        callback.onDeviceDeleted(cachedDevice);
-                    }
+                for (BluetoothCallback callback : mCallbacks) {
+                    callback.onDeviceDeleted(cachedDevice);
                 }
             }
         }
     }
 
-    private class NameChangedHandler implements Handler {
+    private class NameChangedHandler implements UpdateHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onDeviceNameUpdated(device);
+            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
+            if (cachedDevice != null) {
+                getPendingUpdate(cachedDevice).mNameChanged = true;
+            }
         }
     }
 
@@ -268,10 +399,8 @@ final class BluetoothEventManager {
                 }
             }
 
-            synchronized (mCallbacks) {
-                for (BluetoothCallback callback : mCallbacks) {
-                    callback.onDeviceBondStateChanged(cachedDevice, bondState);
-                }
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onDeviceBondStateChanged(cachedDevice, bondState);
             }
             cachedDevice.onBondingStateChanged(bondState);
 
@@ -326,17 +455,23 @@ final class BluetoothEventManager {
         }
     }
 
-    private class ClassChangedHandler implements Handler {
+    private class ClassChangedHandler implements UpdateHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onBtClassChanged(device);
+            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
+            if (cachedDevice != null) {
+                getPendingUpdate(cachedDevice).mClassChanged = true;
+            }
         }
     }
 
-    private class UuidChangedHandler implements Handler {
+    private class UuidChangedHandler implements UpdateHandler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
-            mDeviceManager.onUuidChanged(device);
+            CachedBluetoothDevice cachedDevice = mDeviceManager.findDevice(device);
+            if (cachedDevice != null) {
+                getPendingUpdate(cachedDevice).mUuidChanged = true;
+            }
         }
     }
 
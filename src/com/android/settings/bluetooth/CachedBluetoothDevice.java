@@ -21,16 +21,23 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.settings.R;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * CachedBluetoothDevice represents a remote Bluetooth device. It contains
@@ -45,11 +52,21 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     private final Context mContext;
     private final LocalBluetoothAdapter mLocalAdapter;
     private final LocalBluetoothProfileManager mProfileManager;
+    private final BluetoothDeviceCache mDeviceCache;
     private final BluetoothDevice mDevice;
     private String mName;
     private short mRssi;
     private BluetoothClass mBtClass;
-    private HashMap<LocalBluetoothProfile, Integer> mProfileConnectionState;
+
+    // Connection state of each profile, indexed by ordinal; fetched when first needed.
+    private final int[] mProfileConnectionState =
+            new int[LocalBluetoothProfileManager.PROFILE_COUNT];
+    private static final int STATE_UNKNOWN = -1;
+
+    // Summary of the profile connections, see getConnectionSummary(); recomputed when
+    // they may have changed.
+    private int mConnectionSummary = SUMMARY_UNKNOWN;
+    private static final int SUMMARY_UNKNOWN = -1;
 
     private final List<LocalBluetoothProfile> mProfiles =
             new ArrayList<LocalBluetoothProfile>();
@@ -65,7 +82,26 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private int mPhonebookPermissionChoice;
 
-    private final Collection<Callback> mCallbacks = new ArrayList<Callback>();
+    /** Whether the device is paired, so its attributes are kept in mDeviceCache. */
+    private boolean mCached;
+    private long mLastConnected;
+
+    /** Fetches live attributes of devices filled from the cache, one at a time. */
+    private static final Executor sReconcileExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Bumped whenever the name, class or profiles are set on the main thread, so that
+     * live values fetched before are not applied over newer ones.
+     */
+    private int mNameGeneration;
+    private int mBtClassGeneration;
+    private int mProfilesGeneration;
+
+    // Copy on write: callbacks may register or unregister others while dispatched.
+    private final Collection<Callback> mCallbacks = new CopyOnWriteArrayList<Callback>();
+    /** Nesting of beginBatch() calls, and whether attributes changed meanwhile. */
+    private int mBatchDepth;
+    private boolean mChangedInBatch;
 
     // Following constants indicate the user's choices of Phone book access settings
     // User hasn't made any choice or settings app has wiped out the memory
@@ -78,10 +114,13 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     private final static String PHONEBOOK_PREFS_NAME = "bluetooth_phonebook_permission";
 
     /**
-     * When we connect to multiple profiles, we only want to display a single
-     * error even if they all fail. This tracks that state.
+     * Connects the profiles in parallel. When we connect to multiple profiles, we
+     * only want to display a single error even if they all fail. Only used from the
+     * main thread; connects and disconnects made on other threads are posted there.
      */
-    private boolean mIsConnectingErrorPossible;
+    private final ProfileConnector mConnector;
+    /** Whether the user asked for the round of connections in progress. */
+    private boolean mShowConnectError;
 
     /**
      * Last time a bt profile auto-connect was attempted.
@@ -119,8 +158,17 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
                     " newProfileState " + newProfileState);
         }
 
-        mProfileConnectionState.put(profile, newProfileState);
+        final int oldProfileState = mProfileConnectionState[profile.getOrdinal()];
+        mProfileConnectionState[profile.getOrdinal()] = newProfileState;
+        mConnectionSummary = SUMMARY_UNKNOWN;
+        mConnector.onProfileStateChanged(profile, newProfileState);
         if (newProfileState == BluetoothProfile.STATE_CONNECTED) {
+            if (oldProfileState != BluetoothProfile.STATE_CONNECTED) {
+                mLastConnected = System.currentTimeMillis();
+                if (mCached) {
+                    mDeviceCache.setLastConnected(mDevice.getAddress(), mLastConnected);
+                }
+            }
             if (!mProfiles.contains(profile)) {
                 mRemovedProfiles.remove(profile);
                 mProfiles.add(profile);
@@ -129,6 +177,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
                     // Device doesn't support NAP, so remove PanProfile on disconnect
                     mLocalNapRoleConnected = true;
                 }
+                saveToCache();
             }
         } else if (mLocalNapRoleConnected && profile instanceof PanProfile &&
                 ((PanProfile) profile).isLocalRoleNap(mDevice) &&
@@ -137,28 +186,66 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
             mProfiles.remove(profile);
             mRemovedProfiles.add(profile);
             mLocalNapRoleConnected = false;
+            saveToCache();
         }
     }
 
     CachedBluetoothDevice(Context context,
                           LocalBluetoothAdapter adapter,
                           LocalBluetoothProfileManager profileManager,
+                          BluetoothDeviceCache deviceCache,
                           BluetoothDevice device) {
         mContext = context;
         mLocalAdapter = adapter;
         mProfileManager = profileManager;
+        mDeviceCache = deviceCache;
         mDevice = device;
-        mProfileConnectionState = new HashMap<LocalBluetoothProfile, Integer>();
-        fillData();
+        Arrays.fill(mProfileConnectionState, STATE_UNKNOWN);
+        mConnector = new ProfileConnector(device, sMainHandler, new ProfileConnector.Callback() {
+            public void onConnectFinished(int result, List<LocalBluetoothProfile> failed) {
+                final boolean showError = mShowConnectError;
+                mShowConnectError = false;
+                if (result == ProfileConnector.RESULT_FAILED && showError) {
+                    Utils.showConnectingError(mContext, mName);
+                } else if (result == ProfileConnector.RESULT_FAILED) {
+                    Log.i(TAG, "Failed to connect " + mName);
+                } else if (result == ProfileConnector.RESULT_PARTIAL) {
+                    Log.i(TAG, "Failed to connect " + failed + " to " + mName);
+                }
+            }
+        });
+        BluetoothDeviceCache.Entry entry = deviceCache.get(device.getAddress());
+        if (entry != null) {
+            fillData(entry);
+        } else {
+            fillData();
+        }
     }
 
     void disconnect() {
+        if (!isMainThread()) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    disconnect();
+                }
+            });
+            return;
+        }
         for (LocalBluetoothProfile profile : mProfiles) {
             disconnect(profile);
         }
     }
 
-    void disconnect(LocalBluetoothProfile profile) {
+    void disconnect(final LocalBluetoothProfile profile) {
+        if (!isMainThread()) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    disconnect(profile);
+                }
+            });
+            return;
+        }
+        mConnector.cancel(profile);
         if (profile.disconnect(mDevice)) {
             if (Utils.D) {
                 Log.d(TAG, "Command sent successfully:DISCONNECT " + describe(profile));
@@ -166,11 +253,31 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
+    /** Connects as asked by the user, who is told if no profile connects. */
     void connect(boolean connectAllProfiles) {
+        connect(connectAllProfiles, true);
+    }
+
+    /**
+     * Connects the device, on the main thread.
+     *
+     * @param userInitiated whether to tell the user if no profile connects; automatic
+     *            connections only log it
+     */
+    void connect(final boolean connectAllProfiles, final boolean userInitiated) {
+        if (!isMainThread()) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    connect(connectAllProfiles, userInitiated);
+                }
+            });
+            return;
+        }
         if (!ensurePaired()) {
             return;
         }
 
+        mShowConnectError |= userInitiated;
         mConnectAttempted = SystemClock.elapsedRealtime();
         connectWithoutResettingTimer(connectAllProfiles);
     }
@@ -178,7 +285,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     void onBondingDockConnect() {
         // Attempt to connect if UUIDs are available. Otherwise,
         // we will connect when the ACTION_UUID intent arrives.
-        connect(false);
+        connect(false, false);
     }
 
     private void connectWithoutResettingTimer(boolean connectAllProfiles) {
@@ -192,22 +299,20 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
             }
         }
 
-        // Reset the only-show-one-error-dialog tracking variable
-        mIsConnectingErrorPossible = true;
-
-        int preferredProfiles = 0;
+        List<LocalBluetoothProfile> preferredProfiles = new ArrayList<LocalBluetoothProfile>();
         for (LocalBluetoothProfile profile : mProfiles) {
             if (connectAllProfiles ? profile.isConnectable() : profile.isAutoConnectable()) {
                 if (profile.isPreferred(mDevice)) {
-                    ++preferredProfiles;
-                    connectInt(profile);
+                    preferredProfiles.add(profile);
                 }
             }
         }
-        if (DEBUG) Log.d(TAG, "Preferred profiles = " + preferredProfiles);
+        if (DEBUG) Log.d(TAG, "Preferred profiles = " + preferredProfiles.size());
 
-        if (preferredProfiles == 0) {
+        if (preferredProfiles.isEmpty()) {
             connectAutoConnectableProfiles();
+        } else {
+            connectInt(preferredProfiles);
         }
     }
 
@@ -215,40 +320,61 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         if (!ensurePaired()) {
             return;
         }
-        // Reset the only-show-one-error-dialog tracking variable
-        mIsConnectingErrorPossible = true;
 
+        List<LocalBluetoothProfile> profiles = new ArrayList<LocalBluetoothProfile>();
         for (LocalBluetoothProfile profile : mProfiles) {
             if (profile.isAutoConnectable()) {
                 profile.setPreferred(mDevice, true);
-                connectInt(profile);
+                profiles.add(profile);
             }
         }
+        connectInt(profiles);
     }
 
     /**
-     * Connect this device to the specified profile.
+     * Connect this device to the specified profile, as asked by the user.
      *
      * @param profile the profile to use with the remote device
      */
     void connectProfile(LocalBluetoothProfile profile) {
-        mConnectAttempted = SystemClock.elapsedRealtime();
-        // Reset the only-show-one-error-dialog tracking variable
-        mIsConnectingErrorPossible = true;
-        connectInt(profile);
+        connectProfile(profile, true);
     }
 
-    private void connectInt(LocalBluetoothProfile profile) {
+    /**
+     * Connect this device to the specified profile, on the main thread.
+     *
+     * @param profile the profile to use with the remote device
+     * @param userInitiated whether to tell the user if it doesn't connect
+     */
+    void connectProfile(final LocalBluetoothProfile profile, final boolean userInitiated) {
+        if (!isMainThread()) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    connectProfile(profile, userInitiated);
+                }
+            });
+            return;
+        }
         if (!ensurePaired()) {
             return;
         }
-        if (profile.connect(mDevice)) {
-            if (Utils.D) {
-                Log.d(TAG, "Command sent successfully:CONNECT " + describe(profile));
-            }
+        mShowConnectError |= userInitiated;
+        mConnectAttempted = SystemClock.elapsedRealtime();
+        connectInt(Collections.singletonList(profile));
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    private void connectInt(List<LocalBluetoothProfile> profiles) {
+        if (!ensurePaired()) {
             return;
         }
-        Log.i(TAG, "Failed to connect " + profile.toString() + " to " + mName);
+        if (Utils.D) {
+            Log.d(TAG, "Connecting " + profiles + " " + describe(null));
+        }
+        mConnector.connect(profiles);
     }
 
     private boolean ensurePaired() {
@@ -308,13 +434,76 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     }
 
     int getProfileConnectionState(LocalBluetoothProfile profile) {
-        if (mProfileConnectionState == null ||
-                mProfileConnectionState.get(profile) == null) {
+        int state = mProfileConnectionState[profile.getOrdinal()];
+        if (state == STATE_UNKNOWN) {
             // If cache is empty make the binder call to get the state
-            int state = profile.getConnectionStatus(mDevice);
-            mProfileConnectionState.put(profile, state);
+            state = profile.getConnectionStatus(mDevice);
+            mProfileConnectionState[profile.getOrdinal()] = state;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the string resource summing up the connections to the device, or 0 for
+     * none. It is only worked out again after a profile or the bond state changed.
+     */
+    int getConnectionSummary() {
+        if (mConnectionSummary == SUMMARY_UNKNOWN) {
+            mConnectionSummary = computeConnectionSummary();
+        }
+        return mConnectionSummary;
+    }
+
+    private int computeConnectionSummary() {
+        boolean profileConnected = false;       // at least one profile is connected
+        boolean a2dpNotConnected = false;       // A2DP is preferred but not connected
+        boolean headsetNotConnected = false;    // Headset is preferred but not connected
+
+        for (LocalBluetoothProfile profile : mProfiles) {
+            int connectionStatus = getProfileConnectionState(profile);
+
+            switch (connectionStatus) {
+                case BluetoothProfile.STATE_CONNECTING:
+                case BluetoothProfile.STATE_DISCONNECTING:
+                    return Utils.getConnectionStateSummary(connectionStatus);
+
+                case BluetoothProfile.STATE_CONNECTED:
+                    profileConnected = true;
+                    break;
+
+                case BluetoothProfile.STATE_DISCONNECTED:
+                    if (profile.isProfileReady() && profile.isPreferred(mDevice)) {
+                        if (profile instanceof A2dpProfile) {
+                            a2dpNotConnected = true;
+                        } else if (profile instanceof HeadsetProfile) {
+                            headsetNotConnected = true;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        if (profileConnected) {
+            if (a2dpNotConnected && headsetNotConnected) {
+                return R.string.bluetooth_connected_no_headset_no_a2dp;
+            } else if (a2dpNotConnected) {
+                return R.string.bluetooth_connected_no_a2dp;
+            } else if (headsetNotConnected) {
+                return R.string.bluetooth_connected_no_headset;
+            } else {
+                return R.string.bluetooth_connected;
+            }
+        }
+
+        switch (getBondState()) {
+            case BluetoothDevice.BOND_BONDING:
+                return R.string.bluetooth_pairing;
+
+            case BluetoothDevice.BOND_BONDED:
+            case BluetoothDevice.BOND_NONE:
+            default:
+                return 0;
         }
-        return mProfileConnectionState.get(profile);
     }
 
     // TODO: do any of these need to run async on a background thread?
@@ -325,9 +514,105 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         fetchPhonebookPermissionChoice();
 
         mVisible = false;
+        if (getBondState() == BluetoothDevice.BOND_BONDED) {
+            mCached = true;
+            saveToCache();
+        }
         dispatchAttributesChanged();
     }
 
+    /**
+     * Fills in the attributes saved when the device was last seen paired, so it can be
+     * shown right away, and fetches the live ones in the background.
+     */
+    private void fillData(BluetoothDeviceCache.Entry entry) {
+        mName = entry.mName;
+        mBtClass = entry.getBtClass();
+        for (String profileName : entry.mProfiles) {
+            LocalBluetoothProfile profile = mProfileManager.getProfileByName(profileName);
+            if (profile != null) {
+                mProfiles.add(profile);
+            }
+        }
+        mLastConnected = entry.mLastConnected;
+        mCached = true;
+        fetchPhonebookPermissionChoice();
+
+        mVisible = false;
+        dispatchAttributesChanged();
+
+        final int nameGeneration = mNameGeneration;
+        final int btClassGeneration = mBtClassGeneration;
+        final int profilesGeneration = mProfilesGeneration;
+        sReconcileExecutor.execute(new Runnable() {
+            public void run() {
+                final int bondState = mDevice.getBondState();
+                final String aliasName = mDevice.getAliasName();
+                final String name = TextUtils.isEmpty(aliasName)
+                        ? mDevice.getAddress() : aliasName;
+                final BluetoothClass btClass = mDevice.getBluetoothClass();
+                final ParcelUuid[] uuids = mDevice.getUuids();
+                final ParcelUuid[] localUuids = mLocalAdapter.getUuids();
+                sMainHandler.post(new Runnable() {
+                    public void run() {
+                        // Drop what was set since it was fetched.
+                        reconcile(bondState,
+                                nameGeneration == mNameGeneration ? name : null,
+                                btClassGeneration == mBtClassGeneration ? btClass : null,
+                                profilesGeneration == mProfilesGeneration ? uuids : null,
+                                localUuids);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replaces the attributes read from the cache with the live ones. Null ones are left
+     * as they are.
+     */
+    private void reconcile(int bondState, String name, BluetoothClass btClass,
+            ParcelUuid[] uuids, ParcelUuid[] localUuids) {
+        beginBatch();
+        if (name != null && !name.equals(mName)) {
+            mName = name;
+            dispatchAttributesChanged();
+        }
+        if (btClass != null && !btClass.equals(mBtClass)) {
+            mBtClass = btClass;
+            dispatchAttributesChanged();
+        }
+        if (uuids != null && localUuids != null) {
+            List<LocalBluetoothProfile> cachedProfiles =
+                    new ArrayList<LocalBluetoothProfile>(mProfiles);
+            mProfileManager.updateProfiles(uuids, localUuids, mProfiles, mRemovedProfiles);
+            if (!cachedProfiles.equals(mProfiles)) {
+                mConnectionSummary = SUMMARY_UNKNOWN;
+                dispatchAttributesChanged();
+            }
+        }
+        if (bondState == BluetoothDevice.BOND_NONE) {
+            // Unpaired while we weren't looking.
+            forget();
+        } else {
+            saveToCache();
+        }
+        endBatch();
+    }
+
+    private void saveToCache() {
+        if (mCached) {
+            mDeviceCache.put(mDevice.getAddress(), mName, mBtClass, mProfiles);
+        }
+    }
+
+    private void forget() {
+        if (mCached) {
+            mDeviceCache.remove(mDevice.getAddress());
+            mCached = false;
+        }
+    }
+
     BluetoothDevice getDevice() {
         return mDevice;
     }
@@ -338,6 +623,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     void setName(String name) {
         if (!mName.equals(name)) {
+            mNameGeneration++;
             if (TextUtils.isEmpty(name)) {
                 // TODO: use friendly name for unknown device (bug 1181856)
                 mName = mDevice.getAddress();
@@ -345,12 +631,15 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
                 mName = name;
                 mDevice.setAlias(name);
             }
+            saveToCache();
             dispatchAttributesChanged();
         }
     }
 
     void refreshName() {
+        mNameGeneration++;
         fetchName();
+        saveToCache();
         dispatchAttributesChanged();
     }
 
@@ -363,7 +652,20 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         }
     }
 
+    /**
+     * Recomputes the connection summary and tells the callbacks, e.g. after the preferred
+     * profiles changed. Posted to the main thread if called elsewhere.
+     */
     void refresh() {
+        if (!isMainThread()) {
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            });
+            return;
+        }
+        mConnectionSummary = SUMMARY_UNKNOWN;
         dispatchAttributesChanged();
     }
 
@@ -382,6 +684,18 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         return mDevice.getBondState();
     }
 
+    /**
+     * Returns when a profile of the device last connected, in milliseconds since the
+     * epoch, or 0 if it hasn't since it was paired.
+     */
+    long getLastConnected() {
+        return mLastConnected;
+    }
+
+    short getRssi() {
+        return mRssi;
+    }
+
     void setRssi(short rssi) {
         if (mRssi != rssi) {
             mRssi = rssi;
@@ -437,6 +751,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         if (localUuids == null) return false;
 
         mProfileManager.updateProfiles(uuids, localUuids, mProfiles, mRemovedProfiles);
+        mConnectionSummary = SUMMARY_UNKNOWN;
 
         if (DEBUG) {
             Log.e(TAG, "updating profiles for " + mDevice.getAliasName());
@@ -456,7 +771,9 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
      * for the class.
      */
     void refreshBtClass() {
+        mBtClassGeneration++;
         fetchBtClass();
+        saveToCache();
         dispatchAttributesChanged();
     }
 
@@ -464,6 +781,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
      * Refreshes the UI when framework alerts us of a UUID change.
      */
     void onUuidChanged() {
+        mProfilesGeneration++;
         updateProfiles();
 
         if (DEBUG) {
@@ -480,19 +798,26 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
                         .elapsedRealtime()) {
             connectWithoutResettingTimer(false);
         }
+        saveToCache();
         dispatchAttributesChanged();
     }
 
     void onBondingStateChanged(int bondState) {
         if (bondState == BluetoothDevice.BOND_NONE) {
+            mConnector.cancelAll();
+            mShowConnectError = false;
             mProfiles.clear();
             mConnectAfterPairing = false;  // cancel auto-connect
             setPhonebookPermissionChoice(PHONEBOOK_ACCESS_UNKNOWN);
+            forget();
+            mLastConnected = 0;
         }
 
         refresh();
 
         if (bondState == BluetoothDevice.BOND_BONDED) {
+            mCached = true;
+            saveToCache();
             if (mDevice.isBluetoothDock()) {
                 onBondingDockConnect();
             } else if (mConnectAfterPairing) {
@@ -504,7 +829,9 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     void setBtClass(BluetoothClass btClass) {
         if (btClass != null && mBtClass != btClass) {
+            mBtClassGeneration++;
             mBtClass = btClass;
+            saveToCache();
             dispatchAttributesChanged();
         }
     }
@@ -533,22 +860,35 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     }
 
     void registerCallback(Callback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.add(callback);
-        }
+        mCallbacks.add(callback);
     }
 
     void unregisterCallback(Callback callback) {
-        synchronized (mCallbacks) {
-            mCallbacks.remove(callback);
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Holds back {@link Callback#onDeviceAttributesChanged()} until the matching
+     * {@link #endBatch()}, so that several changes are reported once.
+     */
+    void beginBatch() {
+        mBatchDepth++;
+    }
+
+    void endBatch() {
+        if (--mBatchDepth == 0 && mChangedInBatch) {
+            mChangedInBatch = false;
+            dispatchAttributesChanged();
         }
     }
 
     private void dispatchAttributesChanged() {
-        synchronized (mCallbacks) {
-            for (Callback callback : mCallbacks) {
-                callback.onDeviceAttributesChanged();
-            }
+        if (mBatchDepth > 0) {
+            mChangedInBatch = true;
+            return;
+        }
+        for (Callback callback : mCallbacks) {
+            callback.onDeviceAttributesChanged();
         }
     }
 
@@ -22,25 +22,52 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ *
+ * Devices are looked up by address through a hash index, and the list of all devices
+ * is published as an immutable snapshot replaced on every change, so neither needs the
+ * lock to be read. The index is rebuilt with the list, and looked up without
+ * allocating.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
     private Context mContext;
-    private final List<CachedBluetoothDevice> mCachedDevices =
-            new ArrayList<CachedBluetoothDevice>();
+    /** All devices; only changed under the lock, by replacing it with a new list. */
+    private volatile List<CachedBluetoothDevice> mCachedDevices =
+            Collections.emptyList();
+    /** Devices by address; replaced along with {@link #mCachedDevices}. */
+    private volatile AddressTable mDevicesByAddress = new AddressTable(mCachedDevices);
+    /** What was known about paired devices when the app last ran. */
+    private final BluetoothDeviceCache mDeviceCache;
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
+        mDeviceCache = new BluetoothDeviceCache(context);
+    }
+
+    /**
+     * Returns the devices known when called. The collection can't be modified and
+     * doesn't change as devices are added later.
+     */
+    public Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
+        return mCachedDevices;
     }
 
-    public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+    /**
+     * Refreshes the connection summary of every device, which depends on whether the
+     * profile services are bound.
+     */
+    void refreshDevices() {
+        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
+            cachedDevice.refresh();
+        }
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -48,13 +75,6 @@ final class CachedBluetoothDeviceManager {
         return cachedDevice.getBondState() == BluetoothDevice.BOND_NONE;
     }
 
-    public void onDeviceNameUpdated(BluetoothDevice device) {
-        CachedBluetoothDevice cachedDevice = findDevice(device);
-        if (cachedDevice != null) {
-            cachedDevice.refreshName();
-        }
-    }
-
     /**
      * Search for existing {@link CachedBluetoothDevice} or return null
      * if this device isn't in the cache. Use {@link #addDevice}
@@ -66,6 +86,10 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
+        final long address = com.android.settings.Utils.parseMacAddress(device.getAddress());
+        if (address >= 0) {
+            return mDevicesByAddress.get(address);
+        }
         for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
             if (cachedDevice.getDevice().equals(device)) {
                 return cachedDevice;
@@ -84,11 +108,68 @@ final class CachedBluetoothDeviceManager {
             LocalBluetoothProfileManager profileManager,
             BluetoothDevice device) {
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
-            profileManager, device);
-        mCachedDevices.add(newDevice);
+            profileManager, mDeviceCache, device);
+        synchronized (this) {
+            final List<CachedBluetoothDevice> devices =
+                    new ArrayList<CachedBluetoothDevice>(mCachedDevices.size() + 1);
+            devices.addAll(mCachedDevices);
+            devices.add(newDevice);
+            mDevicesByAddress = new AddressTable(devices);
+            mCachedDevices = Collections.unmodifiableList(devices);
+        }
         return newDevice;
     }
 
+    /**
+     * Open addressing table of devices by their address as a number. Never changed once
+     * built.
+     */
+    private static final class AddressTable {
+        private final long[] mAddresses;
+        private final CachedBluetoothDevice[] mDevices;
+        private final int mMask;
+
+        AddressTable(List<CachedBluetoothDevice> devices) {
+            // At most half full, so probe sequences stay short.
+            int capacity = 16;
+            while (capacity < devices.size() * 2) {
+                capacity <<= 1;
+            }
+            mAddresses = new long[capacity];
+            mDevices = new CachedBluetoothDevice[capacity];
+            mMask = capacity - 1;
+            Arrays.fill(mAddresses, -1);
+            for (CachedBluetoothDevice device : devices) {
+                final long address = com.android.settings.Utils.parseMacAddress(
+                        device.getDevice().getAddress());
+                if (address < 0) {
+                    continue;
+                }
+                int slot = hash(address);
+                while (mAddresses[slot] >= 0 && mAddresses[slot] != address) {
+                    slot = (slot + 1) & mMask;
+                }
+                mAddresses[slot] = address;
+                mDevices[slot] = device;
+            }
+        }
+
+        CachedBluetoothDevice get(long address) {
+            int slot = hash(address);
+            while (mAddresses[slot] >= 0) {
+                if (mAddresses[slot] == address) {
+                    return mDevices[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return null;
+        }
+
+        private int hash(long address) {
+            return (int) ((address * 0x9E3779B97F4A7C15L) >>> 40) & mMask;
+        }
+    }
+
     /**
      * Attempts to get the name of a remote device, otherwise returns the address.
      *
@@ -109,31 +190,15 @@ final class CachedBluetoothDeviceManager {
         return device.getAddress();
     }
 
-    public synchronized void onScanningStateChanged(boolean started) {
+    public void onScanningStateChanged(boolean started) {
         if (!started) return;
 
         // If starting a new scan, clear old visibility
-        // Iterate in reverse order since devices may be removed.
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
             cachedDevice.setVisible(false);
         }
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
-        CachedBluetoothDevice cachedDevice = findDevice(device);
-        if (cachedDevice != null) {
-            cachedDevice.refreshBtClass();
-        }
-    }
-
-    public synchronized void onUuidChanged(BluetoothDevice device) {
-        CachedBluetoothDevice cachedDevice = findDevice(device);
-        if (cachedDevice != null) {
-            cachedDevice.onUuidChanged();
-        }
-    }
-
     private void log(String msg) {
         if (DEBUG) {
             Log.d(TAG, msg);
@@ -29,6 +29,8 @@ import com.android.settings.ProgressCategory;
 import com.android.settings.SettingsPreferenceFragment;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.WeakHashMap;
 
 /**
@@ -46,6 +48,12 @@ public abstract class DeviceListPreferenceFragment extends
     private static final String KEY_BT_DEVICE_LIST = "bt_device_list";
     private static final String KEY_BT_SCAN = "bt_scan";
 
+    /**
+     * Most unbonded devices listed; the others wait off-screen until they rank higher.
+     * Bonded devices are always listed.
+     */
+    private static final int MAX_SHOWN_DEVICES = 40;
+
     private BluetoothDeviceFilter.Filter mFilter;
 
     BluetoothDevice mSelectedDevice;
@@ -58,6 +66,25 @@ public abstract class DeviceListPreferenceFragment extends
     final WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference> mDevicePreferenceMap =
             new WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference>();
 
+    /** Decides which of the unbonded devices added to mDeviceListGroup are shown. */
+    private final DeviceRanking<CachedBluetoothDevice> mRanking =
+            new DeviceRanking<CachedBluetoothDevice>(MAX_SHOWN_DEVICES,
+                    new DeviceRanking.Listener<CachedBluetoothDevice>() {
+                public void onShown(CachedBluetoothDevice cachedDevice) {
+                    createDevicePreference(cachedDevice);
+                }
+
+                public void onHidden(CachedBluetoothDevice cachedDevice) {
+                    removeDevicePreference(cachedDevice);
+                }
+            });
+    /** Re-ranks the devices of mRanking when their attributes change. */
+    private final HashMap<CachedBluetoothDevice, CachedBluetoothDevice.Callback>
+            mRankingCallbacks =
+                    new HashMap<CachedBluetoothDevice, CachedBluetoothDevice.Callback>();
+    /** Counts attribute changes, to rank the devices seen last higher. */
+    private int mUpdateCount;
+
     DeviceListPreferenceFragment() {
         mFilter = BluetoothDeviceFilter.ALL_FILTER;
     }
@@ -87,6 +114,8 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     void setDeviceListGroup(PreferenceGroup preferenceGroup) {
+        // Devices shown in the previous group stay there.
+        stopRanking();
         mDeviceListGroup = preferenceGroup;
     }
 
@@ -116,6 +145,7 @@ public abstract class DeviceListPreferenceFragment extends
 
     void removeAllDevices() {
         mLocalAdapter.stopScanning();
+        stopRanking();
         mDevicePreferenceMap.clear();
         mDeviceListGroup.removeAll();
     }
@@ -152,7 +182,8 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceAdded(CachedBluetoothDevice cachedDevice) {
-        if (mDevicePreferenceMap.get(cachedDevice) != null) {
+        if (mDevicePreferenceMap.get(cachedDevice) != null
+                || mRanking.contains(cachedDevice)) {
             return;
         }
 
@@ -160,10 +191,62 @@ public abstract class DeviceListPreferenceFragment extends
         if (mLocalAdapter.getBluetoothState() != BluetoothAdapter.STATE_ON) return;
 
         if (mFilter.matches(cachedDevice.getDevice())) {
-            createDevicePreference(cachedDevice);
+            if (cachedDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+                createDevicePreference(cachedDevice);
+            } else {
+                startRanking(cachedDevice);
+            }
         }
      }
 
+    private void startRanking(final CachedBluetoothDevice cachedDevice) {
+        final CachedBluetoothDevice.Callback callback = new CachedBluetoothDevice.Callback() {
+            public void onDeviceAttributesChanged() {
+                if (cachedDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+                    // Bonded devices are listed regardless of the others.
+                    stopRanking(cachedDevice);
+                    if (mDevicePreferenceMap.get(cachedDevice) == null) {
+                        createDevicePreference(cachedDevice);
+                    }
+                    return;
+                }
+                mRanking.update(cachedDevice, getScore(cachedDevice, ++mUpdateCount));
+            }
+        };
+        mRankingCallbacks.put(cachedDevice, callback);
+        cachedDevice.registerCallback(callback);
+        mRanking.update(cachedDevice, getScore(cachedDevice, ++mUpdateCount));
+    }
+
+    /** Forgets the ranked devices, leaving their preferences as they are. */
+    private void stopRanking() {
+        for (Map.Entry<CachedBluetoothDevice, CachedBluetoothDevice.Callback> entry
+                : mRankingCallbacks.entrySet()) {
+            entry.getKey().unregisterCallback(entry.getValue());
+        }
+        mRankingCallbacks.clear();
+        mRanking.clear();
+    }
+
+    /**
+     * Ranks connected devices first, then bonded, visible, with a stronger signal and
+     * last the ones whose attributes changed most recently.
+     */
+    static long getScore(CachedBluetoothDevice cachedDevice, int updateCount) {
+        long score = 0;
+        if (cachedDevice.isConnected()) {
+            score |= 1L << 50;
+        }
+        if (cachedDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+            score |= 1L << 49;
+        }
+        if (cachedDevice.isVisible()) {
+            score |= 1L << 48;
+        }
+        score |= (long) (cachedDevice.getRssi() - Short.MIN_VALUE) << 32;
+        return score | (updateCount & 0xffffffffL);
+    }
+
     void createDevicePreference(CachedBluetoothDevice cachedDevice) {
         BluetoothDevicePreference preference = new BluetoothDevicePreference(
                 getActivity(), cachedDevice);
@@ -182,6 +265,20 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        stopRanking(cachedDevice);
+        removeDevicePreference(cachedDevice);
+    }
+
+    /** Forgets a ranked device, removing its preference if it was shown. */
+    private void stopRanking(CachedBluetoothDevice cachedDevice) {
+        final CachedBluetoothDevice.Callback callback = mRankingCallbacks.remove(cachedDevice);
+        if (callback != null) {
+            cachedDevice.unregisterCallback(callback);
+            mRanking.remove(cachedDevice);
+        }
+    }
+
+    private void removeDevicePreference(CachedBluetoothDevice cachedDevice) {
         BluetoothDevicePreference preference = mDevicePreferenceMap.remove(cachedDevice);
         if (preference != null) {
             mDeviceListGroup.removePreference(preference);
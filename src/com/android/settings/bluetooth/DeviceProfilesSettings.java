@@ -261,6 +261,7 @@ public final class DeviceProfilesSettings extends SettingsPreferenceFragment
             askDisconnect(getActivity(), profile);
         } else {
             profile.setPreferred(device, true);
+            mCachedDevice.refresh();
             mCachedDevice.connectProfile(profile);
         }
     }
@@ -285,6 +286,7 @@ public final class DeviceProfilesSettings extends SettingsPreferenceFragment
             public void onClick(DialogInterface dialog, int which) {
                 device.disconnect(profile);
                 profile.setPreferred(device.getDevice(), false);
+                device.refresh();
             }
         };
 
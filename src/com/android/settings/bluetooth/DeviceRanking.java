@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Picks the devices with the highest scores to show, at most a fixed number of them.
+ *
+ * Shown devices are kept in a min-heap, so that the lowest scored one is known, and the
+ * others in a max-heap, so that the best candidate is. Each entry knows its position in
+ * its heap, so adding, removing or re-scoring a device takes O(log n).
+ */
+final class DeviceRanking<T> {
+
+    interface Listener<T> {
+        /** Called when {@code item} makes it into the shown set. */
+        void onShown(T item);
+        /** Called when {@code item} leaves the shown set. */
+        void onHidden(T item);
+    }
+
+    private static final class Entry<T> {
+        final T mItem;
+        long mScore;
+        boolean mShown;
+        /** Position in the heap holding this entry. */
+        int mIndex;
+
+        Entry(T item, long score) {
+            mItem = item;
+            mScore = score;
+        }
+    }
+
+    /** Binary heap of entries keeping their index up to date. */
+    private static final class Heap<T> {
+        private final ArrayList<Entry<T>> mEntries = new ArrayList<Entry<T>>();
+        private final boolean mLowestFirst;
+
+        Heap(boolean lowestFirst) {
+            mLowestFirst = lowestFirst;
+        }
+
+        int size() {
+            return mEntries.size();
+        }
+
+        Entry<T> peek() {
+            return mEntries.get(0);
+        }
+
+        void add(Entry<T> entry) {
+            entry.mIndex = mEntries.size();
+            mEntries.add(entry);
+            siftUp(entry.mIndex);
+        }
+
+        Entry<T> poll() {
+            final Entry<T> top = mEntries.get(0);
+            remove(top);
+            return top;
+        }
+
+        void remove(Entry<T> entry) {
+            final int index = entry.mIndex;
+            final Entry<T> last = mEntries.remove(mEntries.size() - 1);
+            if (last != entry) {
+                set(index, last);
+                changed(last);
+            }
+        }
+
+        /** Restores the heap order after the score of {@code entry} changed. */
+        void changed(Entry<T> entry) {
+            siftDown(siftUp(entry.mIndex));
+        }
+
+        void clear() {
+            mEntries.clear();
+        }
+
+        private boolean above(Entry<T> a, Entry<T> b) {
+            return mLowestFirst ? a.mScore < b.mScore : a.mScore > b.mScore;
+        }
+
+        private int siftUp(int index) {
+            final Entry<T> entry = mEntries.get(index);
+            while (index > 0) {
+                final int parent = (index - 1) / 2;
+                if (!above(entry, mEntries.get(parent))) {
+                    break;
+                }
+                set(index, mEntries.get(parent));
+                index = parent;
+            }
+            set(index, entry);
+            return index;
+        }
+
+        private void siftDown(int index) {
+            final Entry<T> entry = mEntries.get(index);
+            final int size = mEntries.size();
+            while (true) {
+                int child = index * 2 + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(mEntries.get(child + 1), mEntries.get(child))) {
+                    child++;
+                }
+                if (!above(mEntries.get(child), entry)) {
+                    break;
+                }
+                set(index, mEntries.get(child));
+                index = child;
+            }
+            set(index, entry);
+        }
+
+        private void set(int index, Entry<T> entry) {
+            mEntries.set(index, entry);
+            entry.mIndex = index;
+        }
+    }
+
+    private final int mMaxShown;
+    private final Listener<T> mListener;
+    private final HashMap<T, Entry<T>> mEntries = new HashMap<T, Entry<T>>();
+    private final Heap<T> mShown = new Heap<T>(true);
+    private final Heap<T> mHidden = new Heap<T>(false);
+
+    DeviceRanking(int maxShown, Listener<T> listener) {
+        mMaxShown = maxShown;
+        mListener = listener;
+    }
+
+    /**
+     * Adds {@code item} or changes its score, showing and hiding devices as needed.
+     */
+    void update(T item, long score) {
+        Entry<T> entry = mEntries.get(item);
+        if (entry == null) {
+            entry = new Entry<T>(item, score);
+            mEntries.put(item, entry);
+            mHidden.add(entry);
+        } else if (entry.mScore != score) {
+            entry.mScore = score;
+            (entry.mShown ? mShown : mHidden).changed(entry);
+        } else {
+            return;
+        }
+        rebalance();
+    }
+
+    void remove(T item) {
+        final Entry<T> entry = mEntries.remove(item);
+        if (entry == null) {
+            return;
+        }
+        if (entry.mShown) {
+            mShown.remove(entry);
+            mListener.onHidden(item);
+        } else {
+            mHidden.remove(entry);
+        }
+        rebalance();
+    }
+
+    /** Forgets all devices, without calling the listener. */
+    void clear() {
+        mEntries.clear();
+        mShown.clear();
+        mHidden.clear();
+    }
+
+    boolean contains(T item) {
+        return mEntries.containsKey(item);
+    }
+
+    boolean isShown(T item) {
+        final Entry<T> entry = mEntries.get(item);
+        return entry != null && entry.mShown;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    int getShownCount() {
+        return mShown.size();
+    }
+
+    private void rebalance() {
+        while (mShown.size() < mMaxShown && mHidden.size() > 0) {
+            show(mHidden.poll());
+        }
+        // Only strictly better devices take a place, so ties don't flip back and forth.
+        while (mHidden.size() > 0 && mShown.size() > 0
+                && mHidden.peek().mScore > mShown.peek().mScore) {
+            final Entry<T> demoted = mShown.poll();
+            demoted.mShown = false;
+            mHidden.add(demoted);
+            mListener.onHidden(demoted.mItem);
+            show(mHidden.poll());
+        }
+    }
+
+    private void show(Entry<T> entry) {
+        entry.mShown = true;
+        mShown.add(entry);
+        mListener.onShown(entry.mItem);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * DiscoveryRecorder logs the discovery broadcasts received during a scan, so that the
+ * session can be replayed later through {@link BluetoothEventManager}. It is off unless
+ * enabled with "adb shell setprop log.tag.DiscoveryRecorder DEBUG"; each scan is then
+ * saved to a file of the app, and the last {@link #MAX_SESSIONS} of them are kept.
+ *
+ * A log is a header, {@link #MAGIC} and {@link #VERSION}, followed by one record of
+ * {@link #RECORD_SIZE} bytes per event: the time in milliseconds since the session
+ * started (int), the event (byte), the device address (6 bytes, all ones if none), the
+ * RSSI (short) and the hash code of the device name (int, 0 if none).
+ */
+final class DiscoveryRecorder {
+    private static final String TAG = "DiscoveryRecorder";
+
+    static final int MAGIC = 0x42544453; // "BTDS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 5;
+    static final int RECORD_SIZE = 17;
+
+    static final int EVENT_STARTED = 0;
+    static final int EVENT_FINISHED = 1;
+    static final int EVENT_FOUND = 2;
+    static final int EVENT_DISAPPEARED = 3;
+    static final int EVENT_NAME_CHANGED = 4;
+    static final int EVENT_CLASS_CHANGED = 5;
+    static final int EVENT_UUID = 6;
+
+    /** The broadcast of each event. */
+    static final String[] ACTIONS = {
+        BluetoothAdapter.ACTION_DISCOVERY_STARTED,
+        BluetoothAdapter.ACTION_DISCOVERY_FINISHED,
+        BluetoothDevice.ACTION_FOUND,
+        BluetoothDevice.ACTION_DISAPPEARED,
+        BluetoothDevice.ACTION_NAME_CHANGED,
+        BluetoothDevice.ACTION_CLASS_CHANGED,
+        BluetoothDevice.ACTION_UUID,
+    };
+
+    /** Address of the events that have no device. */
+    static final long NO_ADDRESS = 0xffffffffffffL;
+
+    // A session stops being recorded after this many events.
+    static final int MAX_EVENTS = 4096;
+
+    static final int MAX_SESSIONS = 4;
+
+    private static final String FILE_PREFIX = "bluetooth_discovery_";
+    private static final String FILE_SUFFIX = ".log";
+
+    /** Receives the events of a log being read. */
+    interface Listener {
+        void onEvent(int time, int event, long address, short rssi, int nameHash);
+    }
+
+    private final Context mContext;
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocate(HEADER_SIZE + MAX_EVENTS * RECORD_SIZE);
+    private long mStart;
+
+    DiscoveryRecorder(Context context) {
+        mContext = context;
+        reset(SystemClock.elapsedRealtime());
+    }
+
+    /** Returns a recorder if recording is enabled, otherwise null. */
+    static DiscoveryRecorder createIfEnabled(Context context) {
+        if (!Log.isLoggable(TAG, Log.DEBUG)) {
+            return null;
+        }
+        return new DiscoveryRecorder(context);
+    }
+
+    /**
+     * Records a broadcast if it is a discovery event. A new session starts with each
+     * scan, and is saved once the scan finishes.
+     */
+    void record(String action, Intent intent, BluetoothDevice device) {
+        final int event = getEvent(action);
+        if (event < 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (event == EVENT_STARTED) {
+            reset(now);
+        }
+        final long address = device == null ? NO_ADDRESS
+                : com.android.settings.Utils.parseMacAddress(device.getAddress());
+        final short rssi = event == EVENT_FOUND
+                ? intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE) : 0;
+        final String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+        append((int) (now - mStart), event, address < 0 ? NO_ADDRESS : address, rssi,
+                name == null ? 0 : name.hashCode());
+        if (event == EVENT_FINISHED) {
+            save(toByteArray());
+            reset(now);
+        }
+    }
+
+    /** Adds an event to the session, unless it is full. */
+    void append(int time, int event, long address, short rssi, int nameHash) {
+        if (mBuffer.remaining() < RECORD_SIZE) {
+            return;
+        }
+        mBuffer.putInt(time);
+        mBuffer.put((byte) event);
+        mBuffer.putShort((short) (address >> 32));
+        mBuffer.putInt((int) address);
+        mBuffer.putShort(rssi);
+        mBuffer.putInt(nameHash);
+    }
+
+    /** Returns the log of the session so far. */
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+    }
+
+    private void reset(long start) {
+        mStart = start;
+        mBuffer.clear();
+        mBuffer.putInt(MAGIC);
+        mBuffer.put((byte) VERSION);
+    }
+
+    private void save(final byte[] log) {
+        if (log.length == HEADER_SIZE) {
+            return;
+        }
+        final long savedAt = System.currentTimeMillis();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                final File file = new File(mContext.getFilesDir(),
+                        FILE_PREFIX + savedAt + FILE_SUFFIX);
+                final File[] sessions = getSessionFiles(mContext);
+                for (int i = 0; i <= sessions.length - MAX_SESSIONS; i++) {
+                    sessions[i].delete();
+                }
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    out.write(log);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to save " + file, e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // Nothing more to do
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Returns the saved sessions, oldest first. */
+    static File[] getSessionFiles(Context context) {
+        final File[] files = context.getFilesDir().listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        final File[] sessions = Arrays.copyOf(files, count);
+        Arrays.sort(sessions, new Comparator<File>() {
+            public int compare(File a, File b) {
+                final long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        return sessions;
+    }
+
+    /**
+     * Passes the events of a log to the listener.
+     *
+     * @return the number of events
+     * @throws IOException if it isn't a log of this version, or is truncated
+     */
+    static int read(byte[] log, Listener listener) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(log);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+                throw new IOException("Not a discovery log");
+            }
+            int events = 0;
+            while (buffer.hasRemaining()) {
+                final int time = buffer.getInt();
+                final int event = buffer.get();
+                final long address = ((buffer.getShort() & 0xffffL) << 32)
+                        | (buffer.getInt() & 0xffffffffL);
+                final short rssi = buffer.getShort();
+                final int nameHash = buffer.getInt();
+                listener.onEvent(time, event, address, rssi, nameHash);
+                events++;
+            }
+            return events;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated discovery log");
+        }
+    }
+
+    /** Returns the event of a broadcast, or -1 if it isn't part of discovery. */
+    static int getEvent(String action) {
+        for (int event = 0; event < ACTIONS.length; event++) {
+            if (ACTIONS[event].equals(action)) {
+                return event;
+            }
+        }
+        return -1;
+    }
+}
@@ -36,6 +36,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -53,30 +54,14 @@ public final class DockService extends Service implements ServiceListener {
 
     static final boolean DEBUG = false;
 
-    // Time allowed for the device to be undocked and redocked without severing
-    // the bluetooth connection
-    private static final long UNDOCKED_GRACE_PERIOD = 1000;
+    // Msg for an intent to turn into state machine events
+    private static final int MSG_TYPE_INTENT = 111;
 
-    // Time allowed for the device to be undocked and redocked without turning
-    // off Bluetooth
-    private static final long DISABLE_BT_GRACE_PERIOD = 2000;
+    // Msg for the state machine to handle the events queued so far
+    private static final int MSG_TYPE_PROCESS_EVENTS = 222;
 
-    // Msg for user wanting the UI to setup the dock
-    private static final int MSG_TYPE_SHOW_UI = 111;
-
-    // Msg for device docked event
-    private static final int MSG_TYPE_DOCKED = 222;
-
-    // Msg for device undocked event
-    private static final int MSG_TYPE_UNDOCKED_TEMPORARY = 333;
-
-    // Msg for undocked command to be process after UNDOCKED_GRACE_PERIOD millis
-    // since MSG_TYPE_UNDOCKED_TEMPORARY
-    private static final int MSG_TYPE_UNDOCKED_PERMANENT = 444;
-
-    // Msg for disabling bt after DISABLE_BT_GRACE_PERIOD millis since
-    // MSG_TYPE_UNDOCKED_PERMANENT
-    private static final int MSG_TYPE_DISABLE_BT = 555;
+    // Msg for a delay asked for by the state machine
+    private static final int MSG_TYPE_TIMEOUT = 333;
 
     private static final String SHARED_PREFERENCES_NAME = "dock_settings";
 
@@ -92,19 +77,17 @@ public final class DockService extends Service implements ServiceListener {
      */
     private static final int MAX_CONNECT_RETRY = 6;
 
-    private static final int INVALID_STARTID = -100;
-
     // Created in OnCreate()
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
-    private Runnable mRunnable;
     private LocalBluetoothAdapter mLocalAdapter;
     private CachedBluetoothDeviceManager mDeviceManager;
     private LocalBluetoothProfileManager mProfileManager;
 
-    // Normally set after getting a docked event and unset when the connection
-    // is severed. One exception is that mDevice could be null if the service
-    // was started after the docked event.
+    // Only used on the ServiceHandler thread, like everything below.
+    private DockStateMachine<BluetoothDevice, LocalBluetoothProfile> mStateMachine;
+
+    // The device the dialog is shown for
     private BluetoothDevice mDevice;
 
     // Created and used for the duration of the dialog
@@ -112,12 +95,8 @@ public final class DockService extends Service implements ServiceListener {
     private LocalBluetoothProfile[] mProfiles;
     private boolean[] mCheckedItems;
     private int mStartIdAssociatedWithDialog;
-
-    // Set while BT is being enabled.
-    private BluetoothDevice mPendingDevice;
-    private int mPendingStartId;
-    private int mPendingTurnOnStartId = INVALID_STARTID;
-    private int mPendingTurnOffStartId = INVALID_STARTID;
+    // Set once OK hands the start over to mStateMachine, which then finishes it
+    private boolean mDialogApplied;
 
     @Override
     public void onCreate() {
@@ -136,6 +115,14 @@ public final class DockService extends Service implements ServiceListener {
             Log.e(TAG, "Can't get LocalBluetoothProfileManager: exiting");
             return;
         }
+        mProfileManager.addServiceListener(this);
+
+        mStateMachine = new DockStateMachine<BluetoothDevice, LocalBluetoothProfile>(
+                new Actions(), new DockStateMachine.Clock() {
+                    public long uptimeMillis() {
+                        return SystemClock.uptimeMillis();
+                    }
+                });
 
         HandlerThread thread = new HandlerThread("DockService");
         thread.start();
@@ -147,7 +134,6 @@ public final class DockService extends Service implements ServiceListener {
     @Override
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "onDestroy");
-        mRunnable = null;
         if (mDialog != null) {
             mDialog.dismiss();
             mDialog = null;
@@ -180,7 +166,8 @@ public final class DockService extends Service implements ServiceListener {
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (DEBUG) Log.d(TAG, "onStartCommand startId: " + startId + " flags: " + flags);
 
-        if (intent == null) {
+        final ServiceHandler handler = mServiceHandler;
+        if (intent == null || handler == null) {
             // Nothing to process, stop.
             if (DEBUG) Log.d(TAG, "START_NOT_STICKY - intent is null.");
 
@@ -190,9 +177,45 @@ public final class DockService extends Service implements ServiceListener {
             return START_NOT_STICKY;
         }
 
+        handler.obtainMessage(MSG_TYPE_INTENT, startId, 0, intent).sendToTarget();
+        return START_NOT_STICKY;
+    }
+
+    private final class ServiceHandler extends Handler {
+        private ServiceHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_TYPE_INTENT:
+                    postEvent((Intent) msg.obj, msg.arg1);
+                    // Handle events that arrive together in one go.
+                    if (!hasMessages(MSG_TYPE_PROCESS_EVENTS)) {
+                        sendEmptyMessage(MSG_TYPE_PROCESS_EVENTS);
+                    }
+                    break;
+
+                case MSG_TYPE_PROCESS_EVENTS:
+                    mStateMachine.processEvents();
+                    break;
+
+                case MSG_TYPE_TIMEOUT:
+                    mStateMachine.onTimeout();
+                    break;
+            }
+        }
+    }
+
+    // Turns an intent into a state machine event, on the ServiceHandler thread
+    private void postEvent(Intent intent, int startId) {
         if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction())) {
-            handleBtStateChange(intent, startId);
-            return START_NOT_STICKY;
+            int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                    BluetoothAdapter.ERROR);
+            if (DEBUG) Log.d(TAG, "BtState = " + btState);
+            mStateMachine.postBluetoothStateChanged(btState, startId);
+            return;
         }
 
         /*
@@ -200,203 +223,191 @@ public final class DockService extends Service implements ServiceListener {
          * and that the intent is for a disconnect
          */
         final SharedPreferences prefs = getPrefs();
+        LocalBluetoothProfile disconnectedProfile = null;
         if (BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED.equals(intent.getAction())) {
-            BluetoothDevice disconnectedDevice = intent
-                    .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            int retryCount = prefs.getInt(KEY_CONNECT_RETRY_COUNT, 0);
-            if (retryCount < MAX_CONNECT_RETRY) {
-                prefs.edit().putInt(KEY_CONNECT_RETRY_COUNT, retryCount + 1).apply();
-                handleUnexpectedDisconnect(disconnectedDevice, mProfileManager.getHeadsetProfile(), startId);
-            }
-            return START_NOT_STICKY;
+            disconnectedProfile = mProfileManager.getHeadsetProfile();
         } else if (BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED.equals(intent.getAction())) {
+            disconnectedProfile = mProfileManager.getA2dpProfile();
+        }
+        if (disconnectedProfile != null) {
             BluetoothDevice disconnectedDevice = intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
+            if (DEBUG) {
+                Log.d(TAG, "handling failed connect for " + disconnectedDevice);
+            }
             int retryCount = prefs.getInt(KEY_CONNECT_RETRY_COUNT, 0);
             if (retryCount < MAX_CONNECT_RETRY) {
                 prefs.edit().putInt(KEY_CONNECT_RETRY_COUNT, retryCount + 1).apply();
-                handleUnexpectedDisconnect(disconnectedDevice, mProfileManager.getA2dpProfile(), startId);
+                mStateMachine.postDisconnected(disconnectedDevice, disconnectedProfile,
+                        startId);
+            } else {
+                DockEventReceiver.finishStartingService(this, startId);
             }
-            return START_NOT_STICKY;
+            return;
         }
 
-        Message msg = parseIntent(intent);
-        if (msg == null) {
-            // Bad intent
-            if (DEBUG) Log.d(TAG, "START_NOT_STICKY - Bad intent.");
-            DockEventReceiver.finishStartingService(this, startId);
-            return START_NOT_STICKY;
-        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE, -1234);
 
-        if (msg.what == MSG_TYPE_DOCKED) {
-            prefs.edit().remove(KEY_CONNECT_RETRY_COUNT).apply();
+        if (DEBUG) {
+            Log.d(TAG, "Action: " + intent.getAction() + " State:" + state
+                    + " Device: " + (device == null ? "null" : device.getAliasName()));
         }
 
-        msg.arg2 = startId;
-        processMessage(msg);
-
-        return START_NOT_STICKY;
-    }
-
-    private final class ServiceHandler extends Handler {
-        private ServiceHandler(Looper looper) {
-            super(looper);
+        if (device == null) {
+            Log.w(TAG, "device is null");
+            DockEventReceiver.finishStartingService(this, startId);
+            return;
         }
 
-        @Override
-        public void handleMessage(Message msg) {
-            processMessage(msg);
+        switch (state) {
+            case Intent.EXTRA_DOCK_STATE_UNDOCKED:
+                mStateMachine.postUndocked(device, startId);
+                break;
+            case Intent.EXTRA_DOCK_STATE_DESK:
+            case Intent.EXTRA_DOCK_STATE_LE_DESK:
+            case Intent.EXTRA_DOCK_STATE_HE_DESK:
+            case Intent.EXTRA_DOCK_STATE_CAR:
+                if (DockEventReceiver.ACTION_DOCK_SHOW_UI.equals(intent.getAction())) {
+                    mStateMachine.postShowUi(device, state, startId);
+                } else {
+                    prefs.edit().remove(KEY_CONNECT_RETRY_COUNT).apply();
+                    mStateMachine.postDocked(device, state, startId);
+                }
+                break;
+            default:
+                // Bad intent
+                if (DEBUG) Log.d(TAG, "START_NOT_STICKY - Bad intent.");
+                DockEventReceiver.finishStartingService(this, startId);
+                break;
         }
     }
 
-    // This method gets messages from both onStartCommand and mServiceHandler/mServiceLooper
-    private synchronized void processMessage(Message msg) {
-        int msgType = msg.what;
-        final int state = msg.arg1;
-        final int startId = msg.arg2;
-        BluetoothDevice device = null;
-        if (msg.obj != null) {
-            device = (BluetoothDevice) msg.obj;
+    /**
+     * Carries out what the state machine decides, on the ServiceHandler thread.
+     */
+    private final class Actions
+            implements DockStateMachine.Actions<BluetoothDevice, LocalBluetoothProfile> {
+        public void finish(int startId) {
+            // NOTE: We MUST not call stopSelf() directly, since we need to
+            // make sure the wake lock acquired by the Receiver is released.
+            DockEventReceiver.finishStartingService(DockService.this, startId);
         }
 
-        if(DEBUG) Log.d(TAG, "processMessage: " + msgType + " state: " + state + " device = "
-                + (device == null ? "null" : device.toString()));
-
-        boolean deferFinishCall = false;
-
-        switch (msgType) {
-            case MSG_TYPE_SHOW_UI:
-                createDialog(device, state, startId);
-                break;
+        public void scheduleTimeout(long delayMillis) {
+            mServiceHandler.removeMessages(MSG_TYPE_TIMEOUT);
+            mServiceHandler.sendEmptyMessageDelayed(MSG_TYPE_TIMEOUT, delayMillis);
+        }
 
-            case MSG_TYPE_DOCKED:
-                deferFinishCall = msgTypeDocked(device, state, startId);
-                break;
+        public boolean isProfileManagerReady() {
+            return mProfileManager.isManagerReady();
+        }
 
-            case MSG_TYPE_UNDOCKED_PERMANENT:
-                deferFinishCall = msgTypeUndockedPermanent(device, startId);
-                break;
+        public BluetoothDevice getDockedDevice() {
+            // registerReceiver can't be called from a BroadcastReceiver
+            Intent intent = registerReceiver(null, new IntentFilter(Intent.ACTION_DOCK_EVENT));
+            if (intent == null || intent.getIntExtra(Intent.EXTRA_DOCK_STATE,
+                    Intent.EXTRA_DOCK_STATE_UNDOCKED) == Intent.EXTRA_DOCK_STATE_UNDOCKED) {
+                return null;
+            }
+            return intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        }
 
-            case MSG_TYPE_UNDOCKED_TEMPORARY:
-                msgTypeUndockedTemporary(device, state, startId);
-                break;
+        public boolean isAutoConnect(BluetoothDevice device) {
+            return LocalBluetoothPreferences.getDockAutoConnectSetting(DockService.this,
+                    device.getAddress());
+        }
 
-            case MSG_TYPE_DISABLE_BT:
-                deferFinishCall = msgTypeDisableBluetooth(startId);
-                break;
+        public void loadSettings(BluetoothDevice device, int dockState) {
+            initBtSettings(device, dockState, false);
         }
 
-        if (mDialog == null && mPendingDevice == null && msgType != MSG_TYPE_UNDOCKED_TEMPORARY
-                && !deferFinishCall) {
-            // NOTE: We MUST not call stopSelf() directly, since we need to
-            // make sure the wake lock acquired by the Receiver is released.
-            DockEventReceiver.finishStartingService(this, startId);
+        public boolean showDialog(BluetoothDevice device, int dockState, int startId) {
+            return createDialog(device, dockState, startId);
         }
-    }
 
-    private boolean msgTypeDisableBluetooth(int startId) {
-        if (DEBUG) {
-            Log.d(TAG, "BT DISABLE");
+        public boolean applySettings(BluetoothDevice device) {
+            return applyBtSettings(device);
         }
-        final SharedPreferences prefs = getPrefs();
-        if (mLocalAdapter.disable()) {
-            prefs.edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
-            return false;
-        } else {
-            // disable() returned an error. Persist a flag to disable BT later
-            prefs.edit().putBoolean(KEY_DISABLE_BT, true).apply();
-            mPendingTurnOffStartId = startId;
-            if(DEBUG) {
-                Log.d(TAG, "disable failed. try again later " + startId);
+
+        public void connect(BluetoothDevice device, List<LocalBluetoothProfile> profiles) {
+            CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(device);
+            if (profiles == null) {
+                connectIfEnabled(cachedDevice);
+                return;
+            }
+            for (LocalBluetoothProfile profile : profiles) {
+                cachedDevice.connectProfile(profile, false);
             }
-            return true;
         }
-    }
 
-    private void msgTypeUndockedTemporary(BluetoothDevice device, int state,
-            int startId) {
-        // Undocked event received. Queue a delayed msg to sever connection
-        Message newMsg = mServiceHandler.obtainMessage(MSG_TYPE_UNDOCKED_PERMANENT, state,
-                startId, device);
-        mServiceHandler.sendMessageDelayed(newMsg, UNDOCKED_GRACE_PERIOD);
-    }
+        public void disconnect(BluetoothDevice device) {
+            handleUndocked(device);
+        }
 
-    private boolean msgTypeUndockedPermanent(BluetoothDevice device, int startId) {
-        // Grace period passed. Disconnect.
-        handleUndocked(device);
-        final SharedPreferences prefs = getPrefs();
+        public boolean shouldDisableBluetooth(BluetoothDevice undockedDevice) {
+            final SharedPreferences prefs = getPrefs();
 
-        if (DEBUG) {
-            Log.d(TAG, "DISABLE_BT_WHEN_UNDOCKED = "
-                    + prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false));
-        }
+            if (DEBUG) {
+                Log.d(TAG, "DISABLE_BT_WHEN_UNDOCKED = "
+                        + prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false));
+            }
 
-        if (prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false)) {
-            if (hasOtherConnectedDevices(device)) {
+            if (!prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false)) {
+                return false;
+            }
+            if (hasOtherConnectedDevices(undockedDevice)) {
                 // Don't disable BT if something is connected
                 prefs.edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
+                return false;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "QUEUED BT DISABLE");
+            }
+            return true;
+        }
+
+        public boolean disableBluetooth() {
+            if (DEBUG) {
+                Log.d(TAG, "BT DISABLE");
+            }
+            final SharedPreferences prefs = getPrefs();
+            if (mLocalAdapter.disable()) {
+                prefs.edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
+                return true;
             } else {
-                // BT was disabled when we first docked
+                // disable() returned an error. Persist a flag to disable BT later
+                prefs.edit().putBoolean(KEY_DISABLE_BT, true).apply();
                 if (DEBUG) {
-                    Log.d(TAG, "QUEUED BT DISABLE");
+                    Log.d(TAG, "disable failed. try again later");
                 }
-                // Queue a delayed msg to disable BT
-                Message newMsg = mServiceHandler.obtainMessage(
-                        MSG_TYPE_DISABLE_BT, 0, startId, null);
-                mServiceHandler.sendMessageDelayed(newMsg,
-                        DISABLE_BT_GRACE_PERIOD);
-                return true;
+                return false;
             }
         }
-        return false;
-    }
 
-    private boolean msgTypeDocked(BluetoothDevice device, final int state,
-            final int startId) {
-        if (DEBUG) {
-            // TODO figure out why hasMsg always returns false if device
-            // is supplied
-            Log.d(TAG, "1 Has undock perm msg = "
-                    + mServiceHandler.hasMessages(MSG_TYPE_UNDOCKED_PERMANENT, mDevice));
-            Log.d(TAG, "2 Has undock perm msg = "
-                    + mServiceHandler.hasMessages(MSG_TYPE_UNDOCKED_PERMANENT, device));
-        }
-
-        mServiceHandler.removeMessages(MSG_TYPE_UNDOCKED_PERMANENT);
-        mServiceHandler.removeMessages(MSG_TYPE_DISABLE_BT);
-        getPrefs().edit().remove(KEY_DISABLE_BT).apply();
-
-        if (device != null && !device.equals(mDevice)) {
-            if (mDevice != null) {
-                // Not expected. Cleanup/undock existing
-                handleUndocked(mDevice);
+        public boolean retryDisableBluetooth() {
+            final SharedPreferences prefs = getPrefs();
+            if (prefs.getBoolean(KEY_DISABLE_BT, false) && mLocalAdapter.disable()) {
+                prefs.edit().remove(KEY_DISABLE_BT).apply();
+                return true;
             }
+            return false;
+        }
 
-            mDevice = device;
+        public void enableBluetooth() {
+            mLocalAdapter.enable();
+        }
 
-            // Register first in case LocalBluetoothProfileManager
-            // becomes ready after isManagerReady is called and it
-            // would be too late to register a service listener.
-            mProfileManager.addServiceListener(this);
-            if (mProfileManager.isManagerReady()) {
-                handleDocked(device, state, startId);
-                // Not needed after all
-                mProfileManager.removeServiceListener(this);
-            } else {
-                final BluetoothDevice d = device;
-                mRunnable = new Runnable() {
-                    public void run() {
-                        handleDocked(d, state, startId);  // FIXME: WTF runnable here?
-                    }
-                };
-                return true;
-            }
+        public void clearDisableBluetoothWhenUndocked() {
+            getPrefs().edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
+        }
+
+        public void clearDisableBluetooth() {
+            getPrefs().edit().remove(KEY_DISABLE_BT).apply();
         }
-        return false;
     }
 
-    synchronized boolean hasOtherConnectedDevices(BluetoothDevice dock) {
+    boolean hasOtherConnectedDevices(BluetoothDevice dock) {
         Collection<CachedBluetoothDevice> cachedDevices = mDeviceManager.getCachedDevicesCopy();
         Set<BluetoothDevice> btDevices = mLocalAdapter.getBondedDevices();
         if (btDevices == null || cachedDevices == null || btDevices.isEmpty()) {
@@ -418,43 +429,7 @@ public final class DockService extends Service implements ServiceListener {
         return false;
     }
 
-    private Message parseIntent(Intent intent) {
-        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE, -1234);
-
-        if (DEBUG) {
-            Log.d(TAG, "Action: " + intent.getAction() + " State:" + state
-                    + " Device: " + (device == null ? "null" : device.getAliasName()));
-        }
-
-        if (device == null) {
-            Log.w(TAG, "device is null");
-            return null;
-        }
-
-        int msgType;
-        switch (state) {
-            case Intent.EXTRA_DOCK_STATE_UNDOCKED:
-                msgType = MSG_TYPE_UNDOCKED_TEMPORARY;
-                break;
-            case Intent.EXTRA_DOCK_STATE_DESK:
-            case Intent.EXTRA_DOCK_STATE_LE_DESK:
-            case Intent.EXTRA_DOCK_STATE_HE_DESK:
-            case Intent.EXTRA_DOCK_STATE_CAR:
-                if (DockEventReceiver.ACTION_DOCK_SHOW_UI.equals(intent.getAction())) {
-                    msgType = MSG_TYPE_SHOW_UI;
-                } else {
-                    msgType = MSG_TYPE_DOCKED;
-                }
-                break;
-            default:
-                return null;
-        }
-
-        return mServiceHandler.obtainMessage(msgType, state, 0, device);
-    }
-
-    private void createDialog(BluetoothDevice device,
+    private boolean createDialog(BluetoothDevice device,
             int state, int startId) {
         if (mDialog != null) {
             // Shouldn't normally happen
@@ -469,7 +444,7 @@ public final class DockService extends Service implements ServiceListener {
             case Intent.EXTRA_DOCK_STATE_HE_DESK:
                 break;
             default:
-                return;
+                return false;
         }
 
         startForeground(0, new Notification());
@@ -508,10 +483,12 @@ public final class DockService extends Service implements ServiceListener {
         ab.setPositiveButton(getString(android.R.string.ok), mClickListener);
 
         mStartIdAssociatedWithDialog = startId;
+        mDialogApplied = false;
         mDialog = ab.create();
         mDialog.getWindow().setType(WindowManager.LayoutParams.TYPE_KEYGUARD_DIALOG);
         mDialog.setOnDismissListener(mDismissListener);
         mDialog.show();
+        return true;
     }
 
     // Called when the individual bt profiles are clicked.
@@ -547,7 +524,7 @@ public final class DockService extends Service implements ServiceListener {
                 public void onDismiss(DialogInterface dialog) {
                     // NOTE: We MUST not call stopSelf() directly, since we need to
                     // make sure the wake lock acquired by the Receiver is released.
-                    if (mPendingDevice == null) {
+                    if (!mDialogApplied && !mStateMachine.isWaitingForBluetooth()) {
                         DockEventReceiver.finishStartingService(
                                 DockService.this, mStartIdAssociatedWithDialog);
                     }
@@ -571,7 +548,10 @@ public final class DockService extends Service implements ServiceListener {
                                             mDevice.getAddress(), true);
                         }
 
-                        applyBtSettings(mDevice, mStartIdAssociatedWithDialog);
+                        mDialogApplied = true;
+                        mStateMachine.postApplySettings(mDevice,
+                                mStartIdAssociatedWithDialog);
+                        mStateMachine.processEvents();
                     }
                 }
             };
@@ -630,133 +610,23 @@ public final class DockService extends Service implements ServiceListener {
         return items;
     }
 
-    // TODO: move to background thread to fix strict mode warnings
-    private void handleBtStateChange(Intent intent, int startId) {
-        int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
-        synchronized (this) {
-            if(DEBUG) Log.d(TAG, "BtState = " + btState + " mPendingDevice = " + mPendingDevice);
-            if (btState == BluetoothAdapter.STATE_ON) {
-                handleBluetoothStateOn(startId);
-            } else if (btState == BluetoothAdapter.STATE_TURNING_OFF) {
-                // Remove the flag to disable BT if someone is turning off bt.
-                // The rational is that:
-                // a) if BT is off at undock time, no work needs to be done
-                // b) if BT is on at undock time, the user wants it on.
-                getPrefs().edit().remove(KEY_DISABLE_BT_WHEN_UNDOCKED).apply();
-                DockEventReceiver.finishStartingService(this, startId);
-            } else if (btState == BluetoothAdapter.STATE_OFF) {
-                // Bluetooth was turning off as we were trying to turn it on.
-                // Let's try again
-                if(DEBUG) Log.d(TAG, "Bluetooth = OFF mPendingDevice = " + mPendingDevice);
-
-                if (mPendingTurnOffStartId != INVALID_STARTID) {
-                    DockEventReceiver.finishStartingService(this, mPendingTurnOffStartId);
-                    getPrefs().edit().remove(KEY_DISABLE_BT).apply();
-                    mPendingTurnOffStartId = INVALID_STARTID;
-                }
-
-                if (mPendingDevice != null) {
-                    mLocalAdapter.enable();
-                    mPendingTurnOnStartId = startId;
-                } else {
-                    DockEventReceiver.finishStartingService(this, startId);
-                }
-            }
-        }
-    }
-
-    private void handleBluetoothStateOn(int startId) {
-        if (mPendingDevice != null) {
-            if (mPendingDevice.equals(mDevice)) {
-                if(DEBUG) {
-                    Log.d(TAG, "applying settings");
-                }
-                applyBtSettings(mPendingDevice, mPendingStartId);
-            } else if(DEBUG) {
-                Log.d(TAG, "mPendingDevice  (" + mPendingDevice + ") != mDevice ("
-                        + mDevice + ')');
-            }
-
-            mPendingDevice = null;
-            DockEventReceiver.finishStartingService(this, mPendingStartId);
-        } else {
-            final SharedPreferences prefs = getPrefs();
-            if (DEBUG) {
-                Log.d(TAG, "A DISABLE_BT_WHEN_UNDOCKED = "
-                        + prefs.getBoolean(KEY_DISABLE_BT_WHEN_UNDOCKED, false));
-            }
-            // Reconnect if docked and bluetooth was enabled by user.
-            Intent i = registerReceiver(null, new IntentFilter(Intent.ACTION_DOCK_EVENT));
-            if (i != null) {
-                int state = i.getIntExtra(Intent.EXTRA_DOCK_STATE,
-                        Intent.EXTRA_DOCK_STATE_UNDOCKED);
-                if (state != Intent.EXTRA_DOCK_STATE_UNDOCKED) {
-                    BluetoothDevice device = i
-                            .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if (device != null) {
-                        connectIfEnabled(device);
-                    }
-                } else if (prefs.getBoolean(KEY_DISABLE_BT, false)
-                        && mLocalAdapter.disable()) {
-                    mPendingTurnOffStartId = startId;
-                    prefs.edit().remove(KEY_DISABLE_BT).apply();
-                    return;
-                }
-            }
-        }
-
-        if (mPendingTurnOnStartId != INVALID_STARTID) {
-            DockEventReceiver.finishStartingService(this, mPendingTurnOnStartId);
-            mPendingTurnOnStartId = INVALID_STARTID;
-        }
-
-        DockEventReceiver.finishStartingService(this, startId);
-    }
-
-    private synchronized void handleUnexpectedDisconnect(BluetoothDevice disconnectedDevice,
-            LocalBluetoothProfile profile, int startId) {
-        if (DEBUG) {
-            Log.d(TAG, "handling failed connect for " + disconnectedDevice);
-        }
-
-            // Reconnect if docked.
-            if (disconnectedDevice != null) {
-                // registerReceiver can't be called from a BroadcastReceiver
-                Intent intent = registerReceiver(null, new IntentFilter(Intent.ACTION_DOCK_EVENT));
-                if (intent != null) {
-                    int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE,
-                            Intent.EXTRA_DOCK_STATE_UNDOCKED);
-                    if (state != Intent.EXTRA_DOCK_STATE_UNDOCKED) {
-                        BluetoothDevice dockedDevice = intent
-                                .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                        if (dockedDevice != null && dockedDevice.equals(disconnectedDevice)) {
-                            CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(
-                                    dockedDevice);
-                            cachedDevice.connectProfile(profile);
-                        }
-                    }
-                }
-            }
-
-            DockEventReceiver.finishStartingService(this, startId);
-    }
-
-    private synchronized void connectIfEnabled(BluetoothDevice device) {
-        CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(
-                device);
+    private void connectIfEnabled(CachedBluetoothDevice cachedDevice) {
         List<LocalBluetoothProfile> profiles = cachedDevice.getConnectableProfiles();
         for (LocalBluetoothProfile profile : profiles) {
-            if (profile.getPreferred(device) == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
-                cachedDevice.connect(false);
+            if (profile.getPreferred(cachedDevice.getDevice())
+                    == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
+                cachedDevice.connect(false, false);
                 return;
             }
         }
     }
 
-    private synchronized void applyBtSettings(BluetoothDevice device, int startId) {
+    // Returns true if Bluetooth is being turned on first; the state machine calls
+    // again once it is on.
+    private boolean applyBtSettings(BluetoothDevice device) {
         if (device == null || mProfiles == null || mCheckedItems == null
                 || mLocalAdapter == null) {
-            return;
+            return false;
         }
 
         // Turn on BT if something is enabled
@@ -772,23 +642,15 @@ public final class DockService extends Service implements ServiceListener {
 
                 // if adapter was previously OFF, TURNING_OFF, or TURNING_ON
                 if (btState != BluetoothAdapter.STATE_ON) {
-                    if (mPendingDevice != null && mPendingDevice.equals(mDevice)) {
-                        return;
-                    }
-
-                    mPendingDevice = device;
-                    mPendingStartId = startId;
                     if (btState != BluetoothAdapter.STATE_TURNING_ON) {
                         getPrefs().edit().putBoolean(
                                 KEY_DISABLE_BT_WHEN_UNDOCKED, true).apply();
                     }
-                    return;
+                    return true;
                 }
             }
         }
 
-        mPendingDevice = null;
-
         boolean callConnect = false;
         CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(
                 device);
@@ -815,32 +677,22 @@ public final class DockService extends Service implements ServiceListener {
             }
         }
 
+        // The connection summary depends on the preferred profiles.
+        cachedDevice.refresh();
+
         if (callConnect) {
             if (DEBUG) Log.d(TAG, "applyBtSettings - Connecting");
-            cachedDevice.connect(false);
-        }
-    }
-
-    private synchronized void handleDocked(BluetoothDevice device, int state,
-            int startId) {
-        if (LocalBluetoothPreferences.getDockAutoConnectSetting(this, device.getAddress())) {
-            // Setting == auto connect
-            initBtSettings(device, state, false);
-            applyBtSettings(mDevice, startId);
-        } else {
-            createDialog(device, state, startId);
+            cachedDevice.connect(false, false);
         }
+        return false;
     }
 
-    private synchronized void handleUndocked(BluetoothDevice device) {
-        mRunnable = null;
-        mProfileManager.removeServiceListener(this);
+    private void handleUndocked(BluetoothDevice device) {
         if (mDialog != null) {
             mDialog.dismiss();
             mDialog = null;
         }
         mDevice = null;
-        mPendingDevice = null;
         CachedBluetoothDevice cachedDevice = getCachedBluetoothDevice(device);
         cachedDevice.disconnect();
     }
@@ -853,11 +705,16 @@ public final class DockService extends Service implements ServiceListener {
         return cachedDevice;
     }
 
-    public synchronized void onServiceConnected() {
-        if (mRunnable != null) {
-            mRunnable.run();
-            mRunnable = null;
-            mProfileManager.removeServiceListener(this);
+    public void onServiceConnected() {
+        // Called on the main thread
+        final ServiceHandler handler = mServiceHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                public void run() {
+                    mStateMachine.postProfilesReady();
+                    mStateMachine.processEvents();
+                }
+            });
         }
     }
 
@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DockStateMachine decides what {@link DockService} does about dock, Bluetooth state
+ * and disconnect events. Events are queued by the post methods and handled by
+ * {@link #processEvents}; redundant dock and undock events are dropped on the way in,
+ * and reconnect requests handled in one pass are sent once per device.
+ *
+ * It isn't thread safe: DockService only uses it from its handler thread. Everything it
+ * does to the outside world goes through {@link Actions}, so it can be driven by tests
+ * with a fake adapter and clock.
+ *
+ * @param <D> the device type
+ * @param <P> the profile type
+ */
+final class DockStateMachine<D, P> {
+    private static final String TAG = "DockStateMachine";
+    private static final boolean DEBUG = DockService.DEBUG;
+
+    // Time allowed for the device to be undocked and redocked without severing
+    // the bluetooth connection. Doubled, up to MAX_UNDOCKED_GRACE_PERIOD, each time
+    // the device comes back within it, for docks with a loose contact.
+    static final long UNDOCKED_GRACE_PERIOD = 1000;
+    static final long MAX_UNDOCKED_GRACE_PERIOD = 4000;
+
+    // Time allowed for the device to be undocked and redocked without turning
+    // off Bluetooth
+    static final long DISABLE_BT_GRACE_PERIOD = 2000;
+
+    // Events beyond this are dropped, oldest first.
+    static final int MAX_QUEUED_EVENTS = 16;
+
+    static final int INVALID_STARTID = -100;
+
+    static final int STATE_UNDOCKED = 0;
+    static final int STATE_DOCKED = 1;
+    // Undocked, waiting for UNDOCKED_GRACE_PERIOD before disconnecting
+    static final int STATE_UNDOCKING = 2;
+    // Undocked and disconnected, waiting for DISABLE_BT_GRACE_PERIOD before
+    // turning Bluetooth off
+    static final int STATE_DISABLING_BT = 3;
+
+    static final int EVENT_DOCKED = 1;
+    static final int EVENT_UNDOCKED = 2;
+    static final int EVENT_SHOW_UI = 3;
+    static final int EVENT_BT_STATE_CHANGED = 4;
+    static final int EVENT_DISCONNECTED = 5;
+    static final int EVENT_APPLY_SETTINGS = 6;
+    static final int EVENT_PROFILES_READY = 7;
+
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    /**
+     * What the state machine needs from the service and Bluetooth stack.
+     */
+    interface Actions<D, P> {
+        /** Releases the start of the service, see DockEventReceiver. */
+        void finish(int startId);
+
+        /** Asks for {@link DockStateMachine#onTimeout} to be called after a delay. */
+        void scheduleTimeout(long delayMillis);
+
+        /** Returns true if the profiles can be used yet. */
+        boolean isProfileManagerReady();
+
+        /** Returns the device the phone is docked in, or null. */
+        D getDockedDevice();
+
+        /** Returns true if the dock settings of the device were remembered. */
+        boolean isAutoConnect(D device);
+
+        /** Loads the remembered dock settings of the device. */
+        void loadSettings(D device, int dockState);
+
+        /**
+         * Shows the dock settings dialog, which finishes {@code startId} when dismissed.
+         *
+         * @return false if no dialog was shown
+         */
+        boolean showDialog(D device, int dockState, int startId);
+
+        /**
+         * Connects and disconnects profiles as the dock settings say.
+         *
+         * @return true if Bluetooth is being turned on first
+         */
+        boolean applySettings(D device);
+
+        /**
+         * Connects the device to {@code profiles}, or if null, to those it
+         * auto-connects to.
+         */
+        void connect(D device, List<P> profiles);
+
+        /** Dismisses the dialog and disconnects the device. */
+        void disconnect(D device);
+
+        /** Returns true if Bluetooth was turned on for the dock and is no longer used. */
+        boolean shouldDisableBluetooth(D undockedDevice);
+
+        /** Turns Bluetooth off, or remembers to when that fails. */
+        boolean disableBluetooth();
+
+        /** Turns Bluetooth off if an earlier attempt failed. */
+        boolean retryDisableBluetooth();
+
+        void enableBluetooth();
+
+        /** Forgets that Bluetooth was turned on for the dock. */
+        void clearDisableBluetoothWhenUndocked();
+
+        /** Forgets that Bluetooth failed to turn off. */
+        void clearDisableBluetooth();
+    }
+
+    private static final class Event<D, P> {
+        final int mType;
+        final D mDevice;
+        final P mProfile;
+        // Dock or Bluetooth state
+        final int mState;
+        final int mStartId;
+
+        Event(int type, D device, P profile, int state, int startId) {
+            mType = type;
+            mDevice = device;
+            mProfile = profile;
+            mState = state;
+            mStartId = startId;
+        }
+    }
+
+    private final Actions<D, P> mActions;
+    private final Clock mClock;
+    private final ArrayDeque<Event<D, P>> mQueue = new ArrayDeque<Event<D, P>>();
+
+    private int mState = STATE_UNDOCKED;
+    // Set after a docked event and unset when the connection is severed. It may be
+    // null while docked if the service was started after the docked event.
+    private D mDevice;
+    private long mGracePeriod = UNDOCKED_GRACE_PERIOD;
+    private long mDeadline;
+    // Device and start of the pending undock or Bluetooth disable
+    private D mUndockedDevice;
+    private int mUndockedStartId = INVALID_STARTID;
+
+    // Docked event waiting for the profile manager
+    private Event<D, P> mDeferredDock;
+
+    // Set while BT is being enabled.
+    private D mPendingDevice;
+    private int mPendingStartId;
+    private int mPendingTurnOnStartId = INVALID_STARTID;
+    private int mPendingTurnOffStartId = INVALID_STARTID;
+
+    // Reconnections asked for while processing events; a null list means all profiles.
+    private final LinkedHashMap<D, List<P>> mConnects = new LinkedHashMap<D, List<P>>();
+
+    private int mDroppedEvents;
+
+    DockStateMachine(Actions<D, P> actions, Clock clock) {
+        mActions = actions;
+        mClock = clock;
+    }
+
+    void postDocked(D device, int dockState, int startId) {
+        post(new Event<D, P>(EVENT_DOCKED, device, null, dockState, startId));
+    }
+
+    void postUndocked(D device, int startId) {
+        post(new Event<D, P>(EVENT_UNDOCKED, device, null, 0, startId));
+    }
+
+    void postShowUi(D device, int dockState, int startId) {
+        post(new Event<D, P>(EVENT_SHOW_UI, device, null, dockState, startId));
+    }
+
+    void postBluetoothStateChanged(int btState, int startId) {
+        post(new Event<D, P>(EVENT_BT_STATE_CHANGED, null, null, btState, startId));
+    }
+
+    void postDisconnected(D device, P profile, int startId) {
+        post(new Event<D, P>(EVENT_DISCONNECTED, device, profile, 0, startId));
+    }
+
+    /** Applies the settings chosen in the dialog shown for {@code startId}. */
+    void postApplySettings(D device, int startId) {
+        post(new Event<D, P>(EVENT_APPLY_SETTINGS, device, null, 0, startId));
+    }
+
+    void postProfilesReady() {
+        post(new Event<D, P>(EVENT_PROFILES_READY, null, null, 0, INVALID_STARTID));
+    }
+
+    private void post(Event<D, P> event) {
+        if (event.mType == EVENT_DOCKED || event.mType == EVENT_UNDOCKED) {
+            // A dock event cancels the opposite one still queued for the same device:
+            // together they change nothing.
+            final Iterator<Event<D, P>> it = mQueue.descendingIterator();
+            while (it.hasNext()) {
+                final Event<D, P> queued = it.next();
+                if (queued.mType == EVENT_DOCKED || queued.mType == EVENT_UNDOCKED) {
+                    if (queued.mType != event.mType && equal(queued.mDevice, event.mDevice)) {
+                        it.remove();
+                        finish(queued.mStartId);
+                        finish(event.mStartId);
+                        return;
+                    }
+                    break;
+                }
+            }
+        }
+        if (mQueue.size() == MAX_QUEUED_EVENTS) {
+            mDroppedEvents++;
+            finish(mQueue.removeFirst().mStartId);
+        }
+        mQueue.addLast(event);
+    }
+
+    /**
+     * Handles the queued events.
+     */
+    void processEvents() {
+        Event<D, P> event;
+        while ((event = mQueue.pollFirst()) != null) {
+            if (DEBUG) {
+                Log.d(TAG, "event " + event.mType + " state " + mState
+                        + " device " + event.mDevice);
+            }
+            switch (event.mType) {
+                case EVENT_DOCKED:
+                    onDocked(event);
+                    break;
+                case EVENT_UNDOCKED:
+                    onUndocked(event);
+                    break;
+                case EVENT_SHOW_UI:
+                    mDevice = event.mDevice;
+                    if (!mActions.showDialog(event.mDevice, event.mState, event.mStartId)) {
+                        finish(event.mStartId);
+                    }
+                    break;
+                case EVENT_BT_STATE_CHANGED:
+                    onBluetoothStateChanged(event.mState, event.mStartId);
+                    break;
+                case EVENT_DISCONNECTED:
+                    // Reconnect if still docked.
+                    if (event.mDevice != null
+                            && event.mDevice.equals(mActions.getDockedDevice())) {
+                        addConnect(event.mDevice, event.mProfile);
+                    }
+                    finish(event.mStartId);
+                    break;
+                case EVENT_APPLY_SETTINGS:
+                    applySettings(event.mDevice, event.mStartId);
+                    break;
+                case EVENT_PROFILES_READY:
+                    if (mDeferredDock != null) {
+                        final Event<D, P> deferred = mDeferredDock;
+                        mDeferredDock = null;
+                        handleDocked(deferred.mDevice, deferred.mState, deferred.mStartId);
+                    }
+                    break;
+            }
+        }
+
+        for (Map.Entry<D, List<P>> entry : mConnects.entrySet()) {
+            mActions.connect(entry.getKey(), entry.getValue());
+        }
+        mConnects.clear();
+    }
+
+    /**
+     * Called when a delay asked with {@link Actions#scheduleTimeout} ran out.
+     */
+    void onTimeout() {
+        if (mState != STATE_UNDOCKING && mState != STATE_DISABLING_BT) {
+            return;
+        }
+        final long now = mClock.uptimeMillis();
+        if (now < mDeadline) {
+            mActions.scheduleTimeout(mDeadline - now);
+            return;
+        }
+
+        final int startId = mUndockedStartId;
+        mUndockedStartId = INVALID_STARTID;
+        if (mState == STATE_UNDOCKING) {
+            // Grace period passed. Disconnect.
+            mGracePeriod = UNDOCKED_GRACE_PERIOD;
+            handleUndocked(mUndockedDevice);
+            if (mActions.shouldDisableBluetooth(mUndockedDevice)) {
+                // BT was disabled when we first docked
+                setState(STATE_DISABLING_BT, DISABLE_BT_GRACE_PERIOD);
+                mUndockedStartId = startId;
+                return;
+            }
+        } else if (!mActions.disableBluetooth()) {
+            // Try again when Bluetooth is back on or off.
+            mState = STATE_UNDOCKED;
+            mUndockedDevice = null;
+            mPendingTurnOffStartId = startId;
+            return;
+        }
+        mState = STATE_UNDOCKED;
+        mUndockedDevice = null;
+        finish(startId);
+    }
+
+    private void onDocked(Event<D, P> event) {
+        if (mState == STATE_UNDOCKING) {
+            if (equal(event.mDevice, mUndockedDevice)) {
+                // Back within the grace period: be more patient next time.
+                mGracePeriod = Math.min(mGracePeriod * 2, MAX_UNDOCKED_GRACE_PERIOD);
+            }
+        }
+        if (mState == STATE_UNDOCKING || mState == STATE_DISABLING_BT) {
+            finish(mUndockedStartId);
+            mUndockedStartId = INVALID_STARTID;
+            mUndockedDevice = null;
+        }
+        mState = STATE_DOCKED;
+        mActions.clearDisableBluetooth();
+
+        if (event.mDevice == null || event.mDevice.equals(mDevice)) {
+            // Already handled.
+            finish(event.mStartId);
+            return;
+        }
+        if (mDevice != null) {
+            // Not expected. Cleanup/undock existing
+            handleUndocked(mDevice);
+        }
+        mDevice = event.mDevice;
+
+        if (mActions.isProfileManagerReady()) {
+            handleDocked(event.mDevice, event.mState, event.mStartId);
+        } else {
+            if (mDeferredDock != null) {
+                finish(mDeferredDock.mStartId);
+            }
+            mDeferredDock = event;
+        }
+    }
+
+    private void onUndocked(Event<D, P> event) {
+        if (mState == STATE_UNDOCKING && equal(event.mDevice, mUndockedDevice)) {
+            // Already counting down.
+            finish(event.mStartId);
+            return;
+        }
+        if (mState == STATE_UNDOCKING || mState == STATE_DISABLING_BT) {
+            finish(mUndockedStartId);
+        }
+        // Queue a delayed disconnect
+        mUndockedDevice = event.mDevice;
+        mUndockedStartId = event.mStartId;
+        setState(STATE_UNDOCKING, mGracePeriod);
+    }
+
+    private void handleDocked(D device, int dockState, int startId) {
+        if (mActions.isAutoConnect(device)) {
+            mActions.loadSettings(device, dockState);
+            applySettings(device, startId);
+        } else if (!mActions.showDialog(device, dockState, startId)) {
+            finish(startId);
+        }
+    }
+
+    private void handleUndocked(D device) {
+        mDeferredDock = null;
+        mDevice = null;
+        mPendingDevice = null;
+        mActions.disconnect(device);
+    }
+
+    private void applySettings(D device, int startId) {
+        if (mActions.applySettings(device)) {
+            if (mPendingDevice != null && mPendingDevice.equals(mDevice)) {
+                finish(startId);
+                return;
+            }
+            // Apply them again once Bluetooth is on.
+            mPendingDevice = device;
+            mPendingStartId = startId;
+            return;
+        }
+        mPendingDevice = null;
+        finish(startId);
+    }
+
+    private void onBluetoothStateChanged(int btState, int startId) {
+        if (btState == BluetoothAdapter.STATE_ON) {
+            if (mPendingDevice != null) {
+                if (mPendingDevice.equals(mDevice)) {
+                    mActions.applySettings(mPendingDevice);
+                }
+                mPendingDevice = null;
+                finish(mPendingStartId);
+            } else {
+                // Reconnect if docked and bluetooth was enabled by user.
+                final D docked = mActions.getDockedDevice();
+                if (docked != null) {
+                    mConnects.put(docked, null);
+                } else if (mActions.retryDisableBluetooth()) {
+                    mPendingTurnOffStartId = startId;
+                    return;
+                }
+            }
+            finish(mPendingTurnOnStartId);
+            mPendingTurnOnStartId = INVALID_STARTID;
+        } else if (btState == BluetoothAdapter.STATE_TURNING_OFF) {
+            // Remove the flag to disable BT if someone is turning off bt.
+            // The rational is that:
+            // a) if BT is off at undock time, no work needs to be done
+            // b) if BT is on at undock time, the user wants it on.
+            mActions.clearDisableBluetoothWhenUndocked();
+        } else if (btState == BluetoothAdapter.STATE_OFF) {
+            if (mPendingTurnOffStartId != INVALID_STARTID) {
+                finish(mPendingTurnOffStartId);
+                mActions.clearDisableBluetooth();
+                mPendingTurnOffStartId = INVALID_STARTID;
+            }
+            if (mPendingDevice != null) {
+                // Bluetooth was turning off as we were trying to turn it on.
+                // Let's try again
+                mActions.enableBluetooth();
+                finish(mPendingTurnOnStartId);
+                mPendingTurnOnStartId = startId;
+                return;
+            }
+        }
+        finish(startId);
+    }
+
+    private void addConnect(D device, P profile) {
+        if (!mConnects.containsKey(device)) {
+            mConnects.put(device, new ArrayList<P>());
+        }
+        final List<P> profiles = mConnects.get(device);
+        // A null list already connects everything.
+        if (profiles != null && !profiles.contains(profile)) {
+            profiles.add(profile);
+        }
+    }
+
+    private void setState(int state, long delayMillis) {
+        mState = state;
+        mDeadline = mClock.uptimeMillis() + delayMillis;
+        mActions.scheduleTimeout(delayMillis);
+    }
+
+    private void finish(int startId) {
+        if (startId != INVALID_STARTID) {
+            mActions.finish(startId);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    long getGracePeriod() {
+        return mGracePeriod;
+    }
+
+    /** Returns true while waiting for Bluetooth to turn on to apply dock settings. */
+    boolean isWaitingForBluetooth() {
+        return mPendingDevice != null;
+    }
+
+    int getDroppedEvents() {
+        return mDroppedEvents;
+    }
+}
@@ -59,6 +59,7 @@ final class HeadsetProfile implements LocalBluetoothProfile {
         public void onServiceConnected(int profile, BluetoothProfile proxy) {
             mService = (BluetoothHeadset) proxy;
             mProfileReady = true;
+            mDeviceManager.refreshDevices();
             // We just bound to the service, so refresh the UI of the
             // headset device.
             List<BluetoothDevice> deviceList = mService.getConnectedDevices();
@@ -81,6 +82,7 @@ final class HeadsetProfile implements LocalBluetoothProfile {
         public void onServiceDisconnected(int profile) {
             mProfileReady = false;
             mService = null;
+            mDeviceManager.refreshDevices();
             mProfileManager.callServiceDisconnectedListeners();
         }
     }
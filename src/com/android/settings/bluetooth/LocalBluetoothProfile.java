@@ -49,7 +49,10 @@ interface LocalBluetoothProfile {
 
     boolean isProfileReady();
 
-    /** Display order for device profile settings. */
+    /**
+     * Display order for device profile settings, also the index of the profile in
+     * per-profile tables: below {@link LocalBluetoothProfileManager#PROFILE_COUNT}.
+     */
     int getOrdinal();
 
     /**
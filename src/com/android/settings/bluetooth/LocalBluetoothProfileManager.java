@@ -43,6 +43,12 @@ final class LocalBluetoothProfileManager {
     /** Singleton instance. */
     private static LocalBluetoothProfileManager sInstance;
 
+    /**
+     * Number of profiles. Their ordinals are below it, so that per-profile state can
+     * be kept in arrays indexed by ordinal.
+     */
+    static final int PROFILE_COUNT = 5;
+
     /**
      * An interface for notifying BluetoothHeadset IPC clients when they have
      * been connected to the BluetoothHeadset service.
@@ -128,7 +134,7 @@ final class LocalBluetoothProfileManager {
         if (BluetoothUuid.isUuidPresent(uuids, BluetoothUuid.AudioSource)) {
             if (mA2dpProfile == null) {
                 Log.d(TAG, "Adding local A2DP profile");
-                mA2dpProfile = new A2dpProfile(mContext);
+                mA2dpProfile = new A2dpProfile(mContext, mDeviceManager);
                 addProfile(mA2dpProfile, A2dpProfile.NAME,
                         BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
             }
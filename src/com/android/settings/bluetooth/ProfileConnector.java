@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * ProfileConnector connects a device to several profiles at once. Every profile
+ * connection is started right away; each one has its own timeout and number of
+ * attempts, and once all of them succeeded or gave up the outcome is reported once.
+ *
+ * Profile connections complete through state change broadcasts, which must be passed
+ * to {@link #onProfileStateChanged}. Only used from the main thread.
+ */
+final class ProfileConnector {
+    private static final String TAG = "ProfileConnector";
+
+    // Time given to each connection attempt
+    static final long CONNECT_TIMEOUT = 10000;
+
+    // Attempts per profile, including the first one
+    static final int MAX_ATTEMPTS = 2;
+
+    /** Every profile connected. */
+    static final int RESULT_CONNECTED = 0;
+    /** Some profiles connected, others failed. */
+    static final int RESULT_PARTIAL = 1;
+    /** No profile connected. */
+    static final int RESULT_FAILED = 2;
+
+    interface Callback {
+        /**
+         * Called when the last profile of a round of connections succeeded or gave up.
+         *
+         * @param failed the profiles that didn't connect
+         */
+        void onConnectFinished(int result, List<LocalBluetoothProfile> failed);
+    }
+
+    // Upper bounds in milliseconds of the latency histogram buckets; the last bucket
+    // holds the slower connections.
+    private static final long[] LATENCY_BUCKETS = { 250, 500, 1000, 2000, 4000, 8000 };
+
+    /** Latency histogram of each profile, followed by its count of failures. */
+    private static final HashMap<String, int[]> sLatencies = new HashMap<String, int[]>();
+
+    private final class Attempt implements Runnable {
+        final LocalBluetoothProfile mProfile;
+        final long mStart;
+        int mAttempts;
+
+        Attempt(LocalBluetoothProfile profile) {
+            mProfile = profile;
+            mStart = SystemClock.elapsedRealtime();
+        }
+
+        // Timed out.
+        public void run() {
+            if (mPending.get(mProfile) == this) {
+                Log.i(TAG, "Timed out connecting " + mProfile + " to " + mDevice);
+                retryOrFail(this);
+            }
+        }
+    }
+
+    private final BluetoothDevice mDevice;
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    private final LinkedHashMap<LocalBluetoothProfile, Attempt> mPending =
+            new LinkedHashMap<LocalBluetoothProfile, Attempt>();
+    private final List<LocalBluetoothProfile> mFailed = new ArrayList<LocalBluetoothProfile>();
+    private int mConnected;
+
+    ProfileConnector(BluetoothDevice device, Handler handler, Callback callback) {
+        mDevice = device;
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts connecting the profiles, joining the round of connections in progress if
+     * any. Profiles already connected or being connected are left alone.
+     */
+    void connect(Collection<LocalBluetoothProfile> profiles) {
+        // Register them all first, so that a profile failing right away doesn't end
+        // the round before the others started.
+        final List<Attempt> started = new ArrayList<Attempt>(profiles.size());
+        for (LocalBluetoothProfile profile : profiles) {
+            if (!mPending.containsKey(profile)
+                    && profile.getConnectionStatus(mDevice) != BluetoothProfile.STATE_CONNECTED) {
+                final Attempt attempt = new Attempt(profile);
+                mPending.put(profile, attempt);
+                mFailed.remove(profile);
+                started.add(attempt);
+            }
+        }
+        for (Attempt attempt : started) {
+            start(attempt);
+        }
+    }
+
+    /** Returns true while some profile is being connected. */
+    boolean isConnecting() {
+        return !mPending.isEmpty();
+    }
+
+    void onProfileStateChanged(LocalBluetoothProfile profile, int newProfileState) {
+        final Attempt attempt = mPending.get(profile);
+        if (attempt == null) {
+            return;
+        }
+        if (newProfileState == BluetoothProfile.STATE_CONNECTED) {
+            mHandler.removeCallbacks(attempt);
+            mPending.remove(profile);
+            mConnected++;
+            recordLatency(profile, SystemClock.elapsedRealtime() - attempt.mStart);
+            finishIfDone();
+        } else if (newProfileState == BluetoothProfile.STATE_DISCONNECTED) {
+            retryOrFail(attempt);
+        }
+    }
+
+    /** Stops connecting the profile, e.g. because it is being disconnected. */
+    void cancel(LocalBluetoothProfile profile) {
+        final Attempt attempt = mPending.remove(profile);
+        if (attempt != null) {
+            mHandler.removeCallbacks(attempt);
+            finishIfDone();
+        }
+    }
+
+    /** Stops connecting all profiles, without reporting the outcome. */
+    void cancelAll() {
+        for (Attempt attempt : mPending.values()) {
+            mHandler.removeCallbacks(attempt);
+        }
+        mPending.clear();
+        mFailed.clear();
+        mConnected = 0;
+    }
+
+    private void start(Attempt attempt) {
+        // Another attempt failing right away may have given up on the profile.
+        if (mPending.get(attempt.mProfile) != attempt) {
+            return;
+        }
+        attempt.mAttempts++;
+        if (!attempt.mProfile.connect(mDevice)) {
+            Log.i(TAG, "Failed to connect " + attempt.mProfile + " to " + mDevice);
+            retryOrFail(attempt);
+            return;
+        }
+        if (Utils.D) {
+            Log.d(TAG, "Command sent successfully:CONNECT " + attempt.mProfile + " attempt "
+                    + attempt.mAttempts);
+        }
+        mHandler.removeCallbacks(attempt);
+        mHandler.postDelayed(attempt, CONNECT_TIMEOUT);
+    }
+
+    private void retryOrFail(Attempt attempt) {
+        mHandler.removeCallbacks(attempt);
+        if (attempt.mAttempts < MAX_ATTEMPTS) {
+            start(attempt);
+            return;
+        }
+        mPending.remove(attempt.mProfile);
+        mFailed.add(attempt.mProfile);
+        recordFailure(attempt.mProfile);
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (!mPending.isEmpty() || (mConnected == 0 && mFailed.isEmpty())) {
+            return;
+        }
+        final int result = mFailed.isEmpty() ? RESULT_CONNECTED
+                : mConnected > 0 ? RESULT_PARTIAL : RESULT_FAILED;
+        final List<LocalBluetoothProfile> failed =
+                new ArrayList<LocalBluetoothProfile>(mFailed);
+        mFailed.clear();
+        mConnected = 0;
+        if (Utils.D) {
+            Log.d(TAG, "Connected " + mDevice + " with result " + result + ", failed "
+                    + failed + "; latencies " + dumpLatencies());
+        }
+        mCallback.onConnectFinished(result, failed);
+    }
+
+    private static int[] getLatencies(LocalBluetoothProfile profile) {
+        final String name = profile.toString();
+        int[] latencies = sLatencies.get(name);
+        if (latencies == null) {
+            latencies = new int[LATENCY_BUCKETS.length + 2];
+            sLatencies.put(name, latencies);
+        }
+        return latencies;
+    }
+
+    private static void recordLatency(LocalBluetoothProfile profile, long latency) {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        getLatencies(profile)[bucket]++;
+    }
+
+    private static void recordFailure(LocalBluetoothProfile profile) {
+        getLatencies(profile)[LATENCY_BUCKETS.length + 1]++;
+    }
+
+    /**
+     * Returns how many connections to the profile took up to each bucket bound, the
+     * slower ones, then the failed ones.
+     */
+    static int[] getLatencyHistogram(LocalBluetoothProfile profile) {
+        return getLatencies(profile).clone();
+    }
+
+    /**
+     * Describes the latency histograms of all profiles, e.g.
+     * "HEADSET=[<=250ms:3 <=500ms:1 failed:0]".
+     */
+    static String dumpLatencies() {
+        final StringBuilder sb = new StringBuilder();
+        for (String name : sLatencies.keySet()) {
+            final int[] latencies = sLatencies.get(name);
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(name).append("=[");
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (latencies[i] > 0) {
+                    sb.append("<=").append(LATENCY_BUCKETS[i]).append("ms:")
+                            .append(latencies[i]).append(' ');
+                }
+            }
+            if (latencies[LATENCY_BUCKETS.length] > 0) {
+                sb.append(">").append(LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1])
+                        .append("ms:").append(latencies[LATENCY_BUCKETS.length]).append(' ');
+            }
+            sb.append("failed:").append(latencies[LATENCY_BUCKETS.length + 1]).append(']');
+        }
+        return sb.toString();
+    }
+}
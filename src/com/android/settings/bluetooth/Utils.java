@@ -77,13 +77,7 @@ final class Utils {
         return dialog;
     }
 
-    // TODO: wire this up to show connection errors...
     static void showConnectingError(Context context, String name) {
-        // if (!mIsConnectingErrorPossible) {
-        //     return;
-        // }
-        // mIsConnectingErrorPossible = false;
-
         showError(context, name, R.string.bluetooth_connecting_error_message);
     }
 
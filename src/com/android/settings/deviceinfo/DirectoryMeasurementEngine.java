@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures groups of directories in parallel on a bounded pool of threads.
+ *
+ * Every directory is measured as its own task, so one huge tree does not hold up the
+ * others. A group is reported as soon as all of its directories are done, which lets
+ * callers publish partial results category by category.
+ */
+class DirectoryMeasurementEngine {
+    static final int DEFAULT_THREADS = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Computes the size of a single directory tree.
+     */
+    interface DirectorySizer {
+        long getDirectorySize(String path);
+    }
+
+    /**
+     * Receives results. Called on one of the measurement threads.
+     */
+    interface Callback {
+        /**
+         * @param group index of the group in the array passed to {@link #measure}
+         * @param sizes size of each path of the group, in the order given
+         */
+        void onGroupMeasured(int group, long[] sizes);
+
+        void onAllMeasured();
+    }
+
+    /**
+     * Handle on a running measurement.
+     */
+    static class Session {
+        private volatile boolean mCancelled;
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    DirectoryMeasurementEngine(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DirectoryMeasurement #"
+                                + mCount.incrementAndGet());
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        // Don't keep idle threads around between measurements.
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts measuring {@code groups}, an array of path lists. Empty groups are reported
+     * right away. Once cancelled, no further callbacks are made.
+     */
+    Session measure(final String[][] groups, final DirectorySizer sizer,
+            final Callback callback) {
+        final Session session = new Session();
+        final AtomicInteger groupsLeft = new AtomicInteger(groups.length);
+        if (groups.length == 0) {
+            callback.onAllMeasured();
+            return session;
+        }
+
+        for (int g = 0; g < groups.length; g++) {
+            final int group = g;
+            final String[] paths = groups[g];
+            final long[] sizes = new long[paths.length];
+            final AtomicInteger pathsLeft = new AtomicInteger(paths.length);
+            if (paths.length == 0) {
+                onGroupDone(session, group, sizes, groupsLeft, callback);
+                continue;
+            }
+            for (int p = 0; p < paths.length; p++) {
+                final int index = p;
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        if (session.isCancelled()) {
+                            return;
+                        }
+                        sizes[index] = sizer.getDirectorySize(paths[index]);
+                        if (pathsLeft.decrementAndGet() == 0) {
+                            // The atomic decrement orders the writes to sizes before this.
+                            onGroupDone(session, group, sizes, groupsLeft, callback);
+                        }
+                    }
+                });
+            }
+        }
+        return session;
+    }
+
+    private static void onGroupDone(Session session, int group, long[] sizes,
+            AtomicInteger groupsLeft, Callback callback) {
+        if (session.isCancelled()) {
+            return;
+        }
+        callback.onGroupMeasured(group, sizes);
+        if (groupsLeft.decrementAndGet() == 0 && !session.isCancelled()) {
+            callback.onAllMeasured();
+        }
+    }
+}
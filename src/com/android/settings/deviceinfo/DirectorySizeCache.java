@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process directory size walker backed by a persistent per-directory cache.
+ *
+ * For every directory the cache keeps its mtime, the total size of the files directly
+ * in it and the names of its subdirectories. A directory whose mtime is unchanged is
+ * not listed again; only its subdirectories are stat'ed, so re-measuring a tree costs
+ * roughly one stat per directory plus one listing per changed directory.
+ *
+ * A file growing in place does not touch the mtime of its directory, so entries are
+ * also re-listed once they are older than {@link #MAX_ENTRY_AGE_MS}.
+ */
+class DirectorySizeCache implements DirectoryMeasurementEngine.DirectorySizer {
+    private static final String TAG = "DirectorySizeCache";
+
+    static final int VERSION = 1;
+
+    static final long MAX_ENTRY_AGE_MS = 24 * 60 * 60 * 1000;
+
+    /** Entries of directories not visited for this long are not persisted. */
+    private static final long PRUNE_AGE_MS = 7 * MAX_ENTRY_AGE_MS;
+
+    private static final String[] NO_CHILDREN = new String[0];
+
+    static class Entry {
+        final long mtime;
+        final long fileBytes;
+        final String[] children;
+        final long listed;
+        volatile long seen;
+
+        Entry(long mtime, long fileBytes, String[] children, long listed, long seen) {
+            this.mtime = mtime;
+            this.fileBytes = fileBytes;
+            this.children = children;
+            this.listed = listed;
+            this.seen = seen;
+        }
+    }
+
+    private final File mCacheFile;
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final Object mLock = new Object();
+    private boolean mLoaded;
+    private volatile boolean mDirty;
+
+    /** Directories listed and reused since the last {@link #save()}, for logging. */
+    final AtomicInteger mListedCount = new AtomicInteger();
+    final AtomicInteger mReusedCount = new AtomicInteger();
+
+    DirectorySizeCache(File cacheFile) {
+        mCacheFile = cacheFile;
+    }
+
+    /**
+     * Returns the total size of the files under {@code path}, or -1 if it can't be read.
+     * Safe to call from several threads at once.
+     */
+    public long getDirectorySize(String path) {
+        ensureLoaded();
+        final long now = System.currentTimeMillis();
+        final File root = new File(path);
+        if (root.isFile()) {
+            return root.length();
+        } else if (!root.exists()) {
+            return 0;
+        }
+
+        final String rootPath = root.getPath();
+        long size = 0;
+        final ArrayList<String> stack = new ArrayList<String>();
+        stack.add(rootPath);
+        while (!stack.isEmpty()) {
+            final String dirPath = stack.remove(stack.size() - 1);
+            final Entry entry = lookup(dirPath, now);
+            if (entry == null) {
+                if (dirPath.equals(rootPath)) {
+                    return -1;
+                }
+                continue;
+            }
+            size += entry.fileBytes;
+            for (String child : entry.children) {
+                stack.add(dirPath + File.separator + child);
+            }
+        }
+        return size;
+    }
+
+    private Entry lookup(String path, long now) {
+        final File dir = new File(path);
+        final long mtime = dir.lastModified();
+        Entry entry = mEntries.get(path);
+        if (entry != null && entry.mtime == mtime && mtime != 0
+                && now - entry.listed < MAX_ENTRY_AGE_MS) {
+            entry.seen = now;
+            mReusedCount.incrementAndGet();
+            return entry;
+        }
+
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            if (entry != null) {
+                mEntries.remove(path);
+                mDirty = true;
+            }
+            return null;
+        }
+        long fileBytes = 0;
+        final ArrayList<String> children = new ArrayList<String>();
+        for (File file : files) {
+            if (file.isFile()) {
+                fileBytes += file.length();
+            } else if (file.isDirectory()) {
+                children.add(file.getName());
+            }
+        }
+        entry = new Entry(mtime, fileBytes, children.isEmpty() ? NO_CHILDREN
+                : children.toArray(new String[children.size()]), now, now);
+        mEntries.put(path, entry);
+        mDirty = true;
+        mListedCount.incrementAndGet();
+        return entry;
+    }
+
+    private void ensureLoaded() {
+        synchronized (mLock) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mCacheFile)));
+                if (in.readInt() != VERSION) {
+                    return;
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String path = in.readUTF();
+                    final long mtime = in.readLong();
+                    final long fileBytes = in.readLong();
+                    final long listed = in.readLong();
+                    final long seen = in.readLong();
+                    final int numChildren = in.readInt();
+                    final String[] children = numChildren == 0 ? NO_CHILDREN
+                            : new String[numChildren];
+                    for (int c = 0; c < numChildren; c++) {
+                        children[c] = in.readUTF();
+                    }
+                    mEntries.put(path, new Entry(mtime, fileBytes, children, listed, seen));
+                }
+            } catch (FileNotFoundException e) {
+                // First measurement, nothing cached yet.
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable cache " + mCacheFile, e);
+                mEntries.clear();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the cache back to disk if anything changed. Call when no measurement is
+     * running.
+     */
+    void save() {
+        if (StorageMeasurement.LOGV) {
+            Log.i(TAG, "listed " + mListedCount.getAndSet(0) + " directories, reused "
+                    + mReusedCount.getAndSet(0));
+        }
+        synchronized (mLock) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+
+            final long now = System.currentTimeMillis();
+            final File temp = new File(mCacheFile.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext();) {
+                    if (now - it.next().seen > PRUNE_AGE_MS) {
+                        it.remove();
+                    }
+                }
+                out.writeInt(VERSION);
+                out.writeInt(mEntries.size());
+                for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                    final Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.mtime);
+                    out.writeLong(entry.fileBytes);
+                    out.writeLong(entry.listed);
+                    out.writeLong(entry.seen);
+                    out.writeInt(entry.children.length);
+                    for (String child : entry.children) {
+                        out.writeUTF(child);
+                    }
+                }
+                out.close();
+                out = null;
+                if (!temp.renameTo(mCacheFile)) {
+                    Log.w(TAG, "Unable to replace " + mCacheFile);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write " + mCacheFile, e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    /** Forgets everything cached for {@code path} and below. */
+    void invalidate(String path) {
+        final String prefix = path + File.separator;
+        for (Iterator<String> it = mEntries.keySet().iterator(); it.hasNext();) {
+            final String key = it.next();
+            if (key.equals(path) || key.startsWith(prefix)) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes files and directory trees in the background, several entries in parallel.
+ *
+ * Progress (files deleted and bytes reclaimed so far) is reported periodically on the
+ * handler given to {@link #delete}, followed by one result per entry and a final
+ * completion callback. A deletion can be cancelled at any time; entries already
+ * partially deleted then report what they reclaimed.
+ */
+class FileDeleteEngine {
+    static final int DEFAULT_THREADS = 3;
+
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Receives progress and results on the handler's thread.
+     */
+    interface Listener {
+        void onProgress(long filesDeleted, long bytesReclaimed);
+
+        /**
+         * @param deleted true if {@code path} is entirely gone
+         */
+        void onEntryDeleted(String path, long bytesReclaimed, boolean deleted);
+
+        void onFinished(boolean cancelled);
+    }
+
+    /**
+     * Handle on a running deletion.
+     */
+    static class Task {
+        private volatile boolean mCancelled;
+        final AtomicLong mFiles = new AtomicLong();
+        final AtomicLong mBytes = new AtomicLong();
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    FileDeleteEngine(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FileDelete #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    Task delete(List<String> paths, final Handler handler, final Listener listener) {
+        final Task task = new Task();
+        final AtomicInteger entriesLeft = new AtomicInteger(paths.size());
+
+        final Runnable progress = new Runnable() {
+            public void run() {
+                listener.onProgress(task.mFiles.get(), task.mBytes.get());
+                if (entriesLeft.get() > 0) {
+                    handler.postDelayed(this, PROGRESS_INTERVAL_MS);
+                }
+            }
+        };
+        if (paths.isEmpty()) {
+            handler.post(new Runnable() {
+                public void run() {
+                    listener.onFinished(false);
+                }
+            });
+            return task;
+        }
+        handler.postDelayed(progress, PROGRESS_INTERVAL_MS);
+
+        for (final String path : paths) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    final long reclaimed = deleteTree(new File(path), task);
+                    final boolean deleted = !new File(path).exists();
+                    handler.post(new Runnable() {
+                        public void run() {
+                            listener.onEntryDeleted(path, reclaimed, deleted);
+                        }
+                    });
+                    if (entriesLeft.decrementAndGet() == 0) {
+                        handler.post(new Runnable() {
+                            public void run() {
+                                handler.removeCallbacks(progress);
+                                listener.onProgress(task.mFiles.get(), task.mBytes.get());
+                                listener.onFinished(task.isCancelled());
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        return task;
+    }
+
+    /**
+     * Deletes {@code root} and everything below it, children first, without recursion.
+     * Stops early if the task is cancelled.
+     *
+     * @return the number of bytes reclaimed
+     */
+    static long deleteTree(File root, Task task) {
+        long reclaimed = 0;
+        final ArrayList<File> stack = new ArrayList<File>();
+        stack.add(root);
+        // A directory stays on the stack below its children; seeing it a second time means
+        // its children have been handled and it can be removed.
+        final ArrayList<File> expanded = new ArrayList<File>();
+        while (!stack.isEmpty() && !task.isCancelled()) {
+            final File file = stack.get(stack.size() - 1);
+            if (file.isDirectory()
+                    && (expanded.isEmpty() || expanded.get(expanded.size() - 1) != file)) {
+                expanded.add(file);
+                final File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        stack.add(child);
+                    }
+                }
+                continue;
+            }
+            stack.remove(stack.size() - 1);
+            if (!expanded.isEmpty() && expanded.get(expanded.size() - 1) == file) {
+                expanded.remove(expanded.size() - 1);
+                file.delete();
+            } else {
+                final long length = file.length();
+                if (file.delete()) {
+                    reclaimed += length;
+                    task.mFiles.incrementAndGet();
+                    task.mBytes.addAndGet(length);
+                }
+            }
+        }
+        return reclaimed;
+    }
+}
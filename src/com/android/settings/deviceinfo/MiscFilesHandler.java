@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.app.ListActivity;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
 import android.util.Log;
@@ -41,7 +42,6 @@ import android.widget.ListView;
 import com.android.settings.R;
 import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,8 +52,15 @@ public class MiscFilesHandler extends ListActivity {
     private static final String TAG = "MemorySettings";
     private String mNumSelectedFormat;
     private String mNumBytesSelectedFormat;
+    private String mDeletingFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
+    private StorageMeasurement mMeasurement;
+    private final Handler mHandler = new Handler();
+
+    private static final FileDeleteEngine sDeleteEngine =
+            new FileDeleteEngine(FileDeleteEngine.DEFAULT_THREADS);
+    private FileDeleteEngine.Task mDeleteTask;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -62,6 +69,7 @@ public class MiscFilesHandler extends ListActivity {
         setTitle(R.string.misc_files);
         mNumSelectedFormat = getString(R.string.misc_files_selected_count);
         mNumBytesSelectedFormat = getString(R.string.misc_files_selected_count_bytes);
+        mDeletingFormat = getString(R.string.misc_files_deleting_progress);
         mAdapter = new MemoryMearurementAdapter(this);
         mInflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         setContentView(R.layout.settings_storage_miscfiles_list);
@@ -72,6 +80,15 @@ public class MiscFilesHandler extends ListActivity {
         setListAdapter(mAdapter);
     } 
 
+    @Override
+    protected void onDestroy() {
+        if (mDeleteTask != null) {
+            // Whatever was deleted so far is still reported to the measurement.
+            mDeleteTask.cancel();
+        }
+        super.onDestroy();
+    }
+
     private class ModeCallback implements ListView.MultiChoiceModeListener {
         private int mDataCount;
         private final Context mContext;
@@ -88,6 +105,10 @@ public class MiscFilesHandler extends ListActivity {
         }
 
         public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            final boolean idle = mDeleteTask == null;
+            for (int i = 0; i < menu.size(); i++) {
+                menu.getItem(i).setEnabled(idle);
+            }
             return true;
         }
 
@@ -102,8 +123,8 @@ public class MiscFilesHandler extends ListActivity {
                     throw new IllegalStateException("checked item counts do not match. " +
                             "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
                 }
-                if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
+                if (mDataCount > 0 && mDeleteTask == null) {
+                    ArrayList<String> toDelete = new ArrayList<String>();
                     for (int i = 0; i < mDataCount; i++) {
                         if (!checkedItems.get(i)) {
                             //item not selected
@@ -112,20 +133,12 @@ public class MiscFilesHandler extends ListActivity {
                         if (StorageMeasurement.LOGV) {
                             Log.i(TAG, "deleting: " + mAdapter.getItem(i));
                         }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
+                        toDelete.add(mAdapter.getItem(i).mFileName);
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
+                    startDelete(mode, toDelete);
+                } else if (mDeleteTask == null) {
+                    mode.finish();
                 }
-                mode.finish();
                 break;
 
             case R.id.action_select_all:
@@ -140,29 +153,85 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            if (dir.isDirectory()) {
-                String[] children = dir.list();
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
+        /**
+         * Deletes {@code paths} in the background, showing progress in the action mode.
+         * The mode stays open, with its actions disabled, until deletion finishes or is
+         * cancelled by closing the mode.
+         */
+        private void startDelete(final ActionMode mode, List<String> paths) {
+            mode.setTitle(R.string.misc_files_deleting);
+            mode.setSubtitle(null);
+            final DeleteListener listener = new DeleteListener(mode);
+            mDeleteTask = sDeleteEngine.delete(paths, mHandler, listener);
+            // Callbacks are posted to mHandler, so this is set before the first one.
+            listener.mTask = mDeleteTask;
+            mode.invalidate();
+        }
+
+        private class DeletedEntry {
+            final String mPath;
+            final long mBytesReclaimed;
+            final boolean mRemoved;
+
+            DeletedEntry(String path, long bytesReclaimed, boolean removed) {
+                mPath = path;
+                mBytesReclaimed = bytesReclaimed;
+                mRemoved = removed;
+            }
+        }
+
+        private class DeleteListener implements FileDeleteEngine.Listener {
+            private final ActionMode mMode;
+            private final ArrayList<DeletedEntry> mDeleted = new ArrayList<DeletedEntry>();
+            FileDeleteEngine.Task mTask;
+
+            DeleteListener(ActionMode mode) {
+                mMode = mode;
+            }
+
+            public void onProgress(long filesDeleted, long bytesReclaimed) {
+                if (mDeleteTask == mTask) {
+                    mMode.setSubtitle(String.format(mDeletingFormat, filesDeleted,
+                            Formatter.formatFileSize(mContext, bytesReclaimed)));
+                }
+            }
+
+            public void onEntryDeleted(String path, long bytesReclaimed, boolean deleted) {
+                if (mMeasurement != null) {
+                    mMeasurement.onMiscFileDeleted(path, bytesReclaimed, deleted);
+                }
+                // The list is updated at the end so checked positions don't shift meanwhile.
+                mDeleted.add(new DeletedEntry(path, bytesReclaimed, deleted));
+            }
+
+            public void onFinished(boolean cancelled) {
+                for (DeletedEntry entry : mDeleted) {
+                    mAdapter.onEntryDeleted(entry.mPath, entry.mBytesReclaimed, entry.mRemoved);
+                }
+                getListView().clearChoices();
+                mAdapter.notifyDataSetChanged();
+                mDataCount = mAdapter.getCount();
+                if (mDeleteTask == mTask) {
+                    mDeleteTask = null;
+                    mMode.finish();
                 }
             }
-            // The directory is now empty so delete it
-            return dir.delete();
         }
 
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            if (mDeleteTask != null) {
+                // Closing the action mode while deleting cancels the rest of the deletion.
+                mDeleteTask.cancel();
+                mDeleteTask = null;
+            }
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
                 boolean checked) {
+            if (mDeleteTask != null) {
+                // Keep showing deletion progress.
+                return;
+            }
             ListView lv = getListView();
             int numChecked = lv.getCheckedItemCount();
             mode.setTitle(String.format(mNumSelectedFormat, numChecked, mAdapter.getCount()));
@@ -193,11 +262,13 @@ public class MiscFilesHandler extends ListActivity {
             mContext = activity;
             final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
                     StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = 
+            mMeasurement =
                 StorageMeasurement.getInstance(activity, storageVolume, false /*Unused as a key*/);
             if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
+            final List<StorageMeasurement.FileInfo> fileInfos = mMeasurement.mFileInfoForMisc;
+            if (fileInfos != null) {
+                // Our own copy; the measurement replaces its list when it changes.
+                mData = new ArrayList<StorageMeasurement.FileInfo>(fileInfos);
                 for (StorageMeasurement.FileInfo info : mData) {
                     mDataSize += info.mSize;
                 }
@@ -225,13 +296,22 @@ public class MiscFilesHandler extends ListActivity {
             return mData.get(position).mId;
         }
 
-        public void removeAll(List<Object> objs) {
+        void onEntryDeleted(String path, long bytesReclaimed, boolean deleted) {
             if (mData == null) {
                 return;
             }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
+            for (int i = 0; i < mData.size(); i++) {
+                final FileInfo info = mData.get(i);
+                if (info.mFileName.equals(path)) {
+                    if (deleted) {
+                        mData.remove(i);
+                    } else {
+                        mData.set(i, new FileInfo(info.mFileName,
+                                Math.max(0, info.mSize - bytesReclaimed), info.mId));
+                    }
+                    mDataSize -= bytesReclaimed;
+                    break;
+                }
             }
         }
 
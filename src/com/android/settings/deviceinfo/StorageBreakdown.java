@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.app.ListActivity;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.storage.StorageVolume;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.Window;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.android.settings.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Shows where the space of a volume goes, folder by folder, from its
+ * {@link StorageSizeIndex}. Each level lists the subfolders of the current folder,
+ * largest first, followed by the largest files found below it. Back goes up a level.
+ *
+ * The index is loaded in the background when the screen opens, and only built again
+ * if the volume changed since it was last built.
+ */
+public class StorageBreakdown extends ListActivity {
+    private static final String TAG = "StorageBreakdown";
+
+    private static final String KEY_PATH = "path";
+
+    private StorageSizeIndex mIndex;
+    private final ArrayList<Integer> mNodeStack = new ArrayList<Integer>();
+    private BreakdownAdapter mAdapter;
+    private final StorageSizeIndex.Session mSession = new StorageSizeIndex.Session();
+    /** The folder to show once the index is loaded. */
+    private String mRestoredPath;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+        final StorageVolume storageVolume = getIntent().getParcelableExtra(
+                StorageVolume.EXTRA_STORAGE_VOLUME);
+        final StorageMeasurement measurement =
+                StorageMeasurement.getInstance(this, storageVolume, false /*Unused as a key*/);
+        if (!measurement.hasSizeIndex()) {
+            finish();
+            return;
+        }
+
+        mAdapter = new BreakdownAdapter(this);
+        setListAdapter(mAdapter);
+        if (savedInstanceState != null) {
+            mRestoredPath = savedInstanceState.getString(KEY_PATH);
+        }
+        setTitle(storageVolume.getPath());
+        setProgressBarIndeterminateVisibility(true);
+        new AsyncTask<Void, Void, StorageSizeIndex>() {
+            @Override
+            protected StorageSizeIndex doInBackground(Void... params) {
+                try {
+                    return measurement.getSizeIndex(mSession);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not load size index", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(StorageSizeIndex index) {
+                if (isFinishing()) {
+                    return;
+                }
+                if (index == null) {
+                    finish();
+                    return;
+                }
+                setProgressBarIndeterminateVisibility(false);
+                mIndex = index;
+                mNodeStack.add(StorageSizeIndex.ROOT);
+                restorePath(mRestoredPath);
+                showNode();
+            }
+        }.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mSession.cancel();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mIndex != null) {
+            // Saved by path: the index may be rebuilt, and renumbered, meanwhile.
+            outState.putString(KEY_PATH, mIndex.getPath(currentNode()));
+        } else if (mRestoredPath != null) {
+            outState.putString(KEY_PATH, mRestoredPath);
+        }
+    }
+
+    private void restorePath(String path) {
+        if (path == null) {
+            return;
+        }
+        int node = StorageSizeIndex.ROOT;
+        String remaining = path;
+        final String rootPath = mIndex.getName(StorageSizeIndex.ROOT);
+        if (!remaining.startsWith(rootPath)) {
+            return;
+        }
+        remaining = remaining.substring(rootPath.length());
+        for (String name : remaining.split(File.separator)) {
+            if (name.length() == 0) {
+                continue;
+            }
+            final int child = findChild(node, name);
+            if (child < 0) {
+                break;
+            }
+            node = child;
+            mNodeStack.add(node);
+        }
+    }
+
+    private int findChild(int node, String name) {
+        final int first = mIndex.getFirstChild(node);
+        final int count = mIndex.getChildCount(node);
+        for (int i = 0; i < count; i++) {
+            if (name.equals(mIndex.getName(first + i))) {
+                return first + i;
+            }
+        }
+        return -1;
+    }
+
+    private int currentNode() {
+        return mNodeStack.get(mNodeStack.size() - 1);
+    }
+
+    private void showNode() {
+        final int node = currentNode();
+        setTitle(mIndex.getPath(node));
+        mAdapter.setNode(node);
+        getListView().setSelection(0);
+    }
+
+    @Override
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        final int node = mAdapter.getChildNode(position);
+        if (node >= 0) {
+            mNodeStack.add(node);
+            showNode();
+        }
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (mIndex != null && mNodeStack.size() > 1) {
+            mNodeStack.remove(mNodeStack.size() - 1);
+            showNode();
+        } else {
+            super.onBackPressed();
+        }
+    }
+
+    /**
+     * Rows are the subfolders of the node, a row for the files directly in it if any,
+     * then the largest files below it.
+     */
+    private class BreakdownAdapter extends BaseAdapter {
+        private final Context mContext;
+        private final LayoutInflater mInflater;
+        private final String mFolderSummaryFormat;
+        private int mNode;
+        private int mFirstChild;
+        private int mChildCount;
+        private long mOwnFilesSize;
+        private int[] mTopFiles = new int[0];
+
+        BreakdownAdapter(Context context) {
+            mContext = context;
+            mInflater = (LayoutInflater) context.getSystemService(
+                    Context.LAYOUT_INFLATER_SERVICE);
+            mFolderSummaryFormat = context.getString(R.string.storage_breakdown_folder_summary);
+        }
+
+        void setNode(int node) {
+            mNode = node;
+            mFirstChild = mIndex.getFirstChild(node);
+            mChildCount = mIndex.getChildCount(node);
+            mOwnFilesSize = mIndex.getOwnFilesSize(node);
+            mTopFiles = mIndex.getTopFilesBelow(node);
+            notifyDataSetChanged();
+        }
+
+        private int ownFilesRows() {
+            return mOwnFilesSize > 0 ? 1 : 0;
+        }
+
+        /** Returns the node shown at {@code position}, or -1 for a file row. */
+        int getChildNode(int position) {
+            return position < mChildCount ? mFirstChild + position : -1;
+        }
+
+        @Override
+        public int getCount() {
+            return mChildCount + ownFilesRows() + mTopFiles.length;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return null;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public boolean isEnabled(int position) {
+            return position < mChildCount;
+        }
+
+        @Override
+        public boolean areAllItemsEnabled() {
+            return false;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final View view = convertView != null ? convertView : mInflater.inflate(
+                    android.R.layout.simple_list_item_2, parent, false);
+            final TextView title = (TextView) view.findViewById(android.R.id.text1);
+            final TextView summary = (TextView) view.findViewById(android.R.id.text2);
+
+            if (position < mChildCount) {
+                final int child = mFirstChild + position;
+                title.setText(mIndex.getName(child));
+                summary.setText(String.format(mFolderSummaryFormat,
+                        Formatter.formatFileSize(mContext, mIndex.getSize(child)),
+                        mIndex.getFileCount(child)));
+                return view;
+            }
+            position -= mChildCount;
+            if (position < ownFilesRows()) {
+                title.setText(R.string.storage_breakdown_files_here);
+                summary.setText(Formatter.formatFileSize(mContext, mOwnFilesSize));
+                return view;
+            }
+            position -= ownFilesRows();
+            final int file = mTopFiles[position];
+            // Shown relative to the current folder.
+            final String path = mIndex.getTopFilePath(file);
+            final String folder = mIndex.getPath(mNode);
+            title.setText(path.startsWith(folder) ? path.substring(folder.length() + 1) : path);
+            summary.setText(Formatter.formatFileSize(mContext, mIndex.getTopFileSize(file)));
+            return view;
+        }
+    }
+}
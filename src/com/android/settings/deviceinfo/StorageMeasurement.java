@@ -24,6 +24,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -33,17 +34,30 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.StatFs;
 import android.os.storage.StorageVolume;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files.FileColumns;
 import android.util.Log;
 
 import com.android.internal.app.IMediaContainerService;
+import com.android.settings.deviceinfo.StorageVolumePreferenceCategory.MediaCategory;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Measure the memory for various systems.
@@ -79,6 +93,13 @@ public class StorageMeasurement {
 
     public static final String MEDIA_SIZES = "media_sizes";
 
+    /**
+     * Size reported in a partial exact update for a category that is still being measured.
+     */
+    public static final long SIZE_UNKNOWN = -1;
+
+    private static final String VOLUME_EXTERNAL = "external";
+
     private static final String DEFAULT_CONTAINER_PACKAGE = "com.android.defcontainer";
 
     private static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
@@ -86,6 +107,25 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    /** Runs StatFs on the partitions of a multi-partition volume together. */
+    private static final ThreadPoolExecutor sStatFsExecutor = new ThreadPoolExecutor(
+            VolumeTopology.MAX_PARTITIONS, VolumeTopology.MAX_PARTITIONS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "StatFs #" + mCount.incrementAndGet());
+                }
+            });
+
+    static {
+        sStatFsExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Shared by all volumes so that concurrent measurements stay bounded. */
+    private static final DirectoryMeasurementEngine sEngine =
+            new DirectoryMeasurementEngine(DirectoryMeasurementEngine.DEFAULT_THREADS);
+
     private static Map<StorageVolume, StorageMeasurement> sInstances =
         new ConcurrentHashMap<StorageVolume, StorageMeasurement>();
     private static StorageMeasurement sInternalInstance;
@@ -103,6 +143,15 @@ public class StorageMeasurement {
     final private boolean mIsPrimary;
     final private boolean mIsInternal;
 
+    /** Walks the directories of this volume in process; null for internal storage. */
+    final private DirectorySizeCache mSizeCache;
+
+    /** Where the size index of this volume is written; null for internal storage. */
+    final private File mSizeIndexFile;
+
+    /** Set when the volume was invalidated; the size index is then built again. */
+    private volatile boolean mSizeIndexStale = true;
+
     List<FileInfo> mFileInfoForMisc;
 
     public interface MeasurementReceiver {
@@ -114,6 +163,11 @@ public class StorageMeasurement {
         mStorageVolume = storageVolume;
         mIsInternal = storageVolume == null;
         mIsPrimary = !mIsInternal && isPrimary;
+        VolumeTopology.registerReceiver(context);
+        mSizeCache = mIsInternal ? null : new DirectorySizeCache(new File(context.getCacheDir(),
+                "dirsizes_" + Integer.toHexString(storageVolume.getPath().hashCode())));
+        mSizeIndexFile = mIsInternal ? null : new File(context.getCacheDir(),
+                "sizeindex_" + Integer.toHexString(storageVolume.getPath().hashCode()));
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -168,6 +222,68 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Accounts for a misc entry deleted by the user, without measuring again.
+     *
+     * @param path the misc entry, as listed in {@link #mFileInfoForMisc}
+     * @param bytesReclaimed how much of it was deleted
+     * @param removed true if the entry is entirely gone
+     */
+    public void onMiscFileDeleted(String path, long bytesReclaimed, boolean removed) {
+        mHandler.obtainMessage(MeasurementHandler.MSG_MISC_DELETED, removed ? 1 : 0, 0,
+                new FileInfo(path, bytesReclaimed, 0)).sendToTarget();
+    }
+
+    /**
+     * Drops the cached MediaStore totals, e.g. after the media scanner ran.
+     */
+    public void invalidateMediaSizes() {
+        mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE_MEDIA);
+    }
+
+    /** Returns true if this volume can be drilled down into with {@link #getSizeIndex}. */
+    boolean hasSizeIndex() {
+        return mSizeIndexFile != null;
+    }
+
+    /**
+     * Returns the {@link StorageSizeIndex} of this volume, or null if cancelled. The
+     * index is only built again when a directory changed since it was last built, when
+     * it is older than {@link DirectorySizeCache#MAX_ENTRY_AGE_MS} or when the volume
+     * was invalidated. Blocks, so call it in the background.
+     */
+    StorageSizeIndex getSizeIndex(StorageSizeIndex.Session session) throws IOException {
+        synchronized (mSizeIndexFile) {
+            final long age = System.currentTimeMillis() - mSizeIndexFile.lastModified();
+            if (!mSizeIndexStale && age < DirectorySizeCache.MAX_ENTRY_AGE_MS) {
+                try {
+                    final StorageSizeIndex index = StorageSizeIndex.open(mSizeIndexFile);
+                    if (index.isCurrent()) {
+                        return index;
+                    }
+                } catch (IOException e) {
+                    // Built again below.
+                }
+            }
+            final long start = System.currentTimeMillis();
+            mSizeIndexStale = false;
+            final boolean built = StorageSizeIndex.build(new File(mStorageVolume.getPath()),
+                    mSizeIndexFile, session);
+            if (LOGV) {
+                Log.i(TAG, "size index of " + mStorageVolume.getPath() + " built " + built
+                        + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+            if (!built) {
+                mSizeIndexStale = true;
+                if (session == null || !session.isCancelled()) {
+                    throw new IOException("Could not index " + mStorageVolume.getPath());
+                }
+                return null;
+            }
+            return StorageSizeIndex.open(mSizeIndexFile);
+        }
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -196,7 +312,8 @@ public class StorageMeasurement {
         bundle.putLong(APPS_USED, mAppsSize);
         bundle.putLong(DOWNLOADS_SIZE, mDownloadsSize);
         bundle.putLong(MISC_SIZE, mMiscSize);
-        bundle.putLongArray(MEDIA_SIZES, mMediaSizes);
+        // Copied, since partial updates are sent while measurement goes on.
+        bundle.putLongArray(MEDIA_SIZES, mMediaSizes.clone());
 
         receiver.updateExact(bundle);
     }
@@ -212,8 +329,35 @@ public class StorageMeasurement {
 
         public static final int MSG_INVALIDATE = 5;
 
+        public static final int MSG_GROUP_MEASURED = 6;
+
+        public static final int MSG_DIRS_MEASURED = 7;
+
+        public static final int MSG_APPS_MEASURED = 8;
+
+        public static final int MSG_INVALIDATE_MEDIA = 9;
+
+        public static final int MSG_MISC_DELETED = 10;
+
         private Object mLock = new Object();
 
+        /** Incremented for every exact measurement; results of older ones are dropped. */
+        private int mGeneration;
+
+        private DirectoryMeasurementEngine.Session mDirSession;
+
+        private boolean mDirsMeasured;
+
+        private boolean mAppsMeasured;
+
+        /** Top level misc files, sized directly, while the misc directories are measured. */
+        private List<FileInfo> mPendingMiscFiles;
+
+        private String[] mPendingMiscDirs;
+
+        /** Media sizes of a non-primary volume from the MediaStore, null if not cached. */
+        private long[] mMediaStoreSizes;
+
         private IMediaContainerService mDefaultContainer;
 
         private volatile boolean mBound = false;
@@ -278,6 +422,7 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    cancelDirectoryMeasurement();
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -298,11 +443,55 @@ public class StorageMeasurement {
                 }
                 case MSG_INVALIDATE: {
                     mMeasured = false;
+                    mSizeIndexStale = true;
+                    break;
+                }
+                case MSG_INVALIDATE_MEDIA: {
+                    mMediaStoreSizes = null;
+                    break;
+                }
+                case MSG_MISC_DELETED: {
+                    onMiscDeleted((FileInfo) msg.obj, msg.arg1 != 0);
+                    break;
+                }
+                case MSG_GROUP_MEASURED: {
+                    if (msg.arg1 == mGeneration) {
+                        onGroupMeasured(msg.arg2, (long[]) msg.obj);
+                        // Stream what we have so far; pending categories are SIZE_UNKNOWN.
+                        sendExactUpdate();
+                    }
+                    break;
+                }
+                case MSG_DIRS_MEASURED: {
+                    if (msg.arg1 == mGeneration) {
+                        mDirsMeasured = true;
+                        mDirSession = null;
+                        mSizeCache.save();
+                        if (mAppsMeasured) onInternalMeasurementComplete();
+                    }
+                    break;
+                }
+                case MSG_APPS_MEASURED: {
+                    if (msg.arg1 == mGeneration) {
+                        mAppsMeasured = true;
+                        if (mDirsMeasured) {
+                            onInternalMeasurementComplete();
+                        } else {
+                            sendExactUpdate();
+                        }
+                    }
                     break;
                 }
             }
         }
 
+        private void cancelDirectoryMeasurement() {
+            if (mDirSession != null) {
+                mDirSession.cancel();
+                mDirSession = null;
+            }
+        }
+
         /**
          * Request measurement of each package.
          *
@@ -317,9 +506,14 @@ public class StorageMeasurement {
         }
 
         private class StatsObserver extends IPackageStatsObserver.Stub {
+            private final int mGeneration;
             private long mAppsSizeForThisStatsObserver = 0;
             private final List<String> mAppsList = new ArrayList<String>();
 
+            StatsObserver(int generation) {
+                mGeneration = generation;
+            }
+
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 if (!mStatsObserver.equals(this)) {
                     // this callback's class object is no longer in use. ignore this callback.
@@ -347,7 +541,7 @@ public class StorageMeasurement {
                 }
 
                 mAppsSize = mAppsSizeForThisStatsObserver;
-                onInternalMeasurementComplete();
+                onAppsMeasured(mGeneration);
             }
 
             public void queuePackageMeasurementLocked(String packageName) {
@@ -367,138 +561,158 @@ public class StorageMeasurement {
             sendEmptyMessage(MSG_COMPLETED);
         }
 
-        private void measureApproximateStorage() {
-        	/*
-            final StatFs stat = new StatFs(mStorageVolume != null
-                    ? mStorageVolume.getPath() : Environment.getDataDirectory().getPath());
-            final long blockSize = stat.getBlockSize();
-            final long totalBlocks = stat.getBlockCount();
-            final long availableBlocks = stat.getAvailableBlocks();
+        private void onAppsMeasured(int generation) {
+            obtainMessage(MSG_APPS_MEASURED, generation, 0).sendToTarget();
+        }
 
-            mTotalSize = totalBlocks * blockSize;
-            mAvailSize = availableBlocks * blockSize;
+        private void measureApproximateStorage() {
+            final String devPath = mStorageVolume != null
+                    ? mStorageVolume.getPath() : Environment.getDataDirectory().getPath();
+            final String[] partitions = VolumeTopology.getPartitions(devPath);
+
+            long totalSize = 0;
+            long availSize = 0;
+            if (partitions.length == 1) {
+                final long[] sizes = statFs(partitions[0]);
+                totalSize = sizes[0];
+                availSize = sizes[1];
+            } else {
+                // StatFs of a USB partition can block on a slow disk; query them together.
+                final List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+                for (final String partition : partitions) {
+                    tasks.add(new Callable<long[]>() {
+                        public long[] call() {
+                            return statFs(partition);
+                        }
+                    });
+                }
+                try {
+                    for (Future<long[]> future : sStatFsExecutor.invokeAll(tasks)) {
+                        final long[] sizes = future.get();
+                        totalSize += sizes[0];
+                        availSize += sizes[1];
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Could not stat partitions of " + devPath, e.getCause());
+                }
+            }
 
+            // Published as a whole, never partially summed.
+            mTotalSize = totalSize;
+            mAvailSize = availSize;
             sendInternalApproximateUpdate();
-            */
-        	mTotalSize = 0;
-        	mAvailSize = 0;
-        	String devPath = mStorageVolume != null 
-        			? mStorageVolume.getPath() : Environment.getDataDirectory().getPath();
-            StatFs stat = null;
-        	if(hasMultiplePartition(devPath)){
-        		File dev = new File(devPath);
-        		String[] devList = dev.list();
-        		for(String part:devList){
-        			stat = new StatFs(devPath + "/" + part);
-        			long blockSize = stat.getBlockSize();
-        			long totalBlocks = stat.getBlockCount();
-        			long availableBlocks = stat.getAvailableBlocks();
-        			
-        			mTotalSize += totalBlocks * blockSize;
-        			mAvailSize += availableBlocks * blockSize;
-        		}        		
-        	}else{
-        		stat = new StatFs(devPath);
-        		long blockSize = stat.getBlockSize();
-        		long totalBlocks = stat.getBlockCount();
-        		long availableBlocks = stat.getAvailableBlocks();
-        			
-        		mTotalSize = totalBlocks * blockSize;
-        		mAvailSize = availableBlocks * blockSize;
-        	}
-        	sendInternalApproximateUpdate();
         }
-        
-    	private boolean hasMultiplePartition(String devicePath)
-    	{
-			try {
-				File file = new File(devicePath);
-				String major_minor[] = new String[2];
-				String[] list = file.list();
-				if (list.length <= 10) {
-					for (int j = 0; j < list.length; j++) {
-						major_minor = list[j].split("_");
-						if(major_minor == null || major_minor.length != 2){
-							return false;
-						}						
-						try{
-							Integer.valueOf(major_minor[0]);
-							Integer.valueOf(major_minor[1]);
-						} catch (NumberFormatException e){
-							return false;
-						}
-					}
-					return true;
-				} 
-			} catch (Exception e) {}
-			return false;
-    	}
-
-        private void measureExactStorage(IMediaContainerService imcs) {
+
+        /**
+         * @return total and available bytes of the file system at {@code path}
+         */
+        private long[] statFs(String path) {
+            try {
+                final StatFs stat = new StatFs(path);
+                final long blockSize = stat.getBlockSize();
+                return new long[] {
+                        stat.getBlockCount() * blockSize, stat.getAvailableBlocks() * blockSize };
+            } catch (IllegalArgumentException e) {
+                // The partition went away under us.
+                Log.w(TAG, "Could not stat " + path, e);
+                return new long[2];
+            }
+        }
+
+        private void measureExactStorage(final IMediaContainerService imcs) {
             Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
             }
 
-            // Media
-            for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
-                if (mIsPrimary) {
-                    String[] dirs = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
-                    final int length = dirs.length;
-                    mMediaSizes[i] = 0;
-                    for (int d = 0; d < length; d++) {
-                        final String path = dirs[d];
-                        mMediaSizes[i] += getDirectorySize(imcs, path);
-                    }
-                } else {
-                    // TODO Compute sizes using the MediaStore
-                    mMediaSizes[i] = 0;
-                }
-            }
+            cancelDirectoryMeasurement();
+            final int generation = ++mGeneration;
+            mDirsMeasured = false;
+            mAppsMeasured = false;
+            mAppsSize = SIZE_UNKNOWN;
 
-            /* Compute sizes using the media provider
-            // Media sizes are measured by the MediaStore. Query database.
-            ContentResolver contentResolver = context.getContentResolver();
-            // TODO "external" as a static String from MediaStore?
-            Uri audioUri = MediaStore.Files.getContentUri("external");
-            final String[] projection =
-                new String[] { "sum(" + MediaStore.Files.FileColumns.SIZE + ")" };
-            final String selection =
-                MediaStore.Files.FileColumns.STORAGE_ID + "=" +
-                Integer.toString(mStorageVolume.getStorageId()) + " AND " +
-                MediaStore.Files.FileColumns.MEDIA_TYPE + "=?";
-
-            for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
-                mMediaSizes[i] = 0;
-                int mediaType = StorageVolumePreferenceCategory.sMediaCategories[i].mediaType;
-                Cursor c = null;
-                try {
-                    c = contentResolver.query(audioUri, projection, selection,
-                            new String[] { Integer.toString(mediaType) } , null);
+            final int numMedia = StorageVolumePreferenceCategory.sMediaCategories.length;
+            if (mIsPrimary) {
+                // Media, Downloads and Misc are measured in parallel, one directory per
+                // task, and published category by category as they complete.
+                Arrays.fill(mMediaSizes, SIZE_UNKNOWN);
+                mDownloadsSize = SIZE_UNKNOWN;
+                mMiscSize = SIZE_UNKNOWN;
+
+                final String[][] groups = new String[numMedia + 2][];
+                for (int i = 0; i < numMedia; i++) {
+                    groups[i] = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
+                }
+                groups[numMedia] = new String[] {
+                        Environment.getExternalStoragePublicDirectory(
+                                Environment.DIRECTORY_DOWNLOADS).getAbsolutePath() };
+                groups[numMedia + 1] = listMisc();
+
+                mDirSession = sEngine.measure(groups,
+                        new DirectoryMeasurementEngine.DirectorySizer() {
+                            public long getDirectorySize(String path) {
+                                // Unchanged subtrees are answered from the cache; only
+                                // unreadable ones go to the container service.
+                                final long size = mSizeCache.getDirectorySize(path);
+                                if (size >= 0) {
+                                    return size;
+                                }
+                                return StorageMeasurement.this.getDirectorySize(imcs, path);
+                            }
+                        },
+                        new DirectoryMeasurementEngine.Callback() {
+                            public void onGroupMeasured(int group, long[] sizes) {
+                                obtainMessage(MSG_GROUP_MEASURED, generation, group, sizes)
+                                        .sendToTarget();
+                            }
 
-                    if (c != null && c.moveToNext()) {
-                        long size = c.getLong(0);
-                        mMediaSizes[i] = size;
+                            public void onAllMeasured() {
+                                obtainMessage(MSG_DIRS_MEASURED, generation, 0).sendToTarget();
+                            }
+                        });
+            } else if (!mIsInternal) {
+                // Nothing but media is measured on other volumes.
+                mDownloadsSize = 0;
+                mMiscSize = 0;
+                if (mMediaStoreSizes == null) {
+                    mMediaStoreSizes = queryMediaStoreSizes(context);
+                }
+                if (mMediaStoreSizes != null) {
+                    System.arraycopy(mMediaStoreSizes, 0, mMediaSizes, 0, numMedia);
+                    mDirsMeasured = true;
+                } else {
+                    // Media provider unavailable; walk the media directories instead.
+                    Arrays.fill(mMediaSizes, SIZE_UNKNOWN);
+                    final String[][] groups = new String[numMedia][];
+                    for (int i = 0; i < numMedia; i++) {
+                        final String[] names =
+                                StorageVolumePreferenceCategory.sMediaCategories[i].mDirNames;
+                        groups[i] = new String[names.length];
+                        for (int d = 0; d < names.length; d++) {
+                            groups[i][d] = new File(mStorageVolume.getPath(), names[d]).getPath();
+                        }
                     }
-                } finally {
-                    if (c != null) c.close();
+                    mDirSession = sEngine.measure(groups, mSizeCache,
+                            new DirectoryMeasurementEngine.Callback() {
+                                public void onGroupMeasured(int group, long[] sizes) {
+                                    obtainMessage(MSG_GROUP_MEASURED, generation, group, sizes)
+                                            .sendToTarget();
+                                }
+
+                                public void onAllMeasured() {
+                                    obtainMessage(MSG_DIRS_MEASURED, generation, 0)
+                                            .sendToTarget();
+                                }
+                            });
                 }
-            }
-             */
-
-            // Downloads (primary volume only)
-            if (mIsPrimary) {
-                final String downloadsPath = Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
-                mDownloadsSize = getDirectorySize(imcs, downloadsPath);
             } else {
+                Arrays.fill(mMediaSizes, 0);
                 mDownloadsSize = 0;
-            }
-
-            // Misc
-            mMiscSize = 0;
-            if (mIsPrimary) {
-                measureSizesOfMisc(imcs);
+                mMiscSize = 0;
+                mDirsMeasured = true;
             }
 
             // Apps
@@ -518,7 +732,7 @@ public class StorageMeasurement {
 
             if (apps != null && apps.size() > 0) {
                 // initiate measurement of all package sizes. need new StatsObserver object.
-                mStatsObserver = new StatsObserver();
+                mStatsObserver = new StatsObserver(generation);
                 synchronized (mStatsObserver.mAppsList) {
                     for (int i = 0; i < apps.size(); i++) {
                         final ApplicationInfo info = apps.get(i);
@@ -530,7 +744,138 @@ public class StorageMeasurement {
                 // Sending of the message back to the MeasurementReceiver is
                 // completed in the PackageObserver
             } else {
-                onInternalMeasurementComplete();
+                mAppsSize = 0;
+                onAppsMeasured(generation);
+            }
+        }
+
+        private void onMiscDeleted(FileInfo deleted, boolean removed) {
+            if (mSizeCache != null) {
+                mSizeCache.invalidate(deleted.mFileName);
+            }
+            final List<FileInfo> current = mFileInfoForMisc;
+            if (current == null || mMiscSize < 0) {
+                // A measurement is under way and will see the deletion by itself.
+                return;
+            }
+            final List<FileInfo> fileInfos = new ArrayList<FileInfo>(current.size());
+            for (FileInfo info : current) {
+                if (!info.mFileName.equals(deleted.mFileName)) {
+                    fileInfos.add(info);
+                } else if (!removed) {
+                    fileInfos.add(new FileInfo(info.mFileName,
+                            Math.max(0, info.mSize - deleted.mSize), info.mId));
+                }
+            }
+            Collections.sort(fileInfos);
+            mFileInfoForMisc = fileInfos;
+            mMiscSize = Math.max(0, mMiscSize - deleted.mSize);
+            mAvailSize = Math.min(mTotalSize, mAvailSize + deleted.mSize);
+            if (mMeasured) {
+                sendExactUpdate();
+            }
+        }
+
+        /**
+         * Sums the sizes of all media of this volume known to the MediaStore, one
+         * column per media category, in a single query.
+         *
+         * @return the size of each media category, or null if the provider is unavailable
+         */
+        private long[] queryMediaStoreSizes(Context context) {
+            final MediaCategory[] categories = StorageVolumePreferenceCategory.sMediaCategories;
+            final String[] projection = new String[categories.length];
+            for (int i = 0; i < categories.length; i++) {
+                final StringBuilder types = new StringBuilder();
+                for (int type : categories[i].mMediaTypes) {
+                    if (types.length() > 0) types.append(',');
+                    types.append(type);
+                }
+                projection[i] = "sum(CASE WHEN " + FileColumns.MEDIA_TYPE + " IN (" + types
+                        + ") THEN " + FileColumns.SIZE + " ELSE 0 END)";
+            }
+            final String selection = FileColumns.STORAGE_ID + "=?";
+            final String[] selectionArgs =
+                    new String[] { Integer.toString(mStorageVolume.getStorageId()) };
+
+            Cursor c = null;
+            try {
+                c = context.getContentResolver().query(
+                        MediaStore.Files.getContentUri(VOLUME_EXTERNAL), projection, selection,
+                        selectionArgs, null);
+                if (c == null) {
+                    return null;
+                }
+                final long[] sizes = new long[categories.length];
+                if (c.moveToFirst()) {
+                    for (int i = 0; i < categories.length; i++) {
+                        sizes[i] = c.getLong(i);
+                    }
+                }
+                return sizes;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not query media sizes for " + mStorageVolume.getPath(), e);
+                return null;
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+
+        /**
+         * Lists the top level entries of the volume that are not part of another
+         * category. Files are sized right away; the directories are returned to be
+         * measured.
+         */
+        private String[] listMisc() {
+            mPendingMiscFiles = new ArrayList<FileInfo>();
+            final List<String> dirs = new ArrayList<String>();
+            File top = new File(mStorageVolume.getPath());
+            File[] files = top.listFiles();
+            if (files != null) {
+                final int len = files.length;
+                long counter = 0;
+                for (int i = 0; i < len; i++) {
+                    String path = files[i].getAbsolutePath();
+                    if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
+                        continue;
+                    }
+                    if (files[i].isFile()) {
+                        mPendingMiscFiles.add(new FileInfo(path, files[i].length(), counter++));
+                    } else if (files[i].isDirectory()) {
+                        dirs.add(path);
+                    } else {
+                        // Non directory, non file: not listed
+                    }
+                }
+            }
+            mPendingMiscDirs = dirs.toArray(new String[dirs.size()]);
+            return mPendingMiscDirs;
+        }
+
+        private void onGroupMeasured(int group, long[] sizes) {
+            final int numMedia = StorageVolumePreferenceCategory.sMediaCategories.length;
+            if (group < numMedia) {
+                long size = 0;
+                for (long s : sizes) size += s;
+                mMediaSizes[group] = size;
+            } else if (group == numMedia) {
+                mDownloadsSize = sizes[0];
+            } else {
+                final List<FileInfo> fileInfos = new ArrayList<FileInfo>(mPendingMiscFiles);
+                long miscSize = 0;
+                for (FileInfo info : fileInfos) {
+                    miscSize += info.mSize;
+                }
+                long counter = fileInfos.size();
+                for (int i = 0; i < sizes.length; i++) {
+                    fileInfos.add(new FileInfo(mPendingMiscDirs[i], sizes[i], counter++));
+                    miscSize += sizes[i];
+                }
+                // sort the list of FileInfo objects collected above in descending order of
+                // their sizes
+                Collections.sort(fileInfos);
+                mFileInfoForMisc = fileInfos;
+                mMiscSize = miscSize;
             }
         }
     }
@@ -548,35 +893,6 @@ public class StorageMeasurement {
         return mMiscSize;
     }
 
-    private void measureSizesOfMisc(IMediaContainerService imcs) {
-        File top = new File(mStorageVolume.getPath());
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-        File[] files = top.listFiles();
-        if (files == null) return;
-        final int len = files.length;
-        // Get sizes of all top level nodes except the ones already computed...
-        long counter = 0;
-        for (int i = 0; i < len; i++) {
-            String path = files[i].getAbsolutePath();
-            if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
-                continue;
-            }
-            if (files[i].isFile()) {
-                final long fileSize = files[i].length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                mMiscSize += fileSize;
-            } else if (files[i].isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, path);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                mMiscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
-            }
-        }
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
-    }
-
     static class FileInfo implements Comparable<FileInfo> {
         final String mFileName;
         final long mSize;
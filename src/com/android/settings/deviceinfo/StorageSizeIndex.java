@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Read-only index of where the space of a volume goes, for drilling down into it.
+ *
+ * The index is a tree of directories, each with its mtime, the total size and number
+ * of files below it and its own {@link #MAX_TOP_FILES} largest files. The largest files
+ * below any directory are among those of its subtree, so they are found without
+ * touching the volume again. It is built by one walk of the volume and written to a
+ * file that is memory-mapped when opened; {@link #isCurrent()} tells whether any
+ * directory changed since.
+ *
+ * File layout, all big-endian:
+ * <pre>
+ *   header    magic, version, node count, top file count, names offset
+ *   nodes     size (long), mtime (long), parent, first child, child count, file count,
+ *             name offset, name length, first top file, top file count
+ *   top files size (long), parent node, name offset, name length
+ *   names     UTF-8 bytes
+ * </pre>
+ * Nodes are stored breadth first with the children of every node next to each other,
+ * largest first. Node 0 is the root; its name is the absolute path of the volume. The
+ * top files of a node are next to each other, largest first.
+ */
+class StorageSizeIndex {
+    /** Largest files kept per directory, and shown per level. */
+    static final int MAX_TOP_FILES = 50;
+
+    static final int ROOT = 0;
+
+    private static final int MAGIC = 0x53495a58; // "SIZX"
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int NODE_SIZE = 48;
+    private static final int FILE_SIZE = 20;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mNodeCount;
+    private final int mTopFileCount;
+    private final int mTopFilesOffset;
+    private final int mNamesOffset;
+
+    private StorageSizeIndex(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a size index");
+        }
+        mNodeCount = buffer.getInt(8);
+        mTopFileCount = buffer.getInt(12);
+        mNamesOffset = buffer.getInt(16);
+        mTopFilesOffset = HEADER_SIZE + mNodeCount * NODE_SIZE;
+        if (mNodeCount < 1 || mTopFileCount < 0
+                || mTopFilesOffset + mTopFileCount * FILE_SIZE != mNamesOffset
+                || mNamesOffset > buffer.capacity()) {
+            throw new IOException("Corrupt size index");
+        }
+    }
+
+    /**
+     * Maps an index written by {@link #build}. The mapping stays valid even if the file
+     * is replaced by a newer index afterwards.
+     */
+    static StorageSizeIndex open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return new StorageSizeIndex(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // The mapping outlives the channel.
+            raf.close();
+        }
+    }
+
+    int getNodeCount() {
+        return mNodeCount;
+    }
+
+    long getSize(int node) {
+        return mBuffer.getLong(nodeOffset(node));
+    }
+
+    long getMtime(int node) {
+        return mBuffer.getLong(nodeOffset(node) + 8);
+    }
+
+    int getParent(int node) {
+        return mBuffer.getInt(nodeOffset(node) + 16);
+    }
+
+    int getFirstChild(int node) {
+        return mBuffer.getInt(nodeOffset(node) + 20);
+    }
+
+    /** Subdirectories are numbered {@code getFirstChild(node)} and up, largest first. */
+    int getChildCount(int node) {
+        return mBuffer.getInt(nodeOffset(node) + 24);
+    }
+
+    int getFileCount(int node) {
+        return mBuffer.getInt(nodeOffset(node) + 28);
+    }
+
+    String getName(int node) {
+        final int offset = nodeOffset(node);
+        return readName(mBuffer.getInt(offset + 32), mBuffer.getInt(offset + 36));
+    }
+
+    /** The largest files directly in {@code node} are numbered from here, largest first. */
+    private int getFirstTopFile(int node) {
+        return mBuffer.getInt(nodeOffset(node) + 40);
+    }
+
+    private int getOwnTopFileCount(int node) {
+        return mBuffer.getInt(nodeOffset(node) + 44);
+    }
+
+    /** Size of the files directly in {@code node}, not in its subdirectories. */
+    long getOwnFilesSize(int node) {
+        long size = getSize(node);
+        final int first = getFirstChild(node);
+        final int count = getChildCount(node);
+        for (int i = 0; i < count; i++) {
+            size -= getSize(first + i);
+        }
+        return size;
+    }
+
+    String getPath(int node) {
+        final ArrayList<String> names = new ArrayList<String>();
+        while (node != ROOT) {
+            names.add(getName(node));
+            node = getParent(node);
+        }
+        final StringBuilder path = new StringBuilder(getName(ROOT));
+        for (int i = names.size() - 1; i >= 0; i--) {
+            path.append(File.separatorChar).append(names.get(i));
+        }
+        return path.toString();
+    }
+
+    int getTopFileCount() {
+        return mTopFileCount;
+    }
+
+    long getTopFileSize(int file) {
+        return mBuffer.getLong(topFileOffset(file));
+    }
+
+    int getTopFileParent(int file) {
+        return mBuffer.getInt(topFileOffset(file) + 8);
+    }
+
+    String getTopFilePath(int file) {
+        final int offset = topFileOffset(file);
+        return getPath(mBuffer.getInt(offset + 8)) + File.separatorChar
+                + readName(mBuffer.getInt(offset + 12), mBuffer.getInt(offset + 16));
+    }
+
+    /**
+     * Returns the indexes of the {@link #MAX_TOP_FILES} largest files below
+     * {@code node}, largest first.
+     */
+    int[] getTopFilesBelow(int node) {
+        final PriorityQueue<Integer> top =
+                new PriorityQueue<Integer>(MAX_TOP_FILES, mSmallestTopFileFirst);
+        final ArrayList<Integer> stack = new ArrayList<Integer>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            final int dir = stack.remove(stack.size() - 1);
+            final int first = getFirstTopFile(dir);
+            final int count = getOwnTopFileCount(dir);
+            for (int i = first; i < first + count; i++) {
+                if (top.size() < MAX_TOP_FILES) {
+                    top.add(i);
+                } else if (getTopFileSize(i) > getTopFileSize(top.peek())) {
+                    top.poll();
+                    top.add(i);
+                } else {
+                    // The rest of this directory is smaller still.
+                    break;
+                }
+            }
+            final int firstChild = getFirstChild(dir);
+            for (int c = getChildCount(dir) - 1; c >= 0; c--) {
+                stack.add(firstChild + c);
+            }
+        }
+        final int[] files = new int[top.size()];
+        for (int i = files.length - 1; i >= 0; i--) {
+            files[i] = top.poll();
+        }
+        return files;
+    }
+
+    private final Comparator<Integer> mSmallestTopFileFirst = new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+            final long sa = getTopFileSize(a);
+            final long sb = getTopFileSize(b);
+            return sa < sb ? -1 : (sa == sb ? 0 : 1);
+        }
+    };
+
+    /**
+     * Returns true if no directory of the index changed since it was built. Stats every
+     * directory, but lists none.
+     */
+    boolean isCurrent() {
+        final String[] paths = new String[mNodeCount];
+        paths[ROOT] = getName(ROOT);
+        for (int node = 0; node < mNodeCount; node++) {
+            if (node != ROOT) {
+                // Parents come before their children.
+                paths[node] = paths[getParent(node)] + File.separatorChar + getName(node);
+            }
+            final long mtime = new File(paths[node]).lastModified();
+            if (mtime == 0 || mtime != getMtime(node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nodeOffset(int node) {
+        if (node < 0 || node >= mNodeCount) {
+            throw new IndexOutOfBoundsException("node " + node + " of " + mNodeCount);
+        }
+        return HEADER_SIZE + node * NODE_SIZE;
+    }
+
+    private int topFileOffset(int file) {
+        if (file < 0 || file >= mTopFileCount) {
+            throw new IndexOutOfBoundsException("file " + file + " of " + mTopFileCount);
+        }
+        return mTopFilesOffset + file * FILE_SIZE;
+    }
+
+    private String readName(int offset, int length) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mNamesOffset + offset);
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /** A file kept by the top-K heap while walking. */
+    private static class TopFile {
+        final long size;
+        final int parent;
+        final String name;
+
+        TopFile(long size, int parent, String name) {
+            this.size = size;
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<TopFile> SMALLEST_FIRST = new Comparator<TopFile>() {
+        public int compare(TopFile a, TopFile b) {
+            return a.size < b.size ? -1 : (a.size == b.size ? 0 : 1);
+        }
+    };
+
+    /**
+     * Handle on a running {@link #build}.
+     */
+    static class Session {
+        private volatile boolean mCancelled;
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * Walks {@code root} and writes its index to {@code indexFile}, replacing any
+     * previous one atomically.
+     *
+     * @return false if cancelled or {@code root} couldn't be read; indexFile is then
+     *         left as it was
+     */
+    static boolean build(File root, File indexFile, Session session) throws IOException {
+        // Walk breadth first, so the subdirectories of a node are numbered together.
+        final GrowableIntArray parents = new GrowableIntArray();
+        final GrowableIntArray firstChildren = new GrowableIntArray();
+        final GrowableIntArray childCounts = new GrowableIntArray();
+        final GrowableIntArray fileCounts = new GrowableIntArray();
+        final GrowableLongArray sizes = new GrowableLongArray();
+        final GrowableLongArray mtimes = new GrowableLongArray();
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<File> dirs = new ArrayList<File>();
+        final ArrayList<TopFile[]> topFiles = new ArrayList<TopFile[]>();
+        final PriorityQueue<TopFile> dirTopFiles =
+                new PriorityQueue<TopFile>(MAX_TOP_FILES, SMALLEST_FIRST);
+        int topFileCount = 0;
+
+        dirs.add(root);
+        names.add(root.getAbsolutePath());
+        parents.add(-1);
+        for (int node = 0; node < dirs.size(); node++) {
+            if (session != null && session.isCancelled()) {
+                return false;
+            }
+            final File dir = dirs.get(node);
+            // Not kept: by the end, this would hold every directory of the volume.
+            dirs.set(node, null);
+            // Taken before listing, so a change while listing shows up as one.
+            mtimes.add(dir.lastModified());
+            final File[] files = dir.listFiles();
+            if (files == null && node == ROOT) {
+                return false;
+            }
+            long ownSize = 0;
+            int fileCount = 0;
+            firstChildren.add(dirs.size());
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        dirs.add(file);
+                        names.add(file.getName());
+                        parents.add(node);
+                    } else if (file.isFile()) {
+                        final long size = file.length();
+                        ownSize += size;
+                        fileCount++;
+                        // Only allocate for files that make it into the heap.
+                        if (dirTopFiles.size() < MAX_TOP_FILES) {
+                            dirTopFiles.add(new TopFile(size, node, file.getName()));
+                        } else if (size > dirTopFiles.peek().size) {
+                            dirTopFiles.poll();
+                            dirTopFiles.add(new TopFile(size, node, file.getName()));
+                        }
+                    }
+                }
+            }
+            childCounts.add(dirs.size() - firstChildren.get(node));
+            sizes.add(ownSize);
+            fileCounts.add(fileCount);
+            final TopFile[] top = dirTopFiles.toArray(new TopFile[dirTopFiles.size()]);
+            Arrays.sort(top, Collections.reverseOrder(SMALLEST_FIRST));
+            topFiles.add(top);
+            topFileCount += top.length;
+            dirTopFiles.clear();
+        }
+
+        // Children follow their parents, so one backward pass sums up every subtree.
+        final int count = dirs.size();
+        for (int node = count - 1; node > ROOT; node--) {
+            final int parent = parents.get(node);
+            sizes.set(parent, sizes.get(parent) + sizes.get(node));
+            fileCounts.set(parent, fileCounts.get(parent) + fileCounts.get(node));
+        }
+
+        // Renumber breadth first again with every set of siblings sorted by size.
+        final int[] order = new int[count];
+        final int[] newIndex = new int[count];
+        final int[] newFirstChild = new int[count];
+        final Comparator<Integer> largestFirst = new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final long sa = sizes.get(a);
+                final long sb = sizes.get(b);
+                return sa > sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        };
+        order[0] = ROOT;
+        int next = 1;
+        for (int i = 0; i < count; i++) {
+            final int node = order[i];
+            newIndex[node] = i;
+            final int first = firstChildren.get(node);
+            final int children = childCounts.get(node);
+            final Integer[] sorted = new Integer[children];
+            for (int c = 0; c < children; c++) {
+                sorted[c] = first + c;
+            }
+            Arrays.sort(sorted, largestFirst);
+            newFirstChild[node] = next;
+            for (int c = 0; c < children; c++) {
+                order[next++] = sorted[c];
+            }
+        }
+
+        final byte[][] nodeNames = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            nodeNames[i] = names.get(order[i]).getBytes(UTF_8);
+        }
+
+        final File temp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(topFileCount);
+            out.writeInt(HEADER_SIZE + count * NODE_SIZE + topFileCount * FILE_SIZE);
+
+            int nameOffset = 0;
+            int firstTopFile = 0;
+            for (int i = 0; i < count; i++) {
+                final int node = order[i];
+                out.writeLong(sizes.get(node));
+                out.writeLong(mtimes.get(node));
+                out.writeInt(node == ROOT ? -1 : newIndex[parents.get(node)]);
+                out.writeInt(newFirstChild[node]);
+                out.writeInt(childCounts.get(node));
+                out.writeInt(fileCounts.get(node));
+                out.writeInt(nameOffset);
+                out.writeInt(nodeNames[i].length);
+                out.writeInt(firstTopFile);
+                out.writeInt(topFiles.get(node).length);
+                nameOffset += nodeNames[i].length;
+                firstTopFile += topFiles.get(node).length;
+            }
+            // File names follow the node names, in the same order as the files.
+            final ArrayList<byte[]> fileNames = new ArrayList<byte[]>(topFileCount);
+            for (int i = 0; i < count; i++) {
+                for (TopFile file : topFiles.get(order[i])) {
+                    final byte[] name = file.name.getBytes(UTF_8);
+                    out.writeLong(file.size);
+                    out.writeInt(i);
+                    out.writeInt(nameOffset);
+                    out.writeInt(name.length);
+                    nameOffset += name.length;
+                    fileNames.add(name);
+                }
+            }
+            for (byte[] name : nodeNames) {
+                out.write(name);
+            }
+            for (byte[] name : fileNames) {
+                out.write(name);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(indexFile)) {
+                throw new IOException("Unable to replace " + indexFile);
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+                temp.delete();
+            }
+        }
+        return true;
+    }
+
+    private static class GrowableIntArray {
+        private int[] mValues = new int[256];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        void set(int index, int value) {
+            mValues[index] = value;
+        }
+    }
+
+    private static class GrowableLongArray {
+        private long[] mValues = new long[256];
+        private int mSize;
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        long get(int index) {
+            return mValues[index];
+        }
+
+        void set(int index, long value) {
+            mValues[index] = value;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
+import android.provider.MediaStore.Files.FileColumns;
 import android.text.format.Formatter;
 
 import com.android.settings.R;
@@ -89,11 +90,14 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
 
     static class MediaCategory {
         final String[] mDirPaths;
+        final String[] mDirNames;
         final int mCategory;
-        //final int mMediaType;
+        final int[] mMediaTypes;
 
-        public MediaCategory(int category, String... directories) {
+        public MediaCategory(int category, int[] mediaTypes, String... directories) {
             mCategory = category;
+            mMediaTypes = mediaTypes;
+            mDirNames = directories;
             final int length = directories.length;
             mDirPaths = new String[length];
             for (int i = 0; i < length; i++) {
@@ -107,9 +111,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     }
 
     static final MediaCategory[] sMediaCategories = new MediaCategory[] {
-        new MediaCategory(DCIM, Environment.DIRECTORY_DCIM, Environment.DIRECTORY_MOVIES,
+        new MediaCategory(DCIM,
+                new int[] { FileColumns.MEDIA_TYPE_IMAGE, FileColumns.MEDIA_TYPE_VIDEO },
+                Environment.DIRECTORY_DCIM, Environment.DIRECTORY_MOVIES,
                 Environment.DIRECTORY_PICTURES),
-        new MediaCategory(MUSIC, Environment.DIRECTORY_MUSIC, Environment.DIRECTORY_ALARMS,
+        new MediaCategory(MUSIC,
+                new int[] { FileColumns.MEDIA_TYPE_AUDIO },
+                Environment.DIRECTORY_MUSIC, Environment.DIRECTORY_ALARMS,
                 Environment.DIRECTORY_NOTIFICATIONS, Environment.DIRECTORY_RINGTONES,
                 Environment.DIRECTORY_PODCASTS)
     };
@@ -307,12 +315,6 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
 
         mPreferences[TOTAL_SIZE].setSummary(formatSize(totalSize));
 
-        if (mMeasurement.isExternalSDCard()) {
-            // TODO FIXME: external SD card will not report any size. Show used space in bar graph
-            final long usedSize = totalSize - availSize;
-            mUsageBarPreference.addEntry(usedSize / (float) totalSize, android.graphics.Color.GRAY);
-        }
-
         updatePreference(appsSize, totalSize, APPLICATIONS);
 
         long totalMediaSize = 0;
@@ -320,7 +322,14 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
             final int category = sMediaCategories[i].mCategory;
             final long size = mediaSizes[i];
             updatePreference(size, totalSize, category);
-            totalMediaSize += size;
+            if (size > 0) totalMediaSize += size;
+        }
+
+        if (mMeasurement.isExternalSDCard()) {
+            // Only media is measured on an external SD card. Show the rest of the used
+            // space in the bar graph.
+            final long usedSize = Math.max(0, totalSize - availSize - totalMediaSize);
+            mUsageBarPreference.addEntry(usedSize / (float) totalSize, android.graphics.Color.GRAY);
         }
 
         updatePreference(downloadsSize, totalSize, DOWNLOADS);
@@ -335,6 +344,10 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     }
 
     private void updatePreference(long size, long totalSize, int category) {
+        if (size == StorageMeasurement.SIZE_UNKNOWN) {
+            // Partial update; keep showing the category as being calculated.
+            return;
+        }
         if (size > 0) {
             mPreferences[category].setSummary(formatSize(size));
             mUsageBarPreference.addEntry(size / (float) totalSize, mColors[category]);
@@ -354,10 +367,12 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     }
 
     public void onStorageStateChanged() {
+        mMeasurement.invalidateMediaSizes();
         measure();
     }
 
     public void onMediaScannerFinished() {
+        mMeasurement.invalidateMediaSizes();
         measure();
     }
 
@@ -405,6 +420,11 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
             intent = new Intent(Intent.ACTION_VIEW);
             intent.setClass(getContext(), com.android.settings.MediaFormat.class);
             intent.putExtra(StorageVolume.EXTRA_STORAGE_VOLUME, mStorageVolume);
+        } else if (preference == mPreferences[TOTAL_SIZE]) {
+            if (mMeasurement.hasSizeIndex()) {
+                intent = new Intent(getContext().getApplicationContext(), StorageBreakdown.class);
+                intent.putExtra(StorageVolume.EXTRA_STORAGE_VOLUME, mStorageVolume);
+            }
         } else if (preference == mPreferences[APPLICATIONS]) {
             intent = new Intent(Intent.ACTION_MANAGE_PACKAGE_STORAGE);
             intent.setClass(getContext(),
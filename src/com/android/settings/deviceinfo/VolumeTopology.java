@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which file systems make up a storage volume.
+ *
+ * A multi-partition USB disk is mounted as a directory holding one mount point per
+ * partition, named after the partition's block device as {@code major_minor}. Listing
+ * and parsing that directory on every measurement is wasted work, so the layout is
+ * cached per volume path and dropped whenever a volume is mounted or unmounted.
+ */
+class VolumeTopology {
+    /** Directories with more entries than this are never treated as partition lists. */
+    static final int MAX_PARTITIONS = 10;
+
+    private static final Map<String, String[]> sPartitions =
+            new ConcurrentHashMap<String, String[]>();
+
+    private static boolean sReceiverRegistered;
+
+    private static final BroadcastReceiver sMountReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null && data.getPath() != null) {
+                // The volume itself, or one partition of it, changed.
+                final File changed = new File(data.getPath());
+                sPartitions.remove(changed.getPath());
+                if (changed.getParent() != null) {
+                    sPartitions.remove(changed.getParent());
+                }
+            } else {
+                sPartitions.clear();
+            }
+        }
+    };
+
+    /**
+     * Starts listening for mount changes, once per process.
+     */
+    static synchronized void registerReceiver(Context context) {
+        if (sReceiverRegistered) {
+            return;
+        }
+        sReceiverRegistered = true;
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addDataScheme("file");
+        context.getApplicationContext().registerReceiver(sMountReceiver, filter);
+    }
+
+    /**
+     * Returns the paths to run StatFs on for the volume at {@code path}: one per
+     * partition, or just {@code path} itself.
+     */
+    static String[] getPartitions(String path) {
+        String[] partitions = sPartitions.get(path);
+        if (partitions == null) {
+            partitions = detectPartitions(new File(path));
+            sPartitions.put(path, partitions);
+        }
+        return partitions;
+    }
+
+    /**
+     * Lists the partition mount points of {@code volume} without using the cache.
+     */
+    static String[] detectPartitions(File volume) {
+        final String[] list = volume.list();
+        if (list == null || list.length == 0 || list.length > MAX_PARTITIONS) {
+            return new String[] { volume.getPath() };
+        }
+        for (String name : list) {
+            if (!isPartitionName(name)) {
+                return new String[] { volume.getPath() };
+            }
+        }
+        final String[] partitions = new String[list.length];
+        for (int i = 0; i < list.length; i++) {
+            partitions[i] = new File(volume, list[i]).getPath();
+        }
+        return partitions;
+    }
+
+    /**
+     * Returns true for names of the form {@code major_minor}, both decimal numbers.
+     */
+    static boolean isPartitionName(String name) {
+        final int separator = name.indexOf('_');
+        return separator > 0
+                && isNumber(name, 0, separator)
+                && isNumber(name, separator + 1, name.length());
+    }
+
+    private static boolean isNumber(String s, int start, int end) {
+        // Nine digits always fit in an int, which is what device numbers are.
+        if (end <= start || end - start > 9) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
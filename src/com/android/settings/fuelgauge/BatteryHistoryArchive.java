@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only archive of downsampled battery level and state samples.
+ *
+ * BatteryStats only keeps history since the last charge, so every time Settings reads
+ * the stats the new history records are folded into this archive. Samples are fixed
+ * size records in a memory-mapped file, ordered by wall clock time, with a sparse
+ * in-memory index of every {@link #INDEX_STRIDE}th record time for range queries.
+ * Once the file fills up, samples older than {@link #RETENTION_MS} are dropped.
+ */
+public class BatteryHistoryArchive {
+    private static final String TAG = "BatteryHistoryArchive";
+
+    private static final String FILE_NAME = "battery_history.bin";
+
+    private static final int MAGIC = 0x42484131; // "BHA1"
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_COUNT_OFFSET = 8;
+
+    // time (long), states (int), level (byte), 3 bytes padding
+    private static final int RECORD_SIZE = 16;
+    private static final int RECORD_STATES_OFFSET = 8;
+    private static final int RECORD_LEVEL_OFFSET = 12;
+
+    static final int MAX_RECORDS = 32768;
+    static final int INDEX_STRIDE = 64;
+
+    /** Samples older than this are dropped when the archive is compacted. */
+    static final long RETENTION_MS = 28L * 24 * 60 * 60 * 1000;
+
+    /** Minimum spacing of samples that only differ in secondary state bits. */
+    static final long MIN_SAMPLE_INTERVAL_MS = 60 * 1000;
+
+    /** A sample is always taken after this long, even if nothing changed. */
+    static final long MAX_SAMPLE_INTERVAL_MS = 15 * 60 * 1000;
+
+    /** States whose change always produces a new sample. */
+    private static final int PRIMARY_STATES = HistoryItem.STATE_BATTERY_PLUGGED_FLAG
+            | HistoryItem.STATE_SCREEN_ON_FLAG;
+
+    private static BatteryHistoryArchive sInstance;
+
+    private final File mFile;
+    private MappedByteBuffer mBuffer;
+    private int mCount;
+    private long[] mIndex = new long[MAX_RECORDS / INDEX_STRIDE];
+
+    private long mLastTime;
+    private int mLastStates;
+    private byte mLastLevel = -1;
+
+    /**
+     * A range of samples copied out of the archive.
+     */
+    static class Window {
+        final long start;
+        final long end;
+        final int count;
+        final long[] times;
+        final byte[] levels;
+        final int[] states;
+
+        Window(long start, long end, int count) {
+            this.start = start;
+            this.end = end;
+            this.count = count;
+            times = new long[count];
+            levels = new byte[count];
+            states = new int[count];
+        }
+    }
+
+    static synchronized BatteryHistoryArchive getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BatteryHistoryArchive(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    BatteryHistoryArchive(File file) {
+        mFile = file;
+    }
+
+    private boolean ensureOpenLocked() {
+        if (mBuffer != null) {
+            return true;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            final FileChannel channel = raf.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) MAX_RECORDS * RECORD_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map " + mFile, e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    // The mapping stays valid after the file is closed.
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        if (mBuffer.getInt(0) != MAGIC) {
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, RECORD_SIZE);
+            mBuffer.putInt(HEADER_COUNT_OFFSET, 0);
+        }
+        mCount = Math.max(0, Math.min(MAX_RECORDS, mBuffer.getInt(HEADER_COUNT_OFFSET)));
+        rebuildIndexLocked();
+        if (mCount > 0) {
+            final int last = mCount - 1;
+            mLastTime = getTime(last);
+            mLastStates = getStates(last);
+            mLastLevel = getLevel(last);
+        }
+        return true;
+    }
+
+    private void rebuildIndexLocked() {
+        Arrays.fill(mIndex, 0);
+        for (int i = 0; i < mCount; i += INDEX_STRIDE) {
+            mIndex[i / INDEX_STRIDE] = getTime(i);
+        }
+    }
+
+    private static int offsetOf(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private long getTime(int record) {
+        return mBuffer.getLong(offsetOf(record));
+    }
+
+    private int getStates(int record) {
+        return mBuffer.getInt(offsetOf(record) + RECORD_STATES_OFFSET);
+    }
+
+    private byte getLevel(int record) {
+        return mBuffer.get(offsetOf(record) + RECORD_LEVEL_OFFSET);
+    }
+
+    /**
+     * The update records of a BatteryStats history since the last boot. The history goes
+     * on across reboots, marked by {@link HistoryItem#CMD_START}, and from then on the
+     * record times are the {@link android.os.SystemClock#elapsedRealtime()} clock plus
+     * the time the history had reached; the records of earlier boots are dropped, and
+     * that time is kept in {@code baseTime}.
+     */
+    static class History {
+        int count;
+        long[] times;
+        byte[] levels;
+        int[] states;
+        /** Time of the last start record, 0 if there is none. */
+        long baseTime;
+
+        History(int capacity) {
+            times = new long[capacity];
+            levels = new byte[capacity];
+            states = new int[capacity];
+        }
+
+        static History from(BatteryStats stats) {
+            final History history = new History(64);
+            if (stats.startIteratingHistoryLocked()) {
+                final HistoryItem rec = new HistoryItem();
+                while (stats.getNextHistoryLocked(rec)) {
+                    if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                        history.add(rec.time, rec.batteryLevel, rec.states);
+                    } else if (rec.cmd == HistoryItem.CMD_START) {
+                        history.start(rec.time);
+                    }
+                }
+            }
+            return history;
+        }
+
+        /**
+         * Drops the records so far, of an earlier boot. Written right after boot, the
+         * start record is at most a few seconds later than the history's time offset;
+         * records of this boot are mapped that much earlier, never later.
+         */
+        void start(long time) {
+            count = 0;
+            baseTime = time;
+        }
+
+        void add(long time, byte level, int state) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                levels = Arrays.copyOf(levels, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+            }
+            times[count] = time;
+            levels[count] = level;
+            states[count] = state;
+            count++;
+        }
+    }
+
+    /**
+     * Folds the history records of {@code stats} that are newer than the last archived
+     * sample into the archive. Reads the whole history, so call it off the main thread.
+     */
+    void appendFrom(BatteryStats stats, long now, long elapsedRealtime) {
+        append(History.from(stats), now, elapsedRealtime);
+    }
+
+    /**
+     * Folds the records of {@code history} that are newer than the last archived sample
+     * into the archive. Record times, less the history's base time, are mapped to wall
+     * clock time by their age at {@code elapsedRealtime}, which is the same moment as
+     * {@code now}, so appending the same history again later adds nothing.
+     */
+    synchronized void append(History history, long now, long elapsedRealtime) {
+        if (!ensureOpenLocked()) {
+            return;
+        }
+        final int startCount = mCount;
+        for (int i = 0; i < history.count; i++) {
+            final long elapsed = history.times[i] - history.baseTime;
+            appendLocked(now - (elapsedRealtime - elapsed), history.levels[i],
+                    history.states[i], now);
+        }
+        if (mCount != startCount) {
+            mBuffer.putInt(HEADER_COUNT_OFFSET, mCount);
+        }
+    }
+
+    private void appendLocked(long time, byte level, int states, long now) {
+        // A sample from the future would hold back all others until it is reached.
+        if (time <= mLastTime || time > now) {
+            return;
+        }
+        final long elapsed = time - mLastTime;
+        final boolean primaryChange = level != mLastLevel
+                || ((states ^ mLastStates) & PRIMARY_STATES) != 0;
+        final boolean secondaryChange = states != mLastStates
+                && elapsed >= MIN_SAMPLE_INTERVAL_MS;
+        if (mCount > 0 && !primaryChange && !secondaryChange
+                && elapsed < MAX_SAMPLE_INTERVAL_MS) {
+            return;
+        }
+        if (mCount == MAX_RECORDS) {
+            compactLocked(time);
+        }
+
+        final int offset = offsetOf(mCount);
+        mBuffer.putLong(offset, time);
+        mBuffer.putInt(offset + RECORD_STATES_OFFSET, states);
+        mBuffer.put(offset + RECORD_LEVEL_OFFSET, level);
+        if (mCount % INDEX_STRIDE == 0) {
+            mIndex[mCount / INDEX_STRIDE] = time;
+        }
+        mCount++;
+        mLastTime = time;
+        mLastStates = states;
+        mLastLevel = level;
+    }
+
+    /**
+     * Drops samples older than the retention period; if that does not free at least a
+     * quarter of the archive, the oldest quarter is dropped instead.
+     */
+    private void compactLocked(long now) {
+        int drop = findFirstAtOrAfterLocked(now - RETENTION_MS);
+        drop = Math.max(drop, MAX_RECORDS / 4);
+        final int keep = mCount - drop;
+
+        final ByteBuffer src = mBuffer.duplicate();
+        src.position(offsetOf(drop));
+        src.limit(offsetOf(mCount));
+        final ByteBuffer dst = mBuffer.duplicate();
+        dst.position(HEADER_SIZE);
+        dst.put(src);
+
+        mCount = keep;
+        mBuffer.putInt(HEADER_COUNT_OFFSET, mCount);
+        rebuildIndexLocked();
+    }
+
+    /**
+     * Returns the index of the first sample at or after {@code time}, using the sparse
+     * index to narrow the search down to a single stride.
+     */
+    private int findFirstAtOrAfterLocked(long time) {
+        final int strides = (mCount + INDEX_STRIDE - 1) / INDEX_STRIDE;
+        int lo = 0, hi = strides - 1, stride = 0;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mIndex[mid] <= time) {
+                stride = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        int i = stride * INDEX_STRIDE;
+        while (i < mCount && getTime(i) < time) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the samples in {@code [start, end)}, or null if the archive could not be
+     * opened. The sample just before {@code start} is included so the chart can start
+     * from the level at the beginning of the window.
+     */
+    synchronized Window query(long start, long end) {
+        if (!ensureOpenLocked()) {
+            return null;
+        }
+        int first = findFirstAtOrAfterLocked(start);
+        if (first > 0) {
+            first--;
+        }
+        int last = first;
+        while (last < mCount && getTime(last) < end) {
+            last++;
+        }
+        final Window window = new Window(start, end, last - first);
+        for (int i = first; i < last; i++) {
+            window.times[i - first] = getTime(i);
+            window.levels[i - first] = getLevel(i);
+            window.states[i - first] = getStates(i);
+        }
+        return window;
+    }
+
+    /** Returns the wall clock time of the oldest archived sample, or -1 if empty. */
+    synchronized long getOldestTime() {
+        if (!ensureOpenLocked() || mCount == 0) {
+            return -1;
+        }
+        return getTime(0);
+    }
+}
@@ -104,6 +104,9 @@ public class BatteryHistoryChart extends View {
 
     static final int BATTERY_WARN = 29;
     static final int BATTERY_CRITICAL = 14;
+
+    // Archived samples further apart than this are drawn as separate segments.
+    static final long ARCHIVE_GAP_MS = BatteryHistoryArchive.MAX_SAMPLE_INTERVAL_MS * 2;
     
     // First value if for phone off; first value is "scanning"; following values
     // are battery stats signal strength buckets.
@@ -134,6 +137,9 @@ public class BatteryHistoryChart extends View {
     int mFontSize;
     
     BatteryStats mStats;
+    BatteryHistoryArchive.Window mWindow;
+    int mWindowPos;
+    boolean mWindowGapDone;
     long mStatsPeriod;
     String mDurationString;
     String mTotalDurationString;
@@ -336,10 +342,69 @@ public class BatteryHistoryChart extends View {
     
     void setStats(BatteryStats stats) {
         mStats = stats;
+        mWindow = null;
         
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
                 BatteryStats.STATS_SINCE_CHARGED);
         mStatsPeriod = uSecTime;
+        loadHistory();
+    }
+
+    /**
+     * Shows a window of the persistent {@link BatteryHistoryArchive} instead of the
+     * history of the current stats.
+     */
+    void setArchiveWindow(BatteryHistoryArchive.Window window) {
+        mWindow = window;
+
+        long onBattery = 0;
+        for (int i=1; i<window.count; i++) {
+            if ((window.states[i-1]&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) == 0) {
+                long from = Math.max(window.times[i-1], window.start);
+                long to = Math.min(window.times[i], window.end);
+                if (to > from && to - from <= ARCHIVE_GAP_MS) {
+                    onBattery += to - from;
+                }
+            }
+        }
+        mStatsPeriod = onBattery * 1000;
+        loadHistory();
+    }
+
+    private boolean startIteratingHistory() {
+        if (mWindow != null) {
+            mWindowPos = 0;
+            mWindowGapDone = false;
+            return mWindow.count > 0;
+        }
+        return mStats.startIteratingHistoryLocked();
+    }
+
+    private boolean getNextHistory(HistoryItem rec) {
+        if (mWindow == null) {
+            return mStats.getNextHistoryLocked(rec);
+        }
+        final int i = mWindowPos;
+        if (i >= mWindow.count) {
+            return false;
+        }
+        if (i > 0 && !mWindowGapDone
+                && mWindow.times[i] - mWindow.times[i-1] > ARCHIVE_GAP_MS) {
+            // Nothing was archived for a while; break the lines like a restart does.
+            mWindowGapDone = true;
+            rec.cmd = HistoryItem.CMD_START;
+            return true;
+        }
+        mWindowGapDone = false;
+        mWindowPos++;
+        rec.cmd = HistoryItem.CMD_UPDATE;
+        rec.time = Math.max(mWindow.times[i], mWindow.start);
+        rec.batteryLevel = mWindow.levels[i];
+        rec.states = mWindow.states[i];
+        return true;
+    }
+
+    private void loadHistory() {
         String durationString = Utils.formatElapsedTime(getContext(), mStatsPeriod / 1000);
         mDurationString = getContext().getString(R.string.battery_stats_on_battery,
                 durationString);
@@ -357,9 +422,9 @@ public class BatteryHistoryChart extends View {
         mBatHigh = 100;
         int aggrStates = 0;
         boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
+        if (startIteratingHistory()) {
             final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
+            while (getNextHistory(rec)) {
                 pos++;
                 if (rec.cmd == HistoryItem.CMD_UPDATE) {
                     if (first) {
@@ -381,8 +446,20 @@ public class BatteryHistoryChart extends View {
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
+        if (mWindow != null) {
+            mHistStart = mWindow.start;
+            mHistEnd = mWindow.end;
+        }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
         mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart);
+
+        if (getWidth() > 0) {
+            // Already laid out, so onSizeChanged() will not rebuild the paths for us.
+            mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
+            mTotalDurationStringWidth = (int)mTextPaint.measureText(mTotalDurationString);
+            onSizeChanged(getWidth(), getHeight(), getWidth(), getHeight());
+            invalidate();
+        }
     }
 
     @Override
@@ -520,9 +597,9 @@ public class BatteryHistoryChart extends View {
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWakeLock = false;
         final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
+        if (startIteratingHistory()) {
             final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
+            while (getNextHistory(rec) && i < N) {
                 if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
                     x = (int)(((rec.time-timeStart)*w)/timeChange);
                     y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
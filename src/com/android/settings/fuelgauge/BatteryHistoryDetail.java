@@ -20,6 +20,9 @@ import android.app.Fragment;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -29,7 +32,15 @@ import com.android.settings.R;
 public class BatteryHistoryDetail extends Fragment {
     public static final String EXTRA_STATS = "stats";
 
+    private static final int MENU_SINCE_CHARGED = Menu.FIRST;
+    private static final int MENU_LAST_DAY = Menu.FIRST + 1;
+    private static final int MENU_LAST_WEEK = Menu.FIRST + 2;
+    private static final int MENU_LAST_MONTH = Menu.FIRST + 3;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
     private BatteryStatsImpl mStats;
+    private BatteryHistoryChart mChart;
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -40,14 +51,51 @@ public class BatteryHistoryDetail extends Fragment {
         parcel.setDataPosition(0);
         mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
                 .createFromParcel(parcel);
+        setHasOptionsMenu(true);
     }
-    
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.preference_batteryhistory, null);
-        BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
-                R.id.battery_history_chart);
-        chart.setStats(mStats);
+        mChart = (BatteryHistoryChart)view.findViewById(R.id.battery_history_chart);
+        mChart.setStats(mStats);
         return view;
     }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        menu.add(0, MENU_SINCE_CHARGED, 0, R.string.history_window_since_charged);
+        menu.add(0, MENU_LAST_DAY, 0, R.string.history_window_day);
+        menu.add(0, MENU_LAST_WEEK, 0, R.string.history_window_week);
+        menu.add(0, MENU_LAST_MONTH, 0, R.string.history_window_month);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_SINCE_CHARGED:
+                mChart.setStats(mStats);
+                return true;
+            case MENU_LAST_DAY:
+                showArchiveWindow(DAY_MS);
+                return true;
+            case MENU_LAST_WEEK:
+                showArchiveWindow(7 * DAY_MS);
+                return true;
+            case MENU_LAST_MONTH:
+                showArchiveWindow(BatteryHistoryArchive.RETENTION_MS);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void showArchiveWindow(long duration) {
+        final long now = System.currentTimeMillis();
+        BatteryHistoryArchive.Window window = BatteryHistoryArchive.getInstance(getActivity())
+                .query(now - duration, now);
+        if (window != null) {
+            mChart.setArchiveWindow(window);
+        }
+    }
 }
@@ -18,7 +18,10 @@ package com.android.settings.fuelgauge;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -28,11 +31,22 @@ import android.os.Handler;
 import android.os.BatteryStats.Uid;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 class BatterySipper implements Comparable<BatterySipper> {
     final Context mContext;
-    final HashMap<String,UidToDetail> mUidCache = new HashMap<String,UidToDetail>();
+    private static final int MAX_CACHED_UIDS = 128;
+    // Shared across sippers so that a refresh doesn't reload every app's name and icon.
+    // Icons are kept as constant states, which don't hold on to the views drawn in.
+    static final LinkedHashMap<String,UidToDetail> sUidCache =
+            new LinkedHashMap<String,UidToDetail>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,UidToDetail> eldest) {
+            return size() > MAX_CACHED_UIDS;
+        }
+    };
+    private static BroadcastReceiver sPackageReceiver;
     final ArrayList<BatterySipper> mRequestQueue;
     final Handler mHandler;
     String name;
@@ -57,7 +71,33 @@ class BatterySipper implements Comparable<BatterySipper> {
     static class UidToDetail {
         String name;
         String packageName;
-        Drawable icon;
+        Drawable.ConstantState iconState;
+    }
+
+    /** Drops the cached name and icon of a uid whose packages changed. */
+    private static void registerPackageReceiverLocked(Context context) {
+        if (sPackageReceiver != null) {
+            return;
+        }
+        sPackageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                synchronized (sUidCache) {
+                    if (uid < 0) {
+                        sUidCache.clear();
+                    } else {
+                        sUidCache.remove(Integer.toString(uid));
+                    }
+                }
+            }
+        };
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(sPackageReceiver, filter);
     }
 
     BatterySipper(Context context, ArrayList<BatterySipper> requestQueue,
@@ -99,12 +139,14 @@ class BatterySipper implements Comparable<BatterySipper> {
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
         final String uidString = Integer.toString(uid);
-        if (mUidCache.containsKey(uidString)) {
-            UidToDetail utd = mUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
-            return;
+        synchronized (sUidCache) {
+            UidToDetail utd = sUidCache.get(uidString);
+            if (utd != null) {
+                defaultPackageName = utd.packageName;
+                name = utd.name;
+                icon = utd.iconState.newDrawable(mContext.getResources());
+                return;
+            }
         }
         PackageManager pm = mContext.getPackageManager();
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
@@ -192,9 +234,14 @@ class BatterySipper implements Comparable<BatterySipper> {
         final String uidString = Integer.toString(uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
-        utd.icon = icon;
+        utd.iconState = icon.getConstantState();
         utd.packageName = defaultPackageName;
-        mUidCache.put(uidString, utd);
+        if (utd.iconState != null) {
+            synchronized (sUidCache) {
+                registerPackageReceiverLocked(mContext);
+                sUidCache.put(uidString, utd);
+            }
+        }
         mHandler.sendMessage(mHandler.obtainMessage(PowerUsageSummary.MSG_UPDATE_NAME_ICON, this));
     }
 }
\ No newline at end of file
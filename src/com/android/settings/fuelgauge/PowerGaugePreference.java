@@ -32,6 +32,7 @@ import com.android.settings.R;
 public class PowerGaugePreference extends Preference {
     private BatterySipper mInfo;
     private int mProgress;
+    private int mPercent;
     private CharSequence mProgressText;
 
     public PowerGaugePreference(Context context, Drawable icon, BatterySipper info) {
@@ -42,9 +43,14 @@ public class PowerGaugePreference extends Preference {
     }
 
     public void setPercent(double percentOfMax, double percentOfTotal) {
-        mProgress = (int) Math.ceil(percentOfMax);
-        mProgressText = getContext().getResources().getString(
-                R.string.percentage, (int) Math.ceil(percentOfTotal));
+        final int progress = (int) Math.ceil(percentOfMax);
+        final int percent = (int) Math.ceil(percentOfTotal);
+        if (mProgressText != null && progress == mProgress && percent == mPercent) {
+            return;
+        }
+        mProgress = progress;
+        mPercent = percent;
+        mProgressText = getContext().getResources().getString(R.string.percentage, percent);
         notifyChanged();
     }
 
@@ -52,6 +58,10 @@ public class PowerGaugePreference extends Preference {
         return mInfo;
     }
 
+    void setInfo(BatterySipper info) {
+        mInfo = info;
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
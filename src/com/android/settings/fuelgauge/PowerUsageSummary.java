@@ -26,6 +26,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.SensorManager;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.BatteryStats.Uid.Proc;
@@ -68,6 +69,7 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -97,6 +99,11 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
 
     private PreferenceGroup mAppListGroup;
     private Preference mBatteryStatusPref;
+    private BatteryHistoryPreference mHistPref;
+    private Preference mNotAvailablePref;
+    private final HashMap<String, PowerGaugePreference> mGaugePrefs =
+            new HashMap<String, PowerGaugePreference>();
+    private final HashSet<String> mStaleGaugeKeys = new HashSet<String>();
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
@@ -358,9 +365,22 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     }
 
     private void addNotAvailableMessage() {
-        Preference notAvailable = new Preference(getActivity());
-        notAvailable.setTitle(R.string.power_usage_not_available);
-        mAppListGroup.addPreference(notAvailable);
+        if (mNotAvailablePref == null) {
+            mNotAvailablePref = new Preference(getActivity());
+            mNotAvailablePref.setTitle(R.string.power_usage_not_available);
+        }
+        mAppListGroup.addPreference(mNotAvailablePref);
+    }
+
+    /**
+     * Returns the key under which the gauge of a sipper is kept: the uid for apps, which
+     * is also what {@link #mHandler} looks up, and the drain type otherwise.
+     */
+    private static String getGaugeKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        }
+        return sipper.drainType.name();
     }
 
     private void refreshStats() {
@@ -373,19 +393,25 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mBluetoothPower = 0;
         mAppWifiRunning = 0;
 
-        mAppListGroup.removeAll();
         mUsageList.clear();
         mWifiSippers.clear();
         mBluetoothSippers.clear();
         mAppListGroup.setOrderingAsAdded(false);
 
-        mBatteryStatusPref.setOrder(-2);
-        mAppListGroup.addPreference(mBatteryStatusPref);
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
-        hist.setOrder(-1);
-        mAppListGroup.addPreference(hist);
-        
+        if (mHistPref == null) {
+            mBatteryStatusPref.setOrder(-2);
+            mHistPref = new BatteryHistoryPreference(getActivity(), mStats);
+            mHistPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistPref);
+        } else {
+            mHistPref.setStats(mStats);
+        }
+
         if (mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL) < 10) {
+            for (PowerGaugePreference pref : mGaugePrefs.values()) {
+                mAppListGroup.removePreference(pref);
+            }
+            mGaugePrefs.clear();
             addNotAvailableMessage();
             return;
         }
@@ -395,22 +421,43 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         processAppUsage();
         processMiscUsage();
 
+        // Update the gauges in place; only rows that are new, gone or changed are touched.
+        int created = 0;
+        mStaleGaugeKeys.clear();
+        mStaleGaugeKeys.addAll(mGaugePrefs.keySet());
         Collections.sort(mUsageList);
+        int listed = 0;
         for (BatterySipper sipper : mUsageList) {
             if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
             final double percentOfTotal =  ((sipper.getSortValue() / mTotalPower) * 100);
             if (percentOfTotal < 1) continue;
-            PowerGaugePreference pref = new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
+            final String key = getGaugeKey(sipper);
+            if (!mStaleGaugeKeys.remove(key)) {
+                // Two sippers sharing a key can't both be shown; keep the larger one.
+                if (mGaugePrefs.containsKey(key)) continue;
+                PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
+                        sipper.getIcon(), sipper);
+                pref.setKey(key);
+                mGaugePrefs.put(key, pref);
+                mAppListGroup.addPreference(pref);
+                created++;
+            }
+            PowerGaugePreference pref = mGaugePrefs.get(key);
             final double percentOfMax = (sipper.getSortValue() * 100) / mMaxPower;
             sipper.percent = percentOfTotal;
+            pref.setInfo(sipper);
+            pref.setIcon(sipper.getIcon());
             pref.setTitle(sipper.name);
             pref.setOrder(Integer.MAX_VALUE - (int) sipper.getSortValue()); // Invert the order
             pref.setPercent(percentOfMax, percentOfTotal);
-            if (sipper.uidObj != null) {
-                pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-            }
-            mAppListGroup.addPreference(pref);
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) break;
+            if (++listed >= MAX_ITEMS_TO_LIST) break;
+        }
+        for (String key : mStaleGaugeKeys) {
+            mAppListGroup.removePreference(mGaugePrefs.remove(key));
+        }
+        if (DEBUG) {
+            Log.d(TAG, "refreshStats: " + listed + " gauges, " + created + " created, "
+                    + mStaleGaugeKeys.size() + " removed");
         }
         synchronized (mRequestQueue) {
             if (!mRequestQueue.isEmpty()) {
@@ -812,11 +859,31 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
             mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
                     .createFromParcel(parcel);
             mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            appendToArchive(data);
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException:", e);
         }
     }
 
+    /**
+     * Folds the history into the archive in the background, from a copy of the stats
+     * so that their history isn't iterated on two threads at once.
+     */
+    private void appendToArchive(final byte[] data) {
+        final BatteryHistoryArchive archive = BatteryHistoryArchive.getInstance(getActivity());
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                Parcel parcel = Parcel.obtain();
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                BatteryStatsImpl stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+                parcel.recycle();
+                archive.appendFrom(stats, System.currentTimeMillis(),
+                        SystemClock.elapsedRealtime());
+            }
+        });
+    }
+
     public void run() {
         while (true) {
             BatterySipper bs;
@@ -26,7 +26,6 @@ import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.os.Bundle;
@@ -295,9 +294,9 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
         }
     }
 
-    private InputMethodPreference getInputMethodPreference(InputMethodInfo imi, int imiSize) {
-        final PackageManager pm = getPackageManager();
-        final CharSequence label = imi.loadLabel(pm);
+    private InputMethodPreference getInputMethodPreference(
+            InputServiceListBuilder.Entry<InputMethodInfo> entry, int imiSize) {
+        final InputMethodInfo imi = entry.mInfo;
         // IME settings
         final Intent intent;
         final String settingsActivity = imi.getSettingsActivity();
@@ -309,13 +308,14 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
         }
 
         // Add a check box for enabling/disabling IME
-        InputMethodPreference pref = new InputMethodPreference(this, intent, mImm, imi, imiSize);
+        InputMethodPreference pref = new InputMethodPreference(this, intent, mImm, imi, imiSize,
+                entry.mSubtypeNames);
         pref.setKey(imi.getId());
-        pref.setTitle(label);
+        pref.setTitle(entry.mLabel);
         return pref;
     }
 
-    private void createImePreferenceHierarchy(PreferenceGroup root) {
+    private void createImePreferenceHierarchy(final PreferenceGroup root) {
         final Preference hardKeyPref = findPreference("hard_keyboard");
         if (mIsOnlyImeSettings) {
             getPreferenceScreen().removeAll();
@@ -345,10 +345,30 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
             root.addPreference(currentIme);
         }
 
-        final int N = (mImis == null ? 0 : mImis.size());
+        // The labels are loaded in the background, then all IMEs are added at once.
+        InputServiceListBuilder.buildInputMethodList(getActivity(), mImis,
+                new InputServiceListBuilder.Callback<InputMethodInfo>() {
+                    public void onListBuilt(
+                            List<InputServiceListBuilder.Entry<InputMethodInfo>> entries) {
+                        if (getActivity() == null) {
+                            return;
+                        }
+                        addInputMethodPreferences(root, entries);
+                        if (isResumed()) {
+                            InputMethodAndSubtypeUtil.loadInputMethodSubtypeList(
+                                    InputMethodAndLanguageSettings.this, getContentResolver(),
+                                    mImis, null);
+                            updateActiveInputMethodsSummary();
+                        }
+                    }
+                });
+    }
+
+    private void addInputMethodPreferences(PreferenceGroup root,
+            List<InputServiceListBuilder.Entry<InputMethodInfo>> entries) {
+        final int N = entries.size();
         for (int i = 0; i < N; ++i) {
-            final InputMethodInfo imi = mImis.get(i);
-            final InputMethodPreference pref = getInputMethodPreference(imi, N);
+            final InputMethodPreference pref = getInputMethodPreference(entries.get(i), N);
             mInputMethodPreferenceList.add(pref);
         }
 
@@ -23,7 +23,6 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
@@ -86,7 +85,21 @@ public class InputMethodAndSubtypeEnabler extends SettingsPreferenceFragment {
 
         mSystemLocale = config.locale.toString();
         onCreateIMM();
-        setPreferenceScreen(createPreferenceHierarchy());
+        // The screen stays empty until the labels of the shown IMEs are loaded.
+        setPreferenceScreen(getPreferenceManager().createPreferenceScreen(getActivity()));
+        InputServiceListBuilder.buildInputMethodList(getActivity(), getShownInputMethods(),
+                new InputServiceListBuilder.Callback<InputMethodInfo>() {
+                    public void onListBuilt(
+                            List<InputServiceListBuilder.Entry<InputMethodInfo>> entries) {
+                        if (getActivity() == null) {
+                            return;
+                        }
+                        setPreferenceScreen(createPreferenceHierarchy(entries));
+                        if (isResumed()) {
+                            loadSubtypeStates();
+                        }
+                    }
+                });
     }
 
     @Override
@@ -100,6 +113,10 @@ public class InputMethodAndSubtypeEnabler extends SettingsPreferenceFragment {
     @Override
     public void onResume() {
         super.onResume();
+        loadSubtypeStates();
+    }
+
+    private void loadSubtypeStates() {
         InputMethodAndSubtypeUtil.loadInputMethodSubtypeList(
                 this, getContentResolver(), mInputMethodProperties, mInputMethodAndSubtypePrefsMap);
         updateAutoSelectionCB();
@@ -211,29 +228,37 @@ public class InputMethodAndSubtypeEnabler extends SettingsPreferenceFragment {
         mInputMethodProperties = imm.getInputMethodList();
     }
 
-    private PreferenceScreen createPreferenceHierarchy() {
-        // Root
-        final PreferenceScreen root = getPreferenceManager().createPreferenceScreen(getActivity());
-        final Context context = getActivity();
-
+    private List<InputMethodInfo> getShownInputMethods() {
+        final List<InputMethodInfo> shown = new ArrayList<InputMethodInfo>();
         int N = (mInputMethodProperties == null ? 0 : mInputMethodProperties.size());
 
         for (int i = 0; i < N; ++i) {
             final InputMethodInfo imi = mInputMethodProperties.get(i);
-            final int subtypeCount = imi.getSubtypeCount();
-            if (subtypeCount <= 1) continue;
-            final String imiId = imi.getId();
+            if (imi.getSubtypeCount() <= 1) continue;
             // Add this subtype to the list when no IME is specified or when the IME of this
             // subtype is the specified IME.
-            if (!TextUtils.isEmpty(mInputMethodId) && !mInputMethodId.equals(imiId)) {
+            if (!TextUtils.isEmpty(mInputMethodId) && !mInputMethodId.equals(imi.getId())) {
                 continue;
             }
+            shown.add(imi);
+        }
+        return shown;
+    }
+
+    private PreferenceScreen createPreferenceHierarchy(
+            List<InputServiceListBuilder.Entry<InputMethodInfo>> entries) {
+        // Root
+        final PreferenceScreen root = getPreferenceManager().createPreferenceScreen(getActivity());
+        final Context context = getActivity();
+
+        for (InputServiceListBuilder.Entry<InputMethodInfo> entry : entries) {
+            final InputMethodInfo imi = entry.mInfo;
+            final int subtypeCount = imi.getSubtypeCount();
+            final String imiId = imi.getId();
             final PreferenceCategory keyboardSettingsCategory = new PreferenceCategory(context);
             root.addPreference(keyboardSettingsCategory);
-            final PackageManager pm = getPackageManager();
-            final CharSequence label = imi.loadLabel(pm);
 
-            keyboardSettingsCategory.setTitle(label);
+            keyboardSettingsCategory.setTitle(entry.mLabel);
             keyboardSettingsCategory.setKey(imiId);
             // TODO: Use toggle Preference if images are ready.
             final CheckBoxPreference autoCB = new CheckBoxPreference(context);
@@ -250,8 +275,7 @@ public class InputMethodAndSubtypeEnabler extends SettingsPreferenceFragment {
             if (subtypeCount > 0) {
                 for (int j = 0; j < subtypeCount; ++j) {
                     final InputMethodSubtype subtype = imi.getSubtypeAt(j);
-                    final CharSequence subtypeLabel = subtype.getDisplayName(context,
-                            imi.getPackageName(), imi.getServiceInfo().applicationInfo);
+                    final CharSequence subtypeLabel = entry.mSubtypeNames[j];
                     if (subtype.overridesImplicitlyEnabledSubtype()) {
                         if (!isAutoSubtype) {
                             isAutoSubtype = true;
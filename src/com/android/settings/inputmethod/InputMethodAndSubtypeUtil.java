@@ -33,122 +33,23 @@ import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.view.inputmethod.InputMethodSubtype;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class InputMethodAndSubtypeUtil {
 
     private static final boolean DEBUG = false;
     static final String TAG = "InputMethdAndSubtypeUtil";
 
-    private static final char INPUT_METHOD_SEPARATER = ':';
-    private static final char INPUT_METHOD_SUBTYPE_SEPARATER = ';';
-    private static final int NOT_A_SUBTYPE_ID = -1;
-
-    private static final TextUtils.SimpleStringSplitter sStringInputMethodSplitter
-            = new TextUtils.SimpleStringSplitter(INPUT_METHOD_SEPARATER);
-
-    private static final TextUtils.SimpleStringSplitter sStringInputMethodSubtypeSplitter
-            = new TextUtils.SimpleStringSplitter(INPUT_METHOD_SUBTYPE_SEPARATER);
-
-    private static void buildEnabledInputMethodsString(
-            StringBuilder builder, String imi, HashSet<String> subtypes) {
-        builder.append(imi);
-        // Inputmethod and subtypes are saved in the settings as follows:
-        // ime0;subtype0;subtype1:ime1;subtype0:ime2:ime3;subtype0;subtype1
-        for (String subtypeId: subtypes) {
-            builder.append(INPUT_METHOD_SUBTYPE_SEPARATER).append(subtypeId);
-        }
-    }
-
-    public static void buildInputMethodsAndSubtypesString(
-            StringBuilder builder, HashMap<String, HashSet<String>> imsList) {
-        boolean needsAppendSeparator = false;
-        for (String imi: imsList.keySet()) {
-            if (needsAppendSeparator) {
-                builder.append(INPUT_METHOD_SEPARATER);
-            } else {
-                needsAppendSeparator = true;
-            }
-            buildEnabledInputMethodsString(builder, imi, imsList.get(imi));
-        }
-    }
-
-    public static void buildDisabledSystemInputMethods(
-            StringBuilder builder, HashSet<String> imes) {
-        boolean needsAppendSeparator = false;
-        for (String ime: imes) {
-            if (needsAppendSeparator) {
-                builder.append(INPUT_METHOD_SEPARATER);
-            } else {
-                needsAppendSeparator = true;
-            }
-            builder.append(ime);
-        }
-    }
-
     private static int getInputMethodSubtypeSelected(ContentResolver resolver) {
         try {
             return Settings.Secure.getInt(resolver,
                     Settings.Secure.SELECTED_INPUT_METHOD_SUBTYPE);
         } catch (SettingNotFoundException e) {
-            return NOT_A_SUBTYPE_ID;
-        }
-    }
-
-    private static boolean isInputMethodSubtypeSelected(ContentResolver resolver) {
-        return getInputMethodSubtypeSelected(resolver) != NOT_A_SUBTYPE_ID;
-    }
-
-    private static void putSelectedInputMethodSubtype(ContentResolver resolver, int hashCode) {
-        Settings.Secure.putInt(resolver, Settings.Secure.SELECTED_INPUT_METHOD_SUBTYPE, hashCode);
-    }
-
-    // Needs to modify InputMethodManageService if you want to change the format of saved string.
-    private static HashMap<String, HashSet<String>> getEnabledInputMethodsAndSubtypeList(
-            ContentResolver resolver) {
-        final String enabledInputMethodsStr = Settings.Secure.getString(
-                resolver, Settings.Secure.ENABLED_INPUT_METHODS);
-        HashMap<String, HashSet<String>> imsList
-                = new HashMap<String, HashSet<String>>();
-        if (DEBUG) {
-            Log.d(TAG, "--- Load enabled input methods: " + enabledInputMethodsStr);
+            return InputMethodSettings.NOT_A_SUBTYPE_ID;
         }
-
-        if (TextUtils.isEmpty(enabledInputMethodsStr)) {
-            return imsList;
-        }
-        sStringInputMethodSplitter.setString(enabledInputMethodsStr);
-        while (sStringInputMethodSplitter.hasNext()) {
-            String nextImsStr = sStringInputMethodSplitter.next();
-            sStringInputMethodSubtypeSplitter.setString(nextImsStr);
-            if (sStringInputMethodSubtypeSplitter.hasNext()) {
-                HashSet<String> subtypeHashes = new HashSet<String>();
-                // The first element is ime id.
-                String imeId = sStringInputMethodSubtypeSplitter.next();
-                while (sStringInputMethodSubtypeSplitter.hasNext()) {
-                    subtypeHashes.add(sStringInputMethodSubtypeSplitter.next());
-                }
-                imsList.put(imeId, subtypeHashes);
-            }
-        }
-        return imsList;
-    }
-
-    private static HashSet<String> getDisabledSystemIMEs(ContentResolver resolver) {
-        HashSet<String> set = new HashSet<String>();
-        String disabledIMEsStr = Settings.Secure.getString(
-                resolver, Settings.Secure.DISABLED_SYSTEM_INPUT_METHODS);
-        if (TextUtils.isEmpty(disabledIMEsStr)) {
-            return set;
-        }
-        sStringInputMethodSplitter.setString(disabledIMEsStr);
-        while(sStringInputMethodSplitter.hasNext()) {
-            set.add(sStringInputMethodSplitter.next());
-        }
-        return set;
     }
 
     public static CharSequence getCurrentInputMethodName(Context context, ContentResolver resolver,
@@ -176,12 +77,14 @@ public class InputMethodAndSubtypeUtil {
     public static void saveInputMethodSubtypeList(SettingsPreferenceFragment context,
             ContentResolver resolver, List<InputMethodInfo> inputMethodInfos,
             boolean hasHardKeyboard) {
-        String currentInputMethodId = Settings.Secure.getString(resolver,
+        final String defaultInputMethodId = Settings.Secure.getString(resolver,
                 Settings.Secure.DEFAULT_INPUT_METHOD);
+        String currentInputMethodId = defaultInputMethodId;
         final int selectedInputMethodSubtype = getInputMethodSubtypeSelected(resolver);
-        HashMap<String, HashSet<String>> enabledIMEAndSubtypesMap =
-                getEnabledInputMethodsAndSubtypeList(resolver);
-        HashSet<String> disabledSystemIMEs = getDisabledSystemIMEs(resolver);
+        final InputMethodSettings settings =
+                InputMethodSettings.getInstance(context.getActivity());
+        // Only parsed again if the settings differ from the model.
+        settings.reload();
 
         final boolean onlyOneIME = inputMethodInfos.size() == 1;
         boolean needsToResetSelectedSubtype = false;
@@ -193,18 +96,15 @@ public class InputMethodAndSubtypeUtil {
             // pref is instance of CheckBoxPreference in the Configure input method screen.
             final boolean isImeChecked = (pref instanceof CheckBoxPreference) ?
                     ((CheckBoxPreference) pref).isChecked()
-                            : enabledIMEAndSubtypesMap.containsKey(imiId);
+                            : settings.isEnabled(imiId);
             final boolean isCurrentInputMethod = imiId.equals(currentInputMethodId);
             final boolean auxIme = isAuxiliaryIme(imi);
             final boolean systemIme = isSystemIme(imi);
             if (((onlyOneIME || (systemIme && !auxIme)) && !hasHardKeyboard) || isImeChecked) {
-                if (!enabledIMEAndSubtypesMap.containsKey(imiId)) {
-                    // imiId has just been enabled
-                    enabledIMEAndSubtypesMap.put(imiId, new HashSet<String>());
-                }
-                HashSet<String> subtypesSet = enabledIMEAndSubtypesMap.get(imiId);
+                // Keeps the subtypes if imiId was already enabled
+                settings.setEnabled(imiId, true);
 
-                boolean subtypePrefFound = false;
+                HashSet<String> subtypesSet = null;
                 final int subtypeCount = imi.getSubtypeCount();
                 for (int i = 0; i < subtypeCount; ++i) {
                     InputMethodSubtype subtype = imi.getSubtypeAt(i);
@@ -213,13 +113,12 @@ public class InputMethodAndSubtypeUtil {
                             imiId + subtypeHashCodeStr);
                     // In the Configure input method screen which does not have subtype preferences.
                     if (subtypePref == null) continue;
-                    if (!subtypePrefFound) {
-                        // Once subtype checkbox is found, subtypeSet needs to be cleared.
+                    if (subtypesSet == null) {
+                        // Once subtype checkbox is found, subtypeSet needs to be rebuilt.
                         // Because of system change, hashCode value could have been changed.
-                        subtypesSet.clear();
+                        subtypesSet = new HashSet<String>();
                         // If selected subtype preference is disabled, needs to reset.
                         needsToResetSelectedSubtype = true;
-                        subtypePrefFound = true;
                     }
                     if (subtypePref.isChecked()) {
                         subtypesSet.add(subtypeHashCodeStr);
@@ -230,12 +129,14 @@ public class InputMethodAndSubtypeUtil {
                                 needsToResetSelectedSubtype = false;
                             }
                         }
-                    } else {
-                        subtypesSet.remove(subtypeHashCodeStr);
                     }
                 }
+                if (subtypesSet != null) {
+                    // Only serialized again if the subtypes changed.
+                    settings.setEnabledSubtypes(imiId, subtypesSet);
+                }
             } else {
-                enabledIMEAndSubtypesMap.remove(imiId);
+                settings.setEnabled(imiId, false);
                 if (isCurrentInputMethod) {
                     // We are processing the current input method, but found that it's not enabled.
                     // This means that the current input method has been uninstalled.
@@ -250,66 +151,45 @@ public class InputMethodAndSubtypeUtil {
             // If it's a disabled system ime, add it to the disabled list so that it
             // doesn't get enabled automatically on any changes to the package list
             if (systemIme && hasHardKeyboard) {
-                if (disabledSystemIMEs.contains(imiId)) {
-                    if (isImeChecked) {
-                        disabledSystemIMEs.remove(imiId);
-                    }
-                } else {
-                    if (!isImeChecked) {
-                        disabledSystemIMEs.add(imiId);
-                    }
-                }
+                settings.setDisabledSystem(imiId, !isImeChecked);
             }
         }
 
-        StringBuilder builder = new StringBuilder();
-        buildInputMethodsAndSubtypesString(builder, enabledIMEAndSubtypesMap);
-        StringBuilder disabledSysImesBuilder = new StringBuilder();
-        buildDisabledSystemInputMethods(disabledSysImesBuilder, disabledSystemIMEs);
         if (DEBUG) {
-            Log.d(TAG, "--- Save enabled inputmethod settings. :" + builder.toString());
+            Log.d(TAG, "--- Save enabled inputmethod settings. :" + settings.getEnabledString());
             Log.d(TAG, "--- Save disable system inputmethod settings. :"
-                    + disabledSysImesBuilder.toString());
+                    + settings.getDisabledSystemString());
             Log.d(TAG, "--- Save default inputmethod settings. :" + currentInputMethodId);
             Log.d(TAG, "--- Needs to reset the selected subtype :" + needsToResetSelectedSubtype);
-            Log.d(TAG, "--- Subtype is selected :" + isInputMethodSubtypeSelected(resolver));
+            Log.d(TAG, "--- Subtype is selected :" + selectedInputMethodSubtype);
         }
 
         // Redefines SelectedSubtype when all subtypes are unchecked or there is no subtype
         // selected. And if the selected subtype of the current input method was disabled,
         // We should reset the selected input method's subtype.
-        if (needsToResetSelectedSubtype || !isInputMethodSubtypeSelected(resolver)) {
-            if (DEBUG) {
-                Log.d(TAG, "--- Reset inputmethod subtype because it's not defined.");
-            }
-            putSelectedInputMethodSubtype(resolver, NOT_A_SUBTYPE_ID);
-        }
-
-        Settings.Secure.putString(resolver,
-                Settings.Secure.ENABLED_INPUT_METHODS, builder.toString());
-        if (disabledSysImesBuilder.length() > 0) {
-            Settings.Secure.putString(resolver, Settings.Secure.DISABLED_SYSTEM_INPUT_METHODS,
-                    disabledSysImesBuilder.toString());
-        }
         // If the current input method is unset, InputMethodManagerService will find the applicable
-        // IME from the history and the system locale.
-        Settings.Secure.putString(resolver, Settings.Secure.DEFAULT_INPUT_METHOD,
-                currentInputMethodId != null ? currentInputMethodId : "");
+        // IME from the history and the system locale. Only the settings that changed are written,
+        // in one batch.
+        settings.commit(
+                currentInputMethodId == null && !TextUtils.isEmpty(defaultInputMethodId)
+                        ? "" : null,
+                needsToResetSelectedSubtype
+                        && selectedInputMethodSubtype != InputMethodSettings.NOT_A_SUBTYPE_ID);
     }
 
     public static void loadInputMethodSubtypeList(
             SettingsPreferenceFragment context, ContentResolver resolver,
             List<InputMethodInfo> inputMethodInfos,
             final Map<String, List<Preference>> inputMethodPrefsMap) {
-        HashMap<String, HashSet<String>> enabledSubtypes =
-                getEnabledInputMethodsAndSubtypeList(resolver);
+        final InputMethodSettings settings =
+                InputMethodSettings.getInstance(context.getActivity());
 
         for (InputMethodInfo imi : inputMethodInfos) {
             final String imiId = imi.getId();
             Preference pref = context.findPreference(imiId);
             if (pref != null && pref instanceof CheckBoxPreference) {
                 CheckBoxPreference checkBoxPreference = (CheckBoxPreference) pref;
-                boolean isEnabled = enabledSubtypes.containsKey(imiId);
+                boolean isEnabled = settings.isEnabled(imiId);
                 checkBoxPreference.setChecked(isEnabled);
                 if (inputMethodPrefsMap != null) {
                     for (Preference childPref: inputMethodPrefsMap.get(imiId)) {
@@ -319,7 +199,7 @@ public class InputMethodAndSubtypeUtil {
                 setSubtypesPreferenceEnabled(context, inputMethodInfos, imiId, isEnabled);
             }
         }
-        updateSubtypesPreferenceChecked(context, inputMethodInfos, enabledSubtypes);
+        updateSubtypesPreferenceChecked(context, inputMethodInfos, settings);
     }
 
     public static void setSubtypesPreferenceEnabled(SettingsPreferenceFragment context,
@@ -340,14 +220,13 @@ public class InputMethodAndSubtypeUtil {
         }
     }
 
-    public static void updateSubtypesPreferenceChecked(SettingsPreferenceFragment context,
-            List<InputMethodInfo> inputMethodProperties,
-            HashMap<String, HashSet<String>> enabledSubtypes) {
+    static void updateSubtypesPreferenceChecked(SettingsPreferenceFragment context,
+            List<InputMethodInfo> inputMethodProperties, InputMethodSettings settings) {
         PreferenceScreen preferenceScreen = context.getPreferenceScreen();
         for (InputMethodInfo imi : inputMethodProperties) {
             String id = imi.getId();
-            if (!enabledSubtypes.containsKey(id)) break;
-            final HashSet<String> enabledSubtypesSet = enabledSubtypes.get(id);
+            if (!settings.isEnabled(id)) break;
+            final Set<String> enabledSubtypesSet = settings.getEnabledSubtypes(id);
             final int subtypeCount = imi.getSubtypeCount();
             for (int i = 0; i < subtypeCount; ++i) {
                 InputMethodSubtype subtype = imi.getSubtypeAt(i);
@@ -41,6 +41,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 public class InputMethodPreference extends CheckBoxPreference
@@ -52,6 +53,8 @@ public class InputMethodPreference extends CheckBoxPreference
     private final InputMethodManager mImm;
     private final Intent mSettingsIntent;
     private final boolean mIsSystemIme;
+    // Display names of the subtypes of mImi, or null to load them when needed
+    private final HashMap<InputMethodSubtype, CharSequence> mSubtypeNames;
 
     private AlertDialog mDialog = null;
     private ImageView mInputMethodSettingsButton;
@@ -78,7 +81,8 @@ public class InputMethodPreference extends CheckBoxPreference
     };
 
     public InputMethodPreference(SettingsPreferenceFragment fragment, Intent settingsIntent,
-            InputMethodManager imm, InputMethodInfo imi, int imiCount) {
+            InputMethodManager imm, InputMethodInfo imi, int imiCount,
+            CharSequence[] subtypeNames) {
         super(fragment.getActivity(), null, R.style.InputMethodPreferenceStyle);
         setLayoutResource(R.layout.preference_inputmethod);
         setWidgetLayoutResource(R.layout.preference_inputmethod_widget);
@@ -86,6 +90,16 @@ public class InputMethodPreference extends CheckBoxPreference
         mSettingsIntent = settingsIntent;
         mImm = imm;
         mImi = imi;
+        if (subtypeNames != null) {
+            // Given in the order of getSubtypeAt().
+            final int subtypeCount = Math.min(imi.getSubtypeCount(), subtypeNames.length);
+            mSubtypeNames = new HashMap<InputMethodSubtype, CharSequence>(subtypeCount * 2);
+            for (int i = 0; i < subtypeCount; ++i) {
+                mSubtypeNames.put(imi.getSubtypeAt(i), subtypeNames[i]);
+            }
+        } else {
+            mSubtypeNames = null;
+        }
         updateSummary();
         mIsSystemIme = InputMethodAndSubtypeUtil.isSystemIme(imi);
         final boolean isAuxIme = InputMethodAndSubtypeUtil.isAuxiliaryIme(imi);
@@ -207,13 +221,20 @@ public class InputMethodPreference extends CheckBoxPreference
             if (builder.length() > 0) {
                 builder.append(", ");
             }
-            final CharSequence subtypeLabel = subtype.getDisplayName(mFragment.getActivity(),
-                    mImi.getPackageName(), mImi.getServiceInfo().applicationInfo);
-            builder.append(subtypeLabel);
+            builder.append(getSubtypeName(subtype));
         }
         return builder.toString();
     }
 
+    private CharSequence getSubtypeName(InputMethodSubtype subtype) {
+        final CharSequence name = mSubtypeNames != null ? mSubtypeNames.get(subtype) : null;
+        if (name != null) {
+            return name;
+        }
+        return subtype.getDisplayName(mFragment.getActivity(),
+                mImi.getPackageName(), mImi.getServiceInfo().applicationInfo);
+    }
+
     public void updateSummary() {
         final String summary = getSummaryString();
         if (TextUtils.isEmpty(summary)) {
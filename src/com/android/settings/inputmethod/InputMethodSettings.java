@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.inputmethod;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * InputMethodSettings holds the enabled input methods with their subtypes, and the
+ * disabled system input methods, as parsed from {@link Settings.Secure}. The model is
+ * shared, and only parsed again when the settings differ from what was last read or
+ * written: for display once a {@link ContentObserver} reports a change, and always
+ * before it is changed. Changes are written back in one batch, and only the input
+ * methods that changed are serialized again.
+ *
+ * Only used from the main thread.
+ */
+final class InputMethodSettings {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "InputMethodSettings";
+
+    // Needs to modify InputMethodManageService if you want to change the format of saved string.
+    private static final char INPUT_METHOD_SEPARATER = ':';
+    private static final char INPUT_METHOD_SUBTYPE_SEPARATER = ';';
+
+    static final int NOT_A_SUBTYPE_ID = -1;
+
+    private static InputMethodSettings sInstance;
+
+    /** The subtypes of an enabled input method, and its part of the settings string. */
+    private static final class EnabledInputMethod {
+        final Set<String> mSubtypes = new LinkedHashSet<String>();
+        /** Null once the subtypes changed. */
+        String mSerialized;
+    }
+
+    private final ContentResolver mResolver;
+
+    private final LinkedHashMap<String, EnabledInputMethod> mEnabled =
+            new LinkedHashMap<String, EnabledInputMethod>();
+    private final Set<String> mDisabledSystem = new LinkedHashSet<String>();
+
+    // The settings as last read or written.
+    private String mEnabledString = "";
+    private String mDisabledSystemString = "";
+
+    /** Whether the settings may have changed since they were last read. */
+    private volatile boolean mStale = true;
+
+    private final TextUtils.SimpleStringSplitter mInputMethodSplitter =
+            new TextUtils.SimpleStringSplitter(INPUT_METHOD_SEPARATER);
+    private final TextUtils.SimpleStringSplitter mSubtypeSplitter =
+            new TextUtils.SimpleStringSplitter(INPUT_METHOD_SUBTYPE_SEPARATER);
+
+    InputMethodSettings(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    static synchronized InputMethodSettings getInstance(Context context) {
+        if (sInstance == null) {
+            final ContentResolver resolver = context.getApplicationContext().getContentResolver();
+            sInstance = new InputMethodSettings(resolver);
+            final ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    sInstance.mStale = true;
+                }
+            };
+            resolver.registerContentObserver(Settings.Secure.getUriFor(
+                    Settings.Secure.ENABLED_INPUT_METHODS), false, observer);
+            resolver.registerContentObserver(Settings.Secure.getUriFor(
+                    Settings.Secure.DISABLED_SYSTEM_INPUT_METHODS), false, observer);
+        }
+        sInstance.update();
+        return sInstance;
+    }
+
+    /** Reads the settings again if they changed. */
+    void update() {
+        if (!mStale) {
+            return;
+        }
+        reload();
+    }
+
+    /**
+     * Reads the settings again even if the observer didn't report a change yet, which it
+     * does asynchronously. Called before changing the model, so that changes written
+     * meanwhile, e.g. by the input method manager, are not overwritten by the commit.
+     */
+    void reload() {
+        mStale = false;
+        parse(Settings.Secure.getString(mResolver, Settings.Secure.ENABLED_INPUT_METHODS),
+                Settings.Secure.getString(mResolver,
+                        Settings.Secure.DISABLED_SYSTEM_INPUT_METHODS));
+    }
+
+    /** Replaces the model by the given settings strings, unless they are the same. */
+    void parse(String enabledString, String disabledSystemString) {
+        if (enabledString == null) {
+            enabledString = "";
+        }
+        if (disabledSystemString == null) {
+            disabledSystemString = "";
+        }
+        if (!enabledString.equals(mEnabledString)) {
+            if (DEBUG) {
+                Log.d(TAG, "--- Load enabled input methods: " + enabledString);
+            }
+            mEnabled.clear();
+            // Inputmethod and subtypes are saved in the settings as follows:
+            // ime0;subtype0;subtype1:ime1;subtype0:ime2:ime3;subtype0;subtype1
+            if (enabledString.length() > 0) {
+                mInputMethodSplitter.setString(enabledString);
+                while (mInputMethodSplitter.hasNext()) {
+                    final String serialized = mInputMethodSplitter.next();
+                    if (serialized.length() == 0) {
+                        continue;
+                    }
+                    mSubtypeSplitter.setString(serialized);
+                    // The first element is ime id.
+                    final EnabledInputMethod ime = new EnabledInputMethod();
+                    mEnabled.put(mSubtypeSplitter.next(), ime);
+                    while (mSubtypeSplitter.hasNext()) {
+                        ime.mSubtypes.add(mSubtypeSplitter.next());
+                    }
+                    ime.mSerialized = serialized;
+                }
+            }
+            mEnabledString = enabledString;
+        }
+        if (!disabledSystemString.equals(mDisabledSystemString)) {
+            mDisabledSystem.clear();
+            if (disabledSystemString.length() > 0) {
+                mInputMethodSplitter.setString(disabledSystemString);
+                while (mInputMethodSplitter.hasNext()) {
+                    mDisabledSystem.add(mInputMethodSplitter.next());
+                }
+            }
+            mDisabledSystemString = disabledSystemString;
+        }
+    }
+
+    boolean isEnabled(String imiId) {
+        return mEnabled.containsKey(imiId);
+    }
+
+    /** Returns the enabled subtype hash codes of an input method, empty if disabled. */
+    Set<String> getEnabledSubtypes(String imiId) {
+        final EnabledInputMethod ime = mEnabled.get(imiId);
+        return ime != null ? Collections.unmodifiableSet(ime.mSubtypes)
+                : Collections.<String>emptySet();
+    }
+
+    /** Enables the input method, keeping its subtypes, or disables it. */
+    void setEnabled(String imiId, boolean enabled) {
+        if (!enabled) {
+            mEnabled.remove(imiId);
+        } else if (!mEnabled.containsKey(imiId)) {
+            mEnabled.put(imiId, new EnabledInputMethod());
+        }
+    }
+
+    /** Enables the input method with exactly these subtypes. */
+    void setEnabledSubtypes(String imiId, Collection<String> subtypes) {
+        EnabledInputMethod ime = mEnabled.get(imiId);
+        if (ime == null) {
+            ime = new EnabledInputMethod();
+            mEnabled.put(imiId, ime);
+        } else if (ime.mSubtypes.size() == subtypes.size()
+                && ime.mSubtypes.containsAll(subtypes)) {
+            return;
+        }
+        ime.mSubtypes.clear();
+        ime.mSubtypes.addAll(subtypes);
+        ime.mSerialized = null;
+    }
+
+    boolean isDisabledSystem(String imiId) {
+        return mDisabledSystem.contains(imiId);
+    }
+
+    void setDisabledSystem(String imiId, boolean disabled) {
+        if (disabled) {
+            mDisabledSystem.add(imiId);
+        } else {
+            mDisabledSystem.remove(imiId);
+        }
+    }
+
+    /** Returns the value of {@link Settings.Secure#ENABLED_INPUT_METHODS} for the model. */
+    String getEnabledString() {
+        final StringBuilder builder = new StringBuilder(mEnabledString.length() + 16);
+        for (String imiId : mEnabled.keySet()) {
+            final EnabledInputMethod ime = mEnabled.get(imiId);
+            if (ime.mSerialized == null) {
+                final StringBuilder serialized = new StringBuilder(imiId);
+                for (String subtypeId : ime.mSubtypes) {
+                    serialized.append(INPUT_METHOD_SUBTYPE_SEPARATER).append(subtypeId);
+                }
+                ime.mSerialized = serialized.toString();
+            }
+            if (builder.length() > 0) {
+                builder.append(INPUT_METHOD_SEPARATER);
+            }
+            builder.append(ime.mSerialized);
+        }
+        return builder.toString();
+    }
+
+    /** Returns the value of {@link Settings.Secure#DISABLED_SYSTEM_INPUT_METHODS}. */
+    String getDisabledSystemString() {
+        return TextUtils.join(String.valueOf(INPUT_METHOD_SEPARATER), mDisabledSystem);
+    }
+
+    /**
+     * Writes the settings that changed in one batch.
+     *
+     * @param defaultInputMethod the new default input method, or null to keep it
+     * @param resetSelectedSubtype whether to clear the selected subtype
+     * @return the number of settings written
+     */
+    int commit(String defaultInputMethod, boolean resetSelectedSubtype) {
+        final ArrayList<ContentValues> values = new ArrayList<ContentValues>(4);
+        final String enabledString = getEnabledString();
+        if (!enabledString.equals(mEnabledString)) {
+            values.add(newValue(Settings.Secure.ENABLED_INPUT_METHODS, enabledString));
+            mEnabledString = enabledString;
+        }
+        final String disabledSystemString = getDisabledSystemString();
+        if (!disabledSystemString.equals(mDisabledSystemString)) {
+            // An empty list isn't saved, as before.
+            if (disabledSystemString.length() > 0) {
+                values.add(newValue(Settings.Secure.DISABLED_SYSTEM_INPUT_METHODS,
+                        disabledSystemString));
+            }
+            mDisabledSystemString = disabledSystemString;
+        }
+        if (defaultInputMethod != null) {
+            values.add(newValue(Settings.Secure.DEFAULT_INPUT_METHOD, defaultInputMethod));
+        }
+        if (resetSelectedSubtype) {
+            values.add(newValue(Settings.Secure.SELECTED_INPUT_METHOD_SUBTYPE,
+                    String.valueOf(NOT_A_SUBTYPE_ID)));
+        }
+        if (DEBUG) {
+            Log.d(TAG, "--- Save " + values);
+        }
+        if (!values.isEmpty()) {
+            mResolver.bulkInsert(Settings.Secure.CONTENT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+        }
+        return values.size();
+    }
+
+    private static ContentValues newValue(String name, String value) {
+        final ContentValues values = new ContentValues(2);
+        values.put(Settings.NameValueTable.NAME, name);
+        values.put(Settings.NameValueTable.VALUE, value);
+        return values;
+    }
+}
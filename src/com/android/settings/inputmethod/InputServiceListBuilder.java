@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.inputmethod;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodSubtype;
+import android.view.textservice.SpellCheckerInfo;
+import android.view.textservice.SpellCheckerSubtype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * InputServiceListBuilder loads the labels and subtype names of input methods and spell
+ * checkers in the background, one task per service in parallel, and hands the complete
+ * list to the main thread at once, so that a screen can be built in one go.
+ *
+ * Loaded names are kept per service, and used again as long as the package wasn't
+ * updated and the locale didn't change.
+ */
+final class InputServiceListBuilder {
+    private static final String TAG = "InputServiceListBuilder";
+
+    /** The names shown for an input method or spell checker. */
+    static final class Entry<T> {
+        final T mInfo;
+        final CharSequence mLabel;
+        /** Display names of the subtypes, in the order of getSubtypeAt(). */
+        final CharSequence[] mSubtypeNames;
+
+        Entry(T info, CharSequence label, CharSequence[] subtypeNames) {
+            mInfo = info;
+            mLabel = label;
+            mSubtypeNames = subtypeNames;
+        }
+    }
+
+    interface Callback<T> {
+        /** Called on the main thread with an entry per service, in the order given. */
+        void onListBuilt(List<Entry<T>> entries);
+    }
+
+    /** Loaded names, and the package and locale they were loaded for. */
+    private static final class Names {
+        final int mVersionCode;
+        final long mLastUpdateTime;
+        final Locale mLocale;
+        final CharSequence mLabel;
+        final CharSequence[] mSubtypeNames;
+
+        Names(PackageInfo packageInfo, Locale locale, CharSequence label,
+                CharSequence[] subtypeNames) {
+            mVersionCode = packageInfo != null ? packageInfo.versionCode : 0;
+            mLastUpdateTime = packageInfo != null ? packageInfo.lastUpdateTime : 0;
+            mLocale = locale;
+            mLabel = label;
+            mSubtypeNames = subtypeNames;
+        }
+
+        boolean isValid(PackageInfo packageInfo, Locale locale) {
+            return packageInfo != null && packageInfo.versionCode == mVersionCode
+                    && packageInfo.lastUpdateTime == mLastUpdateTime && locale.equals(mLocale);
+        }
+    }
+
+    /** Names by service id. */
+    private static final HashMap<String, Names> sCache = new HashMap<String, Names>();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private InputServiceListBuilder() {
+    }
+
+    static void buildInputMethodList(Context context, List<InputMethodInfo> imis,
+            Callback<InputMethodInfo> callback) {
+        build(context, imis != null ? imis : Collections.<InputMethodInfo>emptyList(),
+                callback);
+    }
+
+    static void buildSpellCheckerList(Context context, SpellCheckerInfo[] scis,
+            Callback<SpellCheckerInfo> callback) {
+        build(context, scis != null ? Arrays.asList(scis)
+                : Collections.<SpellCheckerInfo>emptyList(), callback);
+    }
+
+    private static <T> void build(Context context, final List<T> infos,
+            final Callback<T> callback) {
+        final Context appContext = context.getApplicationContext();
+        final Locale locale = context.getResources().getConfiguration().locale;
+        final int count = infos.size();
+        final Names[] names = new Names[count];
+        if (count == 0) {
+            publish(infos, names, callback);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    try {
+                        names[index] = getNames(appContext, locale, infos.get(index));
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Failed to load the names of " + infos.get(index), e);
+                    } finally {
+                        // The last task sees the names of all others, even if some
+                        // failed.
+                        if (remaining.decrementAndGet() == 0) {
+                            sMainHandler.post(new Runnable() {
+                                public void run() {
+                                    publish(infos, names, callback);
+                                }
+                            });
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static <T> void publish(List<T> infos, Names[] names, Callback<T> callback) {
+        final List<Entry<T>> entries = new ArrayList<Entry<T>>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            final Names entryNames =
+                    names[i] != null ? names[i] : getFallbackNames(infos.get(i));
+            entries.add(new Entry<T>(infos.get(i), entryNames.mLabel,
+                    entryNames.mSubtypeNames));
+        }
+        callback.onListBuilt(entries);
+    }
+
+    /**
+     * Returns the names shown when they couldn't be loaded: the package name, and the
+     * locales of the subtypes. Not cached, so they are loaded again next time.
+     */
+    private static Names getFallbackNames(Object info) {
+        final String packageName;
+        final CharSequence[] subtypeNames;
+        if (info instanceof InputMethodInfo) {
+            final InputMethodInfo imi = (InputMethodInfo) info;
+            packageName = imi.getPackageName();
+            subtypeNames = new CharSequence[imi.getSubtypeCount()];
+            for (int i = 0; i < subtypeNames.length; i++) {
+                subtypeNames[i] = imi.getSubtypeAt(i).getLocale();
+            }
+        } else {
+            final SpellCheckerInfo sci = (SpellCheckerInfo) info;
+            packageName = sci.getPackageName();
+            subtypeNames = new CharSequence[sci.getSubtypeCount()];
+            for (int i = 0; i < subtypeNames.length; i++) {
+                subtypeNames[i] = sci.getSubtypeAt(i).getLocale();
+            }
+        }
+        return new Names(null, null, packageName, subtypeNames);
+    }
+
+    private static Names getNames(Context context, Locale locale, Object info) {
+        final PackageManager pm = context.getPackageManager();
+        final String id;
+        final String packageName;
+        if (info instanceof InputMethodInfo) {
+            id = ((InputMethodInfo) info).getId();
+            packageName = ((InputMethodInfo) info).getPackageName();
+        } else {
+            id = ((SpellCheckerInfo) info).getId();
+            packageName = ((SpellCheckerInfo) info).getPackageName();
+        }
+        PackageInfo packageInfo = null;
+        try {
+            packageInfo = pm.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Package of " + id + " not found");
+        }
+        synchronized (sCache) {
+            final Names cached = sCache.get(id);
+            if (cached != null && cached.isValid(packageInfo, locale)) {
+                return cached;
+            }
+        }
+
+        final Names names;
+        if (info instanceof InputMethodInfo) {
+            final InputMethodInfo imi = (InputMethodInfo) info;
+            final ApplicationInfo applicationInfo = imi.getServiceInfo().applicationInfo;
+            final CharSequence[] subtypeNames = new CharSequence[imi.getSubtypeCount()];
+            for (int i = 0; i < subtypeNames.length; i++) {
+                final InputMethodSubtype subtype = imi.getSubtypeAt(i);
+                subtypeNames[i] = subtype.getDisplayName(context, packageName, applicationInfo);
+            }
+            names = new Names(packageInfo, locale, imi.loadLabel(pm), subtypeNames);
+        } else {
+            final SpellCheckerInfo sci = (SpellCheckerInfo) info;
+            final ApplicationInfo applicationInfo = sci.getServiceInfo().applicationInfo;
+            final CharSequence[] subtypeNames = new CharSequence[sci.getSubtypeCount()];
+            for (int i = 0; i < subtypeNames.length; i++) {
+                final SpellCheckerSubtype subtype = sci.getSubtypeAt(i);
+                subtypeNames[i] = subtype.getDisplayName(context, packageName, applicationInfo);
+            }
+            names = new Names(packageInfo, locale, sci.loadLabel(pm), subtypeNames);
+        }
+        synchronized (sCache) {
+            sCache.put(id, names);
+        }
+        return names;
+    }
+}
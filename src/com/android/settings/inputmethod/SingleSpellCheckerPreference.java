@@ -54,15 +54,18 @@ public class SingleSpellCheckerPreference extends Preference {
     private ImageView mSubtypeButton;
     private Intent mSettingsIntent;
     private boolean mSelected;
+    // Display names of the subtypes, or null to load them when needed
+    private final CharSequence[] mSubtypeNames;
 
     public SingleSpellCheckerPreference(SpellCheckersSettings fragment, Intent settingsIntent,
-            SpellCheckerInfo sci, TextServicesManager tsm) {
+            SpellCheckerInfo sci, TextServicesManager tsm, CharSequence[] subtypeNames) {
         super(fragment.getActivity(), null, 0);
         mFragment = fragment;
         mRes = fragment.getActivity().getResources();
         mTsm = tsm;
         setLayoutResource(R.layout.preference_spellchecker);
         mSpellCheckerInfo = sci;
+        mSubtypeNames = subtypeNames;
         mSelected = false;
         final String settingsActivity = mSpellCheckerInfo.getSettingsActivity();
         if (!TextUtils.isEmpty(settingsActivity)) {
@@ -137,6 +140,10 @@ public class SingleSpellCheckerPreference extends Preference {
         final CharSequence[] items = new CharSequence[size + 1];
         items[0] = mRes.getString(R.string.use_system_language_to_select_input_method_subtypes);
         for (int i = 0; i < size; ++i) {
+            if (mSubtypeNames != null && i < mSubtypeNames.length) {
+                items[i + 1] = mSubtypeNames[i];
+                continue;
+            }
             final SpellCheckerSubtype subtype = mSpellCheckerInfo.getSubtypeAt(i);
             final CharSequence label = subtype.getDisplayName(
                     mFragment.getActivity(), mSpellCheckerInfo.getPackageName(),
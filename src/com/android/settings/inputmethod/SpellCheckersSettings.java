@@ -23,7 +23,6 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
@@ -32,6 +31,7 @@ import android.view.textservice.SpellCheckerInfo;
 import android.view.textservice.TextServicesManager;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class SpellCheckersSettings extends SettingsPreferenceFragment
         implements Preference.OnPreferenceClickListener {
@@ -44,6 +44,8 @@ public class SpellCheckersSettings extends SettingsPreferenceFragment
     private TextServicesManager mTsm;
     private final ArrayList<SingleSpellCheckerPreference> mSpellCheckers =
             new ArrayList<SingleSpellCheckerPreference>();
+    // Incremented for each list requested, so that only the last one is shown.
+    private int mListGeneration;
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -75,24 +77,36 @@ public class SpellCheckersSettings extends SettingsPreferenceFragment
     }
 
     private void updateScreen() {
-        getPreferenceScreen().removeAll();
-        updateEnabledSpellCheckers();
-    }
-
-    private void updateEnabledSpellCheckers() {
-        final PackageManager pm = getPackageManager();
+        final int generation = ++mListGeneration;
         mCurrentSci = SpellCheckerUtils.getCurrentSpellChecker(mTsm);
         mEnabledScis = SpellCheckerUtils.getEnabledSpellCheckers(mTsm);
         if (mCurrentSci == null || mEnabledScis == null) {
+            getPreferenceScreen().removeAll();
             return;
         }
+        // The screen is replaced once the labels are loaded.
+        InputServiceListBuilder.buildSpellCheckerList(getActivity(), mEnabledScis,
+                new InputServiceListBuilder.Callback<SpellCheckerInfo>() {
+                    public void onListBuilt(
+                            List<InputServiceListBuilder.Entry<SpellCheckerInfo>> entries) {
+                        if (generation != mListGeneration || getActivity() == null) {
+                            return;
+                        }
+                        updateEnabledSpellCheckers(entries);
+                    }
+                });
+    }
+
+    private void updateEnabledSpellCheckers(
+            List<InputServiceListBuilder.Entry<SpellCheckerInfo>> entries) {
+        getPreferenceScreen().removeAll();
         mSpellCheckers.clear();
-        for (int i = 0; i < mEnabledScis.length; ++i) {
-            final SpellCheckerInfo sci = mEnabledScis[i];
+        for (InputServiceListBuilder.Entry<SpellCheckerInfo> entry : entries) {
+            final SpellCheckerInfo sci = entry.mInfo;
             final SingleSpellCheckerPreference scPref = new SingleSpellCheckerPreference(
-                    this, null, sci, mTsm);
+                    this, null, sci, mTsm, entry.mSubtypeNames);
             mSpellCheckers.add(scPref);
-            scPref.setTitle(sci.loadLabel(pm));
+            scPref.setTitle(entry.mLabel);
             scPref.setSelected(mCurrentSci != null && mCurrentSci.getId().equals(sci.getId()));
             getPreferenceScreen().addPreference(scPref);
         }
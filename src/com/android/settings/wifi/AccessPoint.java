@@ -26,11 +26,14 @@ import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.widget.ImageView;
 
 import com.android.settings.R;
 
+import java.util.Locale;
+
 class AccessPoint extends Preference {
     static final String TAG = "Settings.AccessPoint";
 
@@ -69,9 +72,53 @@ class AccessPoint extends Preference {
     /* package */ScanResult mScanResult;
 
     private int mRssi;
+    /** Strongest signal of the scan results merged since {@link #beginScanResults()}. */
+    private int mScanRssi = Integer.MAX_VALUE;
+    private int mScanTrend = SignalHistory.TREND_STABLE;
+    /** Trend of the signal of the strongest BSSID, one of SignalHistory.TREND_*. */
+    private int mTrend = SignalHistory.TREND_STABLE;
+    /** Signal used for ordering; only follows mRssi once it moved by SORT_HYSTERESIS_DB. */
+    private int mSortRssi = Integer.MAX_VALUE;
     private WifiInfo mInfo;
     private DetailedState mState;
 
+    /**
+     * Everything {@link #compareTo} orders by, packed so that smaller sorts first: not
+     * active, not reachable and not configured flags, then the signal strength and the
+     * first characters of the SSID. Only ties on the whole key compare SSIDs in full.
+     */
+    private long mSortKey;
+
+    private static final int SORT_KEY_NOT_ACTIVE_SHIFT = 50;
+    private static final int SORT_KEY_NOT_REACHABLE_SHIFT = 49;
+    private static final int SORT_KEY_NOT_CONFIGURED_SHIFT = 48;
+    private static final int SORT_KEY_SIGNAL_SHIFT = 32;
+    private static final int SORT_KEY_SSID_CHARS = 2;
+
+    /** Signal changes smaller than this don't move an access point in the list. */
+    static final int SORT_HYSTERESIS_DB = 5;
+
+    /**
+     * Everything the summary depends on, packed by {@link #getSummaryKey()}: the kind of
+     * summary in the low two bits, then the state, disable reason or, in range, whether
+     * the network is saved, its security and whether WPS is available.
+     */
+    private int mSummaryKey = SUMMARY_NONE;
+
+    private static final int SUMMARY_NONE = -1;
+    private static final int SUMMARY_ACTIVE = 0;
+    private static final int SUMMARY_OUT_OF_RANGE = 1;
+    private static final int SUMMARY_DISABLED = 2;
+    private static final int SUMMARY_IN_RANGE = 3;
+
+    /**
+     * Summaries by summary key, built when first shown and shared by all access points
+     * until the locale changes.
+     */
+    private static final SparseArray<String> sSummaries = new SparseArray<String>();
+    private static Locale sSummaryLocale;
+    private static int sSummariesBuilt;
+
     static int getSecurity(WifiConfiguration config) {
         if (config.allowedKeyManagement.get(KeyMgmt.WPA_PSK)) {
             return SECURITY_PSK;
@@ -83,7 +130,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -94,6 +141,18 @@ class AccessPoint extends Preference {
         return SECURITY_NONE;
     }
 
+    /**
+     * Returns the key access points are merged by: scan results with the same SSID and
+     * security are shown as one access point.
+     */
+    static String getKey(String ssid, int security) {
+        return security + ":" + ssid;
+    }
+
+    String getKey() {
+        return getKey(ssid, security);
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -171,6 +230,7 @@ class AccessPoint extends Preference {
             mState = DetailedState.valueOf(savedState.getString(KEY_DETAILEDSTATE));
         }
         update(mInfo, mState);
+        updateSortKey();
     }
 
     public void saveWifiState(Bundle savedState) {
@@ -203,6 +263,39 @@ class AccessPoint extends Preference {
         mScanResult = result;
     }
 
+    @Override
+    public CharSequence getTitle() {
+        return ssid;
+    }
+
+    /**
+     * Returns the summary for the current state, building it only the first time an
+     * access point in that state is shown.
+     */
+    @Override
+    public CharSequence getSummary() {
+        if (mSummaryKey == SUMMARY_NONE) {
+            return null;
+        }
+        final Locale locale = getContext().getResources().getConfiguration().locale;
+        if (!locale.equals(sSummaryLocale)) {
+            sSummaries.clear();
+            sSummaryLocale = locale;
+        }
+        String summary = sSummaries.get(mSummaryKey);
+        if (summary == null) {
+            summary = buildSummary();
+            sSummaries.put(mSummaryKey, summary);
+            sSummariesBuilt++;
+        }
+        return summary;
+    }
+
+    /** Number of summaries built since the process started, to measure the cache. */
+    static int getSummariesBuilt() {
+        return sSummariesBuilt;
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
@@ -223,46 +316,121 @@ class AccessPoint extends Preference {
             return 1;
         }
         AccessPoint other = (AccessPoint) preference;
-        // Active one goes first.
-        if (mInfo != other.mInfo) {
-            return (mInfo != null) ? -1 : 1;
+        // Active one first, then reachable, configured, stronger; see updateSortKey().
+        if (mSortKey != other.mSortKey) {
+            return mSortKey < other.mSortKey ? -1 : 1;
+        }
+        // Sort by ssid.
+        return ssid.compareToIgnoreCase(other.ssid);
+    }
+
+    /**
+     * Recomputes {@link #mSortKey}; called whenever the fields it depends on change.
+     */
+    private void updateSortKey() {
+        long key = 0;
+        if (mInfo == null) {
+            key |= 1L << SORT_KEY_NOT_ACTIVE_SHIFT;
         }
-        // Reachable one goes before unreachable one.
-        if ((mRssi ^ other.mRssi) < 0) {
-            return (mRssi != Integer.MAX_VALUE) ? -1 : 1;
+        if (mRssi == Integer.MAX_VALUE) {
+            key |= 1L << SORT_KEY_NOT_REACHABLE_SHIFT;
+            mSortRssi = Integer.MAX_VALUE;
+        } else {
+            if (mSortRssi == Integer.MAX_VALUE
+                    || Math.abs(mRssi - mSortRssi) >= SORT_HYSTERESIS_DB) {
+                mSortRssi = mRssi;
+            }
+            // Stronger signals, closer to zero, sort first.
+            final int rssi = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mSortRssi));
+            key |= (long) (Short.MAX_VALUE - rssi) << SORT_KEY_SIGNAL_SHIFT;
         }
-        // Configured one goes before unconfigured one.
-        if ((networkId ^ other.networkId) < 0) {
-            return (networkId != -1) ? -1 : 1;
+        if (networkId == -1) {
+            key |= 1L << SORT_KEY_NOT_CONFIGURED_SHIFT;
         }
-        // Sort by signal strength.
-        int difference = WifiManager.compareSignalLevel(other.mRssi, mRssi);
-        if (difference != 0) {
-            return difference;
+        // Folded the way String.compareToIgnoreCase() does; missing characters sort first.
+        long prefix = 0;
+        for (int i = 0; i < SORT_KEY_SSID_CHARS; i++) {
+            prefix <<= 16;
+            if (i < ssid.length()) {
+                prefix |= Character.toLowerCase(Character.toUpperCase(ssid.charAt(i)));
+            }
         }
-        // Sort by ssid.
-        return ssid.compareToIgnoreCase(other.ssid);
+        mSortKey = key | prefix;
+    }
+
+    /**
+     * Starts merging a new set of scan results, see {@link #update(ScanResult)}.
+     */
+    void beginScanResults() {
+        mScanRssi = Integer.MAX_VALUE;
+        mScanTrend = SignalHistory.TREND_STABLE;
     }
 
     boolean update(ScanResult result) {
+        return update(result, result.level, SignalHistory.TREND_STABLE);
+    }
+
+    /**
+     * Merges a scan result into this access point if it belongs to it. The strongest
+     * signal is kept, and applied by {@link #endScanResults()}.
+     *
+     * @param rssi signal of the result, possibly smoothed over the previous scans
+     * @param trend trend of that signal, one of SignalHistory.TREND_*
+     */
+    boolean update(ScanResult result, int rssi, int trend) {
         if (ssid.equals(result.SSID) && security == getSecurity(result)) {
-            if (WifiManager.compareSignalLevel(result.level, mRssi) > 0) {
-                int oldLevel = getLevel();
-                mRssi = result.level;
-                if (getLevel() != oldLevel) {
-                    notifyChanged();
-                }
+            if (mScanRssi == Integer.MAX_VALUE
+                    || WifiManager.compareSignalLevel(rssi, mScanRssi) > 0) {
+                mScanRssi = rssi;
+                mScanTrend = trend;
             }
             // This flag only comes from scans, is not easily saved in config
             if (security == SECURITY_PSK) {
                 pskType = getPskType(result);
             }
-            refresh();
             return true;
         }
         return false;
     }
 
+    /**
+     * Applies the scan results merged since {@link #beginScanResults()}; out of range
+     * if there were none.
+     *
+     * @return true if any scan result matched
+     */
+    boolean endScanResults() {
+        mTrend = mScanTrend;
+        if (mScanRssi != mRssi) {
+            int oldLevel = getLevel();
+            mRssi = mScanRssi;
+            if (getLevel() != oldLevel) {
+                notifyChanged();
+            }
+        }
+        // Only notifies if the summary actually changed.
+        refresh();
+        return mScanRssi != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reloads the configuration of a saved network, which may have changed or been
+     * saved since this access point was created.
+     */
+    void update(WifiConfiguration config) {
+        final int rssi = mRssi;
+        loadConfig(config);
+        mRssi = rssi;
+        refresh();
+    }
+
+    /**
+     * Makes the list holding this access point sort itself again.
+     */
+    void notifyOrderChanged() {
+        notifyHierarchyChanged();
+    }
+
     void update(WifiInfo info, DetailedState state) {
         boolean reorder = false;
         if (info != null && networkId != WifiConfiguration.INVALID_NETWORK_ID
@@ -285,6 +453,18 @@ class AccessPoint extends Preference {
         }
     }
 
+    int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * Returns whether the signal has been getting stronger or weaker over the last
+     * scans, one of SignalHistory.TREND_*.
+     */
+    int getSignalTrend() {
+        return mTrend;
+    }
+
     int getLevel() {
         if (mRssi == Integer.MAX_VALUE) {
             return -1;
@@ -317,52 +497,91 @@ class AccessPoint extends Preference {
         return "\"" + string + "\"";
     }
 
-    /** Updates the title and summary; may indirectly call notifyChanged()  */
+    /** Updates the sort key and summary; may call notifyChanged() */
     private void refresh() {
-        setTitle(ssid);
+        updateSortKey();
+        final int summaryKey = getSummaryKey();
+        if (summaryKey != mSummaryKey) {
+            mSummaryKey = summaryKey;
+            notifyChanged();
+        }
+    }
 
-        Context context = getContext();
+    private int getSummaryKey() {
         if (mState != null) { // This is the active connection
-            setSummary(Summary.get(context, mState));
+            return SUMMARY_ACTIVE | mState.ordinal() << 2;
         } else if (mRssi == Integer.MAX_VALUE) { // Wifi out of range
-            setSummary(context.getString(R.string.wifi_not_in_range));
+            return SUMMARY_OUT_OF_RANGE;
         } else if (mConfig != null && mConfig.status == WifiConfiguration.Status.DISABLED) {
             switch (mConfig.disableReason) {
                 case WifiConfiguration.DISABLED_AUTH_FAILURE:
-                    setSummary(context.getString(R.string.wifi_disabled_password_failure));
-                    break;
                 case WifiConfiguration.DISABLED_DHCP_FAILURE:
                 case WifiConfiguration.DISABLED_DNS_FAILURE:
-                    setSummary(context.getString(R.string.wifi_disabled_network_failure));
-                    break;
                 case WifiConfiguration.DISABLED_UNKNOWN_REASON:
-                    setSummary(context.getString(R.string.wifi_disabled_generic));
-            }
-        } else { // In range, not disabled.
-            StringBuilder summary = new StringBuilder();
-            if (mConfig != null) { // Is saved network
-                summary.append(context.getString(R.string.wifi_remembered));
+                    return SUMMARY_DISABLED | mConfig.disableReason << 2;
+                default:
+                    return mSummaryKey;
             }
+        }
+        // In range, not disabled.
+        int key = SUMMARY_IN_RANGE;
+        if (mConfig != null) {
+            key |= 1 << 2;
+        }
+        key |= security << 3;
+        if (security == SECURITY_PSK) {
+            key |= pskType.ordinal() << 5;
+        }
+        if (mConfig == null && wpsAvailable) {
+            key |= 1 << 7;
+        }
+        return key;
+    }
 
-            if (security != SECURITY_NONE) {
-                String securityStrFormat;
-                if (summary.length() == 0) {
-                    securityStrFormat = context.getString(R.string.wifi_secured_first_item);
-                } else {
-                    securityStrFormat = context.getString(R.string.wifi_secured_second_item);
+    /** Builds the summary for {@link #mSummaryKey}, never null. */
+    private String buildSummary() {
+        Context context = getContext();
+        switch (mSummaryKey & 3) {
+            case SUMMARY_ACTIVE:
+                String status = Summary.get(context, mState);
+                return status != null ? status : "";
+            case SUMMARY_OUT_OF_RANGE:
+                return context.getString(R.string.wifi_not_in_range);
+            case SUMMARY_DISABLED:
+                switch (mSummaryKey >> 2) {
+                    case WifiConfiguration.DISABLED_AUTH_FAILURE:
+                        return context.getString(R.string.wifi_disabled_password_failure);
+                    case WifiConfiguration.DISABLED_DHCP_FAILURE:
+                    case WifiConfiguration.DISABLED_DNS_FAILURE:
+                        return context.getString(R.string.wifi_disabled_network_failure);
+                    default:
+                        return context.getString(R.string.wifi_disabled_generic);
                 }
-                summary.append(String.format(securityStrFormat, getSecurityString(true)));
+        }
+
+        StringBuilder summary = new StringBuilder();
+        if (mConfig != null) { // Is saved network
+            summary.append(context.getString(R.string.wifi_remembered));
+        }
+
+        if (security != SECURITY_NONE) {
+            String securityStrFormat;
+            if (summary.length() == 0) {
+                securityStrFormat = context.getString(R.string.wifi_secured_first_item);
+            } else {
+                securityStrFormat = context.getString(R.string.wifi_secured_second_item);
             }
+            summary.append(String.format(securityStrFormat, getSecurityString(true)));
+        }
 
-            if (mConfig == null && wpsAvailable) { // Only list WPS available for unsaved networks
-                if (summary.length() == 0) {
-                    summary.append(context.getString(R.string.wifi_wps_available_first_item));
-                } else {
-                    summary.append(context.getString(R.string.wifi_wps_available_second_item));
-                }
+        if (mConfig == null && wpsAvailable) { // Only list WPS available for unsaved networks
+            if (summary.length() == 0) {
+                summary.append(context.getString(R.string.wifi_wps_available_first_item));
+            } else {
+                summary.append(context.getString(R.string.wifi_wps_available_second_item));
             }
-            setSummary(summary.toString());
         }
+        return summary.toString();
     }
 
     /**
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.preference.Preference;
+import android.preference.PreferenceGroup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Keeps a preference group showing a list of access points, touching only the entries
+ * that were added, removed or moved since the last update. Used by both the Wi-Fi
+ * settings and the setup wizard.
+ */
+class AccessPointListUpdater {
+    private List<AccessPoint> mShown = Collections.emptyList();
+
+    private int mUpdates;
+    private int mChanges;
+    private long mUpdateNanos;
+
+    /**
+     * Returns the access points of the last update, in their order.
+     */
+    List<AccessPoint> getShown() {
+        return mShown;
+    }
+
+    /**
+     * Brings {@code group} in line with {@code accessPoints}, which must be sorted.
+     */
+    void update(PreferenceGroup group, List<AccessPoint> accessPoints) {
+        final long start = System.nanoTime();
+        final ArrayList<Preference> shown = new ArrayList<Preference>(
+                group.getPreferenceCount());
+        for (int i = 0; i < group.getPreferenceCount(); i++) {
+            shown.add(group.getPreference(i));
+        }
+        final ArrayList<Preference> removed = new ArrayList<Preference>();
+        final ArrayList<AccessPoint> added = new ArrayList<AccessPoint>();
+        final boolean moved = diff(shown, mShown, accessPoints, removed, added);
+
+        for (Preference preference : removed) {
+            group.removePreference(preference);
+        }
+        for (AccessPoint accessPoint : added) {
+            group.addPreference(accessPoint);
+        }
+        if (moved) {
+            accessPoints.get(0).notifyOrderChanged();
+        }
+        mShown = accessPoints;
+
+        mUpdates++;
+        if (moved || !removed.isEmpty() || !added.isEmpty()) {
+            mChanges++;
+        }
+        mUpdateNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Works out how a group showing {@code shown}, last ordered as {@code lastOrder},
+     * turns into {@code wanted}.
+     *
+     * @param removed receives the preferences to remove
+     * @param added receives the access points to add
+     * @return true if nothing is added or removed but the order changed; adding or
+     *     removing re-sorts the group anyway
+     */
+    static boolean diff(List<? extends Preference> shown, List<AccessPoint> lastOrder,
+            List<AccessPoint> wanted, List<Preference> removed, List<AccessPoint> added) {
+        final HashSet<Preference> shownSet = new HashSet<Preference>(shown);
+        final HashSet<Preference> wantedSet = new HashSet<Preference>(wanted);
+        for (Preference preference : shown) {
+            if (!wantedSet.contains(preference)) {
+                removed.add(preference);
+            }
+        }
+        for (AccessPoint accessPoint : wanted) {
+            if (!shownSet.contains(accessPoint)) {
+                added.add(accessPoint);
+            }
+        }
+        return removed.isEmpty() && added.isEmpty() && !wanted.isEmpty()
+                && !wanted.equals(lastOrder);
+    }
+
+    @Override
+    public String toString() {
+        return "updates=" + mUpdates + " changed=" + mChanges + " average="
+                + (mUpdates == 0 ? 0 : mUpdateNanos / mUpdates / 1000) + "us";
+    }
+}
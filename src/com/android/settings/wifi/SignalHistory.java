@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import com.android.settings.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Signal strengths of the last few scans, per BSSID, to smooth out the noise of single
+ * scan results.
+ *
+ * Everything is kept in preallocated primitive arrays: a ring of {@link #SAMPLES}
+ * samples for each of at most {@link #MAX_BSSIDS} BSSIDs, looked up through an open
+ * addressing table. When full, the BSSID seen least recently is evicted. Samples older
+ * than {@link #SAMPLES} scans are ignored.
+ */
+class SignalHistory {
+    static final int MAX_BSSIDS = 256;
+    static final int SAMPLES = 8;
+
+    static final int TREND_STABLE = 0;
+    static final int TREND_RISING = 1;
+    static final int TREND_FALLING = -1;
+
+    /** Difference between older and newer samples, in dBm, that makes a trend. */
+    static final int TREND_THRESHOLD_DB = 4;
+
+    private static final int TABLE_SIZE = MAX_BSSIDS * 2;
+    private static final int EMPTY = -1;
+
+    /** BSSID of each slot as a 48 bit MAC address, -1 if unused. */
+    private final long[] mBssids = new long[MAX_BSSIDS];
+    /** Scan of the latest sample of each slot. */
+    private final int[] mLastScan = new int[MAX_BSSIDS];
+    /** Index of the next sample to write, per slot. */
+    private final int[] mHead = new int[MAX_BSSIDS];
+    private final byte[] mRssi = new byte[MAX_BSSIDS * SAMPLES];
+    private final int[] mScan = new int[MAX_BSSIDS * SAMPLES];
+    /** Open addressing table of slot numbers, by BSSID hash. */
+    private final int[] mTable = new int[TABLE_SIZE];
+    private int mUsed;
+
+    private int mCurrentScan;
+
+    SignalHistory() {
+        clear();
+    }
+
+    void clear() {
+        Arrays.fill(mBssids, -1);
+        Arrays.fill(mTable, EMPTY);
+        Arrays.fill(mScan, Integer.MIN_VALUE);
+        mUsed = 0;
+    }
+
+    /**
+     * Starts recording the results of a new scan.
+     */
+    void beginScan() {
+        mCurrentScan++;
+    }
+
+    /**
+     * Records the signal of {@code bssid} in the current scan. If a BSSID is reported
+     * more than once by a scan, its strongest signal is kept.
+     */
+    void add(String bssid, int rssi) {
+        final long mac = Utils.parseMacAddress(bssid);
+        if (mac < 0) {
+            return;
+        }
+        int slot = find(mac);
+        if (slot < 0) {
+            slot = allocate(mac);
+        }
+        final byte sample = (byte) Math.max(Byte.MIN_VALUE, Math.min(0, rssi));
+        final int base = slot * SAMPLES;
+        if (mLastScan[slot] == mCurrentScan) {
+            final int last = base + (mHead[slot] + SAMPLES - 1) % SAMPLES;
+            if (sample > mRssi[last]) {
+                mRssi[last] = sample;
+            }
+            return;
+        }
+        final int index = base + mHead[slot];
+        mRssi[index] = sample;
+        mScan[index] = mCurrentScan;
+        mHead[slot] = (mHead[slot] + 1) % SAMPLES;
+        mLastScan[slot] = mCurrentScan;
+    }
+
+    /**
+     * Returns the recent signal of {@code bssid}, newer samples weighing more, or
+     * {@link Integer#MAX_VALUE} if it wasn't seen lately.
+     */
+    int getSmoothedRssi(String bssid) {
+        final int slot = find(Utils.parseMacAddress(bssid));
+        if (slot < 0) {
+            return Integer.MAX_VALUE;
+        }
+        long sum = 0;
+        int weights = 0;
+        final int base = slot * SAMPLES;
+        for (int i = 0; i < SAMPLES; i++) {
+            final int age = mCurrentScan - mScan[base + i];
+            if (age >= 0 && age < SAMPLES) {
+                final int weight = SAMPLES - age;
+                sum += weight * mRssi[base + i];
+                weights += weight;
+            }
+        }
+        if (weights == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.round((double) sum / weights);
+    }
+
+    /**
+     * Compares the newer half of the recent samples of {@code bssid} with the older half.
+     *
+     * @return {@link #TREND_RISING}, {@link #TREND_FALLING} or {@link #TREND_STABLE}
+     */
+    int getTrend(String bssid) {
+        final int slot = find(Utils.parseMacAddress(bssid));
+        if (slot < 0) {
+            return TREND_STABLE;
+        }
+        int newerSum = 0, newerCount = 0, olderSum = 0, olderCount = 0;
+        final int base = slot * SAMPLES;
+        for (int i = 0; i < SAMPLES; i++) {
+            final int age = mCurrentScan - mScan[base + i];
+            if (age < 0 || age >= SAMPLES) {
+                continue;
+            } else if (age < SAMPLES / 2) {
+                newerSum += mRssi[base + i];
+                newerCount++;
+            } else {
+                olderSum += mRssi[base + i];
+                olderCount++;
+            }
+        }
+        if (newerCount == 0 || olderCount == 0) {
+            return TREND_STABLE;
+        }
+        // Compared as sums scaled by the other count, to stay in integers.
+        final int difference = newerSum * olderCount - olderSum * newerCount;
+        final int threshold = TREND_THRESHOLD_DB * newerCount * olderCount;
+        if (difference >= threshold) {
+            return TREND_RISING;
+        } else if (difference <= -threshold) {
+            return TREND_FALLING;
+        }
+        return TREND_STABLE;
+    }
+
+    /** Number of BSSIDs currently remembered. */
+    int size() {
+        return mUsed;
+    }
+
+    private int find(long mac) {
+        if (mac < 0) {
+            return -1;
+        }
+        for (int i = hash(mac), probes = 0; probes < TABLE_SIZE;
+                i = (i + 1) % TABLE_SIZE, probes++) {
+            final int slot = mTable[i];
+            if (slot == EMPTY) {
+                return -1;
+            } else if (mBssids[slot] == mac) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int allocate(long mac) {
+        int slot;
+        if (mUsed < MAX_BSSIDS) {
+            slot = mUsed++;
+        } else {
+            // Full: reuse the slot of the BSSID seen least recently.
+            slot = 0;
+            for (int i = 1; i < MAX_BSSIDS; i++) {
+                if (mLastScan[i] - mLastScan[slot] < 0) {
+                    slot = i;
+                }
+            }
+            remove(slot);
+        }
+        mBssids[slot] = mac;
+        mHead[slot] = 0;
+        mLastScan[slot] = mCurrentScan - SAMPLES;
+        Arrays.fill(mScan, slot * SAMPLES, (slot + 1) * SAMPLES, Integer.MIN_VALUE);
+        int i = hash(mac);
+        while (mTable[i] != EMPTY) {
+            i = (i + 1) % TABLE_SIZE;
+        }
+        mTable[i] = slot;
+        return slot;
+    }
+
+    /**
+     * Takes {@code slot} out of the table, moving back the entries that probed past it.
+     */
+    private void remove(int slot) {
+        int i = hash(mBssids[slot]);
+        while (mTable[i] != slot) {
+            i = (i + 1) % TABLE_SIZE;
+        }
+        mTable[i] = EMPTY;
+        for (int j = (i + 1) % TABLE_SIZE; mTable[j] != EMPTY; j = (j + 1) % TABLE_SIZE) {
+            final int moved = mTable[j];
+            mTable[j] = EMPTY;
+            int k = hash(mBssids[moved]);
+            while (mTable[k] != EMPTY) {
+                k = (k + 1) % TABLE_SIZE;
+            }
+            mTable[k] = moved;
+        }
+        mBssids[slot] = -1;
+    }
+
+    private static int hash(long mac) {
+        final long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 40) % TABLE_SIZE);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.NetworkInfo.DetailedState;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+
+import java.util.List;
+
+/**
+ * Decides when the access point list scans again.
+ *
+ * Scans are frequent right after the list is shown or the user interacts with it, and
+ * back off exponentially while successive scans bring the same networks at the same
+ * signal levels. No scans are started while a connection is being set up, since
+ * scanning slows it down.
+ */
+class WifiScanPolicy {
+    // Combo scans can take 5-6s to complete.
+    static final long MIN_INTERVAL_MS = 6 * 1000;
+    static final long MAX_INTERVAL_MS = 60 * 1000;
+
+    /** Consecutive failures to start a scan after which scanning stops. */
+    static final int MAX_FAILURES = 3;
+
+    /** Returned by {@link #scan()} when scanning should stop. */
+    static final long STOP = -1;
+
+    private final WifiManager mWifiManager;
+
+    private long mInterval = MIN_INTERVAL_MS;
+    private int mFailures;
+    private boolean mConnecting;
+    /** Summary of the last scan results; see {@link #getSignature}. */
+    private long mLastSignature;
+    private boolean mHaveResults;
+
+    private int mScanCount;
+    private int mSkippedCount;
+    private int mResultCount;
+    private int mChangedResultCount;
+
+    WifiScanPolicy(WifiManager wifiManager) {
+        mWifiManager = wifiManager;
+    }
+
+    /**
+     * The list was just shown: scan fast again.
+     */
+    void onResume() {
+        mInterval = MIN_INTERVAL_MS;
+        mFailures = 0;
+    }
+
+    void onUserInteraction() {
+        mInterval = MIN_INTERVAL_MS;
+    }
+
+    static boolean isConnecting(DetailedState state) {
+        return state == DetailedState.CONNECTING || state == DetailedState.AUTHENTICATING
+                || state == DetailedState.OBTAINING_IPADDR;
+    }
+
+    void setConnecting(boolean connecting) {
+        mConnecting = connecting;
+    }
+
+    /**
+     * Starts a scan unless a connection is in progress.
+     *
+     * @return the delay before the next call, or {@link #STOP} after too many failures
+     */
+    long scan() {
+        if (mConnecting) {
+            mSkippedCount++;
+            return MIN_INTERVAL_MS;
+        }
+        mScanCount++;
+        if (mWifiManager.startScanActive()) {
+            mFailures = 0;
+        } else if (++mFailures >= MAX_FAILURES) {
+            mFailures = 0;
+            return STOP;
+        }
+        return mInterval;
+    }
+
+    /**
+     * Adjusts the interval to new scan results: unchanged results double it.
+     */
+    void onScanResults(List<ScanResult> results) {
+        final long signature = getSignature(results);
+        mResultCount++;
+        if (mHaveResults && signature == mLastSignature) {
+            mInterval = Math.min(mInterval * 2, MAX_INTERVAL_MS);
+        } else {
+            mChangedResultCount++;
+            mInterval = MIN_INTERVAL_MS;
+        }
+        mLastSignature = signature;
+        mHaveResults = true;
+    }
+
+    /**
+     * Sums up which BSSIDs were found and at what signal level, in any order. Signal
+     * changes within a level don't count, they aren't visible in the list.
+     */
+    static long getSignature(List<ScanResult> results) {
+        long signature = 0;
+        if (results != null) {
+            for (ScanResult result : results) {
+                final int level = WifiManager.calculateSignalLevel(result.level, 4);
+                long hash = (result.BSSID != null ? result.BSSID.hashCode() : 0) * 31L + level;
+                hash *= 0x9E3779B97F4A7C15L;
+                signature += hash ^ (hash >>> 29);
+            }
+        }
+        return signature;
+    }
+
+    long getInterval() {
+        return mInterval;
+    }
+
+    /** Scans started or attempted. */
+    int getScanCount() {
+        return mScanCount;
+    }
+
+    /** Scans skipped because a connection was in progress. */
+    int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    int getResultCount() {
+        return mResultCount;
+    }
+
+    /** Fraction of scan results that differed from the previous ones. */
+    float getResultChangeRate() {
+        return mResultCount == 0 ? 0 : (float) mChangedResultCount / mResultCount;
+    }
+
+    @Override
+    public String toString() {
+        return "scans=" + mScanCount + " skipped=" + mSkippedCount + " results="
+                + mResultCount + " changed=" + mChangedResultCount + " interval="
+                + mInterval + "ms";
+    }
+}
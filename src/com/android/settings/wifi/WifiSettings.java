@@ -66,6 +66,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -92,9 +93,6 @@ public class WifiSettings extends SettingsPreferenceFragment
 
     private static final int WIFI_DIALOG_ID = 1;
 
-    // Combo scans can take 5-6s to complete - set to 10s.
-    private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
-
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
     private static final String SAVE_DIALOG_ACCESS_POINT_STATE = "wifi_ap_state";
@@ -102,6 +100,9 @@ public class WifiSettings extends SettingsPreferenceFragment
     private final IntentFilter mFilter;
     private final BroadcastReceiver mReceiver;
     private final Scanner mScanner;
+    private WifiScanPolicy mScanPolicy;
+    /** AccessPoint.getSummariesBuilt() when last resumed, for debug logging. */
+    private int mSummariesBuiltOnResume;
 
     private WifiManager mWifiManager;
     private WifiEnabler mWifiEnabler;
@@ -117,6 +118,21 @@ public class WifiSettings extends SettingsPreferenceFragment
 
     private WifiDialog mDialog;
 
+    /**
+     * Access points by {@link AccessPoint#getKey()}, reused from one update to the next so
+     * that only the entries that changed touch the preference screen.
+     */
+    private Multimap<String, AccessPoint> mAccessPoints = new Multimap<String, AccessPoint>();
+
+    /** Recent signal of every BSSID, to smooth single scan results. */
+    private final SignalHistory mSignalHistory = new SignalHistory();
+
+    /** Set when the scan results haven't been recorded into mSignalHistory yet. */
+    private boolean mScanResultsPending;
+
+    /** Shows the access points, in the order last shown. */
+    private final AccessPointListUpdater mAccessPointList = new AccessPointListUpdater();
+
     private TextView mEmptyView;
 
     /* Used in Wifi Setup context */
@@ -171,6 +187,7 @@ public class WifiSettings extends SettingsPreferenceFragment
         // this method.
 
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        mScanPolicy = new WifiScanPolicy(mWifiManager);
         mWifiManager.asyncConnect(getActivity(), new WifiServiceHandler());
         if (savedInstanceState != null
                 && savedInstanceState.containsKey(SAVE_DIALOG_ACCESS_POINT_STATE)) {
@@ -246,6 +263,7 @@ public class WifiSettings extends SettingsPreferenceFragment
         }
         mKeyStoreNetworkId = INVALID_NETWORK_ID;
 
+        mSummariesBuiltOnResume = AccessPoint.getSummariesBuilt();
         updateAccessPoints();
     }
 
@@ -257,6 +275,12 @@ public class WifiSettings extends SettingsPreferenceFragment
         }
         getActivity().unregisterReceiver(mReceiver);
         mScanner.pause();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Scanning: " + mScanPolicy + ", change rate "
+                    + mScanPolicy.getResultChangeRate() + ", summaries built "
+                    + (AccessPoint.getSummariesBuilt() - mSummariesBuiltOnResume)
+                    + ", list " + mAccessPointList);
+        }
     }
 
     @Override
@@ -454,17 +478,12 @@ public class WifiSettings extends SettingsPreferenceFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints = constructAccessPoints();
-                getPreferenceScreen().removeAll();
+                final List<AccessPoint> accessPoints = constructAccessPoints();
                 if (mInXlSetupWizard) {
                     ((WifiSettingsForSetupWizardXL)getActivity()).onAccessPointsUpdated(
-                            getPreferenceScreen(), accessPoints);
-                } else {
-                    for (AccessPoint accessPoint : accessPoints) {
-                        getPreferenceScreen().addPreference(accessPoint);
-                    }
+                            accessPoints);
                 }
+                mAccessPointList.update(getPreferenceScreen(), accessPoints);
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
@@ -486,24 +505,56 @@ public class WifiSettings extends SettingsPreferenceFragment
         getPreferenceScreen().removeAll();
     }
 
-    /** Returns sorted list of access points */
+    /**
+     * Returns sorted list of access points. Access points already known are updated in
+     * place; new ones are created and those gone are dropped.
+     */
     private List<AccessPoint> constructAccessPoints() {
         ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
         /** Lookup table to more quickly update AccessPoints by only considering objects with the
-         * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
+         * correct SSID and security.  Maps key -> List of AccessPoints with the given key.  */
         Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
 
         final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
         if (configs != null) {
             for (WifiConfiguration config : configs) {
-                AccessPoint accessPoint = new AccessPoint(getActivity(), config);
+                final String key = AccessPoint.getKey(config.SSID == null ? ""
+                        : AccessPoint.removeDoubleQuotes(config.SSID),
+                        AccessPoint.getSecurity(config));
+                AccessPoint accessPoint = takeAccessPoint(mAccessPoints.getAll(key),
+                        config.networkId);
+                if (accessPoint == null) {
+                    accessPoint = new AccessPoint(getActivity(), config);
+                } else {
+                    accessPoint.update(config);
+                }
                 accessPoint.update(mLastInfo, mLastState);
                 accessPoints.add(accessPoint);
-                apMap.put(accessPoint.ssid, accessPoint);
+                apMap.put(key, accessPoint);
+            }
+        }
+        // Unclaimed saved networks were forgotten; unsaved ones stay if still in range.
+        for (List<AccessPoint> unclaimed : mAccessPoints.values()) {
+            for (AccessPoint accessPoint : unclaimed) {
+                if (accessPoint.networkId == INVALID_NETWORK_ID) {
+                    accessPoints.add(accessPoint);
+                    apMap.put(accessPoint.getKey(), accessPoint);
+                }
             }
         }
+        for (AccessPoint accessPoint : accessPoints) {
+            accessPoint.beginScanResults();
+        }
 
         final List<ScanResult> results = mWifiManager.getScanResults();
+        if (results != null && mScanResultsPending) {
+            mScanResultsPending = false;
+            mSignalHistory.beginScan();
+            for (ScanResult result : results) {
+                mSignalHistory.add(result.BSSID, result.level);
+            }
+            mScanPolicy.onScanResults(results);
+        }
         if (results != null) {
             for (ScanResult result : results) {
                 // Ignore hidden and ad-hoc networks.
@@ -512,22 +563,72 @@ public class WifiSettings extends SettingsPreferenceFragment
                     continue;
                 }
 
+                final String key = AccessPoint.getKey(result.SSID,
+                        AccessPoint.getSecurity(result));
+                int rssi = mSignalHistory.getSmoothedRssi(result.BSSID);
+                if (rssi == Integer.MAX_VALUE) {
+                    rssi = result.level;
+                }
+                final int trend = mSignalHistory.getTrend(result.BSSID);
                 boolean found = false;
-                for (AccessPoint accessPoint : apMap.getAll(result.SSID)) {
-                    if (accessPoint.update(result))
+                for (AccessPoint accessPoint : apMap.getAll(key)) {
+                    if (accessPoint.update(result, rssi, trend))
                         found = true;
                 }
                 if (!found) {
                     AccessPoint accessPoint = new AccessPoint(getActivity(), result);
+                    accessPoint.beginScanResults();
+                    accessPoint.update(result, rssi, trend);
                     accessPoints.add(accessPoint);
-                    apMap.put(accessPoint.ssid, accessPoint);
+                    apMap.put(key, accessPoint);
                 }
             }
         }
 
-        // Pre-sort accessPoints to speed preference insertion
-        Collections.sort(accessPoints);
-        return accessPoints;
+        final HashSet<AccessPoint> remaining = new HashSet<AccessPoint>();
+        mAccessPoints = new Multimap<String, AccessPoint>();
+        for (AccessPoint accessPoint : accessPoints) {
+            if (accessPoint.endScanResults() || accessPoint.networkId != INVALID_NETWORK_ID) {
+                remaining.add(accessPoint);
+                mAccessPoints.put(accessPoint.getKey(), accessPoint);
+            }
+        }
+
+        // Start from the order last shown, new access points at the end, so that sorting
+        // only has to move what changed.
+        final ArrayList<AccessPoint> visible = new ArrayList<AccessPoint>(remaining.size());
+        for (AccessPoint accessPoint : mAccessPointList.getShown()) {
+            if (remaining.remove(accessPoint)) {
+                visible.add(accessPoint);
+            }
+        }
+        for (AccessPoint accessPoint : accessPoints) {
+            if (remaining.remove(accessPoint)) {
+                visible.add(accessPoint);
+            }
+        }
+
+        // Pre-sort accessPoints to speed preference insertion. The sort is stable and
+        // adaptive, close to linear on a list that is already nearly sorted.
+        Collections.sort(visible);
+        return visible;
+    }
+
+    /**
+     * Removes and returns the access point of {@code candidates} to reuse for the saved
+     * network {@code networkId}: the one already showing it, else an unsaved one.
+     */
+    private static AccessPoint takeAccessPoint(List<AccessPoint> candidates, int networkId) {
+        int unsaved = -1;
+        for (int i = 0; i < candidates.size(); i++) {
+            final int id = candidates.get(i).networkId;
+            if (id == networkId) {
+                return candidates.remove(i);
+            } else if (id == INVALID_NETWORK_ID && unsaved < 0) {
+                unsaved = i;
+            }
+        }
+        return unsaved >= 0 ? candidates.remove(unsaved) : null;
     }
 
     /** A restricted multimap for use in constructAccessPoints */
@@ -539,6 +640,10 @@ public class WifiSettings extends SettingsPreferenceFragment
             return values != null ? values : Collections.<V>emptyList();
         }
 
+        Collection<List<V>> values() {
+            return store.values();
+        }
+
         void put(K key, V val) {
             List<V> curVals = store.get(key);
             if (curVals == null) {
@@ -557,6 +662,9 @@ public class WifiSettings extends SettingsPreferenceFragment
         } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
                 WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
+                if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+                    mScanResultsPending = true;
+                }
                 updateAccessPoints();
         } else if (WifiManager.SUPPLICANT_STATE_CHANGED_ACTION.equals(action)) {
             //Ignore supplicant state changes when network is connected
@@ -600,11 +708,11 @@ public class WifiSettings extends SettingsPreferenceFragment
             return;
         }
 
-        if (state == DetailedState.OBTAINING_IPADDR) {
-            mScanner.pause();
-        } else {
-            mScanner.resume();
+        if (state != null) {
+            // Scans are skipped while connecting, they slow the connection down.
+            mScanPolicy.setConnecting(WifiScanPolicy.isConnecting(state));
         }
+        mScanner.resume();
 
         mLastInfo = mWifiManager.getConnectionInfo();
         if (state != null) {
@@ -647,36 +755,36 @@ public class WifiSettings extends SettingsPreferenceFragment
         mScanner.pause();
     }
 
+    /**
+     * Runs the scans {@link WifiScanPolicy} asks for while the list is visible.
+     */
     private class Scanner extends Handler {
-        private int mRetry = 0;
-
         void resume() {
             if (!hasMessages(0)) {
+                mScanPolicy.onResume();
                 sendEmptyMessage(0);
             }
         }
 
         void forceScan() {
+            mScanPolicy.onUserInteraction();
             removeMessages(0);
             sendEmptyMessage(0);
         }
 
         void pause() {
-            mRetry = 0;
             removeMessages(0);
         }
 
         @Override
         public void handleMessage(Message message) {
-            if (mWifiManager.startScanActive()) {
-                mRetry = 0;
-            } else if (++mRetry >= 3) {
-                mRetry = 0;
+            final long delay = mScanPolicy.scan();
+            if (delay == WifiScanPolicy.STOP) {
                 Toast.makeText(getActivity(), R.string.wifi_fail_to_scan,
                         Toast.LENGTH_LONG).show();
                 return;
             }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
+            sendEmptyMessageDelayed(0, delay);
         }
     }
 
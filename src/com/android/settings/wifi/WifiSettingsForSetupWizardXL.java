@@ -26,7 +26,6 @@ import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.preference.PreferenceScreen;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -653,12 +652,10 @@ public class WifiSettingsForSetupWizardXL extends Activity implements OnClickLis
     }
 
     /**
-     * Called when the list of AccessPoints are modified and this Activity needs to refresh
-     * the list.
-     * @param preferenceScreen
+     * Called when the list of AccessPoints are modified, before {@link WifiSettings} shows
+     * the changes.
      */
-    /* package */ void onAccessPointsUpdated(
-            PreferenceScreen preferenceScreen, Collection<AccessPoint> accessPoints) {
+    /* package */ void onAccessPointsUpdated(Collection<AccessPoint> accessPoints) {
         // If we already show some of access points but the bar still shows "scanning" state, it
         // should be stopped.
         if (mProgressBar.isIndeterminate() && accessPoints.size() > 0) {
@@ -673,7 +670,6 @@ public class WifiSettingsForSetupWizardXL extends Activity implements OnClickLis
 
         for (AccessPoint accessPoint : accessPoints) {
             accessPoint.setLayoutResource(R.layout.custom_preference);
-            preferenceScreen.addPreference(accessPoint);
         }
     }
 
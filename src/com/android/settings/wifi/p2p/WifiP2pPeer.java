@@ -44,15 +44,25 @@ public class WifiP2pPeer extends Preference {
         device = dev;
         setWidgetLayoutResource(R.layout.preference_widget_wifi_signal);
         mRssi = 60; //TODO: fix
+        refresh();
+    }
+
+    /**
+     * Takes the latest information about the same device. The row is only updated if
+     * its name or status changed, and only then the list re-sorted.
+     */
+    void update(WifiP2pDevice dev) {
+        final boolean changed = dev.status != device.status
+                || !TextUtils.equals(dev.deviceName, device.deviceName);
+        device = dev;
+        if (changed) {
+            refresh();
+            notifyHierarchyChanged();
+        }
     }
 
     @Override
     protected void onBindView(View view) {
-        if (TextUtils.isEmpty(device.deviceName)) {
-            setTitle(device.deviceAddress);
-        } else {
-            setTitle(device.deviceName);
-        }
         mSignal = (ImageView) view.findViewById(R.id.signal);
         if (mRssi == Integer.MAX_VALUE) {
             mSignal.setImageDrawable(null);
@@ -60,7 +70,7 @@ public class WifiP2pPeer extends Preference {
             mSignal.setImageResource(R.drawable.wifi_signal);
             mSignal.setImageState(STATE_SECURED,  true);
         }
-        refresh();
+        mSignal.setImageLevel(getLevel());
         super.onBindView(view);
     }
 
@@ -91,12 +101,14 @@ public class WifiP2pPeer extends Preference {
         return WifiManager.calculateSignalLevel(mRssi, SIGNAL_LEVELS);
     }
 
+    /** Updates the title and summary; calls notifyChanged() if they changed */
     private void refresh() {
-        if (mSignal == null) {
-            return;
+        if (TextUtils.isEmpty(device.deviceName)) {
+            setTitle(device.deviceAddress);
+        } else {
+            setTitle(device.deviceName);
         }
         Context context = getContext();
-        mSignal.setImageLevel(getLevel());
         String[] statusArray = context.getResources().getStringArray(R.array.wifi_p2p_status);
         setSummary(statusArray[device.status]);
     }
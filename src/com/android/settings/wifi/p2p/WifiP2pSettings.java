@@ -33,6 +33,7 @@ import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.net.wifi.p2p.WifiP2pManager.PeerListListener;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Message;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
@@ -50,6 +51,9 @@ import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Collection;
 
@@ -82,6 +86,21 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
 
     private WifiP2pDevice mThisDevice;
     private WifiP2pDeviceList mPeers = new WifiP2pDeviceList();
+    /** Rows of mPeersGroup by device address. */
+    private final HashMap<String, WifiP2pPeer> mPeerPrefs = new HashMap<String, WifiP2pPeer>();
+
+    private static final int MSG_REQUEST_PEERS = 1;
+    /** Peer changes closer together than this, about a frame, are handled as one. */
+    private static final int PEERS_CHANGED_DELAY_MS = 16;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_REQUEST_PEERS && mWifiP2pManager != null) {
+                mWifiP2pManager.requestPeers(mChannel, WifiP2pSettings.this);
+            }
+        }
+    };
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -91,10 +110,11 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
             if (WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION.equals(action)) {
                 //TODO: nothing right now
             } else if (WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(action)) {
-                if (mWifiP2pManager != null) {
-                    mWifiP2pManager.requestPeers(mChannel, WifiP2pSettings.this);
+                // Bursts of changes only ask for the peers once.
+                if (mWifiP2pManager != null && !mHandler.hasMessages(MSG_REQUEST_PEERS)) {
+                    mHandler.sendEmptyMessageDelayed(MSG_REQUEST_PEERS,
+                            PEERS_CHANGED_DELAY_MS);
                 }
-                updateDevicePref();
             } else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
                 if (mWifiP2pManager == null) return;
                 NetworkInfo networkInfo = (NetworkInfo) intent.getParcelableExtra(
@@ -116,6 +136,11 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
         super.onCreate(icicle);
         addPreferencesFromResource(R.xml.wifi_p2p_settings);
 
+        mThisDevicePref = new Preference(getActivity());
+        mThisDevicePref.setPersistent(false);
+        mThisDevicePref.setEnabled(true);
+        mThisDevicePref.setSelectable(false);
+
         mIntentFilter.addAction(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
         mIntentFilter.addAction(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
         mIntentFilter.addAction(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
@@ -197,6 +222,7 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
     public void onPause() {
         super.onPause();
         getActivity().unregisterReceiver(mReceiver);
+        mHandler.removeMessages(MSG_REQUEST_PEERS);
     }
 
     @Override
@@ -289,34 +315,53 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
         return null;
     }
 
+    /**
+     * Updates the rows of the peers that changed, and adds and removes those that came and
+     * went, keeping the rest.
+     */
     public void onPeersAvailable(WifiP2pDeviceList peers) {
+        mPeers = peers;
+        addPreferencesIfNeeded();
 
-        final PreferenceScreen preferenceScreen = getPreferenceScreen();
-        preferenceScreen.removeAll();
-
-        preferenceScreen.setOrderingAsAdded(true);
-
-        if (mPeersGroup == null) {
-            mPeersGroup = new PreferenceCategory(getActivity());
-        } else {
-            mPeersGroup.removeAll();
+        final HashSet<String> available = new HashSet<String>();
+        for (WifiP2pDevice peer: peers.getDeviceList()) {
+            available.add(peer.deviceAddress);
+            final WifiP2pPeer peerPref = mPeerPrefs.get(peer.deviceAddress);
+            if (peerPref != null) {
+                peerPref.update(peer);
+            } else {
+                final WifiP2pPeer newPref = new WifiP2pPeer(getActivity(), peer);
+                mPeerPrefs.put(peer.deviceAddress, newPref);
+                mPeersGroup.addPreference(newPref);
+            }
+        }
+        for (Iterator<WifiP2pPeer> it = mPeerPrefs.values().iterator(); it.hasNext(); ) {
+            final WifiP2pPeer peerPref = it.next();
+            if (!available.contains(peerPref.device.deviceAddress)) {
+                mPeersGroup.removePreference(peerPref);
+                it.remove();
+            }
         }
+    }
 
+    /**
+     * Shows this device and the peers category, once there is something to show.
+     */
+    private void addPreferencesIfNeeded() {
+        if (mPeersGroup != null) {
+            return;
+        }
+        final PreferenceScreen preferenceScreen = getPreferenceScreen();
+        preferenceScreen.setOrderingAsAdded(true);
         preferenceScreen.addPreference(mThisDevicePref);
 
+        mPeersGroup = new PreferenceCategory(getActivity());
         mPeersGroup.setTitle(R.string.wifi_p2p_available_devices);
         mPeersGroup.setEnabled(true);
         preferenceScreen.addPreference(mPeersGroup);
-
-        mPeers = peers;
-        for (WifiP2pDevice peer: peers.getDeviceList()) {
-            mPeersGroup.addPreference(new WifiP2pPeer(getActivity(), peer));
-        }
     }
 
     private void updateDevicePref() {
-        mThisDevicePref = new Preference(getActivity());
-
         if (mThisDevice != null) {
             if (TextUtils.isEmpty(mThisDevice.deviceName)) {
                 mThisDevicePref.setTitle(mThisDevice.deviceAddress);
@@ -328,11 +373,10 @@ public class WifiP2pSettings extends SettingsPreferenceFragment
                 String[] statusArray = getActivity().getResources().getStringArray(
                         R.array.wifi_p2p_status);
                 mThisDevicePref.setSummary(statusArray[mThisDevice.status]);
+            } else {
+                mThisDevicePref.setSummary(null);
             }
-            mThisDevicePref.setPersistent(false);
-            mThisDevicePref.setEnabled(true);
-            mThisDevicePref.setSelectable(false);
         }
-        onPeersAvailable(mPeers); //update UI
+        addPreferencesIfNeeded();
     }
 }
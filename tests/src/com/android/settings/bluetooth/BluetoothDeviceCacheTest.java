@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that {@link BluetoothDeviceCache} gives back what was saved for a device.
+ */
+public class BluetoothDeviceCacheTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:1A:7D:00:00:02";
+
+    private BluetoothDeviceCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new BluetoothDeviceCache(getContext());
+        mCache.remove(ADDRESS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.remove(ADDRESS);
+        super.tearDown();
+    }
+
+    public void testUnknownDevice() {
+        assertNull(mCache.get(ADDRESS));
+    }
+
+    public void testRoundTrip() {
+        final BluetoothClass btClass =
+                new BluetoothClass(BluetoothClass.Device.AUDIO_VIDEO_WEARABLE_HEADSET);
+        final List<LocalBluetoothProfile> profiles = new ArrayList<LocalBluetoothProfile>();
+        final LocalBluetoothManager localManager =
+                LocalBluetoothManager.getInstance(getContext());
+        if (localManager != null) {
+            final LocalBluetoothProfile profile =
+                    localManager.getProfileManager().getProfileByName(A2dpProfile.NAME);
+            if (profile != null) {
+                profiles.add(profile);
+            }
+        }
+        mCache.put(ADDRESS, "Headset", btClass, profiles);
+        mCache.setLastConnected(ADDRESS, 1234);
+
+        final BluetoothDeviceCache.Entry entry = mCache.get(ADDRESS);
+        assertEquals("Headset", entry.mName);
+        assertEquals(btClass, entry.getBtClass());
+        assertEquals(profiles.size(), entry.mProfiles.length);
+        for (int i = 0; i < profiles.size(); i++) {
+            assertEquals(profiles.get(i).toString(), entry.mProfiles[i]);
+        }
+        assertEquals(1234, entry.mLastConnected);
+    }
+
+    public void testUnknownClass() {
+        mCache.put(ADDRESS, "Keyboard", null,
+                Collections.<LocalBluetoothProfile>emptyList());
+        final BluetoothDeviceCache.Entry entry = mCache.get(ADDRESS);
+        assertNull(entry.getBtClass());
+        assertEquals(0, entry.mProfiles.length);
+        assertEquals(0, entry.mLastConnected);
+    }
+
+    public void testRemove() {
+        mCache.put(ADDRESS, "Headset", null, Collections.<LocalBluetoothProfile>emptyList());
+        mCache.setLastConnected(ADDRESS, 1234);
+        mCache.remove(ADDRESS);
+        assertNull(mCache.get(ADDRESS));
+
+        // A device paired again starts afresh.
+        mCache.put(ADDRESS, "Headset", null, Collections.<LocalBluetoothProfile>emptyList());
+        assertEquals(0, mCache.get(ADDRESS).mLastConnected);
+    }
+}
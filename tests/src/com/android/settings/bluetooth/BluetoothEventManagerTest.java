@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link BluetoothEventManager} merges a burst of attribute updates of a
+ * device into one refresh, and applies them before any other event of that device.
+ */
+public class BluetoothEventManagerTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothEventManagerTest";
+
+    private static final long TIMEOUT = 5000;
+    private static final String ADDRESS = "00:1A:7D:00:00:04";
+
+    private LocalBluetoothManager mLocalManager;
+    private Handler mMainHandler;
+    private BluetoothEventManager mEventManager;
+    private BluetoothDevice mDevice;
+
+    /** What reached the callbacks, in order; only touched on the main thread. */
+    private final List<String> mEvents = new ArrayList<String>();
+    private CountDownLatch mChanged;
+
+    private final CachedBluetoothDevice.Callback mDeviceCallback =
+            new CachedBluetoothDevice.Callback() {
+        public void onDeviceAttributesChanged() {
+            mEvents.add("changed");
+            if (mChanged != null) {
+                mChanged.countDown();
+            }
+        }
+    };
+
+    private final BluetoothCallback mCallback = new BluetoothCallback() {
+        public void onBluetoothStateChanged(int bluetoothState) {
+        }
+
+        public void onScanningStateChanged(boolean started) {
+        }
+
+        public void onDeviceAdded(CachedBluetoothDevice cachedDevice) {
+            mEvents.add("added");
+            cachedDevice.registerCallback(mDeviceCallback);
+        }
+
+        public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+            mEvents.add("deleted");
+        }
+
+        public void onDeviceBondStateChanged(CachedBluetoothDevice cachedDevice,
+                int bondState) {
+            mEvents.add("bond " + bondState);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalManager = LocalBluetoothManager.getInstance(getContext());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        if (mLocalManager != null) {
+            mEventManager = new BluetoothEventManager(mLocalManager.getBluetoothAdapter(),
+                    new CachedBluetoothDeviceManager(getContext()), getContext());
+            mEventManager.setProfileManager(mLocalManager.getProfileManager());
+            mEventManager.registerCallback(mCallback);
+            mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mEventManager != null) {
+            mEventManager.unregisterCallback(mCallback);
+        }
+        super.tearDown();
+    }
+
+    public void testBurstIsCoalescedAndFlushedByBondChange() throws Exception {
+        if (mLocalManager == null) {
+            Log.w(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        // All on the main thread at once, so the batch can't be applied in between.
+        runOnMainSync(new Runnable() {
+            public void run() {
+                // A new device is added and shown right away.
+                dispatch(found((short) -50, "Headset"));
+                assertEquals(Arrays.asList("added", "changed"), mEvents);
+
+                // Updates of a known device wait for the next batch, merged.
+                dispatch(found((short) -60, "Headset"));
+                dispatch(new Intent(BluetoothDevice.ACTION_NAME_CHANGED)
+                        .putExtra(BluetoothDevice.EXTRA_DEVICE, mDevice));
+                dispatch(found((short) -70, "Headset"));
+                assertEquals(2, mEvents.size());
+
+                // Any other event applies them first, once.
+                dispatch(new Intent(BluetoothDevice.ACTION_BOND_STATE_CHANGED)
+                        .putExtra(BluetoothDevice.EXTRA_DEVICE, mDevice)
+                        .putExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                                BluetoothDevice.BOND_BONDING));
+            }
+        });
+        assertEquals(Arrays.asList("added", "changed", "changed",
+                "bond " + BluetoothDevice.BOND_BONDING, "changed"), mEvents);
+        assertEquals("events=5 coalesced=2 delivered=1", mEventManager.toString());
+    }
+
+    public void testBurstIsAppliedAfterDelay() throws Exception {
+        if (mLocalManager == null) {
+            Log.w(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        runOnMainSync(new Runnable() {
+            public void run() {
+                dispatch(found((short) -50, "Headset"));
+                mEvents.clear();
+                mChanged = new CountDownLatch(1);
+                for (int i = 0; i < 10; i++) {
+                    dispatch(found((short) (-60 - i), "Headset"));
+                }
+                assertTrue(mEvents.isEmpty());
+            }
+        });
+        assertTrue(mChanged.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // Let anything else that was pending reach the callbacks.
+        runOnMainSync(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals(Arrays.asList("changed"), mEvents);
+        assertEquals("events=11 coalesced=9 delivered=1", mEventManager.toString());
+    }
+
+    private Intent found(short rssi, String name) {
+        return new Intent(BluetoothDevice.ACTION_FOUND)
+                .putExtra(BluetoothDevice.EXTRA_DEVICE, mDevice)
+                .putExtra(BluetoothDevice.EXTRA_RSSI, rssi)
+                .putExtra(BluetoothDevice.EXTRA_NAME, name);
+    }
+
+    private void dispatch(Intent intent) {
+        mEventManager.dispatch(getContext(), intent);
+    }
+
+    /** Runs {@code runnable} on the main thread, rethrowing what it threw. */
+    private void runOnMainSync(final Runnable runnable) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] thrown = new Throwable[1];
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        if (thrown[0] instanceof Error) {
+            throw (Error) thrown[0];
+        } else if (thrown[0] != null) {
+            throw new RuntimeException(thrown[0]);
+        }
+    }
+}
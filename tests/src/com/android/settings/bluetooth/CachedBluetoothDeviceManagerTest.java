@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a discovery burst through {@link CachedBluetoothDeviceManager}: hundreds of
+ * devices found, then the name, class and UUID broadcasts that follow, each of which
+ * looks its device up. Logs the lookup time against the linear search it replaces.
+ */
+@LargeTest
+public class CachedBluetoothDeviceManagerTest extends AndroidTestCase {
+    private static final String TAG = "CachedBluetoothDeviceManagerTest";
+
+    private static final int DEVICES = 300;
+    /** Broadcasts per device in the burst: found, name, class and UUID changes. */
+    private static final int EVENTS_PER_DEVICE = 4;
+
+    private LocalBluetoothManager mLocalManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalManager = LocalBluetoothManager.getInstance(getContext());
+    }
+
+    public void testParseMacAddress() {
+        assertEquals(0x001122AABBCCL, parse("00:11:22:AA:BB:CC"));
+        assertEquals(0x001122AABBCCL, parse("00:11:22:aa:bb:cc"));
+        assertEquals(-1, parse(null));
+        assertEquals(-1, parse("00:11:22:AA:BB"));
+        assertEquals(-1, parse("00-11-22-AA-BB-CC"));
+    }
+
+    private static long parse(String address) {
+        return com.android.settings.Utils.parseMacAddress(address);
+    }
+
+    public void testDiscoveryBurst() {
+        if (mLocalManager == null) {
+            Log.w(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        final CachedBluetoothDeviceManager manager =
+                new CachedBluetoothDeviceManager(getContext());
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        final List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>(DEVICES);
+        for (int i = 0; i < DEVICES; i++) {
+            devices.add(adapter.getRemoteDevice(String.format("00:1A:7D:%02X:%02X:%02X",
+                    (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff)));
+        }
+
+        // The found broadcasts, which add each device once.
+        final Collection<CachedBluetoothDevice> empty = manager.getCachedDevicesCopy();
+        for (BluetoothDevice device : devices) {
+            assertNull(manager.findDevice(device));
+            manager.addDevice(mLocalManager.getBluetoothAdapter(),
+                    mLocalManager.getProfileManager(), device);
+        }
+        assertTrue(empty.isEmpty());
+        final Collection<CachedBluetoothDevice> snapshot = manager.getCachedDevicesCopy();
+        assertEquals(DEVICES, snapshot.size());
+
+        // Then the rest of the burst, in random order.
+        final Random random = new Random(0);
+        final int events = DEVICES * EVENTS_PER_DEVICE;
+        final BluetoothDevice[] burst = new BluetoothDevice[events];
+        for (int i = 0; i < events; i++) {
+            burst[i] = devices.get(random.nextInt(DEVICES));
+        }
+
+        long start = System.nanoTime();
+        for (BluetoothDevice device : burst) {
+            assertSame(device, manager.findDevice(device).getDevice());
+        }
+        final long indexed = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (BluetoothDevice device : burst) {
+            CachedBluetoothDevice found = null;
+            for (CachedBluetoothDevice cachedDevice : snapshot) {
+                if (cachedDevice.getDevice().equals(device)) {
+                    found = cachedDevice;
+                    break;
+                }
+            }
+            assertNotNull(found);
+        }
+        final long linear = System.nanoTime() - start;
+
+        Log.i(TAG, events + " lookups among " + DEVICES + " devices: indexed "
+                + indexed / 1000 + "us, linear " + linear / 1000 + "us");
+    }
+}
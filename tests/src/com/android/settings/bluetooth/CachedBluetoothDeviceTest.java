@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothProfile;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.R;
+
+import java.util.Collections;
+
+/**
+ * Tests that batched attribute changes of a {@link CachedBluetoothDevice} are reported
+ * once, and that its connection summary follows the profile states.
+ */
+public class CachedBluetoothDeviceTest extends AndroidTestCase {
+    private static final String TAG = "CachedBluetoothDeviceTest";
+
+    private int mChanges;
+
+    public void testBatchedChangesAreReportedOnce() {
+        final LocalBluetoothManager localManager =
+                LocalBluetoothManager.getInstance(getContext());
+        if (localManager == null) {
+            Log.w(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        final CachedBluetoothDevice cachedDevice = new CachedBluetoothDeviceManager(
+                getContext()).addDevice(localManager.getBluetoothAdapter(),
+                localManager.getProfileManager(),
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:1A:7D:00:00:01"));
+        cachedDevice.registerCallback(new CachedBluetoothDevice.Callback() {
+            public void onDeviceAttributesChanged() {
+                mChanges++;
+            }
+        });
+
+        cachedDevice.beginBatch();
+        cachedDevice.setRssi((short) -50);
+        cachedDevice.setName("Headset");
+        cachedDevice.beginBatch();
+        cachedDevice.setVisible(true);
+        cachedDevice.endBatch();
+        assertEquals(0, mChanges);
+        cachedDevice.endBatch();
+        assertEquals(1, mChanges);
+
+        // Nothing changed: nothing to report.
+        cachedDevice.beginBatch();
+        cachedDevice.setRssi((short) -50);
+        cachedDevice.endBatch();
+        assertEquals(1, mChanges);
+
+        cachedDevice.setRssi((short) -60);
+        assertEquals(2, mChanges);
+    }
+
+    public void testConnectionSummaryFollowsProfileState() {
+        final LocalBluetoothManager localManager =
+                LocalBluetoothManager.getInstance(getContext());
+        if (localManager == null || localManager.getProfileManager().getHeadsetProfile() == null) {
+            Log.w(TAG, "No Bluetooth headset profile on this device, skipping");
+            return;
+        }
+        final HeadsetProfile headset = localManager.getProfileManager().getHeadsetProfile();
+        final String address = "00:1A:7D:00:00:03";
+        // The profiles of a device come from its UUIDs, or the cache if it was paired.
+        final BluetoothDeviceCache cache = new BluetoothDeviceCache(getContext());
+        cache.put(address, "Headset", null,
+                Collections.<LocalBluetoothProfile>singletonList(headset));
+        try {
+            final CachedBluetoothDevice cachedDevice = new CachedBluetoothDeviceManager(
+                    getContext()).addDevice(localManager.getBluetoothAdapter(),
+                    localManager.getProfileManager(),
+                    BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+
+            cachedDevice.onProfileStateChanged(headset, BluetoothProfile.STATE_CONNECTING);
+            assertEquals(R.string.bluetooth_connecting, cachedDevice.getConnectionSummary());
+            assertEquals(BluetoothProfile.STATE_CONNECTING,
+                    cachedDevice.getProfileConnectionState(headset));
+
+            cachedDevice.onProfileStateChanged(headset, BluetoothProfile.STATE_CONNECTED);
+            assertEquals(R.string.bluetooth_connected, cachedDevice.getConnectionSummary());
+            assertTrue(cachedDevice.isConnected());
+        } finally {
+            cache.remove(address);
+        }
+    }
+}
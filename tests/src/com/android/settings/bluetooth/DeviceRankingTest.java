@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that {@link DeviceRanking} always shows the best scored devices, and tells its
+ * listener about every change.
+ */
+public class DeviceRankingTest extends AndroidTestCase {
+    private static final int MAX_SHOWN = 10;
+
+    private final Set<String> mShown = new HashSet<String>();
+    private int mShownCalls;
+    private int mHiddenCalls;
+
+    private final DeviceRanking.Listener<String> mListener =
+            new DeviceRanking.Listener<String>() {
+        public void onShown(String item) {
+            assertTrue(mShown.add(item));
+            assertTrue(mShown.size() <= MAX_SHOWN);
+            mShownCalls++;
+        }
+
+        public void onHidden(String item) {
+            assertTrue(mShown.remove(item));
+            mHiddenCalls++;
+        }
+    };
+
+    public void testFillsUpThenReplacesLowest() {
+        final DeviceRanking<String> ranking =
+                new DeviceRanking<String>(MAX_SHOWN, mListener);
+        for (int i = 0; i < MAX_SHOWN; i++) {
+            ranking.update("d" + i, 100 + i);
+        }
+        assertEquals(MAX_SHOWN, mShown.size());
+        assertEquals(0, mHiddenCalls);
+
+        ranking.update("weak", 50);
+        assertFalse(ranking.isShown("weak"));
+        assertEquals(MAX_SHOWN + 1, ranking.size());
+
+        ranking.update("strong", 500);
+        assertTrue(ranking.isShown("strong"));
+        assertFalse(ranking.isShown("d0"));
+        assertEquals(1, mHiddenCalls);
+
+        // The signal of a hidden device improves.
+        ranking.update("d0", 1000);
+        assertTrue(ranking.isShown("d0"));
+        assertFalse(ranking.isShown("d1"));
+
+        // A shown device goes away: the best hidden one takes its place.
+        ranking.remove("strong");
+        assertTrue(ranking.isShown("d1"));
+        assertEquals(MAX_SHOWN, ranking.getShownCount());
+    }
+
+    public void testTiesDontSwap() {
+        final DeviceRanking<String> ranking =
+                new DeviceRanking<String>(1, mListener);
+        ranking.update("a", 10);
+        ranking.update("b", 10);
+        assertTrue(ranking.isShown("a"));
+        assertEquals(1, mShownCalls);
+    }
+
+    public void testRandomUpdates() {
+        final DeviceRanking<String> ranking =
+                new DeviceRanking<String>(MAX_SHOWN, mListener);
+        final Map<String, Long> scores = new HashMap<String, Long>();
+        final Random random = new Random(0);
+        for (int step = 0; step < 20000; step++) {
+            final String item = "d" + random.nextInt(100);
+            if (random.nextInt(10) == 0) {
+                ranking.remove(item);
+                scores.remove(item);
+            } else {
+                final long score = random.nextInt(1000);
+                ranking.update(item, score);
+                scores.put(item, score);
+            }
+
+            assertEquals(Math.min(MAX_SHOWN, scores.size()), mShown.size());
+            long lowestShown = Long.MAX_VALUE;
+            for (String shown : mShown) {
+                assertTrue(ranking.isShown(shown));
+                lowestShown = Math.min(lowestShown, scores.get(shown));
+            }
+            for (Map.Entry<String, Long> entry : scores.entrySet()) {
+                if (!mShown.contains(entry.getKey())) {
+                    assertTrue(entry.getValue() <= lowestShown);
+                }
+            }
+        }
+    }
+}
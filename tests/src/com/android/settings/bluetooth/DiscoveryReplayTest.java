@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays discovery sessions through {@link BluetoothEventManager} and a fresh
+ * {@link CachedBluetoothDeviceManager}, on the main thread and with the recorded timing,
+ * and logs how long each broadcast took to handle and how much was allocated.
+ *
+ * The standard sessions are generated; the ones saved by {@link DiscoveryRecorder} on
+ * the device are replayed as well.
+ */
+@LargeTest
+public class DiscoveryReplayTest extends AndroidTestCase {
+    private static final String TAG = "DiscoveryReplayTest";
+
+    /** Sessions are replayed at most this long after their last event. */
+    private static final long REPLAY_TIMEOUT = 10000;
+
+    private LocalBluetoothManager mLocalManager;
+    private Handler mMainHandler;
+
+    /** The events of a session, as broadcasts. */
+    private static final class Session implements DiscoveryRecorder.Listener {
+        final String mName;
+        final List<Intent> mIntents = new ArrayList<Intent>();
+        final List<Integer> mTimes = new ArrayList<Integer>();
+        final HashSet<String> mFound = new HashSet<String>();
+        final BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+
+        Session(String name) {
+            mName = name;
+        }
+
+        public void onEvent(int time, int event, long address, short rssi, int nameHash) {
+            final Intent intent = new Intent(DiscoveryRecorder.ACTIONS[event]);
+            if (address != DiscoveryRecorder.NO_ADDRESS) {
+                final String formatted = formatAddress(address);
+                intent.putExtra(BluetoothDevice.EXTRA_DEVICE,
+                        mAdapter.getRemoteDevice(formatted));
+                if (event == DiscoveryRecorder.EVENT_FOUND) {
+                    mFound.add(formatted);
+                }
+            }
+            if (event == DiscoveryRecorder.EVENT_FOUND) {
+                intent.putExtra(BluetoothDevice.EXTRA_RSSI, rssi);
+            }
+            if (nameHash != 0) {
+                // Only the hash is known; names change when it does.
+                intent.putExtra(BluetoothDevice.EXTRA_NAME,
+                        "Device " + Integer.toHexString(nameHash));
+            }
+            mIntents.add(intent);
+            mTimes.add(time);
+        }
+    }
+
+    /** Counts what reaches the callbacks. */
+    private static final class CountingCallback implements BluetoothCallback {
+        int mAdded;
+        int mDeleted;
+        int mScanningChanges;
+
+        public void onBluetoothStateChanged(int bluetoothState) {
+        }
+
+        public void onScanningStateChanged(boolean started) {
+            mScanningChanges++;
+        }
+
+        public void onDeviceAdded(CachedBluetoothDevice cachedDevice) {
+            mAdded++;
+        }
+
+        public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+            mDeleted++;
+        }
+
+        public void onDeviceBondStateChanged(CachedBluetoothDevice cachedDevice,
+                int bondState) {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalManager = LocalBluetoothManager.getInstance(getContext());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public void testRecordedLogRoundTrip() throws IOException {
+        final DiscoveryRecorder recorder = new DiscoveryRecorder(getContext());
+        recorder.append(0, DiscoveryRecorder.EVENT_STARTED, DiscoveryRecorder.NO_ADDRESS,
+                (short) 0, 0);
+        recorder.append(12, DiscoveryRecorder.EVENT_FOUND, 0x001A7D0000FFL, (short) -70,
+                "Headset".hashCode());
+        final byte[] log = recorder.toByteArray();
+        assertEquals(DiscoveryRecorder.HEADER_SIZE + 2 * DiscoveryRecorder.RECORD_SIZE,
+                log.length);
+
+        final List<String> events = new ArrayList<String>();
+        assertEquals(2, DiscoveryRecorder.read(log, new DiscoveryRecorder.Listener() {
+            public void onEvent(int time, int event, long address, short rssi,
+                    int nameHash) {
+                events.add(time + " " + event + " " + Long.toHexString(address) + " "
+                        + rssi + " " + nameHash);
+            }
+        }));
+        assertEquals(Arrays.asList(
+                "0 0 ffffffffffff 0 0",
+                "12 2 1a7d0000ff -70 " + "Headset".hashCode()), events);
+
+        try {
+            DiscoveryRecorder.read(Arrays.copyOf(log, log.length - 1),
+                    new Session("truncated"));
+            fail("Truncated log was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testStandardSessions() throws Exception {
+        if (mLocalManager == null) {
+            Log.w(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        // A few devices in range, an office floor, and a crowd with names and
+        // services coming in late.
+        replay(generate("quiet", 8, 3, 0, new Random(1)), true);
+        replay(generate("office", 60, 10, 1, new Random(2)), true);
+        replay(generate("crowd", 300, 4, 3, new Random(3)), true);
+    }
+
+    public void testRecordedSessions() throws Exception {
+        if (mLocalManager == null) {
+            Log.w(TAG, "No Bluetooth on this device, skipping");
+            return;
+        }
+        for (File file : DiscoveryRecorder.getSessionFiles(getContext())) {
+            final Session session = new Session(file.getName());
+            DiscoveryRecorder.read(readFile(file), session);
+            // Paired devices in a real session may already be known.
+            replay(session, false);
+        }
+    }
+
+    /**
+     * Generates a ten second session in which each device is found {@code sightings}
+     * times and gets {@code updates} name, class or UUID changes, on average. Every
+     * tenth event is followed by a device disappearing.
+     */
+    private static Session generate(String name, int devices, int sightings, int updates,
+            Random random) throws IOException {
+        final DiscoveryRecorder recorder = new DiscoveryRecorder(null);
+        final int duration = 10000;
+        recorder.append(0, DiscoveryRecorder.EVENT_STARTED, DiscoveryRecorder.NO_ADDRESS,
+                (short) 0, 0);
+        final int events = devices * (sightings + updates);
+        for (int i = 0; i < events; i++) {
+            // Every device is found once first.
+            final int device = i < devices ? i : random.nextInt(devices);
+            final long address = 0x001A7D000000L + device;
+            final int time = 1 + (int) ((long) duration * i / events);
+            if (i < devices || random.nextInt(sightings + updates) < sightings) {
+                recorder.append(time, DiscoveryRecorder.EVENT_FOUND, address,
+                        (short) (-40 - random.nextInt(50)), ("Device " + device).hashCode());
+            } else {
+                final int event = DiscoveryRecorder.EVENT_NAME_CHANGED + random.nextInt(3);
+                recorder.append(time, event, address, (short) 0,
+                        event == DiscoveryRecorder.EVENT_NAME_CHANGED
+                                ? ("Renamed " + device).hashCode() : 0);
+            }
+            if (i % 10 == 9) {
+                recorder.append(time, DiscoveryRecorder.EVENT_DISAPPEARED, address,
+                        (short) 0, 0);
+            }
+        }
+        recorder.append(duration + 1, DiscoveryRecorder.EVENT_FINISHED,
+                DiscoveryRecorder.NO_ADDRESS, (short) 0, 0);
+
+        final Session session = new Session(name);
+        DiscoveryRecorder.read(recorder.toByteArray(), session);
+        return session;
+    }
+
+    /**
+     * Replays the session on the main thread, each broadcast at its recorded time, and
+     * logs the time taken by each and the allocations made meanwhile.
+     */
+    private void replay(final Session session, boolean checkDevices) throws Exception {
+        final CachedBluetoothDeviceManager deviceManager =
+                new CachedBluetoothDeviceManager(getContext());
+        final BluetoothEventManager eventManager = new BluetoothEventManager(
+                mLocalManager.getBluetoothAdapter(), deviceManager, getContext());
+        eventManager.setProfileManager(mLocalManager.getProfileManager());
+        final CountingCallback callback = new CountingCallback();
+        eventManager.registerCallback(callback);
+
+        final int events = session.mIntents.size();
+        final long[] latencies = new long[events];
+        final long[] allocations = new long[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        final long start = SystemClock.uptimeMillis() + 100;
+        mMainHandler.postAtTime(new Runnable() {
+            public void run() {
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+            }
+        }, start - 1);
+        for (int i = 0; i < events; i++) {
+            final int index = i;
+            mMainHandler.postAtTime(new Runnable() {
+                public void run() {
+                    final long before = System.nanoTime();
+                    eventManager.dispatch(getContext(), session.mIntents.get(index));
+                    latencies[index] = System.nanoTime() - before;
+                }
+            }, start + session.mTimes.get(i));
+        }
+        final int duration = events == 0 ? 0 : session.mTimes.get(events - 1);
+        // Past the last batch of attribute updates.
+        mMainHandler.postAtTime(new Runnable() {
+            public void run() {
+                allocations[0] = Debug.getThreadAllocCount();
+                allocations[1] = Debug.getThreadAllocSize();
+                Debug.stopAllocCounting();
+                done.countDown();
+            }
+        }, start + duration + 100);
+        assertTrue(session.mName + " timed out",
+                done.await(duration + REPLAY_TIMEOUT, TimeUnit.MILLISECONDS));
+        eventManager.unregisterCallback(callback);
+
+        if (checkDevices) {
+            assertEquals(session.mFound.size(), callback.mAdded);
+            assertEquals(session.mFound.size(), deviceManager.getCachedDevicesCopy().size());
+        }
+
+        Arrays.sort(latencies);
+        final long seconds = Math.max(1, (duration + 100) / 1000);
+        Log.i(TAG, session.mName + ": " + events + " broadcasts, "
+                + callback.mAdded + " devices added, " + callback.mDeleted + " deleted, "
+                + eventManager + "; dispatch median "
+                + (events == 0 ? 0 : latencies[events / 2] / 1000) + "us, 99th "
+                + (events == 0 ? 0 : latencies[events * 99 / 100] / 1000) + "us, max "
+                + (events == 0 ? 0 : latencies[events - 1] / 1000) + "us; "
+                + allocations[0] / Math.max(1, events) + " allocations per broadcast, "
+                + allocations[1] / 1024 / seconds + "KB/s");
+    }
+
+    private static String formatAddress(long address) {
+        return String.format("%02X:%02X:%02X:%02X:%02X:%02X", (address >> 40) & 0xff,
+                (address >> 32) & 0xff, (address >> 24) & 0xff, (address >> 16) & 0xff,
+                (address >> 8) & 0xff, address & 0xff);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[] log = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < log.length) {
+                final int count = in.read(log, read, log.length - read);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return log;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Drives {@link DockStateMachine} with a fake adapter and clock. It doesn't need a
+ * device.
+ */
+public class DockStateMachineTest extends TestCase {
+    private static final String DOCK = "dock";
+    private static final String OTHER_DOCK = "other dock";
+    private static final String HEADSET = "headset";
+    private static final String A2DP = "a2dp";
+
+    private static final int CAR = Intent.EXTRA_DOCK_STATE_CAR;
+
+    private FakeActions mActions;
+    private DockStateMachine<String, String> mStateMachine;
+    private long mNow;
+
+    private final class FakeActions implements DockStateMachine.Actions<String, String> {
+        final List<String> mLog = new ArrayList<String>();
+        final HashSet<Integer> mFinished = new HashSet<Integer>();
+        long mTimeout = -1;
+        boolean mProfileManagerReady = true;
+        boolean mAutoConnect = true;
+        boolean mShouldDisable;
+        int mBtState = BluetoothAdapter.STATE_ON;
+        String mDockedDevice;
+
+        public void finish(int startId) {
+            assertTrue("finished twice: " + startId, mFinished.add(startId));
+        }
+
+        public void scheduleTimeout(long delayMillis) {
+            mTimeout = mNow + delayMillis;
+        }
+
+        public boolean isProfileManagerReady() {
+            return mProfileManagerReady;
+        }
+
+        public String getDockedDevice() {
+            return mDockedDevice;
+        }
+
+        public boolean isAutoConnect(String device) {
+            return mAutoConnect;
+        }
+
+        public void loadSettings(String device, int dockState) {
+        }
+
+        public boolean showDialog(String device, int dockState, int startId) {
+            mLog.add("dialog " + device);
+            return true;
+        }
+
+        public boolean applySettings(String device) {
+            if (mBtState != BluetoothAdapter.STATE_ON) {
+                mLog.add("enable");
+                return true;
+            }
+            mLog.add("apply " + device);
+            return false;
+        }
+
+        public void connect(String device, List<String> profiles) {
+            mLog.add("connect " + device + " " + profiles);
+        }
+
+        public void disconnect(String device) {
+            mLog.add("disconnect " + device);
+        }
+
+        public boolean shouldDisableBluetooth(String undockedDevice) {
+            return mShouldDisable;
+        }
+
+        public boolean disableBluetooth() {
+            mLog.add("disable");
+            return true;
+        }
+
+        public boolean retryDisableBluetooth() {
+            return false;
+        }
+
+        public void enableBluetooth() {
+            mLog.add("enable");
+        }
+
+        public void clearDisableBluetoothWhenUndocked() {
+        }
+
+        public void clearDisableBluetooth() {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mNow = 1000;
+        mActions = new FakeActions();
+        mStateMachine = new DockStateMachine<String, String>(mActions,
+                new DockStateMachine.Clock() {
+                    public long uptimeMillis() {
+                        return mNow;
+                    }
+                });
+    }
+
+    public void testDocked() {
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.processEvents();
+        assertLog("apply " + DOCK);
+        assertTrue(mActions.mFinished.contains(1));
+        assertEquals(DockStateMachine.STATE_DOCKED, mStateMachine.getState());
+    }
+
+    public void testDialogKeepsStart() {
+        mActions.mAutoConnect = false;
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.processEvents();
+        assertLog("dialog " + DOCK);
+        assertFalse(mActions.mFinished.contains(1));
+
+        mStateMachine.postApplySettings(DOCK, 1);
+        mStateMachine.processEvents();
+        assertLog("apply " + DOCK);
+        assertTrue(mActions.mFinished.contains(1));
+    }
+
+    public void testRedundantDockIsDropped() {
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.processEvents();
+        mStateMachine.postDocked(DOCK, CAR, 2);
+        mStateMachine.processEvents();
+        assertLog("apply " + DOCK);
+        assertTrue(mActions.mFinished.contains(2));
+    }
+
+    public void testDisconnectedAfterGracePeriod() {
+        dock();
+        mStateMachine.postUndocked(DOCK, 2);
+        mStateMachine.processEvents();
+        assertEquals(DockStateMachine.STATE_UNDOCKING, mStateMachine.getState());
+        assertFalse(mActions.mFinished.contains(2));
+
+        // Early timeouts are rescheduled.
+        mNow += DockStateMachine.UNDOCKED_GRACE_PERIOD / 2;
+        mStateMachine.onTimeout();
+        assertLog();
+
+        mNow = mActions.mTimeout;
+        mStateMachine.onTimeout();
+        assertLog("disconnect " + DOCK);
+        assertTrue(mActions.mFinished.contains(2));
+        assertEquals(DockStateMachine.STATE_UNDOCKED, mStateMachine.getState());
+    }
+
+    public void testRedockedWithinGracePeriod() {
+        dock();
+        mStateMachine.postUndocked(DOCK, 2);
+        mStateMachine.processEvents();
+        mNow += DockStateMachine.UNDOCKED_GRACE_PERIOD / 2;
+        mStateMachine.postDocked(DOCK, CAR, 3);
+        mStateMachine.processEvents();
+        assertTrue(mActions.mFinished.contains(2));
+        assertTrue(mActions.mFinished.contains(3));
+
+        mNow += DockStateMachine.MAX_UNDOCKED_GRACE_PERIOD;
+        mStateMachine.onTimeout();
+        assertLog();
+        assertEquals(DockStateMachine.STATE_DOCKED, mStateMachine.getState());
+        // A bouncing dock gets more time.
+        assertEquals(DockStateMachine.UNDOCKED_GRACE_PERIOD * 2,
+                mStateMachine.getGracePeriod());
+    }
+
+    public void testDockAndUndockInOneBatchCancel() {
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.postUndocked(DOCK, 2);
+        mStateMachine.processEvents();
+        assertLog();
+        assertTrue(mActions.mFinished.contains(1));
+        assertTrue(mActions.mFinished.contains(2));
+        assertEquals(DockStateMachine.STATE_UNDOCKED, mStateMachine.getState());
+    }
+
+    public void testNewDockUndocksOld() {
+        dock();
+        mStateMachine.postDocked(OTHER_DOCK, CAR, 2);
+        mStateMachine.processEvents();
+        assertLog("disconnect " + DOCK, "apply " + OTHER_DOCK);
+    }
+
+    public void testReconnectsAreBatched() {
+        dock();
+        mActions.mDockedDevice = DOCK;
+        mStateMachine.postDisconnected(DOCK, HEADSET, 2);
+        mStateMachine.postDisconnected(DOCK, A2DP, 3);
+        mStateMachine.postDisconnected(DOCK, HEADSET, 4);
+        mStateMachine.postDisconnected(OTHER_DOCK, A2DP, 5);
+        mStateMachine.processEvents();
+        assertLog("connect " + DOCK + " [" + HEADSET + ", " + A2DP + "]");
+        for (int startId = 2; startId <= 5; startId++) {
+            assertTrue(mActions.mFinished.contains(startId));
+        }
+    }
+
+    public void testBluetoothDisabledAfterUndock() {
+        dock();
+        mActions.mShouldDisable = true;
+        mStateMachine.postUndocked(DOCK, 2);
+        mStateMachine.processEvents();
+        mNow = mActions.mTimeout;
+        mStateMachine.onTimeout();
+        assertLog("disconnect " + DOCK);
+        assertEquals(DockStateMachine.STATE_DISABLING_BT, mStateMachine.getState());
+        assertFalse(mActions.mFinished.contains(2));
+
+        mNow = mActions.mTimeout;
+        mStateMachine.onTimeout();
+        assertLog("disable");
+        assertTrue(mActions.mFinished.contains(2));
+    }
+
+    public void testWaitsForBluetooth() {
+        mActions.mBtState = BluetoothAdapter.STATE_OFF;
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.processEvents();
+        assertLog("enable");
+        assertTrue(mStateMachine.isWaitingForBluetooth());
+        assertFalse(mActions.mFinished.contains(1));
+
+        mActions.mBtState = BluetoothAdapter.STATE_ON;
+        mStateMachine.postBluetoothStateChanged(BluetoothAdapter.STATE_ON, 2);
+        mStateMachine.processEvents();
+        assertLog("apply " + DOCK);
+        assertFalse(mStateMachine.isWaitingForBluetooth());
+        assertTrue(mActions.mFinished.contains(1));
+        assertTrue(mActions.mFinished.contains(2));
+    }
+
+    public void testWaitsForProfileManager() {
+        mActions.mProfileManagerReady = false;
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.processEvents();
+        assertLog();
+
+        mActions.mProfileManagerReady = true;
+        mStateMachine.postProfilesReady();
+        mStateMachine.processEvents();
+        assertLog("apply " + DOCK);
+        assertTrue(mActions.mFinished.contains(1));
+    }
+
+    public void testQueueIsBounded() {
+        final int events = DockStateMachine.MAX_QUEUED_EVENTS + 4;
+        for (int startId = 1; startId <= events; startId++) {
+            mStateMachine.postBluetoothStateChanged(BluetoothAdapter.STATE_TURNING_OFF,
+                    startId);
+        }
+        assertEquals(4, mStateMachine.getDroppedEvents());
+        assertEquals(4, mActions.mFinished.size());
+        mStateMachine.processEvents();
+        assertEquals(events, mActions.mFinished.size());
+    }
+
+    private void dock() {
+        mStateMachine.postDocked(DOCK, CAR, 1);
+        mStateMachine.processEvents();
+        mActions.mLog.clear();
+    }
+
+    private void assertLog(String... expected) {
+        assertEquals(Arrays.asList(expected), mActions.mLog);
+        mActions.mLog.clear();
+    }
+}
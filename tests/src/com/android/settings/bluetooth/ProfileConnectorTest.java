@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that {@link ProfileConnector} starts all profile connections at once, retries
+ * them and reports a single outcome.
+ */
+public class ProfileConnectorTest extends AndroidTestCase {
+
+    private static final class FakeProfile implements LocalBluetoothProfile {
+        final String mName;
+        boolean mAccepts = true;
+        int mConnects;
+
+        FakeProfile(String name) {
+            mName = name;
+        }
+
+        public boolean isConnectable() {
+            return true;
+        }
+
+        public boolean isAutoConnectable() {
+            return true;
+        }
+
+        public boolean connect(BluetoothDevice device) {
+            mConnects++;
+            return mAccepts;
+        }
+
+        public boolean disconnect(BluetoothDevice device) {
+            return true;
+        }
+
+        public int getConnectionStatus(BluetoothDevice device) {
+            return BluetoothProfile.STATE_DISCONNECTED;
+        }
+
+        public boolean isPreferred(BluetoothDevice device) {
+            return true;
+        }
+
+        public int getPreferred(BluetoothDevice device) {
+            return BluetoothProfile.PRIORITY_ON;
+        }
+
+        public void setPreferred(BluetoothDevice device, boolean preferred) {
+        }
+
+        public boolean isProfileReady() {
+            return true;
+        }
+
+        public int getOrdinal() {
+            return 0;
+        }
+
+        public int getNameResource(BluetoothDevice device) {
+            return 0;
+        }
+
+        public int getSummaryResourceForDevice(BluetoothDevice device) {
+            return 0;
+        }
+
+        public int getDrawableResource(BluetoothClass btClass) {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /** Keeps the timeouts instead of running them. */
+    private static final class TimeoutHandler extends Handler {
+        final List<Runnable> mTimeouts = new ArrayList<Runnable>();
+
+        TimeoutHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mTimeouts.add(msg.getCallback());
+            return true;
+        }
+    }
+
+    private final FakeProfile mHeadset = new FakeProfile("TestHeadset");
+    private final FakeProfile mA2dp = new FakeProfile("TestA2dp");
+    private TimeoutHandler mHandler;
+    private ProfileConnector mConnector;
+    private int mResult;
+    private List<LocalBluetoothProfile> mFailed;
+    private int mResults;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new TimeoutHandler();
+        mConnector = new ProfileConnector(null, mHandler, new ProfileConnector.Callback() {
+            public void onConnectFinished(int result, List<LocalBluetoothProfile> failed) {
+                mResult = result;
+                mFailed = failed;
+                mResults++;
+            }
+        });
+    }
+
+    public void testAllConnected() {
+        final int[] before = ProfileConnector.getLatencyHistogram(mHeadset);
+        connect();
+        // Both are started before either completes.
+        assertEquals(1, mHeadset.mConnects);
+        assertEquals(1, mA2dp.mConnects);
+
+        mConnector.onProfileStateChanged(mHeadset, BluetoothProfile.STATE_CONNECTING);
+        mConnector.onProfileStateChanged(mHeadset, BluetoothProfile.STATE_CONNECTED);
+        assertEquals(0, mResults);
+        mConnector.onProfileStateChanged(mA2dp, BluetoothProfile.STATE_CONNECTED);
+        assertEquals(1, mResults);
+        assertEquals(ProfileConnector.RESULT_CONNECTED, mResult);
+        assertFalse(mConnector.isConnecting());
+
+        assertEquals(sum(before) + 1, sum(ProfileConnector.getLatencyHistogram(mHeadset)));
+    }
+
+    public void testRetriedAfterTimeout() {
+        connect();
+        mConnector.onProfileStateChanged(mA2dp, BluetoothProfile.STATE_CONNECTED);
+        runTimeouts();
+        assertEquals(2, mHeadset.mConnects);
+        mConnector.onProfileStateChanged(mHeadset, BluetoothProfile.STATE_CONNECTED);
+        assertEquals(1, mResults);
+        assertEquals(ProfileConnector.RESULT_CONNECTED, mResult);
+    }
+
+    public void testPartial() {
+        connect();
+        mConnector.onProfileStateChanged(mA2dp, BluetoothProfile.STATE_CONNECTED);
+        mConnector.onProfileStateChanged(mHeadset, BluetoothProfile.STATE_DISCONNECTED);
+        assertEquals(0, mResults);
+        mConnector.onProfileStateChanged(mHeadset, BluetoothProfile.STATE_DISCONNECTED);
+        assertEquals(ProfileConnector.MAX_ATTEMPTS, mHeadset.mConnects);
+        assertEquals(1, mResults);
+        assertEquals(ProfileConnector.RESULT_PARTIAL, mResult);
+        assertEquals(Arrays.asList(mHeadset), mFailed);
+    }
+
+    public void testRejectedConnectionsFailOnce() {
+        mHeadset.mAccepts = false;
+        mA2dp.mAccepts = false;
+        connect();
+        assertEquals(ProfileConnector.MAX_ATTEMPTS, mHeadset.mConnects);
+        assertEquals(ProfileConnector.MAX_ATTEMPTS, mA2dp.mConnects);
+        // A single outcome for both.
+        assertEquals(1, mResults);
+        assertEquals(ProfileConnector.RESULT_FAILED, mResult);
+        assertEquals(2, mFailed.size());
+    }
+
+    public void testCancel() {
+        connect();
+        mConnector.onProfileStateChanged(mA2dp, BluetoothProfile.STATE_CONNECTED);
+        mConnector.cancel(mHeadset);
+        assertEquals(1, mResults);
+        assertEquals(ProfileConnector.RESULT_CONNECTED, mResult);
+
+        connect();
+        mConnector.cancelAll();
+        runTimeouts();
+        assertEquals(1, mResults);
+    }
+
+    private void connect() {
+        mConnector.connect(Arrays.<LocalBluetoothProfile>asList(mHeadset, mA2dp));
+    }
+
+    // Runs the timeouts posted so far; those of completed attempts do nothing.
+    private void runTimeouts() {
+        final List<Runnable> timeouts = new ArrayList<Runnable>(mHandler.mTimeouts);
+        mHandler.mTimeouts.clear();
+        for (Runnable timeout : timeouts) {
+            timeout.run();
+        }
+    }
+
+    private static int sum(int[] histogram) {
+        int sum = 0;
+        for (int count : histogram) {
+            sum += count;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks {@link DirectoryMeasurementEngine} against a sequential walk of a generated
+ * directory tree, and logs how long both take.
+ */
+public class DirectoryMeasurementEngineTest extends AndroidTestCase {
+    private static final String TAG = "DirectoryMeasurementEngineTest";
+
+    private static final int GROUPS = 3;
+    private static final int DIRS_PER_GROUP = 4;
+    private static final int SUBDIRS = 10;
+    private static final int FILES = 20;
+    private static final int FILE_SIZE = 1024;
+
+    private File mRoot;
+
+    private static final DirectoryMeasurementEngine.DirectorySizer WALKER =
+            new DirectoryMeasurementEngine.DirectorySizer() {
+                public long getDirectorySize(String path) {
+                    return walk(new File(path));
+                }
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "measurement_tree");
+        deleteTree(mRoot);
+        final byte[] data = new byte[FILE_SIZE];
+        for (int g = 0; g < GROUPS; g++) {
+            for (int d = 0; d < DIRS_PER_GROUP; d++) {
+                for (int s = 0; s < SUBDIRS; s++) {
+                    final File dir = new File(mRoot, g + "/" + d + "/" + s);
+                    assertTrue(dir.mkdirs());
+                    for (int f = 0; f < FILES; f++) {
+                        write(new File(dir, "f" + f), data);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(mRoot);
+        super.tearDown();
+    }
+
+    public void testParallelMatchesSequential() throws Exception {
+        final String[][] groups = new String[GROUPS + 1][];
+        for (int g = 0; g < GROUPS; g++) {
+            groups[g] = new String[DIRS_PER_GROUP];
+            for (int d = 0; d < DIRS_PER_GROUP; d++) {
+                groups[g][d] = new File(mRoot, g + "/" + d).getPath();
+            }
+        }
+        // Empty groups must still be reported.
+        groups[GROUPS] = new String[0];
+
+        long start = SystemClock.uptimeMillis();
+        long sequentialTotal = 0;
+        for (String[] group : groups) {
+            for (String path : group) {
+                sequentialTotal += WALKER.getDirectorySize(path);
+            }
+        }
+        final long sequentialTime = SystemClock.uptimeMillis() - start;
+
+        final long[][] results = new long[groups.length][];
+        final CountDownLatch done = new CountDownLatch(1);
+        final DirectoryMeasurementEngine engine =
+                new DirectoryMeasurementEngine(DirectoryMeasurementEngine.DEFAULT_THREADS);
+        start = SystemClock.uptimeMillis();
+        engine.measure(groups, WALKER, new DirectoryMeasurementEngine.Callback() {
+            public void onGroupMeasured(int group, long[] sizes) {
+                synchronized (results) {
+                    assertNull(results[group]);
+                    results[group] = sizes;
+                }
+            }
+
+            public void onAllMeasured() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        final long parallelTime = SystemClock.uptimeMillis() - start;
+
+        long parallelTotal = 0;
+        synchronized (results) {
+            for (long[] sizes : results) {
+                assertNotNull(sizes);
+                for (long size : sizes) parallelTotal += size;
+            }
+        }
+        assertEquals((long) GROUPS * DIRS_PER_GROUP * SUBDIRS * FILES * FILE_SIZE,
+                sequentialTotal);
+        assertEquals(sequentialTotal, parallelTotal);
+        Log.i(TAG, "sequential " + sequentialTime + "ms, parallel " + parallelTime + "ms");
+    }
+
+    public void testCancelledSessionIsSilent() throws Exception {
+        final String[][] groups = new String[][] { { mRoot.getPath() } };
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final boolean[] called = new boolean[1];
+        final DirectoryMeasurementEngine engine = new DirectoryMeasurementEngine(1);
+        DirectoryMeasurementEngine.Session session = engine.measure(groups,
+                new DirectoryMeasurementEngine.DirectorySizer() {
+                    public long getDirectorySize(String path) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                        }
+                        return 0;
+                    }
+                },
+                new DirectoryMeasurementEngine.Callback() {
+                    public void onGroupMeasured(int group, long[] sizes) {
+                        called[0] = true;
+                    }
+
+                    public void onAllMeasured() {
+                        called[0] = true;
+                    }
+                });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        session.cancel();
+        release.countDown();
+        Thread.sleep(100);
+        assertFalse(called[0]);
+    }
+
+    private static long walk(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += walk(child);
+            }
+        }
+        return size;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
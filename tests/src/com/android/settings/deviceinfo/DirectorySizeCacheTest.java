@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.test.AndroidTestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests that {@link DirectorySizeCache} lists only the directories that changed or are
+ * too old, forgets what is invalidated, and reads back what it saved.
+ */
+public class DirectorySizeCacheTest extends AndroidTestCase {
+    private static final int DIRS = 4;
+    private static final int FILES = 3;
+    private static final int FILE_SIZE = 1000;
+    private static final long TREE_SIZE = (long) DIRS * DIRS * FILES * FILE_SIZE;
+
+    private File mRoot;
+    private File mCacheFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "size_cache_tree");
+        mCacheFile = new File(getContext().getCacheDir(), "size_cache_test");
+        deleteTree(mRoot);
+        mCacheFile.delete();
+        // mRoot, DIRS directories with DIRS subdirectories each, holding the files.
+        for (int d = 0; d < DIRS; d++) {
+            for (int s = 0; s < DIRS; s++) {
+                final File dir = new File(mRoot, d + "/" + s);
+                assertTrue(dir.mkdirs());
+                for (int f = 0; f < FILES; f++) {
+                    write(new File(dir, "f" + f), FILE_SIZE);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(mRoot);
+        mCacheFile.delete();
+        super.tearDown();
+    }
+
+    private static int directoryCount() {
+        return 1 + DIRS + DIRS * DIRS;
+    }
+
+    public void testUnchangedDirectoriesAreReused() throws IOException {
+        final DirectorySizeCache cache = new DirectorySizeCache(mCacheFile);
+        assertEquals(TREE_SIZE, cache.getDirectorySize(mRoot.getPath()));
+        assertEquals(directoryCount(), cache.mListedCount.getAndSet(0));
+        assertEquals(0, cache.mReusedCount.getAndSet(0));
+
+        assertEquals(TREE_SIZE, cache.getDirectorySize(mRoot.getPath()));
+        assertEquals(0, cache.mListedCount.getAndSet(0));
+        assertEquals(directoryCount(), cache.mReusedCount.getAndSet(0));
+
+        // Only the directory whose mtime changed is listed again.
+        final File dir = new File(mRoot, "1/2");
+        final long mtime = dir.lastModified();
+        write(new File(dir, "added"), FILE_SIZE);
+        assertTrue(dir.setLastModified(mtime - 10000));
+        assertEquals(TREE_SIZE + FILE_SIZE, cache.getDirectorySize(mRoot.getPath()));
+        assertEquals(1, cache.mListedCount.getAndSet(0));
+        assertEquals(directoryCount() - 1, cache.mReusedCount.getAndSet(0));
+    }
+
+    public void testInvalidate() {
+        final DirectorySizeCache cache = new DirectorySizeCache(mCacheFile);
+        cache.getDirectorySize(mRoot.getPath());
+        cache.mListedCount.set(0);
+
+        cache.invalidate(new File(mRoot, "1").getPath());
+        cache.mReusedCount.set(0);
+        assertEquals(TREE_SIZE, cache.getDirectorySize(mRoot.getPath()));
+        assertEquals(1 + DIRS, cache.mListedCount.get());
+        assertEquals(directoryCount() - 1 - DIRS, cache.mReusedCount.get());
+    }
+
+    public void testSaveAndLoad() {
+        final DirectorySizeCache cache = new DirectorySizeCache(mCacheFile);
+        cache.getDirectorySize(mRoot.getPath());
+        cache.save();
+        assertTrue(mCacheFile.exists());
+
+        final DirectorySizeCache loaded = new DirectorySizeCache(mCacheFile);
+        assertEquals(TREE_SIZE, loaded.getDirectorySize(mRoot.getPath()));
+        assertEquals(0, loaded.mListedCount.get());
+        assertEquals(directoryCount(), loaded.mReusedCount.get());
+    }
+
+    public void testOldEntriesAreListedAgain() throws IOException {
+        final long now = System.currentTimeMillis();
+        final File dir = new File(mRoot, "0/0");
+        // A fresh entry is trusted, even with the wrong size.
+        writeCacheFile(DirectorySizeCache.VERSION, dir, 1, now);
+        DirectorySizeCache cache = new DirectorySizeCache(mCacheFile);
+        assertEquals(1, cache.getDirectorySize(dir.getPath()));
+        assertEquals(0, cache.mListedCount.get());
+
+        writeCacheFile(DirectorySizeCache.VERSION, dir, 1,
+                now - DirectorySizeCache.MAX_ENTRY_AGE_MS - 1000);
+        cache = new DirectorySizeCache(mCacheFile);
+        assertEquals(FILES * FILE_SIZE, cache.getDirectorySize(dir.getPath()));
+        assertEquals(1, cache.mListedCount.get());
+    }
+
+    public void testOtherVersionIsIgnored() throws IOException {
+        final File dir = new File(mRoot, "0/0");
+        writeCacheFile(DirectorySizeCache.VERSION + 1, dir, 1, System.currentTimeMillis());
+        final DirectorySizeCache cache = new DirectorySizeCache(mCacheFile);
+        assertEquals(FILES * FILE_SIZE, cache.getDirectorySize(dir.getPath()));
+        assertEquals(1, cache.mListedCount.get());
+    }
+
+    public void testCorruptFileIsIgnored() throws IOException {
+        final DirectorySizeCache cache = new DirectorySizeCache(mCacheFile);
+        cache.getDirectorySize(mRoot.getPath());
+        cache.save();
+        // Cut the file off in the middle of an entry.
+        final byte[] truncated = new byte[(int) mCacheFile.length() / 2];
+        final FileInputStream in = new FileInputStream(mCacheFile);
+        try {
+            assertEquals(truncated.length, in.read(truncated));
+        } finally {
+            in.close();
+        }
+        final FileOutputStream out = new FileOutputStream(mCacheFile);
+        try {
+            out.write(truncated);
+        } finally {
+            out.close();
+        }
+
+        final DirectorySizeCache loaded = new DirectorySizeCache(mCacheFile);
+        assertEquals(TREE_SIZE, loaded.getDirectorySize(mRoot.getPath()));
+        assertEquals(directoryCount(), loaded.mListedCount.get());
+        assertEquals(0, loaded.mReusedCount.get());
+    }
+
+    /** Writes a cache file with one entry for {@code dir}, which has no subdirectories. */
+    private void writeCacheFile(int version, File dir, long fileBytes, long listed)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mCacheFile));
+        try {
+            out.writeInt(version);
+            out.writeInt(1);
+            out.writeUTF(dir.getPath());
+            out.writeLong(dir.lastModified());
+            out.writeLong(fileBytes);
+            out.writeLong(listed);
+            out.writeLong(listed);
+            out.writeInt(0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
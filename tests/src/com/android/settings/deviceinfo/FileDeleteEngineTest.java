@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link FileDeleteEngine} deletes whole trees, stops when cancelled and
+ * reports its progress and results.
+ */
+public class FileDeleteEngineTest extends AndroidTestCase {
+    private static final int DIRS = 3;
+    private static final int DEPTH = 3;
+    private static final int FILES = 4;
+    private static final int FILE_SIZE = 100;
+
+    private File mRoot;
+    private HandlerThread mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "delete_tree");
+        FileDeleteEngine.deleteTree(mRoot, new FileDeleteEngine.Task());
+        mThread = new HandlerThread("FileDeleteEngineTest");
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        FileDeleteEngine.deleteTree(mRoot, new FileDeleteEngine.Task());
+        super.tearDown();
+    }
+
+    /**
+     * Creates {@code dir} with {@link #FILES} files and, above the given depth,
+     * {@link #DIRS} subdirectories built the same way. Returns the number of files.
+     */
+    private static int createTree(File dir, int depth) throws IOException {
+        assertTrue(dir.mkdirs());
+        for (int f = 0; f < FILES; f++) {
+            final FileOutputStream out = new FileOutputStream(new File(dir, "f" + f));
+            try {
+                out.write(new byte[FILE_SIZE]);
+            } finally {
+                out.close();
+            }
+        }
+        int files = FILES;
+        if (depth > 1) {
+            for (int d = 0; d < DIRS; d++) {
+                files += createTree(new File(dir, "d" + d), depth - 1);
+            }
+        }
+        return files;
+    }
+
+    public void testNestedTree() throws IOException {
+        final int files = createTree(mRoot, DEPTH);
+        final FileDeleteEngine.Task task = new FileDeleteEngine.Task();
+        assertEquals((long) files * FILE_SIZE, FileDeleteEngine.deleteTree(mRoot, task));
+        assertEquals(files, task.mFiles.get());
+        assertEquals((long) files * FILE_SIZE, task.mBytes.get());
+        assertFalse(mRoot.exists());
+    }
+
+    public void testSingleFile() throws IOException {
+        createTree(mRoot, 1);
+        final File file = new File(mRoot, "f0");
+        final FileDeleteEngine.Task task = new FileDeleteEngine.Task();
+        assertEquals(FILE_SIZE, FileDeleteEngine.deleteTree(file, task));
+        assertFalse(file.exists());
+        assertEquals(FILES - 1, mRoot.list().length);
+    }
+
+    public void testCancelPartway() throws IOException {
+        final int files = createTree(mRoot, DEPTH);
+        final int before = files / 2;
+        final FileDeleteEngine.Task task = new FileDeleteEngine.Task() {
+            @Override
+            boolean isCancelled() {
+                return mFiles.get() >= before;
+            }
+        };
+        assertEquals((long) before * FILE_SIZE, FileDeleteEngine.deleteTree(mRoot, task));
+        assertEquals(before, task.mFiles.get());
+        assertTrue(mRoot.exists());
+
+        // What is left can still be deleted.
+        final FileDeleteEngine.Task rest = new FileDeleteEngine.Task();
+        assertEquals((long) (files - before) * FILE_SIZE,
+                FileDeleteEngine.deleteTree(mRoot, rest));
+        assertFalse(mRoot.exists());
+    }
+
+    public void testProgressAndResults() throws Exception {
+        final List<String> paths = new ArrayList<String>();
+        int files = 0;
+        for (int d = 0; d < DIRS; d++) {
+            final File dir = new File(mRoot, "d" + d);
+            files += createTree(dir, DEPTH);
+            paths.add(dir.getPath());
+        }
+        final long total = (long) files * FILE_SIZE;
+
+        final Handler handler = new Handler(mThread.getLooper());
+        final RecordingListener listener = new RecordingListener();
+        new FileDeleteEngine(FileDeleteEngine.DEFAULT_THREADS).delete(paths, handler, listener);
+        assertTrue(listener.mDone.await(30, TimeUnit.SECONDS));
+
+        // Results and progress all come before the end.
+        assertEquals(Arrays.asList("finished false"),
+                listener.mEvents.subList(listener.mEvents.size() - 1,
+                        listener.mEvents.size()));
+        final HashMap<String, Long> results = new HashMap<String, Long>();
+        final List<Long> progress = new ArrayList<Long>();
+        for (String event : listener.mEvents) {
+            final String[] parts = event.split(" ");
+            if (parts[0].equals("deleted")) {
+                assertEquals("true", parts[3]);
+                assertNull(results.put(parts[1], Long.valueOf(parts[2])));
+            } else if (parts[0].equals("progress")) {
+                assertEquals(Long.parseLong(parts[1]) * FILE_SIZE, Long.parseLong(parts[2]));
+                progress.add(Long.valueOf(parts[2]));
+            }
+        }
+        assertEquals(DIRS, results.size());
+        for (String path : paths) {
+            assertEquals(Long.valueOf(total / DIRS), results.get(path));
+        }
+        // Progress only grows, and the last report has the totals.
+        assertFalse(progress.isEmpty());
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i - 1) <= progress.get(i));
+        }
+        assertEquals(Long.valueOf(total), progress.get(progress.size() - 1));
+    }
+
+    public void testNothingToDelete() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        new FileDeleteEngine(1).delete(Arrays.<String>asList(),
+                new Handler(mThread.getLooper()), listener);
+        assertTrue(listener.mDone.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("finished false"), listener.mEvents);
+    }
+
+    /** Keeps the callbacks in the order they were made, to be checked by the test. */
+    private static class RecordingListener implements FileDeleteEngine.Listener {
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        public void onProgress(long filesDeleted, long bytesReclaimed) {
+            mEvents.add("progress " + filesDeleted + " " + bytesReclaimed);
+        }
+
+        public void onEntryDeleted(String path, long bytesReclaimed, boolean deleted) {
+            mEvents.add("deleted " + path + " " + bytesReclaimed + " " + deleted);
+        }
+
+        public void onFinished(boolean cancelled) {
+            mEvents.add("finished " + cancelled);
+            mDone.countDown();
+        }
+    }
+}
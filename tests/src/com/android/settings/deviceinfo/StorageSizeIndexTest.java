@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+
+/**
+ * Builds {@link StorageSizeIndex} over a generated tree of 100,000 files and checks the
+ * aggregates, the ordering and the largest files against what was generated.
+ *
+ * The tree and its index are built once, by the first test, and deleted by the last.
+ * Tests that change the tree only touch one subdirectory and restore it.
+ */
+@LargeTest
+public class StorageSizeIndexTest extends AndroidTestCase {
+    private static final String TAG = "StorageSizeIndexTest";
+
+    private static final int DIRS = 10;
+    private static final int SUBDIRS = 10;
+    private static final int FILES = 1000;
+
+    /** The shared tree and its index, null until built. */
+    private static File sRoot;
+    private static File sIndexFile;
+    private static int sTestsRun;
+
+    private File mRoot;
+    private File mIndexFile;
+    /** For tests that write an index of their own. */
+    private File mScratchFile;
+
+    /** File {@code f} of subdirectory {@code s} of directory {@code d}; all distinct. */
+    private static long fileSize(int d, int s, int f) {
+        return ((long) d * SUBDIRS + s) * FILES + f;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (sRoot == null) {
+            buildFixture(new File(getContext().getCacheDir(), "size_index_tree"),
+                    new File(getContext().getCacheDir(), "size_index_test"));
+        }
+        mRoot = sRoot;
+        mIndexFile = sIndexFile;
+        mScratchFile = new File(getContext().getCacheDir(), "size_index_scratch");
+        mScratchFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScratchFile.delete();
+        if (++sTestsRun == countTests()) {
+            deleteTree(sRoot);
+            sIndexFile.delete();
+            sRoot = null;
+            sIndexFile = null;
+            sTestsRun = 0;
+        }
+        super.tearDown();
+    }
+
+    private static void buildFixture(File root, File indexFile) throws IOException {
+        // Left over if an earlier run was killed.
+        deleteTree(root);
+        indexFile.delete();
+        for (int d = 0; d < DIRS; d++) {
+            for (int s = 0; s < SUBDIRS; s++) {
+                final File dir = new File(root, "d" + d + "/s" + s);
+                assertTrue(dir.mkdirs());
+                for (int f = 0; f < FILES; f++) {
+                    // Sparse, so the test doesn't need gigabytes of free space.
+                    final RandomAccessFile file =
+                            new RandomAccessFile(new File(dir, "f" + f), "rw");
+                    try {
+                        file.setLength(fileSize(d, s, f));
+                    } finally {
+                        file.close();
+                    }
+                }
+            }
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        assertTrue(StorageSizeIndex.build(root, indexFile, null));
+        Log.i(TAG, "indexed " + DIRS * SUBDIRS * FILES + " files in "
+                + (SystemClock.uptimeMillis() - start) + "ms, index is "
+                + indexFile.length() + " bytes");
+        sRoot = root;
+        sIndexFile = indexFile;
+    }
+
+    private int countTests() {
+        int count = 0;
+        for (Method method : getClass().getMethods()) {
+            if (method.getName().startsWith("test")
+                    && method.getParameterTypes().length == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testAggregates() throws Exception {
+        final StorageSizeIndex index = StorageSizeIndex.open(mIndexFile);
+        assertEquals(1 + DIRS + DIRS * SUBDIRS, index.getNodeCount());
+        assertEquals(mRoot.getAbsolutePath(), index.getPath(StorageSizeIndex.ROOT));
+        assertEquals(DIRS * SUBDIRS * FILES, index.getFileCount(StorageSizeIndex.ROOT));
+
+        long total = 0;
+        for (int d = 0; d < DIRS; d++) {
+            for (int s = 0; s < SUBDIRS; s++) {
+                for (int f = 0; f < FILES; f++) {
+                    total += fileSize(d, s, f);
+                }
+            }
+        }
+        assertEquals(total, index.getSize(StorageSizeIndex.ROOT));
+        assertEquals(0, index.getOwnFilesSize(StorageSizeIndex.ROOT));
+
+        // Later directories hold larger files, so they come first.
+        assertEquals(DIRS, index.getChildCount(StorageSizeIndex.ROOT));
+        final int first = index.getFirstChild(StorageSizeIndex.ROOT);
+        for (int i = 0; i < DIRS; i++) {
+            final int node = first + i;
+            final int d = DIRS - 1 - i;
+            assertEquals("d" + d, index.getName(node));
+            assertEquals(new File(mRoot, "d" + d).getAbsolutePath(), index.getPath(node));
+            assertEquals(StorageSizeIndex.ROOT, index.getParent(node));
+            assertEquals(SUBDIRS * FILES, index.getFileCount(node));
+            long size = 0;
+            for (int s = 0; s < SUBDIRS; s++) {
+                for (int f = 0; f < FILES; f++) {
+                    size += fileSize(d, s, f);
+                }
+            }
+            assertEquals(size, index.getSize(node));
+            assertEquals(SUBDIRS, index.getChildCount(node));
+            assertEquals("s" + (SUBDIRS - 1), index.getName(index.getFirstChild(node)));
+        }
+    }
+
+    public void testLargestFiles() throws Exception {
+        final StorageSizeIndex index = StorageSizeIndex.open(mIndexFile);
+
+        // The largest files all are at the end of the last subdirectory.
+        final int[] top = index.getTopFilesBelow(StorageSizeIndex.ROOT);
+        assertEquals(StorageSizeIndex.MAX_TOP_FILES, top.length);
+        for (int i = 0; i < top.length; i++) {
+            final int f = FILES - 1 - i;
+            assertEquals(fileSize(DIRS - 1, SUBDIRS - 1, f), index.getTopFileSize(top[i]));
+            assertEquals(new File(mRoot, "d" + (DIRS - 1) + "/s" + (SUBDIRS - 1) + "/f" + f)
+                    .getAbsolutePath(), index.getTopFilePath(top[i]));
+        }
+
+        // Every folder lists the largest files below it, not only the global ones.
+        final int first = index.getFirstChild(StorageSizeIndex.ROOT);
+        for (int i = 0; i < DIRS; i++) {
+            final int d = DIRS - 1 - i;
+            final int[] below = index.getTopFilesBelow(first + i);
+            assertEquals(StorageSizeIndex.MAX_TOP_FILES, below.length);
+            for (int j = 0; j < below.length; j++) {
+                assertEquals(fileSize(d, SUBDIRS - 1, FILES - 1 - j),
+                        index.getTopFileSize(below[j]));
+            }
+        }
+    }
+
+    public void testIsCurrent() throws Exception {
+        final StorageSizeIndex index = StorageSizeIndex.open(mIndexFile);
+        assertTrue(index.isCurrent());
+
+        final File dir = new File(mRoot, "d3/s4");
+        final File extra = new File(dir, "extra");
+        final long mtime = dir.lastModified();
+        try {
+            write(extra, new byte[16]);
+            assertTrue(dir.setLastModified(mtime - 10000));
+            assertFalse(index.isCurrent());
+        } finally {
+            restore(dir, extra, mtime);
+        }
+        assertTrue(index.isCurrent());
+    }
+
+    public void testRebuildKeepsOpenIndexValid() throws Exception {
+        // Indexes a single subdirectory, so the shared index is left alone.
+        final File dir = new File(mRoot, "d3/s4");
+        final File extra = new File(dir, "extra");
+        final long mtime = dir.lastModified();
+        try {
+            assertTrue(StorageSizeIndex.build(dir, mScratchFile, null));
+            final StorageSizeIndex before = StorageSizeIndex.open(mScratchFile);
+            final long size = before.getSize(StorageSizeIndex.ROOT);
+
+            write(extra, new byte[4096]);
+            assertTrue(StorageSizeIndex.build(dir, mScratchFile, null));
+
+            assertEquals(size, before.getSize(StorageSizeIndex.ROOT));
+            final StorageSizeIndex after = StorageSizeIndex.open(mScratchFile);
+            assertEquals(size + 4096, after.getSize(StorageSizeIndex.ROOT));
+            assertEquals(size + 4096, after.getOwnFilesSize(StorageSizeIndex.ROOT));
+        } finally {
+            restore(dir, extra, mtime);
+        }
+    }
+
+    public void testCancelledBuildLeavesIndex() throws Exception {
+        final StorageSizeIndex.Session session = new StorageSizeIndex.Session();
+        session.cancel();
+        assertFalse(StorageSizeIndex.build(mRoot, mScratchFile, session));
+        assertFalse(mScratchFile.exists());
+    }
+
+    public void testCorruptIndexIsRejected() throws Exception {
+        write(mScratchFile, new byte[64]);
+        try {
+            StorageSizeIndex.open(mScratchFile);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    /** Removes the file added to {@code dir} and puts its mtime back. */
+    private static void restore(File dir, File extra, long mtime) {
+        extra.delete();
+        assertTrue(dir.setLastModified(mtime));
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Checks how {@link VolumeTopology} recognizes multi-partition volume layouts.
+ */
+public class VolumeTopologyTest extends AndroidTestCase {
+    private File mVolume;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mVolume = new File(getContext().getCacheDir(), "volume_topology");
+        deleteTree(mVolume);
+        assertTrue(mVolume.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(mVolume);
+        super.tearDown();
+    }
+
+    public void testPartitionNames() {
+        assertTrue(VolumeTopology.isPartitionName("8_1"));
+        assertTrue(VolumeTopology.isPartitionName("179_12"));
+        assertFalse(VolumeTopology.isPartitionName("81"));
+        assertFalse(VolumeTopology.isPartitionName("a_1"));
+        assertFalse(VolumeTopology.isPartitionName("8_b"));
+        assertFalse(VolumeTopology.isPartitionName("_1"));
+        assertFalse(VolumeTopology.isPartitionName("1_"));
+        assertFalse(VolumeTopology.isPartitionName("8_1_2"));
+        assertFalse(VolumeTopology.isPartitionName("1234567890_1"));
+    }
+
+    public void testMultiplePartitions() {
+        assertTrue(new File(mVolume, "8_1").mkdir());
+        assertTrue(new File(mVolume, "8_2").mkdir());
+        final String[] partitions = VolumeTopology.detectPartitions(mVolume);
+        Arrays.sort(partitions);
+        assertEquals(2, partitions.length);
+        assertEquals(new File(mVolume, "8_1").getPath(), partitions[0]);
+        assertEquals(new File(mVolume, "8_2").getPath(), partitions[1]);
+    }
+
+    public void testOrdinaryDirectoryIsSinglePartition() {
+        assertTrue(new File(mVolume, "8_1").mkdir());
+        assertTrue(new File(mVolume, "DCIM").mkdir());
+        assertSinglePartition();
+    }
+
+    public void testEmptyVolumeIsSinglePartition() {
+        assertSinglePartition();
+    }
+
+    public void testTooManyEntriesIsSinglePartition() {
+        for (int i = 0; i <= VolumeTopology.MAX_PARTITIONS; i++) {
+            assertTrue(new File(mVolume, "8_" + i).mkdir());
+        }
+        assertSinglePartition();
+    }
+
+    public void testLayoutIsCached() {
+        final String path = mVolume.getPath();
+        assertEquals(1, VolumeTopology.getPartitions(path).length);
+        assertTrue(new File(mVolume, "8_1").mkdir());
+        assertTrue(new File(mVolume, "8_2").mkdir());
+        // No mount broadcast was sent, so the cached layout stays.
+        assertEquals(1, VolumeTopology.getPartitions(path).length);
+    }
+
+    private void assertSinglePartition() {
+        final String[] partitions = VolumeTopology.detectPartitions(mVolume);
+        assertEquals(1, partitions.length);
+        assertEquals(mVolume.getPath(), partitions[0]);
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Tests that {@link BatteryHistoryArchive} maps history records to wall clock time by
+ * their age, so that reading the same stats again adds nothing, and that history from
+ * before a restart or mapped into the future is not archived.
+ */
+public class BatteryHistoryArchiveTest extends AndroidTestCase {
+    private static final long MINUTE = 60 * 1000;
+    private static final long NOW = 1325376000000L;
+
+    private File mFile;
+    private BatteryHistoryArchive mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "battery_history_test.bin");
+        mFile.delete();
+        mArchive = new BatteryHistoryArchive(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /** A level drop every ten minutes, the last one a minute before {@code elapsed}. */
+    private static BatteryHistoryArchive.History drain(int records, long elapsed) {
+        final BatteryHistoryArchive.History history = new BatteryHistoryArchive.History(2);
+        for (int i = 0; i < records; i++) {
+            history.add(elapsed - MINUTE - (records - 1 - i) * 10 * MINUTE,
+                    (byte) (100 - i), 0);
+        }
+        return history;
+    }
+
+    public void testSameStatsAppendedTwice() {
+        final long elapsed = 50 * 60 * MINUTE;
+        final BatteryHistoryArchive.History history = drain(10, elapsed);
+        mArchive.append(history, NOW, elapsed);
+        final BatteryHistoryArchive.Window first = mArchive.query(0, Long.MAX_VALUE);
+        assertEquals(10, first.count);
+        assertEquals(NOW - MINUTE, first.times[9]);
+
+        // Read again five minutes later, without any new history.
+        mArchive.append(history, NOW + 5 * MINUTE, elapsed + 5 * MINUTE);
+        final BatteryHistoryArchive.Window second = mArchive.query(0, Long.MAX_VALUE);
+        assertEquals(10, second.count);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(first.times[i], second.times[i]);
+            assertEquals(first.levels[i], second.levels[i]);
+        }
+    }
+
+    public void testOnlyNewRecordsAreAppended() {
+        final long elapsed = 50 * 60 * MINUTE;
+        mArchive.append(drain(10, elapsed), NOW, elapsed);
+
+        // Ten minutes later the history has one more record.
+        final BatteryHistoryArchive.History history = drain(10, elapsed);
+        history.add(elapsed + 9 * MINUTE, (byte) 90, 0);
+        mArchive.append(history, NOW + 10 * MINUTE, elapsed + 10 * MINUTE);
+        final BatteryHistoryArchive.Window window = mArchive.query(0, Long.MAX_VALUE);
+        assertEquals(11, window.count);
+        assertEquals(NOW + 9 * MINUTE, window.times[10]);
+        assertEquals(90, window.levels[10]);
+    }
+
+    public void testRecordsAfterRestartAreMappedWithoutOffset() {
+        // The previous boot ran for 100 hours; this one started 20 seconds before the
+        // start record, and has run for 50 minutes.
+        final long offset = 100 * 60 * MINUTE;
+        final long elapsed = 50 * MINUTE;
+        final BatteryHistoryArchive.History history = new BatteryHistoryArchive.History(2);
+        history.add(offset - 30 * MINUTE, (byte) 60, 0);
+        history.add(offset - 10 * MINUTE, (byte) 55, 0);
+        history.start(offset + 20 * 1000);
+        history.add(offset + 10 * MINUTE, (byte) 80, 0);
+        history.add(offset + 40 * MINUTE, (byte) 75, 0);
+        mArchive.append(history, NOW, elapsed);
+
+        final BatteryHistoryArchive.Window window = mArchive.query(0, Long.MAX_VALUE);
+        assertEquals(2, window.count);
+        // Mapped at most the 20 seconds before the start record early, never late.
+        assertEquals(NOW - 40 * MINUTE - 20 * 1000, window.times[0]);
+        assertEquals(80, window.levels[0]);
+        assertEquals(NOW - 10 * MINUTE - 20 * 1000, window.times[1]);
+        assertEquals(75, window.levels[1]);
+    }
+
+    public void testFutureSamplesAreRejected() {
+        // Records mapped past now, e.g. with a clock offset, are not archived...
+        final long elapsed = 50 * 60 * MINUTE;
+        final BatteryHistoryArchive.History future = new BatteryHistoryArchive.History(2);
+        future.add(elapsed + 60 * MINUTE, (byte) 50, 0);
+        mArchive.append(future, NOW, elapsed);
+        assertEquals(0, mArchive.query(0, Long.MAX_VALUE).count);
+
+        // ...so they don't hold back the samples that follow.
+        mArchive.append(drain(10, elapsed), NOW, elapsed);
+        assertEquals(10, mArchive.query(0, Long.MAX_VALUE).count);
+    }
+
+    public void testArchiveIsReopened() {
+        final long elapsed = 50 * 60 * MINUTE;
+        mArchive.append(drain(10, elapsed), NOW, elapsed);
+
+        final BatteryHistoryArchive reopened = new BatteryHistoryArchive(mFile);
+        reopened.append(drain(10, elapsed), NOW + MINUTE, elapsed + MINUTE);
+        assertEquals(10, reopened.query(0, Long.MAX_VALUE).count);
+        assertEquals(NOW - 91 * MINUTE, reopened.getOldestTime());
+    }
+}
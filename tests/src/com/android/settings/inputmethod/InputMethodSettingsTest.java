@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.inputmethod;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests that {@link InputMethodSettings} gives back the settings strings it parsed,
+ * applies changes to them and writes only what changed, in one batch. Also logs how
+ * long toggling a subtype takes with many input methods, against parsing and building
+ * the whole string again.
+ */
+public class InputMethodSettingsTest extends AndroidTestCase {
+    private static final String TAG = "InputMethodSettingsTest";
+
+    private static final String ENABLED = "com.a/.A;1;2:com.b/.B:com.c/.C;3";
+    private static final String DISABLED_SYSTEM = "com.x/.X:com.y/.Y";
+
+    private static final int BENCHMARK_IMES = 100;
+    private static final int BENCHMARK_SUBTYPES = 50;
+    private static final int ROUNDS = 200;
+
+    /** Keeps the batches written to the settings provider. */
+    private static final class SettingsProvider extends MockContentProvider {
+        final List<List<String>> mBatches = new ArrayList<List<String>>();
+
+        @Override
+        public int bulkInsert(Uri url, ContentValues[] initialValues) {
+            final List<String> batch = new ArrayList<String>();
+            for (ContentValues values : initialValues) {
+                batch.add(values.getAsString(Settings.NameValueTable.NAME) + "="
+                        + values.getAsString(Settings.NameValueTable.VALUE));
+            }
+            mBatches.add(batch);
+            return initialValues.length;
+        }
+    }
+
+    private SettingsProvider mProvider;
+    private InputMethodSettings mSettings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new SettingsProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Settings.AUTHORITY, mProvider);
+        mSettings = new InputMethodSettings(resolver);
+    }
+
+    public void testRoundTrip() {
+        mSettings.parse(ENABLED, DISABLED_SYSTEM);
+        assertEquals(ENABLED, mSettings.getEnabledString());
+        assertEquals(DISABLED_SYSTEM, mSettings.getDisabledSystemString());
+
+        assertTrue(mSettings.isEnabled("com.b/.B"));
+        assertFalse(mSettings.isEnabled("com.x/.X"));
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2")),
+                mSettings.getEnabledSubtypes("com.a/.A"));
+        assertTrue(mSettings.getEnabledSubtypes("com.b/.B").isEmpty());
+        assertTrue(mSettings.isDisabledSystem("com.y/.Y"));
+    }
+
+    public void testEmpty() {
+        mSettings.parse(null, "");
+        assertEquals("", mSettings.getEnabledString());
+        assertEquals("", mSettings.getDisabledSystemString());
+        assertTrue(mSettings.getEnabledSubtypes("com.a/.A").isEmpty());
+    }
+
+    public void testEmptyEntriesAreDropped() {
+        mSettings.parse("::com.a/.A;1::com.b/.B", null);
+        assertEquals("com.a/.A;1:com.b/.B", mSettings.getEnabledString());
+    }
+
+    public void testChanges() {
+        mSettings.parse(ENABLED, DISABLED_SYSTEM);
+        mSettings.setEnabledSubtypes("com.b/.B", Arrays.asList("4"));
+        mSettings.setEnabled("com.c/.C", false);
+        mSettings.setEnabled("com.a/.A", true);
+        mSettings.setEnabled("com.d/.D", true);
+        mSettings.setDisabledSystem("com.x/.X", false);
+        mSettings.setDisabledSystem("com.z/.Z", true);
+        assertEquals("com.a/.A;1;2:com.b/.B;4:com.d/.D", mSettings.getEnabledString());
+        assertEquals("com.y/.Y:com.z/.Z", mSettings.getDisabledSystemString());
+    }
+
+    public void testCommitWritesChangesInOneBatch() {
+        mSettings.parse(ENABLED, DISABLED_SYSTEM);
+        assertEquals(0, mSettings.commit(null, false));
+        // The same subtypes in another order aren't a change.
+        mSettings.setEnabledSubtypes("com.a/.A", Arrays.asList("2", "1"));
+        assertEquals(0, mSettings.commit(null, false));
+        assertTrue(mProvider.mBatches.isEmpty());
+
+        mSettings.setEnabledSubtypes("com.a/.A", Arrays.asList("1"));
+        mSettings.setDisabledSystem("com.x/.X", false);
+        assertEquals(3, mSettings.commit("", false));
+        assertEquals(Arrays.asList(Arrays.asList(
+                Settings.Secure.ENABLED_INPUT_METHODS + "=com.a/.A;1:com.b/.B:com.c/.C;3",
+                Settings.Secure.DISABLED_SYSTEM_INPUT_METHODS + "=com.y/.Y",
+                Settings.Secure.DEFAULT_INPUT_METHOD + "=")), mProvider.mBatches);
+
+        // Reading back what was written doesn't parse it again.
+        mSettings.parse("com.a/.A;1:com.b/.B:com.c/.C;3", "com.y/.Y");
+        assertEquals(0, mSettings.commit(null, false));
+        assertEquals(1, mSettings.commit(null, true));
+    }
+
+    @LargeTest
+    public void testToggleSubtypeBenchmark() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BENCHMARK_IMES; i++) {
+            if (i > 0) {
+                builder.append(':');
+            }
+            builder.append("com.example.ime").append(i).append("/.InputMethod");
+            for (int j = 0; j < BENCHMARK_SUBTYPES; j++) {
+                builder.append(';').append(i * BENCHMARK_SUBTYPES + j);
+            }
+        }
+        final String enabled = builder.toString();
+        mSettings.parse(enabled, null);
+        assertEquals(enabled, mSettings.getEnabledString());
+
+        final String imiId = "com.example.ime0/.InputMethod";
+        final List<String> all = new ArrayList<String>(mSettings.getEnabledSubtypes(imiId));
+        final List<String> fewer = all.subList(1, all.size());
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            mSettings.setEnabledSubtypes(imiId, round % 2 == 0 ? fewer : all);
+            mSettings.getEnabledString();
+        }
+        final long model = System.nanoTime() - start;
+
+        String settings = enabled;
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            settings = parseAndToggle(settings, imiId, all.get(0));
+        }
+        final long reparsed = System.nanoTime() - start;
+        assertEquals(enabled.length(), settings.length());
+
+        Log.i(TAG, ROUNDS + " subtype toggles among " + BENCHMARK_IMES + " IMEs with "
+                + BENCHMARK_SUBTYPES + " subtypes each: model " + model / 1000
+                + "us, parsed and built again " + reparsed / 1000 + "us");
+    }
+
+    /** Toggles a subtype the way it was done before the settings were kept parsed. */
+    private static String parseAndToggle(String settings, String imiId, String subtype) {
+        final HashMap<String, HashSet<String>> imes = new HashMap<String, HashSet<String>>();
+        for (String ime : settings.split(":")) {
+            final String[] ids = ime.split(";");
+            final HashSet<String> subtypes = new HashSet<String>();
+            Collections.addAll(subtypes, ids);
+            subtypes.remove(ids[0]);
+            imes.put(ids[0], subtypes);
+        }
+        final HashSet<String> subtypes = imes.get(imiId);
+        if (!subtypes.remove(subtype)) {
+            subtypes.add(subtype);
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (String ime : imes.keySet()) {
+            if (builder.length() > 0) {
+                builder.append(':');
+            }
+            builder.append(ime);
+            for (String id : imes.get(ime)) {
+                builder.append(';').append(id);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.inputmethod;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.text.TextUtils;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link InputServiceListBuilder} gives the installed input methods with the
+ * names they would load themselves, in order and on the main thread, and loads them
+ * only once.
+ */
+public class InputServiceListBuilderTest extends AndroidTestCase {
+    private static final long TIMEOUT = 10000;
+
+    private List<InputMethodInfo> mImis;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final InputMethodManager imm = (InputMethodManager) getContext().getSystemService(
+                Context.INPUT_METHOD_SERVICE);
+        mImis = imm.getInputMethodList();
+    }
+
+    public void testInputMethodList() throws InterruptedException {
+        final List<InputServiceListBuilder.Entry<InputMethodInfo>> entries = build();
+        assertEquals(mImis.size(), entries.size());
+        final PackageManager pm = getContext().getPackageManager();
+        for (int i = 0; i < entries.size(); i++) {
+            final InputServiceListBuilder.Entry<InputMethodInfo> entry = entries.get(i);
+            final InputMethodInfo imi = mImis.get(i);
+            assertSame(imi, entry.mInfo);
+            assertTrue(TextUtils.equals(imi.loadLabel(pm), entry.mLabel));
+            assertEquals(imi.getSubtypeCount(), entry.mSubtypeNames.length);
+        }
+    }
+
+    public void testNamesAreCached() throws InterruptedException {
+        final List<InputServiceListBuilder.Entry<InputMethodInfo>> first = build();
+        final List<InputServiceListBuilder.Entry<InputMethodInfo>> second = build();
+        for (int i = 0; i < first.size(); i++) {
+            assertSame(first.get(i).mLabel, second.get(i).mLabel);
+            assertSame(first.get(i).mSubtypeNames, second.get(i).mSubtypeNames);
+        }
+    }
+
+    public void testEmptyList() throws InterruptedException {
+        mImis = new ArrayList<InputMethodInfo>();
+        assertTrue(build().isEmpty());
+    }
+
+    private List<InputServiceListBuilder.Entry<InputMethodInfo>> build()
+            throws InterruptedException {
+        final List<InputServiceListBuilder.Entry<InputMethodInfo>> result =
+                new ArrayList<InputServiceListBuilder.Entry<InputMethodInfo>>();
+        final CountDownLatch built = new CountDownLatch(1);
+        final boolean[] onMainThread = new boolean[1];
+        InputServiceListBuilder.buildInputMethodList(getContext(), mImis,
+                new InputServiceListBuilder.Callback<InputMethodInfo>() {
+                    public void onListBuilt(
+                            List<InputServiceListBuilder.Entry<InputMethodInfo>> entries) {
+                        onMainThread[0] = Looper.myLooper() == Looper.getMainLooper();
+                        result.addAll(entries);
+                        built.countDown();
+                    }
+                });
+        // An empty list is given right away.
+        assertTrue(built.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        if (!mImis.isEmpty()) {
+            assertTrue(onMainThread[0]);
+        }
+        return result;
+    }
+}
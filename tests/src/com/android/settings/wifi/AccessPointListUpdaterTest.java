@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.preference.Preference;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays synthetic scan streams through {@link AccessPointListUpdater#diff} and checks
+ * that applying its inserts and removes gives the wanted list, with far fewer changes
+ * than rebuilding the list on every scan.
+ */
+public class AccessPointListUpdaterTest extends AndroidTestCase {
+    private static final String TAG = "AccessPointListUpdaterTest";
+
+    private static final int NETWORKS = 60;
+    private static final int SCANS = 200;
+
+    public void testUnchanged() {
+        final List<AccessPoint> accessPoints = createAccessPoints(3);
+        Collections.sort(accessPoints);
+        final ArrayList<Preference> removed = new ArrayList<Preference>();
+        final ArrayList<AccessPoint> added = new ArrayList<AccessPoint>();
+        assertFalse(AccessPointListUpdater.diff(accessPoints, accessPoints,
+                new ArrayList<AccessPoint>(accessPoints), removed, added));
+        assertTrue(removed.isEmpty());
+        assertTrue(added.isEmpty());
+    }
+
+    public void testReorderOnly() {
+        final List<AccessPoint> accessPoints = createAccessPoints(3);
+        final List<AccessPoint> reversed = new ArrayList<AccessPoint>(accessPoints);
+        Collections.reverse(reversed);
+        final ArrayList<Preference> removed = new ArrayList<Preference>();
+        final ArrayList<AccessPoint> added = new ArrayList<AccessPoint>();
+        assertTrue(AccessPointListUpdater.diff(accessPoints, accessPoints, reversed,
+                removed, added));
+        assertTrue(removed.isEmpty());
+        assertTrue(added.isEmpty());
+    }
+
+    public void testInsertAndRemove() {
+        final List<AccessPoint> accessPoints = createAccessPoints(4);
+        final List<AccessPoint> shown = accessPoints.subList(0, 3);
+        final List<AccessPoint> wanted = accessPoints.subList(1, 4);
+        final ArrayList<Preference> removed = new ArrayList<Preference>();
+        final ArrayList<AccessPoint> added = new ArrayList<AccessPoint>();
+        assertFalse(AccessPointListUpdater.diff(shown, shown, wanted, removed, added));
+        assertEquals(1, removed.size());
+        assertSame(accessPoints.get(0), removed.get(0));
+        assertEquals(1, added.size());
+        assertSame(accessPoints.get(3), added.get(0));
+    }
+
+    public void testSyntheticScanStream() {
+        final Random random = new Random(0);
+        final List<AccessPoint> all = createAccessPoints(NETWORKS);
+        final ArrayList<Preference> shown = new ArrayList<Preference>();
+        List<AccessPoint> lastOrder = Collections.emptyList();
+
+        int diffed = 0;
+        int rebuilt = 0;
+        long nanos = 0;
+        for (int scan = 0; scan < SCANS; scan++) {
+            // About a tenth of the networks come and go on each scan, the rest drift.
+            final List<AccessPoint> wanted = new ArrayList<AccessPoint>();
+            for (int i = 0; i < NETWORKS; i++) {
+                if (i < NETWORKS * 3 / 4 || random.nextInt(10) < 6) {
+                    final AccessPoint accessPoint = all.get(i);
+                    accessPoint.beginScanResults();
+                    accessPoint.update(scanResult(accessPoint.ssid,
+                            -45 - (i + random.nextInt(8)) % 50));
+                    accessPoint.endScanResults();
+                    wanted.add(accessPoint);
+                }
+            }
+            Collections.sort(wanted);
+
+            final ArrayList<Preference> removed = new ArrayList<Preference>();
+            final ArrayList<AccessPoint> added = new ArrayList<AccessPoint>();
+            final long start = System.nanoTime();
+            final boolean moved = AccessPointListUpdater.diff(shown, lastOrder, wanted,
+                    removed, added);
+            nanos += System.nanoTime() - start;
+
+            shown.removeAll(removed);
+            shown.addAll(added);
+            assertEquals(new HashSet<Preference>(wanted), new HashSet<Preference>(shown));
+            assertEquals(shown.size(), wanted.size());
+
+            diffed += removed.size() + added.size() + (moved ? 1 : 0);
+            rebuilt += lastOrder.size() + wanted.size();
+            lastOrder = wanted;
+        }
+        Log.i(TAG, SCANS + " scans of up to " + NETWORKS + " networks: " + diffed
+                + " preference changes, " + rebuilt + " when rebuilding, diff "
+                + nanos / SCANS / 1000 + "us per scan");
+        assertTrue(diffed * 4 < rebuilt);
+    }
+
+    private List<AccessPoint> createAccessPoints(int count) {
+        final ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>(count);
+        for (int i = 0; i < count; i++) {
+            accessPoints.add(new AccessPoint(getContext(), scanResult("Network" + i,
+                    -50 - i % 40)));
+        }
+        return accessPoints;
+    }
+
+    private static ScanResult scanResult(String ssid, int level) {
+        return new ScanResult(ssid, "00:11:22:33:44:55", "", level, 2412);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiConfiguration.KeyMgmt;
+import android.net.wifi.WifiManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that ordering {@link AccessPoint}s by their packed sort key gives the same
+ * order as comparing their fields, and logs how long both take for lists of 50, 200
+ * and 1000 scan results.
+ */
+@LargeTest
+public class AccessPointOrderingTest extends AndroidTestCase {
+    private static final String TAG = "AccessPointOrderingTest";
+
+    private static final int[] SIZES = { 50, 200, 1000 };
+    private static final int ROUNDS = 20;
+
+    /** The field by field comparison AccessPoint.compareTo() used to do. */
+    private static final Comparator<AccessPoint> FIELD_ORDER = new Comparator<AccessPoint>() {
+        public int compare(AccessPoint a, AccessPoint b) {
+            if (a.getInfo() != b.getInfo()) {
+                return (a.getInfo() != null) ? -1 : 1;
+            }
+            if ((a.getRssi() ^ b.getRssi()) < 0) {
+                return (a.getRssi() != Integer.MAX_VALUE) ? -1 : 1;
+            }
+            if ((a.networkId ^ b.networkId) < 0) {
+                return (a.networkId != -1) ? -1 : 1;
+            }
+            int difference = WifiManager.compareSignalLevel(b.getRssi(), a.getRssi());
+            if (difference != 0) {
+                return difference;
+            }
+            return a.ssid.compareToIgnoreCase(b.ssid);
+        }
+    };
+
+    public void testSortKeyMatchesFieldOrder() {
+        for (int size : SIZES) {
+            final List<AccessPoint> accessPoints = createAccessPoints(size, new Random(size));
+
+            final List<AccessPoint> byKey = new ArrayList<AccessPoint>(accessPoints);
+            final List<AccessPoint> byFields = new ArrayList<AccessPoint>(accessPoints);
+            Collections.sort(byKey);
+            Collections.sort(byFields, FIELD_ORDER);
+            for (int i = 0; i < size; i++) {
+                assertEquals(0, FIELD_ORDER.compare(byKey.get(i), byFields.get(i)));
+            }
+
+            long keyTime = 0;
+            long fieldTime = 0;
+            long resortTime = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                Collections.shuffle(byKey, new Random(round));
+                byFields.clear();
+                byFields.addAll(byKey);
+
+                long start = System.nanoTime();
+                Collections.sort(byKey);
+                keyTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Collections.sort(byFields, FIELD_ORDER);
+                fieldTime += System.nanoTime() - start;
+
+                // What an update does when little changed since the last scan.
+                start = System.nanoTime();
+                Collections.sort(byKey);
+                resortTime += System.nanoTime() - start;
+            }
+            Log.i(TAG, size + " access points: sort key " + keyTime / ROUNDS / 1000
+                    + "us, fields " + fieldTime / ROUNDS / 1000 + "us, re-sort "
+                    + resortTime / ROUNDS / 1000 + "us");
+        }
+    }
+
+    public void testSsidTieBreak() {
+        final AccessPoint a = new AccessPoint(getContext(), scanResult("Guest-B", -50));
+        final AccessPoint b = new AccessPoint(getContext(), scanResult("guest-a", -50));
+        assertTrue(a.compareTo(b) > 0);
+        assertTrue(b.compareTo(a) < 0);
+        assertEquals(0, a.compareTo(new AccessPoint(getContext(), scanResult("GUEST-b", -50))));
+    }
+
+    private List<AccessPoint> createAccessPoints(int count, Random random) {
+        final ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>(count);
+        for (int i = 0; i < count; i++) {
+            // Few distinct prefixes and levels, so that ties are common.
+            final String ssid = (char) ('a' + random.nextInt(4)) + "P-"
+                    + random.nextInt(count);
+            if (random.nextInt(10) == 0) {
+                final WifiConfiguration config = new WifiConfiguration();
+                config.SSID = AccessPoint.convertToQuotedString(ssid);
+                config.networkId = i;
+                config.allowedKeyManagement.set(KeyMgmt.NONE);
+                final AccessPoint accessPoint = new AccessPoint(getContext(), config);
+                if (random.nextBoolean()) {
+                    accessPoint.beginScanResults();
+                    accessPoint.update(scanResult(ssid, -40 - random.nextInt(50)));
+                    accessPoint.endScanResults();
+                }
+                accessPoints.add(accessPoint);
+            } else {
+                accessPoints.add(new AccessPoint(getContext(),
+                        scanResult(ssid, -40 - random.nextInt(50))));
+            }
+        }
+        return accessPoints;
+    }
+
+    private static ScanResult scanResult(String ssid, int level) {
+        return new ScanResult(ssid, "00:11:22:33:44:55", "", level, 2412);
+    }
+}
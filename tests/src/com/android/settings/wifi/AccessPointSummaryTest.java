@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiConfiguration.KeyMgmt;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that {@link AccessPoint} summaries are built only once per state, and still
+ * read as they did when refresh() built them on every update.
+ */
+public class AccessPointSummaryTest extends AndroidTestCase {
+    private static final String TAG = "AccessPointSummaryTest";
+
+    private static final String[] CAPABILITIES = {
+        "", "[WEP]", "[WPA-PSK-CCMP]", "[WPA2-PSK-CCMP]", "[WPA2-PSK-CCMP][WPS]", "[WPA2-EAP]"
+    };
+    private static final int COUNT = 200;
+    private static final int SCANS = 10;
+
+    public void testSummaries() {
+        assertEquals(getContext().getString(R.string.wifi_not_in_range),
+                summary(new AccessPoint(getContext(), config("Saved"))));
+
+        final String open = summary(new AccessPoint(getContext(), result("Open", "", -60)));
+        assertEquals("", open);
+
+        final AccessPoint wps = new AccessPoint(getContext(),
+                result("Wps", "[WPA2-PSK-CCMP][WPS]", -60));
+        final String expected = String.format(
+                getContext().getString(R.string.wifi_secured_first_item),
+                getContext().getString(R.string.wifi_security_short_wpa2))
+                + getContext().getString(R.string.wifi_wps_available_second_item);
+        assertEquals(expected, summary(wps));
+    }
+
+    public void testSummaryFollowsState() {
+        final AccessPoint accessPoint = new AccessPoint(getContext(), config("Saved"));
+        final String outOfRange = summary(accessPoint);
+
+        accessPoint.beginScanResults();
+        accessPoint.update(result("Saved", "", -60));
+        accessPoint.endScanResults();
+        assertEquals(getContext().getString(R.string.wifi_remembered), summary(accessPoint));
+
+        accessPoint.beginScanResults();
+        accessPoint.endScanResults();
+        assertEquals(outOfRange, summary(accessPoint));
+    }
+
+    public void testSummariesAreBuiltOncePerState() {
+        final List<AccessPoint> accessPoints = new ArrayList<AccessPoint>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            accessPoints.add(new AccessPoint(getContext(), result("AP" + i,
+                    CAPABILITIES[i % CAPABILITIES.length], -60)));
+        }
+        for (AccessPoint accessPoint : accessPoints) {
+            summary(accessPoint);
+        }
+
+        final int before = AccessPoint.getSummariesBuilt();
+        int updates = 0;
+        for (int scan = 0; scan < SCANS; scan++) {
+            for (int i = 0; i < COUNT; i++) {
+                final AccessPoint accessPoint = accessPoints.get(i);
+                accessPoint.beginScanResults();
+                accessPoint.update(result("AP" + i, CAPABILITIES[i % CAPABILITIES.length],
+                        -50 - (scan + i) % 40));
+                accessPoint.endScanResults();
+                updates++;
+            }
+            for (AccessPoint accessPoint : accessPoints) {
+                summary(accessPoint);
+            }
+        }
+        final int built = AccessPoint.getSummariesBuilt() - before;
+        // Each update used to build a summary.
+        Log.i(TAG, SCANS + " scans of " + COUNT + " access points: " + built
+                + " summaries built, was " + updates);
+        assertEquals(0, built);
+    }
+
+    private static String summary(AccessPoint accessPoint) {
+        final CharSequence summary = accessPoint.getSummary();
+        return summary == null ? null : summary.toString();
+    }
+
+    private static WifiConfiguration config(String ssid) {
+        final WifiConfiguration config = new WifiConfiguration();
+        config.SSID = AccessPoint.convertToQuotedString(ssid);
+        config.networkId = 1;
+        config.allowedKeyManagement.set(KeyMgmt.NONE);
+        return config;
+    }
+
+    private static ScanResult result(String ssid, String capabilities, int level) {
+        return new ScanResult(ssid, "00:11:22:33:44:55", capabilities, level, 2412);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays recorded scan sequences through {@link SignalHistory} and {@link AccessPoint}.
+ */
+public class SignalHistoryTest extends AndroidTestCase {
+    private static final String OFFICE_1 = "00:1a:2b:3c:4d:01";
+    private static final String OFFICE_2 = "00:1a:2b:3c:4d:02";
+    private static final String LOBBY = "00:1a:2b:3c:4d:10";
+
+    /**
+     * Levels of three BSSIDs over twelve scans, taken at a desk with two access points
+     * of similar strength and one in the lobby that fades out while walking away.
+     */
+    private static final int[][] DESK_RECORDING = {
+        // OFFICE_1, OFFICE_2, LOBBY
+        { -61, -63, -70 },
+        { -64, -60, -71 },
+        { -60, -64, -72 },
+        { -63, -61, -74 },
+        { -62, -62, -77 },
+        { -60, -65, -79 },
+        { -65, -60, -82 },
+        { -61, -63, -84 },
+        { -63, -61, -86 },
+        { -60, -64, -88 },
+        { -64, -60, -89 },
+        { -61, -62, -90 },
+    };
+
+    public void testSmoothingDampsNoise() {
+        final SignalHistory history = new SignalHistory();
+        int lastSmoothed = Integer.MAX_VALUE;
+        int maxStep = 0;
+        for (int[] scan : DESK_RECORDING) {
+            history.beginScan();
+            history.add(OFFICE_1, scan[0]);
+            final int smoothed = history.getSmoothedRssi(OFFICE_1);
+            if (lastSmoothed != Integer.MAX_VALUE) {
+                maxStep = Math.max(maxStep, Math.abs(smoothed - lastSmoothed));
+            }
+            lastSmoothed = smoothed;
+        }
+        // Raw levels jump by up to 5 dB from scan to scan.
+        assertTrue("smoothed signal moved by " + maxStep, maxStep <= 3);
+        assertTrue(lastSmoothed <= -60 && lastSmoothed >= -65);
+    }
+
+    public void testTrends() {
+        final SignalHistory history = new SignalHistory();
+        for (int[] scan : DESK_RECORDING) {
+            history.beginScan();
+            history.add(OFFICE_1, scan[0]);
+            history.add(OFFICE_2, scan[1]);
+            history.add(LOBBY, scan[2]);
+        }
+        assertEquals(SignalHistory.TREND_STABLE, history.getTrend(OFFICE_1));
+        assertEquals(SignalHistory.TREND_STABLE, history.getTrend(OFFICE_2));
+        assertEquals(SignalHistory.TREND_FALLING, history.getTrend(LOBBY));
+        assertEquals(SignalHistory.TREND_STABLE, history.getTrend("00:00:00:00:00:00"));
+    }
+
+    public void testStrongestResultOfScanIsKept() {
+        final SignalHistory history = new SignalHistory();
+        history.beginScan();
+        history.add(OFFICE_1, -80);
+        history.add(OFFICE_1, -55);
+        history.add(OFFICE_1, -70);
+        assertEquals(-55, history.getSmoothedRssi(OFFICE_1));
+    }
+
+    public void testOldSamplesExpire() {
+        final SignalHistory history = new SignalHistory();
+        history.beginScan();
+        history.add(OFFICE_1, -60);
+        for (int i = 0; i < SignalHistory.SAMPLES; i++) {
+            history.beginScan();
+        }
+        assertEquals(Integer.MAX_VALUE, history.getSmoothedRssi(OFFICE_1));
+    }
+
+    public void testMemoryIsCapped() {
+        final SignalHistory history = new SignalHistory();
+        final int count = SignalHistory.MAX_BSSIDS * 2;
+        for (int i = 0; i < count; i++) {
+            history.beginScan();
+            history.add(bssid(i), -70);
+        }
+        assertEquals(SignalHistory.MAX_BSSIDS, history.size());
+        // The least recently seen were evicted.
+        assertEquals(Integer.MAX_VALUE, history.getSmoothedRssi(bssid(0)));
+        assertEquals(-70, history.getSmoothedRssi(bssid(count - 1)));
+    }
+
+    public void testMalformedBssidsAreIgnored() {
+        final SignalHistory history = new SignalHistory();
+        history.beginScan();
+        history.add(null, -60);
+        history.add("not a bssid", -60);
+        history.add("00:1a:2b:3c:4d:zz", -60);
+        assertEquals(0, history.size());
+    }
+
+    /**
+     * Two networks whose signals keep crossing by a few dB must not swap places on every
+     * scan once smoothed and ordered with hysteresis.
+     */
+    public void testOrderIsStableWhenReplayed() {
+        final SignalHistory history = new SignalHistory();
+        final AccessPoint first = new AccessPoint(getContext(), scanResult("Office", OFFICE_1,
+                DESK_RECORDING[0][0]));
+        final AccessPoint second = new AccessPoint(getContext(), scanResult("Corp", OFFICE_2,
+                DESK_RECORDING[0][1]));
+        final List<AccessPoint> list = new ArrayList<AccessPoint>();
+        list.add(first);
+        list.add(second);
+
+        int reorders = 0;
+        AccessPoint top = null;
+        for (int[] scan : DESK_RECORDING) {
+            history.beginScan();
+            history.add(OFFICE_1, scan[0]);
+            history.add(OFFICE_2, scan[1]);
+            merge(first, history, "Office", OFFICE_1, scan[0]);
+            merge(second, history, "Corp", OFFICE_2, scan[1]);
+            Collections.sort(list);
+            if (top != null && top != list.get(0)) {
+                reorders++;
+            }
+            top = list.get(0);
+        }
+        assertEquals(0, reorders);
+    }
+
+    private static void merge(AccessPoint accessPoint, SignalHistory history, String ssid,
+            String bssid, int level) {
+        accessPoint.beginScanResults();
+        accessPoint.update(scanResult(ssid, bssid, level), history.getSmoothedRssi(bssid),
+                history.getTrend(bssid));
+        assertTrue(accessPoint.endScanResults());
+    }
+
+    private static ScanResult scanResult(String ssid, String bssid, int level) {
+        return new ScanResult(ssid, bssid, "", level, 2412);
+    }
+
+    private static String bssid(int i) {
+        return String.format("02:00:00:00:%02x:%02x", (i >> 8) & 0xff, i & 0xff);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.NetworkInfo.DetailedState;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Drives {@link WifiScanPolicy} with a fake {@link WifiManager} and canned scan results.
+ */
+public class WifiScanPolicyTest extends AndroidTestCase {
+
+    private static class FakeWifiManager extends WifiManager {
+        boolean mScanStarts = true;
+        int mScans;
+
+        FakeWifiManager() {
+            super(null, null);
+        }
+
+        @Override
+        public boolean startScanActive() {
+            mScans++;
+            return mScanStarts;
+        }
+    }
+
+    private FakeWifiManager mWifiManager;
+    private WifiScanPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWifiManager = new FakeWifiManager();
+        mPolicy = new WifiScanPolicy(mWifiManager);
+        mPolicy.onResume();
+    }
+
+    public void testUnchangedResultsBackOff() {
+        final List<ScanResult> results = results(-60, -70);
+        long expected = WifiScanPolicy.MIN_INTERVAL_MS;
+        assertEquals(expected, mPolicy.scan());
+        mPolicy.onScanResults(results);
+        for (int i = 0; i < 10; i++) {
+            mPolicy.onScanResults(results);
+            expected = Math.min(expected * 2, WifiScanPolicy.MAX_INTERVAL_MS);
+            assertEquals(expected, mPolicy.scan());
+        }
+        assertEquals(WifiScanPolicy.MAX_INTERVAL_MS, mPolicy.getInterval());
+        assertEquals(11, mWifiManager.mScans);
+    }
+
+    public void testChangedResultsScanFast() {
+        mPolicy.onScanResults(results(-60, -70));
+        mPolicy.onScanResults(results(-60, -70));
+        mPolicy.onScanResults(results(-60, -70));
+        assertTrue(mPolicy.getInterval() > WifiScanPolicy.MIN_INTERVAL_MS);
+
+        // A new access point shows up.
+        mPolicy.onScanResults(results(-60, -70, -80));
+        assertEquals(WifiScanPolicy.MIN_INTERVAL_MS, mPolicy.getInterval());
+        mPolicy.onScanResults(results(-60, -70, -80));
+
+        // A signal crosses a level.
+        mPolicy.onScanResults(results(-60, -90, -80));
+        assertEquals(WifiScanPolicy.MIN_INTERVAL_MS, mPolicy.getInterval());
+    }
+
+    public void testSignatureIgnoresOrderAndNoise() {
+        final List<ScanResult> results = results(-60, -70, -80);
+        final long signature = WifiScanPolicy.getSignature(results);
+        Collections.reverse(results);
+        assertEquals(signature, WifiScanPolicy.getSignature(results));
+        assertEquals(signature, WifiScanPolicy.getSignature(results(-61, -70, -80)));
+        assertFalse(signature == WifiScanPolicy.getSignature(results(-60, -70)));
+        assertEquals(0, WifiScanPolicy.getSignature(null));
+    }
+
+    public void testResumeAndInteractionScanFast() {
+        final List<ScanResult> results = results(-60);
+        mPolicy.onScanResults(results);
+        mPolicy.onScanResults(results);
+        mPolicy.onScanResults(results);
+        mPolicy.onUserInteraction();
+        assertEquals(WifiScanPolicy.MIN_INTERVAL_MS, mPolicy.getInterval());
+
+        mPolicy.onScanResults(results);
+        mPolicy.onScanResults(results);
+        mPolicy.onResume();
+        assertEquals(WifiScanPolicy.MIN_INTERVAL_MS, mPolicy.getInterval());
+    }
+
+    public void testNoScansWhileConnecting() {
+        assertTrue(WifiScanPolicy.isConnecting(DetailedState.AUTHENTICATING));
+        assertTrue(WifiScanPolicy.isConnecting(DetailedState.OBTAINING_IPADDR));
+        assertFalse(WifiScanPolicy.isConnecting(DetailedState.CONNECTED));
+        assertFalse(WifiScanPolicy.isConnecting(DetailedState.DISCONNECTED));
+
+        mPolicy.setConnecting(true);
+        assertEquals(WifiScanPolicy.MIN_INTERVAL_MS, mPolicy.scan());
+        assertEquals(WifiScanPolicy.MIN_INTERVAL_MS, mPolicy.scan());
+        assertEquals(0, mWifiManager.mScans);
+        assertEquals(2, mPolicy.getSkippedCount());
+
+        mPolicy.setConnecting(false);
+        mPolicy.scan();
+        assertEquals(1, mWifiManager.mScans);
+        assertEquals(1, mPolicy.getScanCount());
+    }
+
+    public void testStopsAfterFailures() {
+        mWifiManager.mScanStarts = false;
+        for (int i = 1; i < WifiScanPolicy.MAX_FAILURES; i++) {
+            assertTrue(mPolicy.scan() != WifiScanPolicy.STOP);
+        }
+        assertEquals(WifiScanPolicy.STOP, mPolicy.scan());
+
+        // A success in between starts counting again.
+        mPolicy.onResume();
+        mPolicy.scan();
+        mWifiManager.mScanStarts = true;
+        mPolicy.scan();
+        mWifiManager.mScanStarts = false;
+        for (int i = 1; i < WifiScanPolicy.MAX_FAILURES; i++) {
+            assertTrue(mPolicy.scan() != WifiScanPolicy.STOP);
+        }
+    }
+
+    public void testChangeRate() {
+        assertEquals(0f, mPolicy.getResultChangeRate());
+        mPolicy.onScanResults(results(-60));
+        mPolicy.onScanResults(results(-60));
+        mPolicy.onScanResults(results(-60));
+        mPolicy.onScanResults(results(-60, -70));
+        assertEquals(4, mPolicy.getResultCount());
+        assertEquals(0.5f, mPolicy.getResultChangeRate());
+    }
+
+    /** One result per level, each from its own BSSID. */
+    private static List<ScanResult> results(int... levels) {
+        final List<ScanResult> results = new ArrayList<ScanResult>(levels.length);
+        for (int i = 0; i < levels.length; i++) {
+            results.add(new ScanResult("Network" + i, "00:1a:2b:3c:4d:0" + i, "", levels[i],
+                    2412));
+        }
+        return results;
+    }
+}
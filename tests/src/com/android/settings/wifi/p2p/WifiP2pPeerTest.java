@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi.p2p;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.test.AndroidTestCase;
+
+import com.android.settings.R;
+
+/**
+ * Tests updating a {@link WifiP2pPeer} row in place.
+ */
+public class WifiP2pPeerTest extends AndroidTestCase {
+    private static final String ADDRESS = "02:1a:2b:3c:4d:5e";
+
+    public void testUpdateKeepsRowCurrent() {
+        final WifiP2pPeer peer = new WifiP2pPeer(getContext(),
+                device("Phone", WifiP2pDevice.AVAILABLE));
+        assertEquals("Phone", peer.getTitle());
+        final String[] statusArray =
+                getContext().getResources().getStringArray(R.array.wifi_p2p_status);
+        assertEquals(statusArray[WifiP2pDevice.AVAILABLE], peer.getSummary());
+
+        final WifiP2pDevice invited = device("Phone", WifiP2pDevice.INVITED);
+        peer.update(invited);
+        assertSame(invited, peer.device);
+        assertEquals(statusArray[WifiP2pDevice.INVITED], peer.getSummary());
+
+        peer.update(device(null, WifiP2pDevice.INVITED));
+        assertEquals(ADDRESS, peer.getTitle());
+    }
+
+    public void testOrderFollowsUpdates() {
+        final WifiP2pPeer a = new WifiP2pPeer(getContext(),
+                device("A", WifiP2pDevice.AVAILABLE));
+        final WifiP2pPeer b = new WifiP2pPeer(getContext(),
+                device("B", WifiP2pDevice.AVAILABLE));
+        assertTrue(a.compareTo(b) < 0);
+        b.update(device("B", WifiP2pDevice.CONNECTED));
+        assertTrue(b.compareTo(a) < 0);
+    }
+
+    private static WifiP2pDevice device(String name, int status) {
+        final WifiP2pDevice device = new WifiP2pDevice();
+        device.deviceAddress = ADDRESS;
+        device.deviceName = name;
+        device.status = status;
+        return device;
+    }
+}